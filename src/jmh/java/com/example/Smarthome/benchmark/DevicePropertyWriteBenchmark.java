@@ -0,0 +1,192 @@
+package com.example.Smarthome.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Изменение одного свойства устройства, у которого propertyCount свойств:
+ * таблица коллекции (перезапись всех строк, как при сохранении сущности с новой картой,
+ * и UPSERT одной строки) против jsonb-колонки (jsonb_set и запись документа целиком).
+ * <p>
+ * Нужен PostgreSQL: JMH_DB_URL, JMH_DB_USER, JMH_DB_PASSWORD (по умолчанию база приложения).
+ * Таблицы bench_* создаются и удаляются бенчмарком. По завершении каждого прогона печатается
+ * объём WAL на операцию - оценка усиления записи; другие клиенты базы искажают это значение.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DevicePropertyWriteBenchmark {
+
+    @Param({"10", "50"})
+    public int propertyCount;
+
+    private Connection connection;
+    private PreparedStatement deleteRows;
+    private PreparedStatement insertRow;
+    private PreparedStatement upsertRow;
+    private PreparedStatement jsonbSetStatement;
+    private PreparedStatement jsonbDocumentStatement;
+
+    private UUID deviceId;
+    private String walStart;
+    private long operations;
+
+    @Setup
+    public void setup() throws SQLException {
+        connection = DriverManager.getConnection(
+                env("JMH_DB_URL", "jdbc:postgresql://localhost:5433/smarthome"),
+                env("JMH_DB_USER", "postgres"),
+                env("JMH_DB_PASSWORD", "postgres"));
+        connection.setAutoCommit(true);
+
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("DROP TABLE IF EXISTS bench_device_properties, bench_devices");
+            statement.execute("CREATE TABLE bench_devices (id uuid PRIMARY KEY, properties_json jsonb)");
+            statement.execute("CREATE TABLE bench_device_properties (device_id uuid NOT NULL, " +
+                    "property_name varchar(255) NOT NULL, property_value varchar(255), " +
+                    "PRIMARY KEY (device_id, property_name))");
+            statement.execute("CREATE INDEX ON bench_devices USING gin (properties_json jsonb_path_ops)");
+        }
+
+        deviceId = UUID.randomUUID();
+        try (PreparedStatement insertDevice = connection.prepareStatement(
+                "INSERT INTO bench_devices (id, properties_json) VALUES (?, ?::jsonb)")) {
+            insertDevice.setObject(1, deviceId);
+            insertDevice.setString(2, document(0));
+            insertDevice.executeUpdate();
+        }
+
+        deleteRows = connection.prepareStatement("DELETE FROM bench_device_properties WHERE device_id = ?");
+        insertRow = connection.prepareStatement(
+                "INSERT INTO bench_device_properties (device_id, property_name, property_value) VALUES (?, ?, ?)");
+        upsertRow = connection.prepareStatement(
+                "INSERT INTO bench_device_properties (device_id, property_name, property_value) VALUES (?, ?, ?) " +
+                "ON CONFLICT (device_id, property_name) DO UPDATE SET property_value = EXCLUDED.property_value");
+        jsonbSetStatement = connection.prepareStatement(
+                "UPDATE bench_devices SET properties_json = jsonb_set(properties_json, ARRAY[?], to_jsonb(?::text)) " +
+                "WHERE id = ?");
+        jsonbDocumentStatement = connection.prepareStatement(
+                "UPDATE bench_devices SET properties_json = ?::jsonb WHERE id = ?");
+
+        rewriteRows(0);
+        walStart = queryString("SELECT pg_current_wal_insert_lsn()::text");
+        operations = 0;
+    }
+
+    @TearDown
+    public void tearDown() throws SQLException {
+        try (PreparedStatement diff = connection.prepareStatement(
+                "SELECT pg_wal_lsn_diff(pg_current_wal_insert_lsn(), ?::pg_lsn)")) {
+            diff.setString(1, walStart);
+            try (ResultSet rs = diff.executeQuery()) {
+                rs.next();
+                long walBytes = rs.getLong(1);
+                System.out.printf("%nWAL: %d байт на операцию (%d операций, %d свойств)%n",
+                        operations > 0 ? walBytes / operations : 0, operations, propertyCount);
+            }
+        }
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("DROP TABLE IF EXISTS bench_device_properties, bench_devices");
+        }
+        connection.close();
+    }
+
+    /**
+     * Сохранение сущности с новой картой: удаление и вставка всех строк коллекции
+     */
+    @Benchmark
+    public void collectionRewrite() throws SQLException {
+        rewriteRows(++operations);
+    }
+
+    /**
+     * Запись одного свойства в таблицу коллекции
+     */
+    @Benchmark
+    public int collectionUpsert() throws SQLException {
+        upsertRow.setObject(1, deviceId);
+        upsertRow.setString(2, "property0");
+        upsertRow.setString(3, String.valueOf(++operations));
+        return upsertRow.executeUpdate();
+    }
+
+    /**
+     * Запись одного свойства в jsonb-колонку
+     */
+    @Benchmark
+    public int jsonbSet() throws SQLException {
+        jsonbSetStatement.setString(1, "property0");
+        jsonbSetStatement.setString(2, String.valueOf(++operations));
+        jsonbSetStatement.setObject(3, deviceId);
+        return jsonbSetStatement.executeUpdate();
+    }
+
+    /**
+     * Сохранение сущности в режиме JSONB: документ записывается целиком
+     */
+    @Benchmark
+    public int jsonbDocument() throws SQLException {
+        jsonbDocumentStatement.setString(1, document(++operations));
+        jsonbDocumentStatement.setObject(2, deviceId);
+        return jsonbDocumentStatement.executeUpdate();
+    }
+
+    private void rewriteRows(long version) throws SQLException {
+        connection.setAutoCommit(false);
+        try {
+            deleteRows.setObject(1, deviceId);
+            deleteRows.executeUpdate();
+            for (int i = 0; i < propertyCount; i++) {
+                insertRow.setObject(1, deviceId);
+                insertRow.setString(2, "property" + i);
+                insertRow.setString(3, i == 0 ? String.valueOf(version) : "value" + i);
+                insertRow.addBatch();
+            }
+            insertRow.executeBatch();
+            connection.commit();
+        } finally {
+            connection.setAutoCommit(true);
+        }
+    }
+
+    private String document(long version) {
+        StringBuilder json = new StringBuilder("{");
+        for (int i = 0; i < propertyCount; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("\"property").append(i).append("\":\"")
+                    .append(i == 0 ? String.valueOf(version) : "value" + i).append('"');
+        }
+        return json.append('}').toString();
+    }
+
+    private String queryString(String sql) throws SQLException {
+        try (Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery(sql)) {
+            rs.next();
+            return rs.getString(1);
+        }
+    }
+
+    private static String env(String name, String defaultValue) {
+        String value = System.getenv(name);
+        return value != null && !value.isBlank() ? value : defaultValue;
+    }
+}
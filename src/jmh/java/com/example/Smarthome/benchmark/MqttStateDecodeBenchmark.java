@@ -0,0 +1,64 @@
+package com.example.Smarthome.benchmark;
+
+import com.example.Smarthome.config.MqttStatePayloadDecoder;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Сравнение разбора MQTT сообщения о состоянии: прежний способ
+ * (String + regex + TypeReference + UUID.fromString) и потоковый декодер.
+ * Выделение памяти на сообщение смотреть в метрике gc.alloc.rate.norm.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MqttStateDecodeBenchmark {
+
+    private final Pattern stateTopicPattern = Pattern.compile("smarthome/state/([^/]+)");
+    private final TypeReference<Map<String, String>> typeReference = new TypeReference<>() {};
+
+    private ObjectMapper objectMapper;
+    private MqttStatePayloadDecoder decoder;
+    private String topic;
+    private byte[] payload;
+
+    @Setup
+    public void setup() {
+        objectMapper = new ObjectMapper();
+        decoder = new MqttStatePayloadDecoder(objectMapper);
+        topic = MqttStatePayloadDecoder.STATE_TOPIC_PREFIX + UUID.randomUUID();
+        payload = "{\"power\":\"on\",\"brightness\":\"75\",\"color\":\"#ffcc00\",\"temperature\":21.5,\"online\":true}"
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public void regexAndTypeReference(Blackhole blackhole) throws Exception {
+        String text = new String(payload);
+        Matcher matcher = stateTopicPattern.matcher(topic);
+        if (matcher.matches()) {
+            blackhole.consume(UUID.fromString(matcher.group(1)));
+        }
+        blackhole.consume(objectMapper.readValue(text, typeReference));
+    }
+
+    @Benchmark
+    public void streamingDecoder(Blackhole blackhole) throws Exception {
+        blackhole.consume(MqttStatePayloadDecoder.parseDeviceId(topic));
+        blackhole.consume(decoder.decode(payload));
+    }
+}
@@ -2,7 +2,6 @@ package com.example.Smarthome.config;
 
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
-import org.springframework.web.client.RestTemplate;
 import org.springframework.web.cors.CorsConfiguration;
 import org.springframework.web.cors.UrlBasedCorsConfigurationSource;
 import org.springframework.web.filter.CorsFilter;
@@ -12,14 +11,6 @@ import java.util.Arrays;
 @Configuration
 public class AppConfig {
 
-    /**
-     * Настройка RestTemplate для HTTP запросов
-     */
-    @Bean
-    public RestTemplate restTemplate() {
-        return new RestTemplate();
-    }
-    
     /**
      * Настройка CORS для возможности запросов с веб-интерфейса
      */
@@ -33,7 +24,7 @@ public class AppConfig {
         config.addAllowedOrigin("http://localhost:5173");
         config.setAllowedHeaders(Arrays.asList("Authorization", "Content-Type", "x-auth-token", "X-Auth-User-ID"));
         config.setAllowedMethods(Arrays.asList("GET", "POST", "PUT", "PATCH", "DELETE", "OPTIONS"));
-        config.setExposedHeaders(Arrays.asList("x-auth-token"));
+        config.setExposedHeaders(Arrays.asList("x-auth-token", "X-Next-Cursor", "X-Prev-Cursor"));
         config.setMaxAge(3600L);
         
         source.registerCorsConfiguration("/**", config);
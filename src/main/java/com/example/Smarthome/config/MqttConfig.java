@@ -1,7 +1,10 @@
 package com.example.Smarthome.config;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
-import org.eclipse.paho.client.mqttv3.MqttClient;
+import lombok.extern.slf4j.Slf4j;
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
 import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.springframework.beans.factory.annotation.Value;
@@ -25,6 +28,7 @@ import org.springframework.messaging.MessageHandler;
 @IntegrationComponentScan
 @Profile("mqtt")
 @ConditionalOnProperty(name = "mqtt.enabled", havingValue = "true", matchIfMissing = true)
+@Slf4j
 public class MqttConfig {
 
     @Value("${mqtt.broker.url}")
@@ -73,17 +77,32 @@ public class MqttConfig {
         return adapter;
     }
     
+    /**
+     * Клиент для отправки команд. Публикация асинхронная: потоки запросов не ждут брокер,
+     * а результат приходит в обратный вызов Paho
+     */
     @Bean
-    public MqttClient mqttClient(MqttPahoClientFactory mqttClientFactory) throws MqttException {
-        MqttClient client = new MqttClient(
+    public MqttAsyncClient mqttClient(MqttPahoClientFactory mqttClientFactory) throws MqttException {
+        MqttAsyncClient client = new MqttAsyncClient(
                 brokerUrl, 
                 clientId + "-outbound",
                 null);
         try {
-            client.connect(mqttClientFactory.getConnectionOptions());
+            // Подключение не блокирует запуск приложения
+            client.connect(mqttClientFactory.getConnectionOptions(), null, new IMqttActionListener() {
+                @Override
+                public void onSuccess(IMqttToken asyncActionToken) {
+                    log.info("Клиент отправки команд подключен к MQTT-брокеру {}", brokerUrl);
+                }
+                
+                @Override
+                public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                    log.error("Не удалось подключиться к MQTT-брокеру {}: {}", brokerUrl, exception.getMessage());
+                }
+            });
         } catch (MqttException e) {
             // Логируем ошибку, но не бросаем исключение
-            System.err.println("Не удалось подключиться к MQTT-брокеру: " + e.getMessage());
+            log.error("Не удалось подключиться к MQTT-брокеру {}: {}", brokerUrl, e.getMessage());
         }
         return client;
     }
@@ -0,0 +1,182 @@
+package com.example.Smarthome.config;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.integration.annotation.ServiceActivator;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHandler;
+import org.springframework.messaging.MessagingException;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Распределяет входящие MQTT сообщения по N рабочим потокам (полосам).
+ * Полоса выбирается по хешу ID устройства из топика, поэтому сообщения
+ * разных устройств обрабатываются параллельно, а сообщения одного
+ * устройства - строго по порядку.
+ */
+@Component
+@Profile("mqtt")
+@Slf4j
+public class MqttIngestDispatcher implements MessageHandler {
+
+    private final MqttMessageHandler mqttMessageHandler;
+    private final Lane[] lanes;
+
+    public MqttIngestDispatcher(
+            MqttMessageHandler mqttMessageHandler,
+            MeterRegistry meterRegistry,
+            @Value("${mqtt.ingest.lanes:4}") int laneCount,
+            @Value("${mqtt.ingest.lane-capacity:1000}") int laneCapacity) {
+        this.mqttMessageHandler = mqttMessageHandler;
+        this.lanes = new Lane[Math.max(1, laneCount)];
+
+        for (int i = 0; i < lanes.length; i++) {
+            Lane lane = new Lane(i, laneCapacity);
+            lanes[i] = lane;
+
+            Gauge.builder("smarthome.mqtt.ingest.lane.depth", lane, Lane::depth)
+                    .description("Количество сообщений в очереди полосы")
+                    .tag("lane", String.valueOf(i))
+                    .register(meterRegistry);
+            Gauge.builder("smarthome.mqtt.ingest.lane.lag", lane, Lane::lagMillis)
+                    .description("Время ожидания самого старого сообщения в очереди полосы, мс")
+                    .tag("lane", String.valueOf(i))
+                    .baseUnit("milliseconds")
+                    .register(meterRegistry);
+
+            lane.start();
+        }
+
+        log.info("Запущен диспетчер MQTT сообщений: {} полос, ёмкость очереди {}", lanes.length, laneCapacity);
+    }
+
+    @Override
+    @ServiceActivator(inputChannel = "mqttInputChannel")
+    public void handleMessage(Message<?> message) throws MessagingException {
+        String topic = (String) message.getHeaders().get("mqtt_receivedTopic");
+        Lane lane = lanes[laneIndex(topic)];
+
+        try {
+            // При заполненной очереди поток Paho ждёт, что притормаживает приём (backpressure)
+            lane.queue.put(new LaneTask(message, System.nanoTime()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("Прервано ожидание места в очереди полосы {} для топика {}", lane.index, topic);
+        }
+    }
+
+    /**
+     * Выбирает полосу по ID устройства из топика состояния. Хеш считается прямо
+     * по символам топика, без выделения подстроки. Прочие топики
+     * (например, обнаружение) распределяются по хешу всего топика.
+     */
+    int laneIndex(String topic) {
+        if (topic == null) {
+            return 0;
+        }
+
+        int hash;
+        if (topic.startsWith(MqttStatePayloadDecoder.STATE_TOPIC_PREFIX)) {
+            hash = 0;
+            for (int i = MqttStatePayloadDecoder.STATE_TOPIC_PREFIX.length(); i < topic.length(); i++) {
+                hash = 31 * hash + Character.toLowerCase(topic.charAt(i));
+            }
+        } else {
+            hash = topic.hashCode();
+        }
+
+        // Перемешиваем биты, чтобы близкие хеши не попадали в одну полосу
+        hash ^= (hash >>> 16);
+        return Math.floorMod(hash, lanes.length);
+    }
+
+    /**
+     * Дожидается обработки уже принятых сообщений и останавливает полосы
+     */
+    @PreDestroy
+    public void shutdown() {
+        for (Lane lane : lanes) {
+            lane.stopAccepting();
+        }
+        for (Lane lane : lanes) {
+            lane.awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+
+    private record LaneTask(Message<?> message, long enqueuedAtNanos) {
+    }
+
+    /**
+     * Полоса обработки: очередь фиксированной ёмкости и один рабочий поток
+     */
+    private class Lane implements Runnable {
+        private final int index;
+        private final BlockingQueue<LaneTask> queue;
+        private final Thread worker;
+        private volatile boolean running = true;
+
+        private Lane(int index, int capacity) {
+            this.index = index;
+            this.queue = new ArrayBlockingQueue<>(capacity);
+            this.worker = new Thread(this, "mqtt-ingest-" + index);
+            this.worker.setDaemon(true);
+        }
+
+        private void start() {
+            worker.start();
+        }
+
+        private double depth() {
+            return queue.size();
+        }
+
+        private double lagMillis() {
+            LaneTask head = queue.peek();
+            if (head == null) {
+                return 0;
+            }
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - head.enqueuedAtNanos());
+        }
+
+        @Override
+        public void run() {
+            while (running || !queue.isEmpty()) {
+                try {
+                    LaneTask task = queue.poll(500, TimeUnit.MILLISECONDS);
+                    if (task != null) {
+                        mqttMessageHandler.handleMessage(task.message());
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (Exception e) {
+                    log.error("Ошибка при обработке MQTT сообщения в полосе {}: {}", index, e.getMessage(), e);
+                }
+            }
+        }
+
+        private void stopAccepting() {
+            running = false;
+        }
+
+        private void awaitTermination(long timeout, TimeUnit unit) {
+            try {
+                worker.join(unit.toMillis(timeout));
+                if (worker.isAlive()) {
+                    log.warn("Полоса {} не завершилась вовремя, необработанных сообщений: {}", index, queue.size());
+                    worker.interrupt();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -3,8 +3,9 @@ package com.example.Smarthome.config;
 import com.example.Smarthome.model.ConnectionProtocol;
 import com.example.Smarthome.model.Device;
 import com.example.Smarthome.model.DeviceStatus;
-import com.example.Smarthome.protocol.MqttProtocolAdapter;
+import com.example.Smarthome.service.DeviceCommandPipeline;
 import com.example.Smarthome.service.DeviceService;
+import com.example.Smarthome.service.DeviceStateStore;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -13,22 +14,21 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Profile;
-import org.springframework.integration.annotation.ServiceActivator;
 import org.springframework.messaging.Message;
 import org.springframework.messaging.MessageHandler;
 import org.springframework.messaging.MessagingException;
 import org.springframework.stereotype.Component;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
- * Обработчик входящих MQTT сообщений от устройств
+ * Обработчик входящих MQTT сообщений от устройств.
+ * Вызывается из полос MqttIngestDispatcher.
  */
 @Component
 @Profile("mqtt")
@@ -40,40 +40,48 @@ public class MqttMessageHandler implements MessageHandler {
     private DeviceService deviceService;
     
     @Autowired
-    private MqttProtocolAdapter mqttProtocolAdapter;
+    private DeviceStateStore deviceStateStore;
     
     @Autowired
     private ObjectMapper objectMapper;
     
-    // Паттерн для извлечения ID устройства из топика
-    private final Pattern stateTopicPattern = Pattern.compile("smarthome/state/([^/]+)");
-    private final Pattern discoveryTopicPattern = Pattern.compile("smarthome/discovery");
+    @Autowired
+    private MqttStatePayloadDecoder payloadDecoder;
+    
+    @Autowired
+    private DeviceCommandPipeline commandPipeline;
+    
+    private static final String DISCOVERY_TOPIC = "smarthome/discovery";
     
     @Override
-    @ServiceActivator(inputChannel = "mqttInputChannel")
     public void handleMessage(Message<?> message) throws MessagingException {
         try {
             String topic = (String) message.getHeaders().get("mqtt_receivedTopic");
-            String payload = new String((byte[]) message.getPayload());
+            byte[] payload = (byte[]) message.getPayload();
             
-            log.debug("Получено MQTT сообщение: тема={}, содержимое={}", topic, payload);
+            if (log.isDebugEnabled()) {
+                log.debug("Получено MQTT сообщение: тема={}, содержимое={}", topic,
+                        new String(payload, StandardCharsets.UTF_8));
+            }
             
             if (topic == null) {
                 return;
             }
             
             // Обработка сообщений о состоянии устройств
-            Matcher stateMatcher = stateTopicPattern.matcher(topic);
-            if (stateMatcher.matches()) {
-                String deviceId = stateMatcher.group(1);
-                handleStateMessage(UUID.fromString(deviceId), payload);
+            if (topic.startsWith(MqttStatePayloadDecoder.STATE_TOPIC_PREFIX)) {
+                UUID deviceId = MqttStatePayloadDecoder.parseDeviceId(topic);
+                if (deviceId == null) {
+                    log.warn("Некорректный ID устройства в теме: {}", topic);
+                    return;
+                }
+                handleStateMessage(deviceId, payload);
                 return;
             }
             
             // Обработка сообщений обнаружения
-            Matcher discoveryMatcher = discoveryTopicPattern.matcher(topic);
-            if (discoveryMatcher.matches()) {
-                handleDiscoveryMessage(payload);
+            if (DISCOVERY_TOPIC.equals(topic)) {
+                handleDiscoveryMessage(new String(payload, StandardCharsets.UTF_8));
                 return;
             }
             
@@ -85,40 +93,30 @@ public class MqttMessageHandler implements MessageHandler {
     }
     
     /**
-     * Обрабатывает сообщение о состоянии устройства
+     * Обрабатывает сообщение о состоянии устройства.
+     * Свойства сразу попадают в хранилище состояния, а запись в базу выполняется
+     * отложенно и пакетами через DeviceStateWriteBehindService.
      */
-    private void handleStateMessage(UUID deviceId, String payload) {
+    private void handleStateMessage(UUID deviceId, byte[] payload) {
         try {
-            // Парсим JSON со свойствами устройства
-            Map<String, String> properties = objectMapper.readValue(payload, 
-                    new TypeReference<Map<String, String>>() {});
+            // Потоковый разбор JSON со свойствами устройства
+            Map<String, String> properties = payloadDecoder.decode(payload);
+            // Идентификатор подтверждаемой команды не является свойством устройства
+            String commandId = properties.remove(DeviceCommandPipeline.COMMAND_ID_FIELD);
             
-            // Получаем устройство из базы данных
-            Optional<Device> deviceOpt = deviceService.getDeviceById(deviceId);
-            
-            if (deviceOpt.isPresent()) {
-                Device device = deviceOpt.get();
-                
-                // Обновляем статус и время последнего ответа
-                device.setStatus(DeviceStatus.ONLINE);
-                device.setLastSeen(LocalDateTime.now());
-                
-                // Обновляем свойства в кэше и в устройстве
-                mqttProtocolAdapter.updateDeviceProperties(deviceId.toString(), properties);
-                
-                // Обновляем свойства устройства
-                for (Map.Entry<String, String> entry : properties.entrySet()) {
-                    device.getProperties().put(entry.getKey(), entry.getValue());
-                }
-                
-                // Сохраняем обновленное устройство
-                deviceService.saveDevice(device);
-                
-                log.debug("Обновлены свойства устройства {}: {}", device.getName(), properties);
-            } else {
+            // Обновляем состояние в памяти и ставим изменения в очередь на запись в базу
+            if (deviceStateStore.applyReportedState(deviceId, properties, LocalDateTime.now()) == null) {
                 log.warn("Получено сообщение от неизвестного устройства с ID: {}", deviceId);
+                return;
             }
-        } catch (JsonProcessingException e) {
+            
+            log.debug("Обновлены свойства устройства {}: {}", deviceId, properties);
+            
+            // Сообщение о состоянии может подтверждать отправленную устройству команду
+            if (commandPipeline.acknowledge(deviceId, commandId, properties)) {
+                log.debug("Устройство {} подтвердило команду {}", deviceId, commandId);
+            }
+        } catch (IOException e) {
             log.error("Ошибка при разборе JSON состояния устройства: {}", e.getMessage(), e);
         }
     }
@@ -147,8 +145,9 @@ public class MqttMessageHandler implements MessageHandler {
             Optional<Device> existingDevice = deviceService.getDeviceById(deviceId);
             
             if (existingDevice.isPresent()) {
-                // Обновляем существующее устройство
-                Device device = existingDevice.get();
+                // Обновляем существующее устройство поверх текущего состояния из памяти,
+                // чтобы сохранение не вернуло устаревшие свойства из базы
+                Device device = deviceStateStore.overlay(existingDevice.get());
                 device.setStatus(DeviceStatus.ONLINE);
                 device.setLastSeen(LocalDateTime.now());
                 
@@ -186,7 +185,6 @@ public class MqttMessageHandler implements MessageHandler {
                     @SuppressWarnings("unchecked")
                     Map<String, String> initialProperties = (Map<String, String>) discoveryInfo.get("properties");
                     newDevice.getProperties().putAll(initialProperties);
-                    mqttProtocolAdapter.updateDeviceProperties(deviceId.toString(), initialProperties);
                 }
                 
                 deviceService.saveDevice(newDevice);
@@ -0,0 +1,138 @@
+package com.example.Smarthome.config;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Потоковый разбор MQTT сообщений о состоянии устройств.
+ * Работает напрямую с byte[] без промежуточной строки и дерева JSON,
+ * а ID устройства извлекает из топика без регулярных выражений и подстрок.
+ */
+@Component
+public class MqttStatePayloadDecoder {
+
+    public static final String STATE_TOPIC_PREFIX = "smarthome/state/";
+
+    private static final int UUID_LENGTH = 36;
+
+    // Часто встречающиеся значения свойств - возвращаем общие экземпляры строк
+    private static final String[] KNOWN_VALUES = {
+            "true", "false", "on", "off", "open", "closed", "locked", "unlocked",
+            "online", "offline", "ON", "OFF", "0", "1"
+    };
+
+    private final JsonFactory jsonFactory;
+
+    public MqttStatePayloadDecoder(ObjectMapper objectMapper) {
+        // Фабрика Jackson канонизирует и интернирует имена полей (INTERN_FIELD_NAMES),
+        // поэтому одинаковые ключи свойств не создают новых строк на каждое сообщение
+        this.jsonFactory = objectMapper.getFactory();
+    }
+
+    /**
+     * Извлекает ID устройства из топика вида smarthome/state/{uuid}
+     * @return ID устройства или null, если топик не является топиком состояния
+     */
+    public static UUID parseDeviceId(String topic) {
+        if (topic == null || !topic.startsWith(STATE_TOPIC_PREFIX)) {
+            return null;
+        }
+        return parseUuid(topic, STATE_TOPIC_PREFIX.length());
+    }
+
+    /**
+     * Разбирает UUID в каноническом виде 8-4-4-4-12, начиная с позиции offset
+     * и до конца строки. Возвращает null при неверном формате.
+     */
+    static UUID parseUuid(String s, int offset) {
+        if (s.length() - offset != UUID_LENGTH
+                || s.charAt(offset + 8) != '-' || s.charAt(offset + 13) != '-'
+                || s.charAt(offset + 18) != '-' || s.charAt(offset + 23) != '-') {
+            return null;
+        }
+
+        long msb = 0;
+        long lsb = 0;
+        for (int i = 0; i < UUID_LENGTH; i++) {
+            if (i == 8 || i == 13 || i == 18 || i == 23) {
+                continue;
+            }
+            int digit = Character.digit(s.charAt(offset + i), 16);
+            if (digit < 0) {
+                return null;
+            }
+            if (i < 19) {
+                msb = (msb << 4) | digit;
+            } else {
+                lsb = (lsb << 4) | digit;
+            }
+        }
+        return new UUID(msb, lsb);
+    }
+
+    /**
+     * Разбирает JSON-объект с плоскими свойствами устройства.
+     * Скалярные значения приводятся к строкам, вложенные объекты и массивы пропускаются.
+     * @param payload тело MQTT сообщения
+     * @return свойства устройства
+     * @throws IOException при некорректном JSON
+     */
+    public Map<String, String> decode(byte[] payload) throws IOException {
+        Map<String, String> properties = new HashMap<>();
+
+        try (JsonParser parser = jsonFactory.createParser(payload)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Ожидался JSON-объект со свойствами устройства");
+            }
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String key = parser.currentName();
+                JsonToken token = parser.nextToken();
+
+                switch (token) {
+                    case VALUE_STRING -> properties.put(key, knownOrText(parser));
+                    case VALUE_TRUE -> properties.put(key, "true");
+                    case VALUE_FALSE -> properties.put(key, "false");
+                    case VALUE_NUMBER_INT, VALUE_NUMBER_FLOAT -> properties.put(key, knownOrText(parser));
+                    case VALUE_NULL -> properties.put(key, null);
+                    default -> parser.skipChildren();
+                }
+            }
+        }
+
+        return properties;
+    }
+
+    /**
+     * Возвращает общий экземпляр строки для известных значений без создания новой строки
+     */
+    private static String knownOrText(JsonParser parser) throws IOException {
+        char[] chars = parser.getTextCharacters();
+        int offset = parser.getTextOffset();
+        int length = parser.getTextLength();
+
+        for (String known : KNOWN_VALUES) {
+            if (known.length() == length && regionMatches(known, chars, offset)) {
+                return known;
+            }
+        }
+        return new String(chars, offset, length);
+    }
+
+    private static boolean regionMatches(String known, char[] chars, int offset) {
+        for (int i = 0; i < known.length(); i++) {
+            if (known.charAt(i) != chars[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,89 @@
+package com.example.Smarthome.config;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.httpcomponents.hc5.PoolingHttpClientConnectionManagerMetricsBinder;
+import org.apache.hc.client5.http.config.ConnectionConfig;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManagerBuilder;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.web.client.RestTemplateBuilder;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.web.client.RestTemplate;
+
+/**
+ * HTTP-клиент для обмена с ThingsBoard: пул keep-alive соединений,
+ * ограничения на маршрут, таймауты, сжатие gzip и метрики пула
+ */
+@Configuration
+public class ThingsBoardHttpClientConfig {
+
+    @Value("${thingsboard.http.max-connections:50}")
+    private int maxConnections;
+
+    @Value("${thingsboard.http.max-connections-per-route:20}")
+    private int maxConnectionsPerRoute;
+
+    @Value("${thingsboard.http.connect-timeout:3000}")
+    private long connectTimeoutMs;
+
+    @Value("${thingsboard.http.read-timeout:10000}")
+    private long readTimeoutMs;
+
+    @Value("${thingsboard.http.pool-timeout:2000}")
+    private long poolTimeoutMs;
+
+    @Value("${thingsboard.http.idle-timeout:30000}")
+    private long idleTimeoutMs;
+
+    @Bean
+    public PoolingHttpClientConnectionManager thingsBoardConnectionManager(MeterRegistry meterRegistry) {
+        PoolingHttpClientConnectionManager connectionManager = PoolingHttpClientConnectionManagerBuilder.create()
+                .setMaxConnTotal(maxConnections)
+                .setMaxConnPerRoute(maxConnectionsPerRoute)
+                .setDefaultConnectionConfig(ConnectionConfig.custom()
+                        .setConnectTimeout(Timeout.ofMilliseconds(connectTimeoutMs))
+                        .setSocketTimeout(Timeout.ofMilliseconds(readTimeoutMs))
+                        // Проверяем соединение, простоявшее в пуле дольше 10 секунд
+                        .setValidateAfterInactivity(TimeValue.ofSeconds(10))
+                        .setTimeToLive(TimeValue.ofMinutes(5))
+                        .build())
+                .build();
+
+        // Метрики пула: занятые, свободные и ожидающие соединения
+        new PoolingHttpClientConnectionManagerMetricsBinder(connectionManager, "thingsboard")
+                .bindTo(meterRegistry);
+        return connectionManager;
+    }
+
+    @Bean
+    public CloseableHttpClient thingsBoardHttpClient(PoolingHttpClientConnectionManager thingsBoardConnectionManager) {
+        // Сжатие ответов (Accept-Encoding: gzip, deflate) включено в HttpClient по умолчанию
+        return HttpClients.custom()
+                .setConnectionManager(thingsBoardConnectionManager)
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectionRequestTimeout(Timeout.ofMilliseconds(poolTimeoutMs))
+                        .setResponseTimeout(Timeout.ofMilliseconds(readTimeoutMs))
+                        .build())
+                .evictExpiredConnections()
+                .evictIdleConnections(TimeValue.ofMilliseconds(idleTimeoutMs))
+                .build();
+    }
+
+    /**
+     * RestTemplate для всех запросов к ThingsBoard.
+     * Собран через RestTemplateBuilder, поэтому запросы попадают в метрику http.client.requests.
+     */
+    @Bean
+    public RestTemplate thingsBoardRestTemplate(RestTemplateBuilder builder, CloseableHttpClient thingsBoardHttpClient) {
+        return builder
+                .requestFactory(() -> new HttpComponentsClientHttpRequestFactory(thingsBoardHttpClient))
+                .build();
+    }
+}
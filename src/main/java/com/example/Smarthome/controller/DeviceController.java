@@ -1,9 +1,13 @@
 package com.example.Smarthome.controller;
 
+import com.example.Smarthome.dto.CommandStatusDto;
+import com.example.Smarthome.dto.DeviceCommandBatchRequest;
 import com.example.Smarthome.dto.DeviceCommandRequest;
 import com.example.Smarthome.dto.DeviceDto;
 import com.example.Smarthome.dto.DeviceEventDto;
 import com.example.Smarthome.dto.DeviceRegistrationRequest;
+import com.example.Smarthome.dto.HistoryCursor;
+import com.example.Smarthome.dto.HistoryPage;
 import com.example.Smarthome.dto.AvailableDeviceDto;
 import com.example.Smarthome.dto.LockHistoryDto;
 import com.example.Smarthome.dto.SensorHistoryDto;
@@ -12,25 +16,41 @@ import com.example.Smarthome.model.Device;
 import com.example.Smarthome.model.DeviceStatus;
 import com.example.Smarthome.model.Location;
 import com.example.Smarthome.model.Room;
+import com.example.Smarthome.service.DeviceCommandDispatcher;
+import com.example.Smarthome.service.DeviceCommandPipeline;
 import com.example.Smarthome.service.DeviceEventHandler;
 import com.example.Smarthome.service.DeviceService;
+import com.example.Smarthome.service.DeviceStateStore;
 import com.example.Smarthome.service.LockHistoryService;
 import com.example.Smarthome.service.LocationService;
 import com.example.Smarthome.service.ProtocolAdapterService;
 import com.example.Smarthome.service.SensorHistoryService;
 import com.example.Smarthome.service.ThingsBoardIntegrationService;
+import com.example.Smarthome.timeseries.AggregatePoint;
+import com.example.Smarthome.timeseries.TimeSeriesStore;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
 import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
-import java.util.stream.Collectors;
 import java.util.HashMap;
 
 @RestController
@@ -46,6 +66,30 @@ public class DeviceController {
     private final LockHistoryService lockHistoryService;
     private final SensorHistoryService sensorHistoryService;
     private final DeviceEventHandler deviceEventHandler;
+    private final DeviceStateStore deviceStateStore;
+    private final TimeSeriesStore timeSeriesStore;
+    private final ObjectMapper objectMapper;
+    private final DeviceCommandDispatcher commandDispatcher;
+    private final DeviceCommandPipeline commandPipeline;
+
+    // Верхняя граница размера страницы истории
+    @Value("${history.page.max-limit:1000}")
+    private int maxHistoryLimit;
+
+    // Максимум команд в одном групповом запросе
+    @Value("${device.commands.batch.max-size:500}")
+    private int maxBatchSize;
+
+    // Сколько устройств группового запроса выполняют команды одновременно
+    @Value("${device.commands.batch.max-concurrency:8}")
+    private int maxBatchConcurrency;
+
+    // Верхняя граница ожидания завершения команды при запросе её состояния (мс)
+    @Value("${device.commands.status.max-wait:30000}")
+    private long maxCommandWaitMs;
+
+    static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+    static final String PREVIOUS_CURSOR_HEADER = "X-Prev-Cursor";
 
     /**
      * Получение списка всех устройств
@@ -54,11 +98,17 @@ public class DeviceController {
     public ResponseEntity<List<DeviceDto>> getAllDevices(
             @RequestHeader(name = "X-Auth-User-ID", required = false) String userId) {
         log.info("Получен запрос на получение всех устройств от пользователя {}", userId);
-        List<Device> devices = deviceService.getAllDevices();
-        List<DeviceDto> deviceDtos = devices.stream()
-                .map(this::convertToDto)
-                .collect(Collectors.toList());
-        return ResponseEntity.ok(deviceDtos);
+        return ResponseEntity.ok(deviceService.getDeviceList());
+    }
+
+    /**
+     * Поиск устройств по значению свойства
+     */
+    @GetMapping("/by-property")
+    public ResponseEntity<List<DeviceDto>> getDevicesByProperty(
+            @RequestParam String name,
+            @RequestParam String value) {
+        return ResponseEntity.ok(deviceService.getDeviceListByProperty(name, value));
     }
 
     /**
@@ -70,15 +120,9 @@ public class DeviceController {
                 .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, 
                         "Устройство с ID " + id + " не найдено"));
         
-        // Получаем актуальные свойства
-        Map<String, String> currentProperties = protocolAdapterService.getDeviceProperties(device);
-        if (!currentProperties.isEmpty()) {
-            // Обновляем свойства в устройстве
-            for (Map.Entry<String, String> entry : currentProperties.entrySet()) {
-                device.getProperties().put(entry.getKey(), entry.getValue());
-            }
-            deviceService.saveDevice(device);
-        }
+        // Запрашиваем актуальные свойства у адаптера; он обновляет хранилище состояния,
+        // из которого затем заполняется DTO
+        protocolAdapterService.getDeviceProperties(device);
         
         return ResponseEntity.ok(convertToDto(device));
     }
@@ -289,10 +333,30 @@ public class DeviceController {
     }
 
     /**
-     * Отправка команды устройству
+     * Изменение одного свойства устройства: тело {"value": "..."}.
+     * Синхронизация с ThingsBoard выполняется асинхронно
+     */
+    @PutMapping("/{id}/properties/{name}")
+    public ResponseEntity<Void> updateProperty(
+            @PathVariable UUID id,
+            @PathVariable String name,
+            @RequestBody Map<String, String> body) {
+        if (!body.containsKey("value")) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Не указано значение свойства (value)");
+        }
+        if (!deviceService.updateDeviceProperty(id, name, body.get("value"))) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND,
+                    "Устройство с ID " + id + " не найдено");
+        }
+        return ResponseEntity.noContent().build();
+    }
+
+    /**
+     * Отправка команды устройству. Команда ставится в асинхронный конвейер, ответ 202
+     * возвращается сразу, а состояние команды доступно по адресу из заголовка Location
      */
     @PostMapping("/{id}/command")
-    public ResponseEntity<String> sendCommand(
+    public ResponseEntity<CommandStatusDto> sendCommand(
             @PathVariable UUID id, 
             @RequestBody DeviceCommandRequest commandRequest,
             @RequestHeader(name = "X-Auth-User-ID", required = false) String userId) {
@@ -302,47 +366,107 @@ public class DeviceController {
         String command = commandRequest.getCommand();
         if (command == null) {
             log.warn("Команда не указана для устройства {}", id);
-            return ResponseEntity.badRequest().body("Команда не указана");
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Команда не указана");
+        }
+        
+        // Проверяем существование устройства
+        Device device = deviceService.getDeviceById(id)
+            .orElseThrow(() -> {
+                log.error("Устройство с ID {} не найдено", id);
+                return new ResponseStatusException(HttpStatus.NOT_FOUND, 
+                        "Устройство с ID " + id + " не найдено");
+            });
+        
+        // Параметры команды вместе с её именем
+        Map<String, String> commandData = new HashMap<>();
+        commandData.put("command", command);
+        if (commandRequest.getParameters() != null) {
+            commandData.putAll(commandRequest.getParameters());
         }
         
+        CommandStatusDto status;
         try {
-            // Проверяем существование устройства
-            Device device = deviceService.getDeviceById(id)
-                .orElseThrow(() -> {
-                    log.error("Устройство с ID {} не найдено", id);
-                    return new ResponseStatusException(HttpStatus.NOT_FOUND, 
-                            "Устройство с ID " + id + " не найдено");
-                });
-            
-            log.info("Найдено устройство: {}, тип: {}, состояние: {}", device.getName(), device.getType(), device.getStatus());
-            
-            // Создаем Map из DTO для совместимости с существующим методом sendCommandToDevice
-            Map<String, String> commandData = new HashMap<>();
-            commandData.put("command", command);
-            if (commandRequest.getParameters() != null) {
-                commandData.putAll(commandRequest.getParameters());
-            }
-            
-            // Отправляем команду на устройство
-            boolean success = deviceService.sendCommandToDevice(id, command, commandData);
-            
-            if (success) {
-                log.info("Команда '{}' успешно отправлена устройству {} ({})", command, device.getName(), id);
-                return ResponseEntity.ok("Команда отправлена успешно");
-            } else {
-                log.warn("Не удалось отправить команду '{}' устройству {} ({})", command, device.getName(), id);
-                return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
-                    .body("Не удалось отправить команду устройству");
-            }
-        } catch (ResponseStatusException e) {
-            log.error("Ошибка в запросе: {}", e.getReason());
-            throw e; // Пробрасываем исключение для стандартной обработки
-        } catch (Exception e) {
-            log.error("Ошибка при отправке команды '{}' устройству {}: {}", 
-                command, id, e.getMessage(), e);
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
-                .body("Ошибка при отправке команды: " + e.getMessage());
+            // Быстро следующие команды (ползунки) объединяются в DeviceService
+            status = deviceService.submitCommand(device, command, commandData);
+        } catch (IllegalStateException e) {
+            log.warn("Команда '{}' устройству {} отклонена: {}", command, id, e.getMessage());
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, e.getMessage());
+        }
+        
+        log.info("Команда '{}' устройству {} ({}) принята, ID команды {}", command, device.getName(), id, status.commandId());
+        return ResponseEntity.accepted()
+                .location(URI.create("/api/devices/commands/" + status.commandId()))
+                .body(status);
+    }
+
+    /**
+     * Состояние команды. С параметром waitMs ответ откладывается до завершения команды
+     * (но не дольше waitMs), поток запроса при этом не занимается
+     */
+    @GetMapping("/commands/{commandId}")
+    public DeferredResult<CommandStatusDto> getCommandStatus(
+            @PathVariable UUID commandId,
+            @RequestParam(required = false) Long waitMs) {
+        CommandStatusDto current = commandPipeline.getStatus(commandId)
+                .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND,
+                        "Команда с ID " + commandId + " не найдена"));
+        
+        if (waitMs == null || waitMs <= 0 || current.status().isFinal()) {
+            DeferredResult<CommandStatusDto> result = new DeferredResult<>();
+            result.setResult(current);
+            return result;
+        }
+        
+        long timeout = Math.min(waitMs, maxCommandWaitMs);
+        DeferredResult<CommandStatusDto> result = new DeferredResult<>(timeout,
+                () -> commandPipeline.getStatus(commandId).orElse(current));
+        commandPipeline.awaitCompletion(commandId)
+                .ifPresentOrElse(completion -> completion.thenAccept(result::setResult),
+                        () -> result.setResult(current));
+        return result;
+    }
+
+    /**
+     * Групповая команда: список команд устройствам или одна команда всем устройствам комнаты,
+     * локации и/или типа. Команды выполняются параллельно, результат каждого устройства
+     * передаётся отдельной строкой JSON (application/x-ndjson) сразу по готовности
+     */
+    @PostMapping("/commands:batch")
+    public ResponseEntity<StreamingResponseBody> sendBatchCommands(
+            @RequestBody DeviceCommandBatchRequest request,
+            @RequestHeader(name = "X-Auth-User-ID", required = false) String userId) {
+        DeviceCommandDispatcher.PreparedBatch batch;
+        try {
+            batch = commandDispatcher.prepareBatch(request);
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
+        }
+        if (batch.commands().size() > maxBatchSize) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                    "Слишком много команд в запросе: " + batch.commands().size() + ", максимум " + maxBatchSize);
         }
+        int concurrency = request.getMaxConcurrency() != null && request.getMaxConcurrency() > 0
+                ? Math.min(request.getMaxConcurrency(), maxBatchConcurrency)
+                : maxBatchConcurrency;
+        log.info("Получена групповая команда для {} устройств от пользователя {}", batch.devices().size(), userId);
+
+        StreamingResponseBody body = out -> {
+            Object lock = new Object();
+            commandDispatcher.dispatch(batch.devices(), batch.commands(), concurrency, result -> {
+                synchronized (lock) {
+                    try {
+                        out.write(objectMapper.writeValueAsBytes(result));
+                        out.write('\n');
+                        out.flush();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            });
+        };
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_NDJSON)
+                .body(body);
     }
 
     /**
@@ -424,12 +548,14 @@ public class DeviceController {
      * Получить историю значений влажности
      * @param id ID устройства
      * @param interval Интервал (hour, day, week, month)
+     * @param maxPoints Максимальное количество точек; при превышении возвращаются агрегаты
      * @return Список значений влажности с метками времени
      */
     @GetMapping("/{id}/humidity-history")
     public ResponseEntity<List<Map<String, Object>>> getHumidityHistory(
             @PathVariable UUID id,
-            @RequestParam(defaultValue = "day") String interval) {
+            @RequestParam(defaultValue = "day") String interval,
+            @RequestParam(defaultValue = "1000") int maxPoints) {
         
         Device device = deviceService.getDeviceById(id)
                 .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, 
@@ -440,18 +566,16 @@ public class DeviceController {
                     "Устройство не является датчиком влажности");
         }
         
+        if (maxPoints <= 0) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "maxPoints должен быть больше 0");
+        }
+        
         // Определяем временной интервал
         long endTs = System.currentTimeMillis();
         long startTs = endTs - getTimeInterval(interval);
         
         try {
-            // Получаем историю из ThingsBoard
-            List<Map<String, Object>> history = thingsBoardService.getDeviceTelemetryHistory(
-                device, 
-                "humidity",
-                startTs,
-                endTs
-            );
+            List<Map<String, Object>> history = readTelemetryHistory(device, "humidity", startTs, endTs, maxPoints);
             
             return ResponseEntity.ok(history);
         } catch (Exception e) {
@@ -467,7 +591,8 @@ public class DeviceController {
     @GetMapping("/{id}/temperature-history")
     public ResponseEntity<List<Map<String, Object>>> getTemperatureHistory(
             @PathVariable UUID id,
-            @RequestParam(defaultValue = "day") String interval) {
+            @RequestParam(defaultValue = "day") String interval,
+            @RequestParam(defaultValue = "1000") int maxPoints) {
         
         Device device = deviceService.getDeviceById(id)
                 .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, 
@@ -479,18 +604,16 @@ public class DeviceController {
                     "Устройство не является датчиком температуры");
         }
         
+        if (maxPoints <= 0) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "maxPoints должен быть больше 0");
+        }
+        
         // Определяем временной интервал
         long endTs = System.currentTimeMillis();
         long startTs = endTs - getTimeInterval(interval);
         
         try {
-            // Получаем историю из ThingsBoard
-            List<Map<String, Object>> history = thingsBoardService.getDeviceTelemetryHistory(
-                device, 
-                "temperature",
-                startTs,
-                endTs
-            );
+            List<Map<String, Object>> history = readTelemetryHistory(device, "temperature", startTs, endTs, maxPoints);
             
             return ResponseEntity.ok(history);
         } catch (Exception e) {
@@ -500,6 +623,44 @@ public class DeviceController {
         }
     }
     
+    /**
+     * Читает историю телеметрии из локального хранилища временных рядов.
+     * Если исходных точек больше maxPoints, возвращаются агрегаты за 1 минуту, 15 минут или 1 час
+     * (value - среднее, дополнительно min, max и count).
+     * Если локальной истории за интервал нет (данные до появления хранилища),
+     * запрашивает её из ThingsBoard.
+     * @return значения в формате ThingsBoard [{ts, value}] от новых к старым
+     */
+    private List<Map<String, Object>> readTelemetryHistory(Device device, String key, long startTs, long endTs,
+                                                           int maxPoints) {
+        List<AggregatePoint> points = timeSeriesStore.queryAggregated(device.getId(), key, startTs, endTs, maxPoints);
+        if (points.isEmpty()) {
+            return thingsBoardService.getDeviceTelemetryHistory(device, key, startTs, endTs);
+        }
+        
+        List<Map<String, Object>> history = new ArrayList<>(points.size());
+        for (int i = points.size() - 1; i >= 0; i--) {
+            AggregatePoint point = points.get(i);
+            Map<String, Object> entry = new HashMap<>();
+            entry.put("ts", point.timestamp());
+            entry.put("value", formatValue(point.avg()));
+            if (point.count() > 1) {
+                entry.put("min", formatValue(point.min()));
+                entry.put("max", formatValue(point.max()));
+                entry.put("count", point.count());
+            }
+            history.add(entry);
+        }
+        return history;
+    }
+    
+    private static String formatValue(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return String.valueOf((long) value);
+        }
+        return String.valueOf(value);
+    }
+    
     /**
      * Преобразует строковый интервал в миллисекунды
      */
@@ -519,7 +680,8 @@ public class DeviceController {
     }
 
     /**
-     * Конвертация модели устройства в DTO
+     * Конвертация модели устройства в DTO.
+     * Текущее состояние (свойства, статус, время ответа) берётся из памяти.
      */
     private DeviceDto convertToDto(Device device) {
         DeviceDto dto = new DeviceDto();
@@ -536,6 +698,13 @@ public class DeviceController {
         dto.setConnectionParams(device.getConnectionParams());
         dto.setLastSeen(device.getLastSeen());
         dto.setProperties(device.getProperties());
+        deviceStateStore.get(device.getId()).ifPresent(snapshot -> {
+            if (snapshot.status() != null) {
+                dto.setStatus(snapshot.status().name());
+            }
+            dto.setLastSeen(snapshot.lastSeen());
+            dto.setProperties(snapshot.properties());
+        });
         dto.setCapabilities(device.getCapabilities());
         dto.setManufacturer(device.getManufacturer());
         dto.setModel(device.getModel());
@@ -688,12 +857,20 @@ public class DeviceController {
     }
 
     /**
-     * Получение истории действий с замком
+     * Получение истории действий с замком постранично.
+     * Курсоры соседних страниц возвращаются в заголовках X-Next-Cursor и X-Prev-Cursor.
      */
     @GetMapping("/{id}/lock-history")
-    public ResponseEntity<List<LockHistoryDto>> getLockHistory(
-            @PathVariable UUID id) {
+    public ResponseEntity<StreamingResponseBody> getLockHistory(
+            @PathVariable UUID id,
+            @RequestParam(defaultValue = "100") int limit,
+            @RequestParam(required = false) String before,
+            @RequestParam(required = false) String after) {
         log.info("Запрос истории замка с ID: {}", id);
+        int pageSize = checkHistoryLimit(limit);
+        HistoryCursor beforeCursor = parseHistoryCursor("before", before);
+        HistoryCursor afterCursor = parseHistoryCursor("after", after);
+        checkSingleCursor(beforeCursor, afterCursor);
         
         try {
             // Проверяем, существует ли устройство
@@ -708,10 +885,10 @@ public class DeviceController {
             }
             
             // Получаем историю замка
-            List<LockHistoryDto> history = lockHistoryService.getLockHistoryByDeviceId(id);
-            log.info("Получена история замка: {} записей", history.size());
+            HistoryPage<LockHistoryDto> history = lockHistoryService.getLockHistoryPage(id, beforeCursor, afterCursor, pageSize);
+            log.info("Получена история замка: {} записей", history.items().size());
             
-            return ResponseEntity.ok(history);
+            return streamHistory(history);
         } catch (ResponseStatusException e) {
             log.error("Ошибка при получении истории замка: {}", e.getReason());
             throw e;
@@ -723,18 +900,25 @@ public class DeviceController {
     }
     
     /**
-     * Получение истории действий со всеми замками
+     * Получение истории действий со всеми замками постранично
      */
     @GetMapping("/lock-history")
-    public ResponseEntity<List<LockHistoryDto>> getAllLockHistory() {
+    public ResponseEntity<StreamingResponseBody> getAllLockHistory(
+            @RequestParam(defaultValue = "100") int limit,
+            @RequestParam(required = false) String before,
+            @RequestParam(required = false) String after) {
         log.info("Запрос истории всех замков");
+        int pageSize = checkHistoryLimit(limit);
+        HistoryCursor beforeCursor = parseHistoryCursor("before", before);
+        HistoryCursor afterCursor = parseHistoryCursor("after", after);
+        checkSingleCursor(beforeCursor, afterCursor);
         
         try {
             // Получаем историю всех замков
-            List<LockHistoryDto> history = lockHistoryService.getAllLockHistory();
-            log.info("Получена история всех замков: {} записей", history.size());
+            HistoryPage<LockHistoryDto> history = lockHistoryService.getLockHistoryPage(null, beforeCursor, afterCursor, pageSize);
+            log.info("Получена история всех замков: {} записей", history.items().size());
             
-            return ResponseEntity.ok(history);
+            return streamHistory(history);
         } catch (Exception e) {
             log.error("Внутренняя ошибка при получении истории всех замков: {}", e.getMessage(), e);
             throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, 
@@ -787,18 +971,25 @@ public class DeviceController {
     }
 
     /**
-     * Получение истории срабатывания датчиков
+     * Получение истории срабатывания датчиков постранично
      */
     @GetMapping("/sensor-history")
-    public ResponseEntity<List<SensorHistoryDto>> getAllSensorHistory() {
+    public ResponseEntity<StreamingResponseBody> getAllSensorHistory(
+            @RequestParam(defaultValue = "100") int limit,
+            @RequestParam(required = false) String before,
+            @RequestParam(required = false) String after) {
         log.info("Запрос истории всех датчиков");
+        int pageSize = checkHistoryLimit(limit);
+        HistoryCursor beforeCursor = parseHistoryCursor("before", before);
+        HistoryCursor afterCursor = parseHistoryCursor("after", after);
+        checkSingleCursor(beforeCursor, afterCursor);
         
         try {
             // Получаем историю всех датчиков
-            List<SensorHistoryDto> history = sensorHistoryService.getAllSensorHistory();
-            log.info("Получена история всех датчиков: {} записей", history.size());
+            HistoryPage<SensorHistoryDto> history = sensorHistoryService.getSensorHistoryPage(null, beforeCursor, afterCursor, pageSize);
+            log.info("Получена история всех датчиков: {} записей", history.items().size());
             
-            return ResponseEntity.ok(history);
+            return streamHistory(history);
         } catch (Exception e) {
             log.error("Внутренняя ошибка при получении истории всех датчиков: {}", e.getMessage(), e);
             throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, 
@@ -807,12 +998,19 @@ public class DeviceController {
     }
     
     /**
-     * Получение истории срабатывания датчика по ID
+     * Получение истории срабатывания датчика по ID постранично
      */
     @GetMapping("/{id}/sensor-history")
-    public ResponseEntity<List<SensorHistoryDto>> getSensorHistory(
-            @PathVariable UUID id) {
+    public ResponseEntity<StreamingResponseBody> getSensorHistory(
+            @PathVariable UUID id,
+            @RequestParam(defaultValue = "100") int limit,
+            @RequestParam(required = false) String before,
+            @RequestParam(required = false) String after) {
         log.info("Запрос истории датчика с ID: {}", id);
+        int pageSize = checkHistoryLimit(limit);
+        HistoryCursor beforeCursor = parseHistoryCursor("before", before);
+        HistoryCursor afterCursor = parseHistoryCursor("after", after);
+        checkSingleCursor(beforeCursor, afterCursor);
         
         try {
             // Проверяем, существует ли устройство
@@ -821,10 +1019,10 @@ public class DeviceController {
                             "Устройство с ID " + id + " не найдено"));
             
             // Получаем историю датчика
-            List<SensorHistoryDto> history = sensorHistoryService.getSensorHistoryByDeviceId(id);
-            log.info("Получена история датчика: {} записей", history.size());
+            HistoryPage<SensorHistoryDto> history = sensorHistoryService.getSensorHistoryPage(id, beforeCursor, afterCursor, pageSize);
+            log.info("Получена история датчика: {} записей", history.items().size());
             
-            return ResponseEntity.ok(history);
+            return streamHistory(history);
         } catch (ResponseStatusException e) {
             log.error("Ошибка при получении истории датчика: {}", e.getReason());
             throw e;
@@ -890,15 +1088,17 @@ public class DeviceController {
     }
     
     /**
-     * Подтверждение всех записей в истории датчиков
+     * Подтверждение всех записей в истории датчиков.
+     * Необязательный параметр until ограничивает время подтверждаемых записей (по умолчанию - момент запроса)
      */
     @PostMapping("/sensor-history/acknowledge-all")
-    public ResponseEntity<Map<String, Object>> acknowledgeAllSensorHistory() {
-        log.info("Запрос на подтверждение всех записей в истории датчиков");
+    public ResponseEntity<Map<String, Object>> acknowledgeAllSensorHistory(
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime until) {
+        log.info("Запрос на подтверждение всех записей в истории датчиков до {}", until);
         
         try {
-            // Подтверждаем все записи
-            int count = sensorHistoryService.acknowledgeAllEvents();
+            // Подтверждаем все записи, созданные не позже границы
+            int count = sensorHistoryService.acknowledgeAllEvents(until);
             log.info("Подтверждено записей: {}", count);
             
             Map<String, Object> response = new HashMap<>();
@@ -914,12 +1114,13 @@ public class DeviceController {
     }
     
     /**
-     * Подтверждение всех записей в истории конкретного датчика
+     * Подтверждение всех записей в истории конкретного датчика не позже времени until
      */
     @PostMapping("/{id}/sensor-history/acknowledge-all")
     public ResponseEntity<Map<String, Object>> acknowledgeAllSensorHistoryForDevice(
-            @PathVariable UUID id) {
-        log.info("Запрос на подтверждение всех записей в истории датчика с ID: {}", id);
+            @PathVariable UUID id,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime until) {
+        log.info("Запрос на подтверждение всех записей в истории датчика с ID: {} до {}", id, until);
         
         try {
             // Проверяем, существует ли устройство
@@ -928,7 +1129,7 @@ public class DeviceController {
                             "Устройство с ID " + id + " не найдено"));
             
             // Подтверждаем все записи для устройства
-            int count = sensorHistoryService.acknowledgeAllEventsForDevice(id);
+            int count = sensorHistoryService.acknowledgeAllEventsForDevice(id, until);
             log.info("Подтверждено записей для датчика {}: {}", id, count);
             
             Map<String, Object> response = new HashMap<>();
@@ -946,6 +1147,56 @@ public class DeviceController {
         }
     }
 
+    private int checkHistoryLimit(int limit) {
+        if (limit <= 0) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Параметр limit должен быть больше 0");
+        }
+        return Math.min(limit, maxHistoryLimit);
+    }
+
+    private static HistoryCursor parseHistoryCursor(String name, String value) {
+        try {
+            return HistoryCursor.decode(value);
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Некорректный курсор в параметре " + name);
+        }
+    }
+
+    private static void checkSingleCursor(HistoryCursor before, HistoryCursor after) {
+        if (before != null && after != null) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                    "Параметры before и after нельзя указывать одновременно");
+        }
+    }
+
+    /**
+     * Записывает страницу истории в ответ массивом JSON по одной записи,
+     * курсоры соседних страниц передаются в заголовках
+     */
+    private ResponseEntity<StreamingResponseBody> streamHistory(HistoryPage<?> page) {
+        HttpHeaders headers = new HttpHeaders();
+        if (page.next() != null) {
+            headers.set(NEXT_CURSOR_HEADER, page.next().encode());
+        }
+        if (page.previous() != null) {
+            headers.set(PREVIOUS_CURSOR_HEADER, page.previous().encode());
+        }
+
+        StreamingResponseBody body = out -> {
+            try (JsonGenerator generator = objectMapper.getFactory().createGenerator(out)) {
+                generator.writeStartArray();
+                for (Object item : page.items()) {
+                    objectMapper.writeValue(generator, item);
+                }
+                generator.writeEndArray();
+            }
+        };
+        return ResponseEntity.ok()
+                .headers(headers)
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(body);
+    }
+
     /**
      * Удаление всех устройств из системы
      */
@@ -15,7 +15,9 @@ import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.server.ResponseStatusException;
 
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 import java.util.stream.Collectors;
 
@@ -35,8 +37,13 @@ public class LocationController {
     @GetMapping
     public ResponseEntity<List<LocationDto>> getAllLocations() {
         List<Location> locations = locationService.getAllLocations();
+        // Количества считаются двумя групповыми запросами, а не загрузкой коллекций каждой локации
+        Map<UUID, Long> deviceCounts = toCountMap(deviceRepository.countGroupedByLocation());
+        Map<UUID, Long> roomCounts = toCountMap(roomRepository.countGroupedByLocation());
         List<LocationDto> locationDtos = locations.stream()
-                .map(this::convertToDto)
+                .map(location -> convertToDto(location,
+                        deviceCounts.getOrDefault(location.getId(), 0L),
+                        roomCounts.getOrDefault(location.getId(), 0L)))
                 .collect(Collectors.toList());
         return ResponseEntity.ok(locationDtos);
     }
@@ -122,8 +129,12 @@ public class LocationController {
                         "Локация с ID " + locationId + " не найдена"));
         
         List<Room> rooms = roomRepository.findByLocation(location);
+        Map<UUID, Long> deviceCounts = rooms.isEmpty()
+                ? Map.of()
+                : toCountMap(deviceRepository.countGroupedByRoom(
+                        rooms.stream().map(Room::getId).collect(Collectors.toList())));
         List<RoomDTO> roomDtos = rooms.stream()
-                .map(this::convertToRoomDto)
+                .map(room -> convertToRoomDto(room, deviceCounts.getOrDefault(room.getId(), 0L)))
                 .collect(Collectors.toList());
         
         return ResponseEntity.ok(roomDtos);
@@ -148,7 +159,7 @@ public class LocationController {
         room.setLocation(location);
         
         Room savedRoom = roomRepository.save(room);
-        return ResponseEntity.status(HttpStatus.CREATED).body(convertToRoomDto(savedRoom));
+        return ResponseEntity.status(HttpStatus.CREATED).body(convertToRoomDto(savedRoom, 0));
     }
 
     /**
@@ -178,7 +189,7 @@ public class LocationController {
         room.setArea(roomDto.getArea());
         
         Room updatedRoom = roomRepository.save(room);
-        return ResponseEntity.ok(convertToRoomDto(updatedRoom));
+        return ResponseEntity.ok(convertToRoomDto(updatedRoom, countRoomDevices(roomId)));
     }
 
     /**
@@ -215,9 +226,18 @@ public class LocationController {
     }
 
     /**
-     * Конвертация модели локации в DTO
+     * Конвертация модели локации в DTO с подсчётом устройств и комнат отдельными запросами
      */
     private LocationDto convertToDto(Location location) {
+        return convertToDto(location,
+                deviceRepository.countByLocationId(location.getId()),
+                roomRepository.countByLocationId(location.getId()));
+    }
+
+    /**
+     * Конвертация модели локации в DTO
+     */
+    private LocationDto convertToDto(Location location, long deviceCount, long roomCount) {
         LocationDto dto = new LocationDto();
         dto.setId(location.getId());
         dto.setName(location.getName());
@@ -225,12 +245,7 @@ public class LocationController {
         dto.setLatitude(location.getLatitude());
         dto.setLongitude(location.getLongitude());
         
-        // Считаем количество устройств в локации
-        long deviceCount = location.getDevices().size();
         dto.setDeviceCount(deviceCount);
-        
-        // Считаем количество комнат
-        long roomCount = location.getRooms().size();
         dto.setRoomCount(roomCount);
         
         return dto;
@@ -239,7 +254,7 @@ public class LocationController {
     /**
      * Конвертация модели комнаты в DTO
      */
-    private RoomDTO convertToRoomDto(Room room) {
+    private RoomDTO convertToRoomDto(Room room, long deviceCount) {
         RoomDTO dto = new RoomDTO();
         dto.setId(room.getId());
         dto.setName(room.getName());
@@ -251,10 +266,23 @@ public class LocationController {
             dto.setLocationName(room.getLocation().getName());
         }
         
-        // Считаем количество устройств в комнате
-        long deviceCount = room.getDevices().size();
         dto.setDeviceCount(deviceCount);
         
         return dto;
     }
+
+    private long countRoomDevices(UUID roomId) {
+        return toCountMap(deviceRepository.countGroupedByRoom(List.of(roomId))).getOrDefault(roomId, 0L);
+    }
+
+    /**
+     * Преобразует строки [id, количество] группового запроса в карту
+     */
+    private static Map<UUID, Long> toCountMap(List<Object[]> rows) {
+        Map<UUID, Long> counts = new HashMap<>();
+        for (Object[] row : rows) {
+            counts.put((UUID) row[0], ((Number) row[1]).longValue());
+        }
+        return counts;
+    }
 } 
\ No newline at end of file
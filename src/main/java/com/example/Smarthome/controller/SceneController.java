@@ -0,0 +1,132 @@
+package com.example.Smarthome.controller;
+
+import com.example.Smarthome.dto.SceneActionDto;
+import com.example.Smarthome.dto.SceneDto;
+import com.example.Smarthome.dto.SceneExecutionResult;
+import com.example.Smarthome.model.Scene;
+import com.example.Smarthome.model.SceneAction;
+import com.example.Smarthome.service.SceneService;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+@RestController
+@RequestMapping("/api/scenes")
+@RequiredArgsConstructor
+@Slf4j
+public class SceneController {
+
+    private final SceneService sceneService;
+
+    /**
+     * Получение списка всех сценариев
+     */
+    @GetMapping
+    public ResponseEntity<List<SceneDto>> getAllScenes() {
+        return ResponseEntity.ok(sceneService.getAllScenes().stream()
+                .map(this::convertToDto)
+                .collect(Collectors.toList()));
+    }
+
+    /**
+     * Получение сценария по ID
+     */
+    @GetMapping("/{id}")
+    public ResponseEntity<SceneDto> getScene(@PathVariable UUID id) {
+        return ResponseEntity.ok(convertToDto(findScene(id)));
+    }
+
+    /**
+     * Создание сценария
+     */
+    @PostMapping
+    public ResponseEntity<SceneDto> createScene(@RequestBody SceneDto sceneDto) {
+        Scene scene = new Scene();
+        applyDto(scene, sceneDto);
+        return ResponseEntity.status(HttpStatus.CREATED).body(convertToDto(sceneService.saveScene(scene)));
+    }
+
+    /**
+     * Обновление сценария (действия заменяются целиком)
+     */
+    @PutMapping("/{id}")
+    public ResponseEntity<SceneDto> updateScene(@PathVariable UUID id, @RequestBody SceneDto sceneDto) {
+        Scene scene = findScene(id);
+        applyDto(scene, sceneDto);
+        return ResponseEntity.ok(convertToDto(sceneService.saveScene(scene)));
+    }
+
+    /**
+     * Удаление сценария
+     */
+    @DeleteMapping("/{id}")
+    public ResponseEntity<Void> deleteScene(@PathVariable UUID id) {
+        findScene(id);
+        sceneService.deleteScene(id);
+        return ResponseEntity.noContent().build();
+    }
+
+    /**
+     * Выполнение сценария: команды всем устройствам отправляются параллельно,
+     * ответ содержит результат по каждому устройству
+     */
+    @PostMapping("/{id}/execute")
+    public ResponseEntity<SceneExecutionResult> executeScene(@PathVariable UUID id) {
+        return sceneService.executeScene(id)
+                .map(ResponseEntity::ok)
+                .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND,
+                        "Сценарий с ID " + id + " не найден"));
+    }
+
+    private Scene findScene(UUID id) {
+        return sceneService.getSceneById(id)
+                .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND,
+                        "Сценарий с ID " + id + " не найден"));
+    }
+
+    private void applyDto(Scene scene, SceneDto dto) {
+        if (dto.getName() == null || dto.getName().isBlank()) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Не указано имя сценария");
+        }
+        scene.setName(dto.getName());
+        scene.setDescription(dto.getDescription());
+        scene.getActions().clear();
+        List<SceneActionDto> actions = dto.getActions() != null ? dto.getActions() : List.of();
+        for (SceneActionDto actionDto : actions) {
+            if (actionDto.getDeviceId() == null || actionDto.getCommand() == null || actionDto.getCommand().isBlank()) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                        "Для каждого действия сценария нужны deviceId и command");
+            }
+            SceneAction action = new SceneAction();
+            action.setDeviceId(actionDto.getDeviceId());
+            action.setCommand(actionDto.getCommand());
+            if (actionDto.getParameters() != null) {
+                action.setParameters(new HashMap<>(actionDto.getParameters()));
+            }
+            scene.getActions().add(action);
+        }
+    }
+
+    private SceneDto convertToDto(Scene scene) {
+        SceneDto dto = new SceneDto();
+        dto.setId(scene.getId());
+        dto.setName(scene.getName());
+        dto.setDescription(scene.getDescription());
+        dto.setActions(scene.getActions().stream().map(action -> {
+            SceneActionDto actionDto = new SceneActionDto();
+            actionDto.setDeviceId(action.getDeviceId());
+            actionDto.setCommand(action.getCommand());
+            actionDto.setParameters(new HashMap<>(action.getParameters()));
+            return actionDto;
+        }).collect(Collectors.toList()));
+        return dto;
+    }
+}
@@ -1,6 +1,7 @@
 package com.example.Smarthome.controller;
 
 import com.example.Smarthome.model.Device;
+import com.example.Smarthome.service.ThingsBoardPullEngine;
 import com.example.Smarthome.service.ThingsBoardSyncService;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
@@ -20,6 +21,7 @@ import java.util.Map;
 public class SyncController {
 
     private final ThingsBoardSyncService thingsBoardSyncService;
+    private final ThingsBoardPullEngine thingsBoardPullEngine;
     
     /**
      * Запускает принудительную синхронизацию телеметрии всех устройств
@@ -27,11 +29,11 @@ public class SyncController {
     @PostMapping("/telemetry")
     public ResponseEntity<Map<String, Object>> syncTelemetry() {
         log.info("Запуск принудительной синхронизации телеметрии");
-        thingsBoardSyncService.forceSyncTelemetry();
+        boolean started = thingsBoardPullEngine.forceTelemetryCycle();
         
         Map<String, Object> response = new HashMap<>();
-        response.put("success", true);
-        response.put("message", "Синхронизация телеметрии запущена");
+        response.put("success", started);
+        response.put("message", started ? "Синхронизация телеметрии запущена" : "Синхронизация телеметрии уже выполняется");
         
         return ResponseEntity.ok(response);
     }
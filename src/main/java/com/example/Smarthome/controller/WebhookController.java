@@ -1 +0,0 @@
-// Этот файл можно удалить, так как мы будем использовать периодическую синхронизацию вместо вебхуков 
\ No newline at end of file
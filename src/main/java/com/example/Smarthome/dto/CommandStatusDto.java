@@ -0,0 +1,22 @@
+package com.example.Smarthome.dto;
+
+import com.example.Smarthome.model.CommandStatus;
+
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+/**
+ * Текущее состояние команды, отправленной через асинхронный конвейер
+ * @param attempts сколько раз команда отправлялась устройству
+ * @param error причина ошибки или null
+ */
+public record CommandStatusDto(
+        UUID commandId,
+        UUID deviceId,
+        String command,
+        CommandStatus status,
+        int attempts,
+        String error,
+        LocalDateTime createdAt,
+        LocalDateTime updatedAt) {
+}
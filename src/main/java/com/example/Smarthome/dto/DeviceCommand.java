@@ -0,0 +1,10 @@
+package com.example.Smarthome.dto;
+
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Команда одному устройству в составе группы (сценарий, групповая команда)
+ */
+public record DeviceCommand(UUID deviceId, String command, Map<String, String> parameters) {
+}
@@ -0,0 +1,29 @@
+package com.example.Smarthome.dto;
+
+import lombok.Data;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Групповая команда: либо список команд устройствам (commands),
+ * либо одна команда (command, parameters) всем устройствам, выбранным по комнате, локации и/или типу
+ */
+@Data
+public class DeviceCommandBatchRequest {
+    private List<DeviceCommand> commands = new ArrayList<>();
+
+    // Селектор устройств
+    private UUID roomId;
+    private UUID locationId;
+    private String type;
+
+    private String command;
+    private Map<String, String> parameters = new HashMap<>();
+
+    // Желаемое число одновременно выполняемых устройств (не больше device.commands.batch.max-concurrency)
+    private Integer maxConcurrency;
+}
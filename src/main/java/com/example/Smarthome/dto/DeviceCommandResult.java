@@ -0,0 +1,17 @@
+package com.example.Smarthome.dto;
+
+import java.util.UUID;
+
+/**
+ * Результат выполнения команды одним устройством
+ * @param error причина ошибки или null при успехе
+ * @param durationMs время выполнения команды адаптером протокола
+ */
+public record DeviceCommandResult(
+        UUID deviceId,
+        String deviceName,
+        String command,
+        boolean success,
+        String error,
+        long durationMs) {
+}
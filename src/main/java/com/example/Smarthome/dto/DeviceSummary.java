@@ -0,0 +1,32 @@
+package com.example.Smarthome.dto;
+
+import com.example.Smarthome.model.ConnectionProtocol;
+import com.example.Smarthome.model.DeviceStatus;
+
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+/**
+ * Проекция устройства для списков: скалярные поля устройства, имена комнаты и локации,
+ * без коллекций свойств, возможностей и атрибутов
+ */
+public record DeviceSummary(
+        UUID id,
+        String name,
+        String type,
+        String category,
+        String subType,
+        ConnectionProtocol protocol,
+        DeviceStatus status,
+        String connectionParams,
+        LocalDateTime lastSeen,
+        String manufacturer,
+        String model,
+        String firmwareVersion,
+        String thingsboardToken,
+        String thingsboardDeviceId,
+        UUID roomId,
+        String roomName,
+        UUID locationId,
+        String locationName) {
+}
@@ -0,0 +1,45 @@
+package com.example.Smarthome.dto;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.Base64;
+import java.util.UUID;
+
+/**
+ * Позиция в истории для постраничного чтения по ключу (время, ID).
+ * Передаётся клиенту в виде непрозрачной строки.
+ */
+public record HistoryCursor(LocalDateTime timestamp, UUID id) {
+
+    /**
+     * Кодирует позицию в строку для заголовка ответа
+     */
+    public String encode() {
+        String raw = timestamp + "|" + id;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Разбирает позицию из параметра запроса
+     * @param value строка курсора или null
+     * @return позиция или null, если курсор не передан
+     * @throws IllegalArgumentException если строка не является курсором
+     */
+    public static HistoryCursor decode(String value) {
+        if (value == null || value.isBlank()) {
+            return null;
+        }
+        try {
+            String raw = new String(Base64.getUrlDecoder().decode(value), StandardCharsets.UTF_8);
+            int separator = raw.indexOf('|');
+            if (separator < 0) {
+                throw new IllegalArgumentException("Некорректный курсор: " + value);
+            }
+            return new HistoryCursor(LocalDateTime.parse(raw.substring(0, separator)),
+                    UUID.fromString(raw.substring(separator + 1)));
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Некорректный курсор: " + value, e);
+        }
+    }
+}
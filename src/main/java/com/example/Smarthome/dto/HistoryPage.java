@@ -0,0 +1,46 @@
+package com.example.Smarthome.dto;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Страница истории, отсортированная от новых записей к старым
+ * @param items записи страницы
+ * @param next курсор для получения более старых записей или null, если их нет
+ * @param previous курсор для получения более новых записей или null
+ */
+public record HistoryPage<T>(List<T> items, HistoryCursor next, HistoryCursor previous) {
+
+    public static <T> HistoryPage<T> empty() {
+        return new HistoryPage<>(List.of(), null, null);
+    }
+
+    /**
+     * Собирает страницу из строк, выбранных с запасом в одну запись
+     * @param rows не более limit + 1 строк; при запросе по after отсортированы от старых к новым
+     * @param limit размер страницы
+     * @param after курсор, от которого выбирались более новые записи, или null
+     * @param key ключ строки
+     * @param mapper преобразование строки в элемент страницы
+     */
+    public static <E, T> HistoryPage<T> of(List<E> rows, int limit, HistoryCursor after,
+                                           Function<E, HistoryCursor> key, Function<E, T> mapper) {
+        boolean hasMore = rows.size() > limit;
+        List<E> page = new ArrayList<>(hasMore ? rows.subList(0, limit) : rows);
+        if (after != null) {
+            Collections.reverse(page);
+        }
+
+        if (page.isEmpty()) {
+            // При опросе новых записей клиент продолжает с той же позиции
+            return new HistoryPage<>(List.of(), null, after);
+        }
+
+        // После запроса по after более старые записи есть всегда: как минимум сама позиция after
+        HistoryCursor next = hasMore || after != null ? key.apply(page.get(page.size() - 1)) : null;
+        HistoryCursor previous = key.apply(page.get(0));
+        return new HistoryPage<>(page.stream().map(mapper).toList(), next, previous);
+    }
+}
@@ -0,0 +1,17 @@
+package com.example.Smarthome.dto;
+
+import lombok.Data;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * DTO команды устройству в составе сценария
+ */
+@Data
+public class SceneActionDto {
+    private UUID deviceId;
+    private String command;
+    private Map<String, String> parameters = new HashMap<>();
+}
@@ -0,0 +1,18 @@
+package com.example.Smarthome.dto;
+
+import lombok.Data;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * DTO сценария для API
+ */
+@Data
+public class SceneDto {
+    private UUID id;
+    private String name;
+    private String description;
+    private List<SceneActionDto> actions = new ArrayList<>();
+}
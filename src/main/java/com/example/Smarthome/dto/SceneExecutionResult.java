@@ -0,0 +1,16 @@
+package com.example.Smarthome.dto;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Результат выполнения сценария: общее время и результат по каждому устройству
+ */
+public record SceneExecutionResult(
+        UUID sceneId,
+        String sceneName,
+        long durationMs,
+        long succeeded,
+        long failed,
+        List<DeviceCommandResult> results) {
+}
@@ -0,0 +1,27 @@
+package com.example.Smarthome.model;
+
+/**
+ * Состояние команды в асинхронном конвейере команд
+ */
+public enum CommandStatus {
+    // Принята, ещё не отправлена
+    PENDING,
+    // Отправлена, ожидается подтверждение устройства
+    SENT,
+    // Устройство подтвердило команду сообщением о состоянии
+    ACKNOWLEDGED,
+    // Передана адаптеру протокола, который не присылает подтверждений
+    DELIVERED,
+    // Не удалось отправить за все попытки
+    FAILED,
+    // Подтверждение не получено за все попытки
+    TIMED_OUT;
+
+    public boolean isFinal() {
+        return this != PENDING && this != SENT;
+    }
+
+    public boolean isSuccessful() {
+        return this == ACKNOWLEDGED || this == DELIVERED;
+    }
+}
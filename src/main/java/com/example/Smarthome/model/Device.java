@@ -1,15 +1,30 @@
 package com.example.Smarthome.model;
 
+import com.example.Smarthome.service.DevicePropertyStorageListener;
 import jakarta.persistence.*;
+import lombok.AccessLevel;
 import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+import org.hibernate.annotations.Fetch;
+import org.hibernate.annotations.FetchMode;
+import org.hibernate.annotations.JdbcTypeCode;
+import org.hibernate.type.SqlTypes;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import java.time.LocalDateTime;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 import java.util.UUID;
 
 @Entity
 @Table(name = "devices")
+@EntityListeners(DevicePropertyStorageListener.class)
 @Data
 @JsonIgnoreProperties({"location.rooms", "location.devices", "room.location"})
 public class Device {
@@ -34,17 +49,27 @@ public class Device {
     private String connectionParams;
     private LocalDateTime lastSeen;
     
+    // Версия состояния, увеличивается каждым точечным изменением свойства.
+    // Пишется только запросами DevicePropertyStorage, сохранение сущности её не меняет
+    @Column(name = "state_version", insertable = false, updatable = false)
+    private Long stateVersion;
+    
     // Поле для отслеживания онлайн-статуса устройства
     private boolean online = false;
     
-    // Динамические свойства устройства
+    // Динамические свойства устройства.
+    // Коллекции загружаются подзапросом по исходной выборке: загрузка N устройств
+    // стоит 1 + 3 запроса вместо отдельного запроса на каждую коллекцию каждого устройства.
+    // Списковые экраны сущности не загружают (см. DeviceRepository.findAllSummaries)
     @ElementCollection(fetch = FetchType.EAGER)
+    @Fetch(FetchMode.SUBSELECT)
     @CollectionTable(name = "device_properties", joinColumns = @JoinColumn(name = "device_id"))
     @MapKeyColumn(name = "property_name")
     @Column(name = "property_value")
     private Map<String, String> properties = new HashMap<>();
     
     @ElementCollection(fetch = FetchType.EAGER)
+    @Fetch(FetchMode.SUBSELECT)
     @CollectionTable(name = "device_capabilities", joinColumns = @JoinColumn(name = "device_id"))
     @MapKeyColumn(name = "capability_name")
     @Column(name = "capability_value")
@@ -71,11 +96,149 @@ public class Device {
     
     // Дополнительные произвольные атрибуты
     @ElementCollection(fetch = FetchType.EAGER)
+    @Fetch(FetchMode.SUBSELECT)
     @CollectionTable(name = "device_attributes", joinColumns = @JoinColumn(name = "device_id"))
     @MapKeyColumn(name = "attribute_name")
     @Column(name = "attribute_value")
     private Map<String, String> attributes = new HashMap<>();
-    
+
+    // Те же карты в jsonb-колонках таблицы devices (режим JSONB, см. DevicePropertyStorage).
+    // Карта хранится в колонке, если колонка заполнена; в режиме COLLECTION колонки пусты (NULL).
+    // Документ свойств сохранением сущности не перезаписывается, чтобы не затирать точечные
+    // изменения write-behind: отличия от загруженного документа пишет DevicePropertyStorage
+    @JdbcTypeCode(SqlTypes.JSON)
+    @Column(name = "properties_json", updatable = false)
+    @JsonIgnore
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private Map<String, String> propertiesJson;
+
+    @JdbcTypeCode(SqlTypes.JSON)
+    @Column(name = "capabilities_json")
+    @JsonIgnore
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private Map<String, String> capabilitiesJson;
+
+    @JdbcTypeCode(SqlTypes.JSON)
+    @Column(name = "attributes_json")
+    @JsonIgnore
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private Map<String, String> attributesJson;
+
+    // Документ свойств на момент загрузки или последней записи
+    @Transient
+    @JsonIgnore
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private Map<String, String> savedPropertiesJson;
+
+    public Map<String, String> getProperties() {
+        return propertiesJson != null ? propertiesJson : properties;
+    }
+
+    public void setProperties(Map<String, String> properties) {
+        if (propertiesJson != null) {
+            this.propertiesJson = properties != null ? properties : new HashMap<>();
+        } else {
+            this.properties = properties;
+        }
+    }
+
+    public Map<String, String> getCapabilities() {
+        return capabilitiesJson != null ? capabilitiesJson : capabilities;
+    }
+
+    public void setCapabilities(Map<String, String> capabilities) {
+        if (capabilitiesJson != null) {
+            this.capabilitiesJson = capabilities != null ? capabilities : new HashMap<>();
+        } else {
+            this.capabilities = capabilities;
+        }
+    }
+
+    private Map<String, String> storedAttributes() {
+        if (attributesJson != null) {
+            return attributesJson;
+        }
+        if (attributes == null) {
+            attributes = new HashMap<>();
+        }
+        return attributes;
+    }
+
+    public void setAttributes(Map<String, String> attributes) {
+        if (attributesJson != null) {
+            this.attributesJson = attributes != null ? attributes : new HashMap<>();
+        } else {
+            this.attributes = attributes;
+        }
+    }
+
+    /**
+     * Переносит карты свойств, возможностей и атрибутов в jsonb-колонки.
+     * Вызывается для нового устройства перед вставкой в режиме JSONB
+     */
+    public void usePropertyDocuments() {
+        if (propertiesJson == null) {
+            propertiesJson = properties != null ? new HashMap<>(properties) : new HashMap<>();
+            properties = new HashMap<>();
+        }
+        if (capabilitiesJson == null) {
+            capabilitiesJson = capabilities != null ? new HashMap<>(capabilities) : new HashMap<>();
+            capabilities = new HashMap<>();
+        }
+        if (attributesJson == null) {
+            attributesJson = attributes != null ? new HashMap<>(attributes) : new HashMap<>();
+            attributes = new HashMap<>();
+        }
+    }
+
+    /**
+     * Свойства, изменённые после загрузки документа свойств (значение null допустимо)
+     * @return изменённые свойства или пустая карта, если свойства хранятся в таблице
+     */
+    public Map<String, String> changedDocumentProperties() {
+        Map<String, String> changed = new HashMap<>();
+        if (propertiesJson == null) {
+            return changed;
+        }
+        Map<String, String> saved = savedPropertiesJson != null ? savedPropertiesJson : Map.of();
+        propertiesJson.forEach((key, value) -> {
+            if (!saved.containsKey(key) || !Objects.equals(saved.get(key), value)) {
+                changed.put(key, value);
+            }
+        });
+        return changed;
+    }
+
+    /**
+     * Свойства, удалённые из документа свойств после его загрузки
+     */
+    public Set<String> removedDocumentProperties() {
+        Set<String> removed = new HashSet<>();
+        if (propertiesJson != null && savedPropertiesJson != null) {
+            for (String key : savedPropertiesJson.keySet()) {
+                if (!propertiesJson.containsKey(key)) {
+                    removed.add(key);
+                }
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Запоминает текущий документ свойств как записанный в базу
+     */
+    @PostLoad
+    @PostPersist
+    public void markPropertyDocumentSaved() {
+        savedPropertiesJson = propertiesJson != null ? new HashMap<>(propertiesJson) : null;
+    }
+
     /**
      * Получает карту произвольных атрибутов устройства
      * @return Карта атрибутов
@@ -83,7 +246,7 @@ public class Device {
     public Map<String, Object> getAttributes() {
         // Преобразуем Map<String, String> в Map<String, Object>
         Map<String, Object> result = new HashMap<>();
-        attributes.forEach((key, value) -> result.put(key, value));
+        storedAttributes().forEach((key, value) -> result.put(key, value));
         return result;
     }
     
@@ -93,10 +256,7 @@ public class Device {
      * @param value Значение атрибута
      */
     public void updateAttribute(String key, Object value) {
-        if (attributes == null) {
-            attributes = new HashMap<>();
-        }
-        attributes.put(key, value != null ? value.toString() : null);
+        storedAttributes().put(key, value != null ? value.toString() : null);
     }
     
     /**
@@ -0,0 +1,11 @@
+package com.example.Smarthome.model;
+
+/**
+ * Способ хранения карт свойств, возможностей и атрибутов устройства
+ */
+public enum DevicePropertyStorageMode {
+    // Таблицы device_properties, device_capabilities, device_attributes (строка на ключ)
+    COLLECTION,
+    // jsonb-колонки таблицы devices (PostgreSQL)
+    JSONB
+}
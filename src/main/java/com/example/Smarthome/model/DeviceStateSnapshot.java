@@ -0,0 +1,122 @@
+package com.example.Smarthome.model;
+
+import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Неизменяемый снимок текущего состояния устройства.
+ * Каждое изменение создаёт новый снимок с увеличенной версией.
+ * <p>
+ * Для каждого свойства хранится отметка последней записи (propertyVersions) -
+ * по ним конфликт между командой, MQTT и ThingsBoard решается отдельно по каждому ключу:
+ * побеждает более поздняя запись. Отметки есть только у ключей самого устройства
+ * и удаляются вместе со снимком.
+ */
+public record DeviceStateSnapshot(
+        UUID deviceId,
+        long version,
+        DeviceStatus status,
+        LocalDateTime lastSeen,
+        Map<String, String> properties,
+        Map<String, Long> propertyVersions) {
+
+    public DeviceStateSnapshot {
+        properties = Collections.unmodifiableMap(new HashMap<>(properties));
+        propertyVersions = Collections.unmodifiableMap(new HashMap<>(propertyVersions));
+    }
+
+    /**
+     * Снимок без отметок свойств (значения из базы считаются старше любых новых записей)
+     */
+    public DeviceStateSnapshot(UUID deviceId, long version, DeviceStatus status, LocalDateTime lastSeen,
+                               Map<String, String> properties) {
+        this(deviceId, version, status, lastSeen, properties, Map.of());
+    }
+
+    /**
+     * Создаёт снимок по сущности устройства
+     */
+    public static DeviceStateSnapshot of(Device device, long version) {
+        return new DeviceStateSnapshot(device.getId(), version, device.getStatus(),
+                device.getLastSeen(), device.getProperties());
+    }
+
+    /**
+     * Отметка последней записи свойства, 0 - если свойство не менялось с загрузки
+     */
+    public long propertyVersion(String name) {
+        return propertyVersions.getOrDefault(name, 0L);
+    }
+
+    /**
+     * Новый снимок с применёнными изменениями свойств, все изменённые ключи получают отметку stamp
+     */
+    public DeviceStateSnapshot withProperties(Map<String, String> changes, DeviceStatus newStatus,
+                                              LocalDateTime newLastSeen, long stamp) {
+        Map<String, String> merged = new HashMap<>(properties);
+        merged.putAll(changes);
+        Map<String, Long> versions = new HashMap<>(propertyVersions);
+        changes.keySet().forEach(name -> versions.put(name, stamp));
+        return new DeviceStateSnapshot(deviceId, version + 1,
+                newStatus != null ? newStatus : status,
+                newLastSeen != null ? newLastSeen : lastSeen,
+                merged, versions);
+    }
+
+    /**
+     * Новый снимок с полученными извне изменениями, у которых своя отметка (время значения).
+     * Применяются только ключи, отметка которых не старше текущей
+     * @param accepted сюда добавляются применённые изменения
+     */
+    public DeviceStateSnapshot withNewerProperties(Map<String, String> changes, Map<String, Long> stamps,
+                                                   Map<String, String> accepted) {
+        Map<String, String> merged = new HashMap<>(properties);
+        Map<String, Long> versions = new HashMap<>(propertyVersions);
+        changes.forEach((name, value) -> {
+            long stamp = stamps.getOrDefault(name, 0L);
+            if (stamp < propertyVersion(name)) {
+                return;
+            }
+            versions.put(name, stamp);
+            if (!Objects.equals(value, merged.put(name, value))) {
+                accepted.put(name, value);
+            }
+        });
+        if (accepted.isEmpty() && versions.equals(propertyVersions)) {
+            return this;
+        }
+        return new DeviceStateSnapshot(deviceId, version + 1, status, lastSeen, merged, versions);
+    }
+
+    /**
+     * Новый снимок по сохранённой сущности. Сущность могла быть прочитана из базы раньше
+     * последних изменений в памяти, поэтому её значения применяются только для ключей,
+     * которые вызывающий изменил сам (они получают отметку stamp, отсутствующие в сущности удаляются).
+     * Остальные ключи сохраняют значение и отметку из памяти, ключи, которых в памяти нет,
+     * берутся из сущности без отметки
+     */
+    public DeviceStateSnapshot withEntity(Device device, Set<String> changedKeys, long stamp) {
+        Map<String, String> entityProperties = device.getProperties();
+        Map<String, String> merged = new HashMap<>(properties);
+        Map<String, Long> versions = new HashMap<>(propertyVersions);
+        entityProperties.forEach(merged::putIfAbsent);
+        for (String name : changedKeys) {
+            if (entityProperties.containsKey(name)) {
+                merged.put(name, entityProperties.get(name));
+                versions.put(name, stamp);
+            } else {
+                merged.remove(name);
+                versions.remove(name);
+            }
+        }
+        LocalDateTime entityLastSeen = device.getLastSeen();
+        LocalDateTime newLastSeen = lastSeen == null || (entityLastSeen != null && entityLastSeen.isAfter(lastSeen))
+                ? entityLastSeen : lastSeen;
+        return new DeviceStateSnapshot(deviceId, version + 1, device.getStatus(), newLastSeen, merged, versions);
+    }
+}
@@ -6,7 +6,10 @@ import java.time.LocalDateTime;
 import java.util.UUID;
 
 @Entity
-@Table(name = "lock_history")
+@Table(name = "lock_history", indexes = {
+        @Index(name = "idx_lock_history_device_timestamp", columnList = "device_id, timestamp"),
+        @Index(name = "idx_lock_history_timestamp_id", columnList = "timestamp, id")
+})
 @Data
 public class LockHistory {
     @Id
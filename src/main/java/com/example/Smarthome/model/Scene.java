@@ -0,0 +1,30 @@
+package com.example.Smarthome.model;
+
+import jakarta.persistence.*;
+import lombok.Data;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Сценарий: набор команд устройствам, выполняемых на сервере одним запросом
+ */
+@Entity
+@Table(name = "scenes")
+@Data
+public class Scene {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.UUID)
+    private UUID id;
+
+    private String name;
+    private String description;
+
+    // Действия в порядке добавления
+    @OneToMany(cascade = CascadeType.ALL, orphanRemoval = true)
+    @JoinColumn(name = "scene_id")
+    @OrderColumn(name = "position")
+    private List<SceneAction> actions = new ArrayList<>();
+}
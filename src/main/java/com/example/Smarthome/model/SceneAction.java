@@ -0,0 +1,37 @@
+package com.example.Smarthome.model;
+
+import jakarta.persistence.*;
+import lombok.Data;
+import org.hibernate.annotations.Fetch;
+import org.hibernate.annotations.FetchMode;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Команда устройству в составе сценария
+ */
+@Entity
+@Table(name = "scene_actions")
+@Data
+public class SceneAction {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.UUID)
+    private UUID id;
+
+    // Устройство хранится по ID: удалённое устройство даёт ошибку в результате выполнения сценария
+    @Column(name = "device_id", nullable = false)
+    private UUID deviceId;
+
+    @Column(nullable = false)
+    private String command;
+
+    @ElementCollection(fetch = FetchType.EAGER)
+    @Fetch(FetchMode.SUBSELECT)
+    @CollectionTable(name = "scene_action_parameters", joinColumns = @JoinColumn(name = "action_id"))
+    @MapKeyColumn(name = "parameter_name")
+    @Column(name = "parameter_value")
+    private Map<String, String> parameters = new HashMap<>();
+}
@@ -6,7 +6,11 @@ import java.time.LocalDateTime;
 import java.util.UUID;
 
 @Entity
-@Table(name = "sensor_history")
+@Table(name = "sensor_history", indexes = {
+        @Index(name = "idx_sensor_history_device_timestamp", columnList = "device_id, timestamp"),
+        @Index(name = "idx_sensor_history_acknowledged_timestamp", columnList = "acknowledged, timestamp"),
+        @Index(name = "idx_sensor_history_timestamp_id", columnList = "timestamp, id")
+})
 @Data
 public class SensorHistory {
     @Id
@@ -39,4 +43,8 @@ public class SensorHistory {
     
     @Column(nullable = false)
     private LocalDateTime timestamp;
+    
+    // Срок хранения (дни); по нему запись попадает в секцию таблицы с этим сроком
+    @Column(name = "retention_days")
+    private Integer retentionDays;
 } 
\ No newline at end of file
@@ -0,0 +1,29 @@
+package com.example.Smarthome.model;
+
+import jakarta.persistence.*;
+import lombok.Data;
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+/**
+ * Отложенная повторная отправка телеметрии устройства в ThingsBoard
+ */
+@Entity
+@Table(name = "telemetry_retry_queue")
+@Data
+public class TelemetryRetry {
+    @Id
+    @Column(name = "device_id")
+    private UUID deviceId;
+    
+    // Количество неудачных попыток подряд
+    @Column(nullable = false)
+    private int attempts;
+    
+    // Время, раньше которого повторять отправку не нужно
+    @Column(name = "next_attempt_at", nullable = false)
+    private LocalDateTime nextAttemptAt;
+    
+    @Column(name = "last_error")
+    private String lastError;
+}
@@ -1,24 +1,40 @@
 package com.example.Smarthome.protocol;
 
+import com.example.Smarthome.model.ConnectionProtocol;
 import com.example.Smarthome.model.Device;
+import com.example.Smarthome.service.DeviceStateStore;
+import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.context.annotation.Profile;
 import org.springframework.stereotype.Component;
 
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Set;
 
 /**
  * Заглушка адаптера протокола, используется когда MQTT недоступен
  */
 @Component
+@RequiredArgsConstructor
 @Slf4j
 @Profile("!mqtt")
 public class DummyProtocolAdapter implements ProtocolAdapter {
     
-    // Кэш для хранения состояний устройств
-    private final Map<String, Map<String, String>> deviceStates = new ConcurrentHashMap<>();
+    private final DeviceStateStore deviceStateStore;
+    
+    /**
+     * Заглушка обрабатывает MQTT устройства при отсутствии настоящего адаптера
+     */
+    @Override
+    public Set<ConnectionProtocol> supportedProtocols() {
+        return Set.of(ConnectionProtocol.MQTT);
+    }
+    
+    @Override
+    public int priority() {
+        return -1;
+    }
     
     @Override
     public boolean sendCommand(Device device, String command, Map<String, String> parameters) {
@@ -26,8 +42,7 @@ public class DummyProtocolAdapter implements ProtocolAdapter {
                 device.getName(), command, parameters);
         
         // Для примера, можно симулировать сохранение состояния устройства
-        String deviceId = device.getId().toString();
-        Map<String, String> state = deviceStates.getOrDefault(deviceId, new HashMap<>());
+        Map<String, String> state = new HashMap<>();
         
         // Обновляем состояние устройства на основе команды
         if ("setState".equals(command)) {
@@ -36,7 +51,7 @@ public class DummyProtocolAdapter implements ProtocolAdapter {
             state.put(parameters.get("property"), parameters.get("value"));
         }
         
-        deviceStates.put(deviceId, state);
+        deviceStateStore.updateProperties(device.getId(), state);
         return true;
     }
     
@@ -50,33 +65,35 @@ public class DummyProtocolAdapter implements ProtocolAdapter {
     @Override
     public Map<String, String> getDeviceProperties(Device device) {
         log.info("Имитация получения свойств устройства {}", device.getName());
-        String deviceId = device.getId().toString();
+        // Возвращаем известные свойства или создаем демо-свойства
+        Map<String, String> current = deviceStateStore.getProperties(device.getId());
+        if (!current.isEmpty()) {
+            return current;
+        }
         
-        // Возвращаем кэшированные свойства или создаем демо-свойства
-        return deviceStates.computeIfAbsent(deviceId, k -> {
-            Map<String, String> demoProps = new HashMap<>();
-            // Создаем демо-свойства в зависимости от типа устройства
-            switch(device.getType()) {
-                case "light":
-                    demoProps.put("state", "off");
-                    demoProps.put("brightness", "50");
-                    demoProps.put("color", "warm");
-                    break;
-                case "thermostat":
-                    demoProps.put("temperature", "21.5");
-                    demoProps.put("mode", "auto");
-                    demoProps.put("target", "22.0");
-                    break;
-                case "sensor":
-                    demoProps.put("temperature", "23.2");
-                    demoProps.put("humidity", "45");
-                    demoProps.put("battery", "87");
-                    break;
-                default:
-                    demoProps.put("status", "ready");
-                    break;
-            }
-            return demoProps;
-        });
+        Map<String, String> demoProps = new HashMap<>();
+        // Создаем демо-свойства в зависимости от типа устройства
+        switch(device.getType()) {
+            case "light":
+                demoProps.put("state", "off");
+                demoProps.put("brightness", "50");
+                demoProps.put("color", "warm");
+                break;
+            case "thermostat":
+                demoProps.put("temperature", "21.5");
+                demoProps.put("mode", "auto");
+                demoProps.put("target", "22.0");
+                break;
+            case "sensor":
+                demoProps.put("temperature", "23.2");
+                demoProps.put("humidity", "45");
+                demoProps.put("battery", "87");
+                break;
+            default:
+                demoProps.put("status", "ready");
+                break;
+        }
+        deviceStateStore.updateProperties(device.getId(), demoProps);
+        return demoProps;
     }
 } 
\ No newline at end of file
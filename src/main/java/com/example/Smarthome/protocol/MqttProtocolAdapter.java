@@ -1,11 +1,16 @@
 package com.example.Smarthome.protocol;
 
+import com.example.Smarthome.model.ConnectionProtocol;
 import com.example.Smarthome.model.Device;
+import com.example.Smarthome.model.DeviceStatus;
+import com.example.Smarthome.service.DeviceStateStore;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.springframework.beans.factory.annotation.Value;
@@ -17,7 +22,11 @@ import org.springframework.stereotype.Component;
 
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+import static com.example.Smarthome.service.DeviceCommandPipeline.COMMAND_ID_FIELD;
 
 @Component
 @RequiredArgsConstructor
@@ -31,63 +40,45 @@ public class MqttProtocolAdapter implements ProtocolAdapter {
     @Value("${mqtt.topics.state}")
     private String stateTopicTemplate;
     
-    private final MqttClient mqttClient;
+    // Сколько ждать подтверждения брокера при синхронной отправке (мс)
+    @Value("${mqtt.publish.timeout:5000}")
+    private long publishTimeoutMs;
+    
+    private final MqttAsyncClient mqttClient;
     private final ObjectMapper objectMapper;
+    private final DeviceStateStore deviceStateStore;
+    
+    // Сколько вызовов адаптера выполняется одновременно (публикация асинхронная и короткая)
+    @Value("${protocol.adapters.mqtt.concurrency:8}")
+    private int concurrency;
+    
+    @Override
+    public Set<ConnectionProtocol> supportedProtocols() {
+        return Set.of(ConnectionProtocol.MQTT);
+    }
     
-    // Кэш последних известных состояний устройств
-    private final Map<String, Map<String, String>> devicePropertiesCache = new ConcurrentHashMap<>();
+    @Override
+    public int maxConcurrency() {
+        return concurrency;
+    }
     
     /**
-     * Отправляет команду на устройство через MQTT
+     * Отправляет команду на устройство через MQTT и ждёт подтверждения брокера (QoS 1)
      */
     @Override
     public boolean sendCommand(Device device, String command, Map<String, String> parameters) {
         try {
-            String deviceId = device.getId().toString();
-            
-            // Формируем JSON команды
-            Map<String, Object> payload = new HashMap<>();
-            payload.put("command", command);
-            payload.put("parameters", parameters);
-            
-            // Определяем топик для устройства, заменяя + на идентификатор устройства
-            String topic = commandTopicTemplate.replace("+", deviceId);
-            
-            log.debug("Отправка MQTT команды на устройство {} ({}), топик: {}, команда: {}", 
-                      device.getName(), deviceId, topic, command);
-            
-            // Конвертируем в JSON
-            String jsonPayload = objectMapper.writeValueAsString(payload);
-            
-            // Отправляем сообщение
-            MqttMessage mqttMessage = new MqttMessage(jsonPayload.getBytes());
-            mqttMessage.setQos(1);
-            mqttClient.publish(topic, mqttMessage);
-            
-            log.info("Команда успешно отправлена на устройство {}: {}", device.getName(), jsonPayload);
-            
-            // Обновляем кэш свойств, если команда изменяет состояние
-            if (parameters.containsKey("state") || parameters.containsKey("value") || parameters.containsKey("power")) {
-                Map<String, String> updatedProperties = devicePropertiesCache.getOrDefault(deviceId, new HashMap<>());
-                
-                if (parameters.containsKey("state")) {
-                    updatedProperties.put("state", parameters.get("state"));
-                }
-                if (parameters.containsKey("power")) {
-                    updatedProperties.put("power", parameters.get("power"));
-                }
-                if (parameters.containsKey("value")) {
-                    updatedProperties.put("value", parameters.get("value"));
-                }
-                
-                devicePropertiesCache.put(deviceId, updatedProperties);
-            }
+            String topic = commandTopic(device);
+            MqttMessage mqttMessage = commandMessage(device, null, command, parameters);
+            mqttClient.publish(topic, mqttMessage).waitForCompletion(publishTimeoutMs);
             
+            log.info("Команда успешно отправлена на устройство {}: {}", device.getName(), command);
+            applyCommandState(device, parameters);
             return true;
         } catch (MqttException e) {
-            log.error("Ошибка MQTT при отправке команды на устройство {}: {}", 
-                    device.getName(), e.getMessage(), e);
-            return false;
+            // Ошибка связи с брокером учитывается предохранителем протокола
+            throw new IllegalStateException("Ошибка MQTT при отправке команды на устройство "
+                    + device.getName() + ": " + e.getMessage(), e);
         } catch (JsonProcessingException e) {
             log.error("Ошибка сериализации JSON при отправке команды на устройство {}: {}", 
                     device.getName(), e.getMessage(), e);
@@ -100,35 +91,110 @@ public class MqttProtocolAdapter implements ProtocolAdapter {
     }
     
     /**
-     * Проверяет статус устройства через MQTT
+     * Публикует команду с идентификатором, не блокируя вызывающий поток.
+     * Future завершается из потока Paho, когда брокер подтвердил приём (QoS 1).
+     * Хранилище состояния не меняется: приём брокером не означает, что устройство выполнило команду
      */
     @Override
-    public boolean checkDeviceStatus(Device device) {
-        // Предполагаем, что устройство отвечает на ping или у нас есть 
-        // кэшированное состояние устройства, полученное через MQTT
-        String deviceId = device.getId().toString();
-        
-        // Если у нас есть кэшированные свойства и они обновлялись недавно,
-        // считаем устройство онлайн
-        return devicePropertiesCache.containsKey(deviceId);
+    public CompletableFuture<Boolean> sendCommandAsync(Device device, UUID commandId, String command,
+                                                       Map<String, String> parameters) {
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        try {
+            String topic = commandTopic(device);
+            MqttMessage mqttMessage = commandMessage(device, commandId, command, parameters);
+            mqttClient.publish(topic, mqttMessage, null, new IMqttActionListener() {
+                @Override
+                public void onSuccess(IMqttToken asyncActionToken) {
+                    // Состояние меняет конвейер команд, когда устройство подтвердит выполнение
+                    log.debug("Команда {} принята брокером для устройства {}", commandId, device.getName());
+                    result.complete(true);
+                }
+                
+                @Override
+                public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                    log.warn("Брокер не принял команду {} для устройства {}: {}", 
+                            commandId, device.getName(), exception != null ? exception.getMessage() : null);
+                    result.completeExceptionally(exception != null ? exception
+                            : new IllegalStateException("Брокер не принял команду " + commandId));
+                }
+            });
+        } catch (MqttException e) {
+            // Например, клиент ещё не подключён - команда будет отправлена повторно
+            log.warn("Ошибка MQTT при отправке команды {} на устройство {}: {}", 
+                    commandId, device.getName(), e.getMessage());
+            result.completeExceptionally(e);
+        } catch (JsonProcessingException e) {
+            log.error("Ошибка сериализации JSON при отправке команды на устройство {}: {}", 
+                    device.getName(), e.getMessage(), e);
+            result.complete(false);
+        }
+        return result;
     }
     
     /**
-     * Получает свойства устройства из кэша или через запрос по MQTT
+     * Устройства подтверждают команды сообщением в топик состояния
      */
     @Override
-    public Map<String, String> getDeviceProperties(Device device) {
-        String deviceId = device.getId().toString();
+    public boolean supportsAcknowledgement() {
+        return true;
+    }
+    
+    /**
+     * Топик команд устройства: + в шаблоне заменяется на идентификатор устройства
+     */
+    private String commandTopic(Device device) {
+        return commandTopicTemplate.replace("+", device.getId().toString());
+    }
+    
+    /**
+     * JSON команды; идентификатор (если есть) устройство возвращает в сообщении о состоянии
+     */
+    private MqttMessage commandMessage(Device device, UUID commandId, String command,
+                                       Map<String, String> parameters) throws JsonProcessingException {
+        Map<String, Object> payload = new HashMap<>();
+        payload.put("command", command);
+        payload.put("parameters", parameters);
+        if (commandId != null) {
+            payload.put(COMMAND_ID_FIELD, commandId.toString());
+        }
+        
+        log.debug("Отправка MQTT команды на устройство {} ({}), команда: {}", 
+                  device.getName(), device.getId(), command);
         
-        // Возвращаем кэшированные свойства, если они доступны
-        return devicePropertiesCache.getOrDefault(deviceId, new HashMap<>());
+        MqttMessage mqttMessage = new MqttMessage(objectMapper.writeValueAsBytes(payload));
+        mqttMessage.setQos(1);
+        return mqttMessage;
     }
     
     /**
-     * Обновляет кэш свойств устройства при получении нового состояния
-     * (вызывается из MQTT слушателя)
+     * Обновляет состояние в хранилище, если команда изменяет состояние
      */
-    public void updateDeviceProperties(String deviceId, Map<String, String> properties) {
-        devicePropertiesCache.put(deviceId, properties);
+    private void applyCommandState(Device device, Map<String, String> parameters) {
+        Map<String, String> updatedProperties = new HashMap<>();
+        for (String key : new String[] { "state", "power", "value" }) {
+            if (parameters.containsKey(key)) {
+                updatedProperties.put(key, parameters.get(key));
+            }
+        }
+        deviceStateStore.updateProperties(device.getId(), updatedProperties);
+    }
+    
+    /**
+     * Проверяет статус устройства через MQTT
+     */
+    @Override
+    public boolean checkDeviceStatus(Device device) {
+        // Устройство считается онлайн, если оно сообщало своё состояние через MQTT
+        return deviceStateStore.get(device.getId())
+                .map(snapshot -> snapshot.status() == DeviceStatus.ONLINE)
+                .orElse(false);
+    }
+    
+    /**
+     * Получает последние известные свойства устройства из хранилища состояния
+     */
+    @Override
+    public Map<String, String> getDeviceProperties(Device device) {
+        return deviceStateStore.getProperties(device.getId());
     }
 } 
\ No newline at end of file
@@ -1,16 +1,45 @@
 package com.example.Smarthome.protocol;
 
+import com.example.Smarthome.model.ConnectionProtocol;
 import com.example.Smarthome.model.Device;
 
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
 /**
- * Интерфейс адаптера для работы с различными протоколами связи
+ * Интерфейс адаптера для работы с различными протоколами связи.
+ * Адаптер - компонент Spring: ProtocolAdapterService находит все реализации и регистрирует
+ * каждую для объявленных ею протоколов. Вызовы адаптера выполняются в пуле его протокола
+ * размером maxConcurrency, поэтому медленный протокол не занимает потоки остальных
  */
 public interface ProtocolAdapter {
     
     /**
-     * Отправляет команду на устройство
+     * Протоколы, устройства которых обслуживает адаптер
+     */
+    Set<ConnectionProtocol> supportedProtocols();
+    
+    /**
+     * Сколько вызовов адаптера для одного протокола может выполняться одновременно
+     */
+    default int maxConcurrency() {
+        return 4;
+    }
+    
+    /**
+     * Приоритет адаптера, если один протокол объявлен несколькими адаптерами: выбирается больший
+     */
+    default int priority() {
+        return 0;
+    }
+    
+    /**
+     * Отправляет команду на устройство.
+     * Ошибки связи (недоступный брокер или шлюз) адаптер сообщает исключением - только они
+     * учитываются предохранителем протокола. false означает, что команда отклонена
+     * (например, неизвестна устройству), и протокол неисправным не считает
      * @param device Устройство
      * @param command Команда
      * @param parameters Параметры команды
@@ -18,6 +47,30 @@ public interface ProtocolAdapter {
      */
     boolean sendCommand(Device device, String command, Map<String, String> parameters);
     
+    /**
+     * Отправляет команду, не дожидаясь её передачи.
+     * Future завершается, когда команда передана устройству (для MQTT - принята брокером),
+     * а не когда устройство её выполнило. Ошибки связи завершают Future исключением.
+     * По умолчанию вызывает sendCommand в текущем потоке
+     * @param commandId Идентификатор команды, который устройство возвращает в подтверждении
+     * @return Успешность передачи
+     */
+    default CompletableFuture<Boolean> sendCommandAsync(Device device, UUID commandId, String command,
+                                                        Map<String, String> parameters) {
+        try {
+            return CompletableFuture.completedFuture(sendCommand(device, command, parameters));
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+    
+    /**
+     * Подтверждают ли устройства этого протокола выполнение команд сообщением о состоянии
+     */
+    default boolean supportsAcknowledgement() {
+        return false;
+    }
+    
     /**
      * Проверяет статус устройства
      * @param device Устройство
@@ -1,6 +1,8 @@
 package com.example.Smarthome.protocol;
 
+import com.example.Smarthome.model.ConnectionProtocol;
 import com.example.Smarthome.model.Device;
+import com.example.Smarthome.service.DeviceStateStore;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
@@ -8,6 +10,7 @@ import org.springframework.stereotype.Component;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -21,12 +24,17 @@ import java.util.concurrent.ConcurrentHashMap;
 public class VirtualDeviceAdapter implements ProtocolAdapter {
     
     private final ObjectMapper objectMapper;
+    private final DeviceStateStore deviceStateStore;
     private final Random random = new Random();
     
-    // Кэш состояний виртуальных устройств
-    private final Map<String, Map<String, String>> deviceStateCache = new ConcurrentHashMap<>();
+    // Время последнего обновления эмулируемых значений (само состояние хранится в DeviceStateStore)
     private final Map<String, Long> lastUpdateTime = new ConcurrentHashMap<>();
     
+    @Override
+    public Set<ConnectionProtocol> supportedProtocols() {
+        return Set.of(ConnectionProtocol.VIRTUAL);
+    }
+    
     @Override
     public boolean sendCommand(Device device, String command, Map<String, String> parameters) {
         String deviceId = device.getId().toString();
@@ -34,8 +42,9 @@ public class VirtualDeviceAdapter implements ProtocolAdapter {
                 device.getName(), command, parameters);
         
         try {
-            // Получаем текущее состояние устройства
-            Map<String, String> state = deviceStateCache.computeIfAbsent(deviceId, k -> new HashMap<>());
+            // Текущее состояние устройства и накапливаемые изменения
+            Map<String, String> current = deviceStateStore.getProperties(device.getId());
+            Map<String, String> state = new HashMap<>();
             
             // Обработка ThingsBoard префикса, который может присутствовать в параметрах
             Map<String, String> cleanedParams = new HashMap<>();
@@ -62,9 +71,9 @@ public class VirtualDeviceAdapter implements ProtocolAdapter {
                     // Обработка включения/выключения
                     String powerState = cleanedParams.getOrDefault("state", 
                                        cleanedParams.getOrDefault("power", ""));
-                    if (powerState.isEmpty() && state.containsKey("power")) {
+                    if (powerState.isEmpty() && current.containsKey("power")) {
                         // Если состояние не указано, но есть текущее - переключаем
-                        powerState = "on".equals(state.get("power")) ? "off" : "on";
+                        powerState = "on".equals(current.get("power")) ? "off" : "on";
                     }
                     if (!powerState.isEmpty()) {
                         log.debug("Устройство {} изменило состояние на {}", device.getName(), powerState);
@@ -110,6 +119,9 @@ public class VirtualDeviceAdapter implements ProtocolAdapter {
                     return false; // Неизвестная команда
             }
             
+            // Сохраняем изменения в хранилище состояния
+            deviceStateStore.updateProperties(device.getId(), state);
+            
             // Обновляем время последнего обновления
             lastUpdateTime.put(deviceId, System.currentTimeMillis());
             
@@ -142,7 +154,7 @@ public class VirtualDeviceAdapter implements ProtocolAdapter {
         String deviceId = device.getId().toString();
         
         // Если устройство ещё не инициализировано, делаем это
-        if (!deviceStateCache.containsKey(deviceId)) {
+        if (!lastUpdateTime.containsKey(deviceId)) {
             initializeVirtualDevice(device);
         }
         
@@ -150,11 +162,12 @@ public class VirtualDeviceAdapter implements ProtocolAdapter {
         // (например, для датчиков температуры, влажности и т.д.)
         updateSensorValues(device);
         
-        return deviceStateCache.getOrDefault(deviceId, new HashMap<>());
+        return deviceStateStore.getProperties(device.getId());
     }
     
     /**
-     * Инициализирует начальное состояние виртуального устройства в зависимости от его типа
+     * Инициализирует начальное состояние виртуального устройства в зависимости от его типа.
+     * Уже известные значения свойств не перезаписываются.
      */
     private void initializeVirtualDevice(Device device) {
         String deviceId = device.getId().toString();
@@ -186,7 +199,7 @@ public class VirtualDeviceAdapter implements ProtocolAdapter {
             }
         }
         
-        deviceStateCache.put(deviceId, state);
+        deviceStateStore.putMissingProperties(device.getId(), state);
         lastUpdateTime.put(deviceId, System.currentTimeMillis());
     }
     
@@ -196,11 +209,12 @@ public class VirtualDeviceAdapter implements ProtocolAdapter {
     private void updateSensorValues(Device device) {
         String deviceId = device.getId().toString();
         
-        if (!deviceStateCache.containsKey(deviceId)) {
+        if (!lastUpdateTime.containsKey(deviceId)) {
             return;
         }
         
-        Map<String, String> state = deviceStateCache.get(deviceId);
+        Map<String, String> current = deviceStateStore.getProperties(device.getId());
+        Map<String, String> state = new HashMap<>();
         long lastUpdate = lastUpdateTime.getOrDefault(deviceId, 0L);
         
         // Обновляем только каждые 30 секунд для экономии ресурсов
@@ -211,31 +225,31 @@ public class VirtualDeviceAdapter implements ProtocolAdapter {
         // Обновляем значения в зависимости от типа устройства
         if ("sensor".equals(device.getType())) {
             // Немного изменяем температуру
-            if (state.containsKey("temperature")) {
-                double currentTemp = Double.parseDouble(state.get("temperature"));
+            if (current.containsKey("temperature")) {
+                double currentTemp = Double.parseDouble(current.get("temperature"));
                 double newTemp = currentTemp + (random.nextDouble() - 0.5) * 0.5; // +/- 0.5 градуса максимум
                 state.put("temperature", String.format("%.1f", newTemp));
             }
             
             // Немного изменяем влажность
-            if (state.containsKey("humidity")) {
-                double currentHumidity = Double.parseDouble(state.get("humidity"));
+            if (current.containsKey("humidity")) {
+                double currentHumidity = Double.parseDouble(current.get("humidity"));
                 double newHumidity = currentHumidity + (random.nextDouble() - 0.5) * 2.0; // +/- 2% максимум
                 newHumidity = Math.max(0, Math.min(100, newHumidity)); // ограничиваем 0-100%
                 state.put("humidity", String.format("%.1f", newHumidity));
             }
             
             // Уменьшаем заряд батареи со временем
-            if (state.containsKey("battery")) {
-                int currentBattery = Integer.parseInt(state.get("battery"));
+            if (current.containsKey("battery")) {
+                int currentBattery = Integer.parseInt(current.get("battery"));
                 int newBattery = Math.max(0, currentBattery - random.nextInt(2));
                 state.put("battery", String.valueOf(newBattery));
             }
         } else if ("thermostat".equals(device.getType())) {
             // Симулируем изменение температуры в зависимости от целевой температуры
-            if (state.containsKey("temperature") && state.containsKey("target_temperature")) {
-                double currentTemp = Double.parseDouble(state.get("temperature"));
-                double targetTemp = Double.parseDouble(state.get("target_temperature"));
+            if (current.containsKey("temperature") && current.containsKey("target_temperature")) {
+                double currentTemp = Double.parseDouble(current.get("temperature"));
+                double targetTemp = Double.parseDouble(current.get("target_temperature"));
                 
                 // Медленно приближаем текущую температуру к целевой
                 double diff = targetTemp - currentTemp;
@@ -246,6 +260,8 @@ public class VirtualDeviceAdapter implements ProtocolAdapter {
             }
         }
         
+        deviceStateStore.updateProperties(device.getId(), state);
+        
         // Обновляем время последнего обновления
         lastUpdateTime.put(deviceId, System.currentTimeMillis());
     }
@@ -1,19 +1,30 @@
 package com.example.Smarthome.repository;
 
+import com.example.Smarthome.dto.DeviceSummary;
 import com.example.Smarthome.model.ConnectionProtocol;
 import com.example.Smarthome.model.Device;
 import com.example.Smarthome.model.DeviceStatus;
 import com.example.Smarthome.model.Room;
+import org.springframework.data.jpa.repository.EntityGraph;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
 
 @Repository
 public interface DeviceRepository extends JpaRepository<Device, UUID> {
+
+    /**
+     * Все устройства с комнатой и локацией в одном запросе
+     */
+    @Override
+    @EntityGraph(attributePaths = {"room", "location"}, type = EntityGraph.EntityGraphType.LOAD)
+    List<Device> findAll();
     
     List<Device> findByStatus(DeviceStatus status);
     
@@ -36,4 +47,95 @@ public interface DeviceRepository extends JpaRepository<Device, UUID> {
      * @return Optional с устройством, если найдено
      */
     Optional<Device> findByThingsboardToken(String token);
-} 
\ No newline at end of file
+
+    /**
+     * Список устройств без коллекций: комната и локация подтягиваются в том же запросе
+     * @return проекции всех устройств
+     */
+    @Query("SELECT new com.example.Smarthome.dto.DeviceSummary(d.id, d.name, d.type, d.category, d.subType, " +
+           "d.protocol, d.status, d.connectionParams, d.lastSeen, d.manufacturer, d.model, d.firmwareVersion, " +
+           "d.thingsboardToken, d.thingsboardDeviceId, r.id, r.name, l.id, l.name) " +
+           "FROM Device d LEFT JOIN d.room r LEFT JOIN d.location l")
+    List<DeviceSummary> findAllSummaries();
+
+    /**
+     * Свойства указанных устройств одним запросом
+     * @return строки [id устройства, имя свойства, значение]
+     */
+    @Query("SELECT d.id, KEY(p), VALUE(p) FROM Device d JOIN d.properties p WHERE d.id IN :ids")
+    List<Object[]> findPropertiesByDeviceIds(@Param("ids") Collection<UUID> ids);
+
+    /**
+     * Возможности всех устройств одним запросом
+     * @return строки [id устройства, имя возможности, значение]
+     */
+    @Query("SELECT d.id, KEY(c), VALUE(c) FROM Device d JOIN d.capabilities c")
+    List<Object[]> findAllCapabilities();
+
+    /**
+     * Атрибуты всех устройств одним запросом
+     * @return строки [id устройства, имя атрибута, значение]
+     */
+    @Query("SELECT d.id, KEY(a), VALUE(a) FROM Device d JOIN d.attributes a")
+    List<Object[]> findAllAttributes();
+
+    /**
+     * Свойства указанных устройств в режиме хранения JSONB
+     * @return строки [id устройства, карта свойств]
+     */
+    @Query("SELECT d.id, d.propertiesJson FROM Device d WHERE d.id IN :ids AND d.propertiesJson IS NOT NULL")
+    List<Object[]> findPropertyDocumentsByDeviceIds(@Param("ids") Collection<UUID> ids);
+
+    /**
+     * Возможности всех устройств в режиме хранения JSONB
+     * @return строки [id устройства, карта возможностей]
+     */
+    @Query("SELECT d.id, d.capabilitiesJson FROM Device d WHERE d.capabilitiesJson IS NOT NULL")
+    List<Object[]> findAllCapabilityDocuments();
+
+    /**
+     * Атрибуты всех устройств в режиме хранения JSONB
+     * @return строки [id устройства, карта атрибутов]
+     */
+    @Query("SELECT d.id, d.attributesJson FROM Device d WHERE d.attributesJson IS NOT NULL")
+    List<Object[]> findAllAttributeDocuments();
+
+    /**
+     * ID устройств с заданным значением свойства (таблица device_properties)
+     */
+    @Query("SELECT d.id FROM Device d JOIN d.properties p WHERE KEY(p) = :name AND VALUE(p) = :value")
+    List<UUID> findIdsByProperty(@Param("name") String name, @Param("value") String value);
+
+    /**
+     * ID устройств с заданным значением свойства (jsonb-колонка, GIN-индекс idx_devices_properties_json)
+     */
+    @Query(value = "SELECT id FROM devices WHERE properties_json @> " +
+                   "jsonb_build_object(CAST(:name AS text), CAST(:value AS text))", nativeQuery = true)
+    List<UUID> findIdsByPropertyDocument(@Param("name") String name, @Param("value") String value);
+
+    /**
+     * Количество устройств по локациям
+     * @return строки [id локации, количество]
+     */
+    @Query("SELECT d.location.id, COUNT(d) FROM Device d WHERE d.location IS NOT NULL GROUP BY d.location.id")
+    List<Object[]> countGroupedByLocation();
+
+    /**
+     * Количество устройств в указанных комнатах
+     * @return строки [id комнаты, количество]
+     */
+    @Query("SELECT d.room.id, COUNT(d) FROM Device d WHERE d.room.id IN :roomIds GROUP BY d.room.id")
+    List<Object[]> countGroupedByRoom(@Param("roomIds") Collection<UUID> roomIds);
+
+    long countByLocationId(UUID locationId);
+
+    /**
+     * Устройства по селектору групповой команды; незаданные условия не применяются
+     */
+    @Query("SELECT d FROM Device d WHERE (:roomId IS NULL OR d.room.id = :roomId) " +
+           "AND (:locationId IS NULL OR d.location.id = :locationId) " +
+           "AND (:type IS NULL OR d.type = :type)")
+    List<Device> findBySelector(@Param("roomId") UUID roomId,
+                                @Param("locationId") UUID locationId,
+                                @Param("type") String type);
+}
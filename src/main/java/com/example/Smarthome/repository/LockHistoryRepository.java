@@ -1,9 +1,13 @@
 package com.example.Smarthome.repository;
 
 import com.example.Smarthome.model.LockHistory;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.time.LocalDateTime;
 import java.util.List;
 import java.util.UUID;
 
@@ -11,15 +15,69 @@ import java.util.UUID;
 public interface LockHistoryRepository extends JpaRepository<LockHistory, UUID> {
     
     /**
-     * Находит историю действий с замком по его ID
+     * Находит первую страницу истории действий с замками (сначала новые)
+     * @param pageable размер страницы
+     * @return список записей истории
+     */
+    List<LockHistory> findAllByOrderByTimestampDescIdDesc(Pageable pageable);
+    
+    /**
+     * Находит записи старше позиции курсора (сначала новые)
+     * @param timestamp время записи курсора
+     * @param id ID записи курсора
+     * @param pageable размер страницы
+     * @return список записей истории
+     */
+    @Query("SELECT h FROM LockHistory h WHERE h.timestamp < :timestamp " +
+           "OR (h.timestamp = :timestamp AND h.id < :id) ORDER BY h.timestamp DESC, h.id DESC")
+    List<LockHistory> findOlderThan(@Param("timestamp") LocalDateTime timestamp, @Param("id") UUID id,
+                                    Pageable pageable);
+    
+    /**
+     * Находит записи новее позиции курсора (сначала старые)
+     * @param timestamp время записи курсора
+     * @param id ID записи курсора
+     * @param pageable размер страницы
+     * @return список записей истории
+     */
+    @Query("SELECT h FROM LockHistory h WHERE h.timestamp > :timestamp " +
+           "OR (h.timestamp = :timestamp AND h.id > :id) ORDER BY h.timestamp ASC, h.id ASC")
+    List<LockHistory> findNewerThan(@Param("timestamp") LocalDateTime timestamp, @Param("id") UUID id,
+                                    Pageable pageable);
+    
+    /**
+     * Находит первую страницу истории действий с замком по его ID (сначала новые)
      * @param deviceId ID устройства (замка)
+     * @param pageable размер страницы
      * @return список записей истории
      */
-    List<LockHistory> findByDeviceIdOrderByTimestampDesc(UUID deviceId);
+    List<LockHistory> findByDeviceIdOrderByTimestampDescIdDesc(UUID deviceId, Pageable pageable);
     
     /**
-     * Находит всю историю действий с замками, отсортированную по времени (сначала новые)
+     * Находит записи замка старше позиции курсора (сначала новые)
+     * @param deviceId ID устройства (замка)
+     * @param timestamp время записи курсора
+     * @param id ID записи курсора
+     * @param pageable размер страницы
+     * @return список записей истории
+     */
+    @Query("SELECT h FROM LockHistory h WHERE h.deviceId = :deviceId AND (h.timestamp < :timestamp " +
+           "OR (h.timestamp = :timestamp AND h.id < :id)) ORDER BY h.timestamp DESC, h.id DESC")
+    List<LockHistory> findByDeviceIdOlderThan(@Param("deviceId") UUID deviceId,
+                                              @Param("timestamp") LocalDateTime timestamp,
+                                              @Param("id") UUID id, Pageable pageable);
+    
+    /**
+     * Находит записи замка новее позиции курсора (сначала старые)
+     * @param deviceId ID устройства (замка)
+     * @param timestamp время записи курсора
+     * @param id ID записи курсора
+     * @param pageable размер страницы
      * @return список записей истории
      */
-    List<LockHistory> findAllByOrderByTimestampDesc();
+    @Query("SELECT h FROM LockHistory h WHERE h.deviceId = :deviceId AND (h.timestamp > :timestamp " +
+           "OR (h.timestamp = :timestamp AND h.id > :id)) ORDER BY h.timestamp ASC, h.id ASC")
+    List<LockHistory> findByDeviceIdNewerThan(@Param("deviceId") UUID deviceId,
+                                              @Param("timestamp") LocalDateTime timestamp,
+                                              @Param("id") UUID id, Pageable pageable);
 } 
\ No newline at end of file
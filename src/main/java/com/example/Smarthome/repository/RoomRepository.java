@@ -3,6 +3,7 @@ package com.example.Smarthome.repository;
 import com.example.Smarthome.model.Room;
 import com.example.Smarthome.model.Location;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.stereotype.Repository;
 
 import java.util.List;
@@ -11,4 +12,13 @@ import java.util.UUID;
 @Repository
 public interface RoomRepository extends JpaRepository<Room, UUID> {
     List<Room> findByLocation(Location location);
+
+    /**
+     * Количество комнат по локациям
+     * @return строки [id локации, количество]
+     */
+    @Query("SELECT r.location.id, COUNT(r) FROM Room r WHERE r.location IS NOT NULL GROUP BY r.location.id")
+    List<Object[]> countGroupedByLocation();
+
+    long countByLocationId(UUID locationId);
 } 
\ No newline at end of file
@@ -0,0 +1,25 @@
+package com.example.Smarthome.repository;
+
+import com.example.Smarthome.model.Scene;
+import org.springframework.data.jpa.repository.EntityGraph;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+@Repository
+public interface SceneRepository extends JpaRepository<Scene, UUID> {
+
+    /**
+     * Все сценарии с действиями (параметры действий догружаются одним подзапросом)
+     */
+    @Override
+    @EntityGraph(attributePaths = "actions")
+    List<Scene> findAll();
+
+    @Override
+    @EntityGraph(attributePaths = "actions")
+    Optional<Scene> findById(UUID id);
+}
@@ -1,9 +1,15 @@
 package com.example.Smarthome.repository;
 
 import com.example.Smarthome.model.SensorHistory;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 
+import java.time.LocalDateTime;
 import java.util.List;
 import java.util.UUID;
 
@@ -11,17 +17,71 @@ import java.util.UUID;
 public interface SensorHistoryRepository extends JpaRepository<SensorHistory, UUID> {
     
     /**
-     * Находит историю срабатываний датчика по его ID
+     * Находит первую страницу истории срабатываний датчиков (сначала новые)
+     * @param pageable размер страницы
+     * @return список записей истории
+     */
+    List<SensorHistory> findAllByOrderByTimestampDescIdDesc(Pageable pageable);
+    
+    /**
+     * Находит записи старше позиции курсора (сначала новые)
+     * @param timestamp время записи курсора
+     * @param id ID записи курсора
+     * @param pageable размер страницы
+     * @return список записей истории
+     */
+    @Query("SELECT h FROM SensorHistory h WHERE h.timestamp < :timestamp " +
+           "OR (h.timestamp = :timestamp AND h.id < :id) ORDER BY h.timestamp DESC, h.id DESC")
+    List<SensorHistory> findOlderThan(@Param("timestamp") LocalDateTime timestamp, @Param("id") UUID id,
+                                      Pageable pageable);
+    
+    /**
+     * Находит записи новее позиции курсора (сначала старые)
+     * @param timestamp время записи курсора
+     * @param id ID записи курсора
+     * @param pageable размер страницы
+     * @return список записей истории
+     */
+    @Query("SELECT h FROM SensorHistory h WHERE h.timestamp > :timestamp " +
+           "OR (h.timestamp = :timestamp AND h.id > :id) ORDER BY h.timestamp ASC, h.id ASC")
+    List<SensorHistory> findNewerThan(@Param("timestamp") LocalDateTime timestamp, @Param("id") UUID id,
+                                      Pageable pageable);
+    
+    /**
+     * Находит первую страницу истории срабатываний датчика по его ID (сначала новые)
      * @param deviceId ID устройства (датчика)
+     * @param pageable размер страницы
      * @return список записей истории
      */
-    List<SensorHistory> findByDeviceIdOrderByTimestampDesc(UUID deviceId);
+    List<SensorHistory> findByDeviceIdOrderByTimestampDescIdDesc(UUID deviceId, Pageable pageable);
     
     /**
-     * Находит всю историю срабатываний датчиков, отсортированную по времени (сначала новые)
+     * Находит записи датчика старше позиции курсора (сначала новые)
+     * @param deviceId ID устройства (датчика)
+     * @param timestamp время записи курсора
+     * @param id ID записи курсора
+     * @param pageable размер страницы
      * @return список записей истории
      */
-    List<SensorHistory> findAllByOrderByTimestampDesc();
+    @Query("SELECT h FROM SensorHistory h WHERE h.deviceId = :deviceId AND (h.timestamp < :timestamp " +
+           "OR (h.timestamp = :timestamp AND h.id < :id)) ORDER BY h.timestamp DESC, h.id DESC")
+    List<SensorHistory> findByDeviceIdOlderThan(@Param("deviceId") UUID deviceId,
+                                                @Param("timestamp") LocalDateTime timestamp,
+                                                @Param("id") UUID id, Pageable pageable);
+    
+    /**
+     * Находит записи датчика новее позиции курсора (сначала старые)
+     * @param deviceId ID устройства (датчика)
+     * @param timestamp время записи курсора
+     * @param id ID записи курсора
+     * @param pageable размер страницы
+     * @return список записей истории
+     */
+    @Query("SELECT h FROM SensorHistory h WHERE h.deviceId = :deviceId AND (h.timestamp > :timestamp " +
+           "OR (h.timestamp = :timestamp AND h.id > :id)) ORDER BY h.timestamp ASC, h.id ASC")
+    List<SensorHistory> findByDeviceIdNewerThan(@Param("deviceId") UUID deviceId,
+                                                @Param("timestamp") LocalDateTime timestamp,
+                                                @Param("id") UUID id, Pageable pageable);
     
     /**
      * Находит историю срабатываний по типу датчика
@@ -37,9 +97,25 @@ public interface SensorHistoryRepository extends JpaRepository<SensorHistory, UU
     List<SensorHistory> findByAcknowledgedFalseOrderByTimestampDesc();
     
     /**
-     * Находит неподтвержденные срабатывания для конкретного датчика
+     * Подтверждает неподтвержденные срабатывания не позже указанного времени одним запросом
+     * @param until верхняя граница времени записи (включительно)
+     * @return количество обновленных записей
+     */
+    @Modifying
+    @Transactional
+    @Query("UPDATE SensorHistory h SET h.acknowledged = true " +
+           "WHERE h.acknowledged = false AND h.timestamp <= :until")
+    int acknowledgeAllUntil(@Param("until") LocalDateTime until);
+    
+    /**
+     * Подтверждает неподтвержденные срабатывания датчика не позже указанного времени одним запросом
      * @param deviceId ID устройства (датчика)
-     * @return список записей истории
+     * @param until верхняя граница времени записи (включительно)
+     * @return количество обновленных записей
      */
-    List<SensorHistory> findByDeviceIdAndAcknowledgedFalseOrderByTimestampDesc(UUID deviceId);
+    @Modifying
+    @Transactional
+    @Query("UPDATE SensorHistory h SET h.acknowledged = true " +
+           "WHERE h.acknowledged = false AND h.deviceId = :deviceId AND h.timestamp <= :until")
+    int acknowledgeAllForDeviceUntil(@Param("deviceId") UUID deviceId, @Param("until") LocalDateTime until);
 } 
\ No newline at end of file
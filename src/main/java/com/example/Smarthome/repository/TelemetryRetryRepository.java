@@ -0,0 +1,20 @@
+package com.example.Smarthome.repository;
+
+import com.example.Smarthome.model.TelemetryRetry;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.UUID;
+
+@Repository
+public interface TelemetryRetryRepository extends JpaRepository<TelemetryRetry, UUID> {
+    
+    /**
+     * Находит записи, для которых подошло время повторной отправки
+     * @param time текущее время
+     * @return список записей очереди
+     */
+    List<TelemetryRetry> findByNextAttemptAtBefore(LocalDateTime time);
+}
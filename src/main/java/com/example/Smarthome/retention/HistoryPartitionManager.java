@@ -0,0 +1,483 @@
+package com.example.Smarthome.retention;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Секционирование и очистка таблиц истории в PostgreSQL.
+ * <p>
+ * lock_history секционируется по месяцам (RANGE по timestamp).
+ * sensor_history сначала делится по сроку хранения (LIST по retention_days),
+ * каждая такая секция - по месяцам. Записи с разными сроками хранения лежат
+ * в разных секциях, поэтому устаревшие данные удаляются через DROP TABLE целой секции, без DELETE.
+ * <p>
+ * Первичный ключ секционированных таблиц включает столбцы секционирования:
+ * (id, timestamp) для lock_history и (id, retention_days, timestamp) для sensor_history.
+ * У каждой таблицы, секционированной по месяцам, есть секция *_default для записей вне
+ * созданных месяцев; при создании месяца такие записи переносятся в его секцию.
+ * <p>
+ * Существующая несекционированная таблица при первом запуске становится секцией *_legacy:
+ * для lock_history - диапазоном до начала следующего месяца, для sensor_history - секцией
+ * по умолчанию (её записи получают срок хранения LEGACY_RETENTION_DAYS).
+ * Она удаляется целиком, когда истекает срок хранения всех её записей.
+ * Для других СУБД (H2 в тестах) обслуживание не выполняется.
+ */
+@Service
+@Slf4j
+public class HistoryPartitionManager {
+
+    static final String SENSOR_TABLE = "sensor_history";
+    static final String LOCK_TABLE = "lock_history";
+
+    // Срок хранения записей legacy: первичный ключ не допускает NULL, а настоящие сроки положительны
+    static final int LEGACY_RETENTION_DAYS = 0;
+
+    private static final String SENSOR_PRIMARY_KEY = "id, retention_days, timestamp";
+    private static final String LOCK_PRIMARY_KEY = "id, timestamp";
+
+    private static final DateTimeFormatter MONTH_SUFFIX = DateTimeFormatter.ofPattern("yyyyMM");
+    private static final Pattern SENSOR_CLASS_TABLE = Pattern.compile(SENSOR_TABLE + "_r(\\d+)");
+
+    // Индексы родительских таблиц: имя -> столбцы
+    private static final Map<String, String> SENSOR_INDEXES = Map.of(
+            "idx_sensor_history_device_timestamp", "device_id, timestamp",
+            "idx_sensor_history_acknowledged_timestamp", "acknowledged, timestamp",
+            "idx_sensor_history_timestamp_id", "timestamp, id",
+            "idx_sensor_history_id", "id");
+    private static final Map<String, String> LOCK_INDEXES = Map.of(
+            "idx_lock_history_device_timestamp", "device_id, timestamp",
+            "idx_lock_history_timestamp_id", "timestamp, id",
+            "idx_lock_history_id", "id");
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final RetentionPolicy retentionPolicy;
+    private final boolean enabled;
+    private final int aheadMonths;
+
+    // null - тип СУБД ещё не проверялся
+    private volatile Boolean supported;
+    private volatile RetentionRunStats lastRun;
+    private final AtomicLong runs = new AtomicLong();
+    private final AtomicLong totalCreated = new AtomicLong();
+    private final AtomicLong totalDropped = new AtomicLong();
+
+    public HistoryPartitionManager(
+            JdbcTemplate jdbcTemplate,
+            PlatformTransactionManager transactionManager,
+            RetentionPolicy retentionPolicy,
+            @Value("${history.partitioning.enabled:true}") boolean enabled,
+            @Value("${history.partitioning.ahead-months:2}") int aheadMonths) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.retentionPolicy = retentionPolicy;
+        this.enabled = enabled;
+        this.aheadMonths = Math.max(0, aheadMonths);
+    }
+
+    /**
+     * Первое обслуживание после старта, когда Hibernate уже создал таблицы
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void onApplicationReady() {
+        maintain();
+    }
+
+    @Scheduled(cron = "${history.partitioning.cron:0 15 3 * * *}")
+    public void scheduledMaintenance() {
+        maintain();
+    }
+
+    /**
+     * Переводит таблицы на секции, создаёт секции на ближайшие месяцы и удаляет устаревшие
+     * @return результат запуска или null, если обслуживание отключено
+     */
+    public synchronized RetentionRunStats maintain() {
+        if (!enabled || !isSupported()) {
+            return null;
+        }
+
+        LocalDateTime startedAt = LocalDateTime.now();
+        long start = System.nanoTime();
+        List<String> created = new ArrayList<>();
+        List<String> dropped = new ArrayList<>();
+        String error = null;
+
+        try {
+            // Перевод на секции выполняется одной транзакцией; при ошибке таблицы остаются прежними
+            List<String> migrated = new ArrayList<>();
+            transactionTemplate.executeWithoutResult(status -> {
+                if ("r".equals(relationKind(SENSOR_TABLE))) {
+                    migrateSensorHistory(migrated);
+                }
+                if ("r".equals(relationKind(LOCK_TABLE))) {
+                    migrateLockHistory();
+                }
+            });
+            created.addAll(migrated);
+
+            if ("p".equals(relationKind(SENSOR_TABLE))) {
+                ensureSensorPrimaryKey();
+                for (int days : retentionPolicy.sensorRetentionClasses()) {
+                    ensureSensorClass(days, created);
+                }
+                for (Map.Entry<String, Integer> entry : sensorClassTables().entrySet()) {
+                    ensureDefault(entry.getKey(), created);
+                    ensureMonths(entry.getKey(), created);
+                    dropExpired(entry.getKey(), entry.getValue(), dropped);
+                }
+                dropSensorLegacy(dropped);
+            }
+
+            if ("p".equals(relationKind(LOCK_TABLE))) {
+                if (!hasPrimaryKey(LOCK_TABLE)) {
+                    addPrimaryKey(LOCK_TABLE, LOCK_PRIMARY_KEY);
+                }
+                ensureDefault(LOCK_TABLE, created);
+                ensureMonths(LOCK_TABLE, created);
+                dropExpired(LOCK_TABLE, retentionPolicy.lockRetentionDays(), dropped);
+            }
+        } catch (RuntimeException e) {
+            error = e.getMessage();
+            log.error("Ошибка при обслуживании секций истории: {}", e.getMessage(), e);
+        }
+
+        long durationMs = (System.nanoTime() - start) / 1_000_000;
+        runs.incrementAndGet();
+        totalCreated.addAndGet(created.size());
+        totalDropped.addAndGet(dropped.size());
+        lastRun = new RetentionRunStats(startedAt, durationMs, List.copyOf(created), List.copyOf(dropped), error);
+
+        log.info("Обслуживание секций истории: создано {}, удалено {}, длительность {} мс",
+                created.size(), dropped.size(), durationMs);
+        return lastRun;
+    }
+
+    /**
+     * Сводка для actuator
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("supported", supported);
+        stats.put("runs", runs.get());
+        stats.put("partitionsCreated", totalCreated.get());
+        stats.put("partitionsDropped", totalDropped.get());
+        stats.put("lastRun", lastRun);
+
+        Map<String, Object> policy = new LinkedHashMap<>();
+        policy.put("sensorDefaultDays", retentionPolicy.sensorDefaultDays());
+        policy.put("sensorRules", retentionPolicy.sensorRules());
+        policy.put("lockDays", retentionPolicy.lockRetentionDays());
+        stats.put("policy", policy);
+        return stats;
+    }
+
+    private boolean isSupported() {
+        if (supported == null) {
+            try {
+                String product = jdbcTemplate.execute(
+                        (ConnectionCallback<String>) connection -> connection.getMetaData().getDatabaseProductName());
+                supported = "PostgreSQL".equalsIgnoreCase(product);
+                if (!supported) {
+                    log.info("Секционирование истории не поддерживается для СУБД {}, обслуживание отключено", product);
+                }
+            } catch (DataAccessException e) {
+                log.error("Не удалось определить тип СУБД: {}", e.getMessage());
+                return false;
+            }
+        }
+        return supported;
+    }
+
+    /**
+     * Тип отношения в текущей схеме: r - таблица, p - секционированная таблица, null - нет такой
+     */
+    private String relationKind(String name) {
+        List<String> kinds = jdbcTemplate.queryForList(
+                "SELECT c.relkind::text FROM pg_class c JOIN pg_namespace n ON n.oid = c.relnamespace " +
+                "WHERE n.nspname = current_schema() AND c.relname = ?", String.class, name);
+        return kinds.isEmpty() ? null : kinds.get(0);
+    }
+
+    private void migrateSensorHistory(List<String> created) {
+        log.info("Перевод {} на секционирование по сроку хранения и месяцам", SENSOR_TABLE);
+        String legacy = SENSOR_TABLE + "_legacy";
+        detachAsLegacy(SENSOR_TABLE, SENSOR_INDEXES);
+        jdbcTemplate.execute("ALTER TABLE " + legacy + " ADD COLUMN IF NOT EXISTS retention_days integer");
+        // Записи, сделанные до перевода, хранятся по правилам legacy; иначе секции сроков нельзя будет создать
+        markLegacyRetention(legacy);
+        jdbcTemplate.execute("CREATE TABLE " + SENSOR_TABLE + " (LIKE " + legacy + " INCLUDING DEFAULTS, " +
+                "PRIMARY KEY (" + SENSOR_PRIMARY_KEY + ")) PARTITION BY LIST (retention_days)");
+        createIndexes(SENSOR_TABLE, SENSOR_INDEXES);
+        // Старые записи без срока хранения остаются в секции по умолчанию
+        jdbcTemplate.execute("ALTER TABLE " + SENSOR_TABLE + " ATTACH PARTITION " + legacy + " DEFAULT");
+
+        // Секции сроков создаются в той же транзакции, чтобы новые записи не попадали в legacy
+        for (int days : retentionPolicy.sensorRetentionClasses()) {
+            ensureSensorClass(days, created);
+        }
+    }
+
+    private void migrateLockHistory() {
+        log.info("Перевод {} на секционирование по месяцам", LOCK_TABLE);
+        String legacy = LOCK_TABLE + "_legacy";
+        detachAsLegacy(LOCK_TABLE, LOCK_INDEXES);
+        jdbcTemplate.execute("CREATE TABLE " + LOCK_TABLE + " (LIKE " + legacy + " INCLUDING DEFAULTS, " +
+                "PRIMARY KEY (" + LOCK_PRIMARY_KEY + ")) PARTITION BY RANGE (timestamp)");
+        createIndexes(LOCK_TABLE, LOCK_INDEXES);
+        // Все существующие записи и записи до конца текущего месяца остаются в legacy
+        LocalDateTime nextMonth = YearMonth.now().plusMonths(1).atDay(1).atStartOfDay();
+        jdbcTemplate.execute("ALTER TABLE " + LOCK_TABLE + " ATTACH PARTITION " + legacy +
+                " FOR VALUES FROM (MINVALUE) TO ('" + nextMonth.format(PartitionBound.SQL_TIMESTAMP) + "')");
+    }
+
+    /**
+     * Переименовывает таблицу и её индексы в *_legacy, освобождая имена для секционированной таблицы
+     */
+    private void detachAsLegacy(String table, Map<String, String> indexes) {
+        jdbcTemplate.execute("LOCK TABLE " + table + " IN ACCESS EXCLUSIVE MODE");
+        jdbcTemplate.execute("ALTER TABLE " + table + " RENAME TO " + table + "_legacy");
+        jdbcTemplate.execute("ALTER INDEX IF EXISTS " + table + "_pkey RENAME TO " + table + "_legacy_pkey");
+        for (String index : indexes.keySet()) {
+            jdbcTemplate.execute("ALTER INDEX IF EXISTS " + index + " RENAME TO " + index + "_legacy");
+        }
+    }
+
+    private void markLegacyRetention(String legacy) {
+        jdbcTemplate.update("UPDATE " + legacy + " SET retention_days = " + LEGACY_RETENTION_DAYS +
+                " WHERE retention_days IS DISTINCT FROM " + LEGACY_RETENTION_DAYS);
+        jdbcTemplate.execute("ALTER TABLE " + legacy + " ALTER COLUMN retention_days SET NOT NULL");
+    }
+
+    /**
+     * Добавляет первичный ключ sensor_history, переведённой на секции без него
+     */
+    private void ensureSensorPrimaryKey() {
+        if (hasPrimaryKey(SENSOR_TABLE)) {
+            return;
+        }
+        transactionTemplate.executeWithoutResult(status -> {
+            String legacy = SENSOR_TABLE + "_legacy";
+            if (childTables(SENSOR_TABLE).containsKey(legacy)) {
+                markLegacyRetention(legacy);
+            }
+            addPrimaryKey(SENSOR_TABLE, SENSOR_PRIMARY_KEY);
+        });
+    }
+
+    private boolean hasPrimaryKey(String table) {
+        Boolean exists = jdbcTemplate.queryForObject(
+                "SELECT EXISTS (SELECT 1 FROM pg_constraint WHERE conrelid = ?::regclass AND contype = 'p')",
+                Boolean.class, table);
+        return Boolean.TRUE.equals(exists);
+    }
+
+    private void addPrimaryKey(String table, String columns) {
+        jdbcTemplate.execute("ALTER TABLE " + table + " ADD PRIMARY KEY (" + columns + ")");
+        log.info("Добавлен первичный ключ ({}) таблицы {}", columns, table);
+    }
+
+    private void createIndexes(String table, Map<String, String> indexes) {
+        for (Map.Entry<String, String> index : indexes.entrySet()) {
+            jdbcTemplate.execute("CREATE INDEX IF NOT EXISTS " + index.getKey() + " ON " + table +
+                    " (" + index.getValue() + ")");
+        }
+    }
+
+    private void ensureSensorClass(int days, List<String> created) {
+        String name = SENSOR_TABLE + "_r" + days;
+        if (relationKind(name) != null) {
+            return;
+        }
+        try {
+            transactionTemplate.executeWithoutResult(status -> {
+                jdbcTemplate.execute("CREATE TABLE " + name + " PARTITION OF " + SENSOR_TABLE +
+                        " FOR VALUES IN (" + days + ") PARTITION BY RANGE (timestamp)");
+                // Без секции по умолчанию вставка записи вне созданных месяцев завершится ошибкой
+                jdbcTemplate.execute("CREATE TABLE " + name + "_default PARTITION OF " + name + " DEFAULT");
+            });
+            created.add(name);
+            created.add(name + "_default");
+            log.info("Создана секция {} для записей со сроком хранения {} дн.", name, days);
+        } catch (DataAccessException e) {
+            // Например, если в секции по умолчанию уже есть записи с этим сроком
+            log.error("Не удалось создать секцию {}: {}", name, e.getMessage());
+        }
+    }
+
+    /**
+     * Секции истории датчиков по срокам хранения: имя -> срок в днях
+     */
+    private Map<String, Integer> sensorClassTables() {
+        Map<String, Integer> tables = new LinkedHashMap<>();
+        for (String child : childTables(SENSOR_TABLE).keySet()) {
+            Matcher matcher = SENSOR_CLASS_TABLE.matcher(child);
+            if (matcher.matches()) {
+                tables.put(child, Integer.parseInt(matcher.group(1)));
+            }
+        }
+        return tables;
+    }
+
+    /**
+     * Создаёт секцию по умолчанию для записей вне месячных секций, если её нет
+     */
+    private void ensureDefault(String parent, List<String> created) {
+        String name = parent + "_default";
+        if (relationKind(name) != null) {
+            return;
+        }
+        try {
+            jdbcTemplate.execute("CREATE TABLE " + name + " PARTITION OF " + parent + " DEFAULT");
+            created.add(name);
+            log.info("Создана секция по умолчанию {}", name);
+        } catch (DataAccessException e) {
+            log.error("Не удалось создать секцию {}: {}", name, e.getMessage());
+        }
+    }
+
+    /**
+     * Создаёт месячные секции от текущего месяца на aheadMonths вперёд,
+     * пропуская месяцы, уже покрытые другими секциями
+     */
+    private void ensureMonths(String parent, List<String> created) {
+        List<PartitionBound> existing = rangePartitions(parent);
+        YearMonth current = YearMonth.now();
+
+        for (int i = 0; i <= aheadMonths; i++) {
+            YearMonth month = current.plusMonths(i);
+            LocalDateTime from = month.atDay(1).atStartOfDay();
+            LocalDateTime to = month.plusMonths(1).atDay(1).atStartOfDay();
+            if (existing.stream().anyMatch(bound -> bound.overlaps(from, to))) {
+                continue;
+            }
+
+            String name = parent + "_p" + month.format(MONTH_SUFFIX);
+            try {
+                createMonth(parent, name, from, to);
+                created.add(name);
+                log.info("Создана секция {}", name);
+            } catch (DataAccessException e) {
+                log.error("Не удалось создать секцию {}: {}", name, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Создаёт месячную секцию. Если в секции по умолчанию уже есть записи этого месяца,
+     * PostgreSQL не даст создать секцию, поэтому они переносятся в новую таблицу,
+     * которая затем подключается как секция
+     */
+    private void createMonth(String parent, String name, LocalDateTime from, LocalDateTime to) {
+        String bounds = " FOR VALUES FROM ('" + from.format(PartitionBound.SQL_TIMESTAMP) + "') TO ('" +
+                to.format(PartitionBound.SQL_TIMESTAMP) + "')";
+        String defaultPartition = parent + "_default";
+        Boolean pending = relationKind(defaultPartition) != null && jdbcTemplate.queryForObject(
+                "SELECT EXISTS (SELECT 1 FROM " + defaultPartition + " WHERE timestamp >= ? AND timestamp < ?)",
+                Boolean.class, from, to);
+        if (!Boolean.TRUE.equals(pending)) {
+            jdbcTemplate.execute("CREATE TABLE " + name + " PARTITION OF " + parent + bounds);
+            return;
+        }
+
+        transactionTemplate.executeWithoutResult(status -> {
+            jdbcTemplate.execute("CREATE TABLE " + name + " (LIKE " + parent + " INCLUDING DEFAULTS)");
+            int moved = jdbcTemplate.update("WITH moved AS (DELETE FROM " + defaultPartition +
+                    " WHERE timestamp >= ? AND timestamp < ? RETURNING *) INSERT INTO " + name +
+                    " SELECT * FROM moved", from, to);
+            jdbcTemplate.execute("ALTER TABLE " + parent + " ATTACH PARTITION " + name + bounds);
+            log.info("В секцию {} перенесено записей из {}: {}", name, defaultPartition, moved);
+        });
+    }
+
+    /**
+     * Удаляет секции, все записи которых старше срока хранения
+     */
+    private void dropExpired(String parent, int retentionDays, List<String> dropped) {
+        LocalDateTime cutoff = LocalDate.now().minusDays(retentionDays).atStartOfDay();
+        for (PartitionBound bound : rangePartitions(parent)) {
+            if (bound.to().isAfter(cutoff)) {
+                continue;
+            }
+            jdbcTemplate.execute("DROP TABLE IF EXISTS " + bound.name());
+            dropped.add(bound.name());
+            log.info("Удалена секция {} с истёкшим сроком хранения ({} дн.)", bound.name(), retentionDays);
+        }
+
+        // Секцию по умолчанию нельзя удалить целиком: устаревшие записи удаляются из неё по одной
+        String defaultPartition = parent + "_default";
+        if (relationKind(defaultPartition) != null) {
+            int deleted = jdbcTemplate.update("DELETE FROM " + defaultPartition + " WHERE timestamp < ?", cutoff);
+            if (deleted > 0) {
+                log.info("Из секции {} удалено записей с истёкшим сроком хранения: {}", defaultPartition, deleted);
+            }
+        }
+    }
+
+    /**
+     * Удаляет секцию legacy истории датчиков, когда истёк наибольший срок хранения всех её записей
+     */
+    private void dropSensorLegacy(List<String> dropped) {
+        String legacy = SENSOR_TABLE + "_legacy";
+        if (!childTables(SENSOR_TABLE).containsKey(legacy)) {
+            return;
+        }
+
+        LocalDateTime cutoff = LocalDate.now().minusDays(retentionPolicy.maxSensorRetentionDays()).atStartOfDay();
+        Boolean hasRecent = jdbcTemplate.queryForObject(
+                "SELECT EXISTS (SELECT 1 FROM " + legacy + " WHERE timestamp >= ?)", Boolean.class, cutoff);
+        if (Boolean.FALSE.equals(hasRecent)) {
+            jdbcTemplate.execute("DROP TABLE IF EXISTS " + legacy);
+            dropped.add(legacy);
+            log.info("Удалена секция {}: срок хранения всех записей истёк", legacy);
+        }
+    }
+
+    /**
+     * Непосредственные секции таблицы: имя -> выражение границ
+     */
+    private Map<String, String> childTables(String parent) {
+        Map<String, String> children = new LinkedHashMap<>();
+        jdbcTemplate.query(
+                "SELECT c.relname, pg_get_expr(c.relpartbound, c.oid) FROM pg_inherits i " +
+                "JOIN pg_class c ON c.oid = i.inhrelid WHERE i.inhparent = ?::regclass ORDER BY c.relname",
+                rs -> {
+                    children.put(rs.getString(1), rs.getString(2));
+                },
+                parent);
+        return children;
+    }
+
+    private List<PartitionBound> rangePartitions(String parent) {
+        List<PartitionBound> bounds = new ArrayList<>();
+        for (Map.Entry<String, String> child : childTables(parent).entrySet()) {
+            PartitionBound bound = PartitionBound.parse(child.getKey(), child.getValue());
+            if (bound != null) {
+                bounds.add(bound);
+            }
+        }
+        return bounds;
+    }
+}
@@ -0,0 +1,24 @@
+package com.example.Smarthome.retention;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+
+/**
+ * Статистика обслуживания секций истории: GET /actuator/historyretention
+ */
+@Component
+@Endpoint(id = "historyretention")
+@RequiredArgsConstructor
+public class HistoryRetentionEndpoint {
+
+    private final HistoryPartitionManager partitionManager;
+
+    @ReadOperation
+    public Map<String, Object> stats() {
+        return partitionManager.getStats();
+    }
+}
@@ -0,0 +1,53 @@
+package com.example.Smarthome.retention;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Диапазон времени секции таблицы истории: [from, to)
+ */
+record PartitionBound(String name, LocalDateTime from, LocalDateTime to) {
+
+    static final DateTimeFormatter SQL_TIMESTAMP = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    private static final Pattern RANGE = Pattern.compile("FROM \\((.+?)\\) TO \\((.+?)\\)");
+
+    /**
+     * Разбирает границы секции из результата pg_get_expr(relpartbound)
+     * @return границы или null для секции по умолчанию и неизвестного формата
+     */
+    static PartitionBound parse(String name, String expression) {
+        if (expression == null) {
+            return null;
+        }
+        Matcher matcher = RANGE.matcher(expression);
+        if (!matcher.find()) {
+            return null;
+        }
+        try {
+            return new PartitionBound(name, parseValue(matcher.group(1)), parseValue(matcher.group(2)));
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    boolean overlaps(LocalDateTime start, LocalDateTime end) {
+        return from.isBefore(end) && start.isBefore(to);
+    }
+
+    private static LocalDateTime parseValue(String value) {
+        String trimmed = value.trim();
+        if ("MINVALUE".equals(trimmed)) {
+            return LocalDateTime.MIN;
+        }
+        if ("MAXVALUE".equals(trimmed)) {
+            return LocalDateTime.MAX;
+        }
+        // Значение имеет вид '2024-06-01 00:00:00'
+        String literal = trimmed.replace("'", "");
+        return LocalDateTime.parse(literal.length() > 19 ? literal.substring(0, 19) : literal, SQL_TIMESTAMP);
+    }
+}
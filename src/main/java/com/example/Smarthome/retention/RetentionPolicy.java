@@ -0,0 +1,129 @@
+package com.example.Smarthome.retention;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Сроки хранения истории.
+ * Для истории датчиков срок выбирается по типу датчика и приоритету записи
+ * по правилам вида "тип/приоритет:дни", где вместо типа или приоритета можно указать "*".
+ * Порядок проверки: тип/приоритет, тип/*, * /приоритет, затем срок по умолчанию.
+ */
+@Component
+@Slf4j
+public class RetentionPolicy {
+
+    private static final String ANY = "*";
+
+    private final int sensorDefaultDays;
+    private final Map<String, Integer> sensorRules;
+    private final int lockDays;
+
+    public RetentionPolicy(
+            @Value("${history.retention.sensor.default-days:90}") int sensorDefaultDays,
+            @Value("${history.retention.sensor.rules:*/critical:365,motion/*:30}") String sensorRules,
+            @Value("${history.retention.lock-days:365}") int lockDays) {
+        this.sensorDefaultDays = requirePositive(sensorDefaultDays, "history.retention.sensor.default-days");
+        this.sensorRules = parseRules(sensorRules);
+        this.lockDays = requirePositive(lockDays, "history.retention.lock-days");
+        log.info("Сроки хранения истории: датчики {} дн. по умолчанию, правила {}, замки {} дн.",
+                sensorDefaultDays, this.sensorRules, lockDays);
+    }
+
+    /**
+     * Срок хранения записи истории датчика (дни)
+     * @param sensorType тип датчика
+     * @param priority приоритет записи
+     */
+    public int sensorRetentionDays(String sensorType, String priority) {
+        String type = normalize(sensorType);
+        String level = normalize(priority);
+
+        Integer days = sensorRules.get(type + "/" + level);
+        if (days == null) {
+            days = sensorRules.get(type + "/" + ANY);
+        }
+        if (days == null) {
+            days = sensorRules.get(ANY + "/" + level);
+        }
+        return days != null ? days : sensorDefaultDays;
+    }
+
+    /**
+     * Все сроки хранения истории датчиков, которые могут быть назначены записям
+     */
+    public Set<Integer> sensorRetentionClasses() {
+        Set<Integer> classes = new TreeSet<>(sensorRules.values());
+        classes.add(sensorDefaultDays);
+        return classes;
+    }
+
+    /**
+     * Наибольший срок хранения истории датчиков (дни)
+     */
+    public int maxSensorRetentionDays() {
+        return Math.max(sensorDefaultDays, sensorRules.values().stream().max(Integer::compare).orElse(0));
+    }
+
+    /**
+     * Срок хранения истории замков (дни)
+     */
+    public int lockRetentionDays() {
+        return lockDays;
+    }
+
+    /**
+     * Правила хранения истории датчиков в виде "тип/приоритет" -> дни
+     */
+    public Map<String, Integer> sensorRules() {
+        return Collections.unmodifiableMap(sensorRules);
+    }
+
+    public int sensorDefaultDays() {
+        return sensorDefaultDays;
+    }
+
+    private static Map<String, Integer> parseRules(String rules) {
+        Map<String, Integer> parsed = new LinkedHashMap<>();
+        if (rules == null || rules.isBlank()) {
+            return parsed;
+        }
+
+        for (String rule : rules.split(",")) {
+            String trimmed = rule.trim();
+            if (trimmed.isEmpty()) {
+                continue;
+            }
+            int colon = trimmed.lastIndexOf(':');
+            int slash = trimmed.indexOf('/');
+            if (colon < 0 || slash < 0 || slash > colon) {
+                throw new IllegalArgumentException("Некорректное правило хранения истории: " + trimmed
+                        + " (ожидается тип/приоритет:дни)");
+            }
+            String type = normalize(trimmed.substring(0, slash));
+            String level = normalize(trimmed.substring(slash + 1, colon));
+            int days = requirePositive(Integer.parseInt(trimmed.substring(colon + 1).trim()), trimmed);
+            parsed.put(type + "/" + level, days);
+        }
+        return parsed;
+    }
+
+    private static String normalize(String value) {
+        return value == null ? "" : value.trim().toLowerCase(Locale.ROOT);
+    }
+
+    private static int requirePositive(int days, String name) {
+        if (days <= 0) {
+            throw new IllegalArgumentException("Срок хранения должен быть больше 0: " + name);
+        }
+        return days;
+    }
+}
@@ -0,0 +1,16 @@
+package com.example.Smarthome.retention;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * Результат одного запуска обслуживания секций истории
+ * @param startedAt время запуска
+ * @param durationMs длительность, мс
+ * @param created созданные секции
+ * @param dropped удалённые секции с истёкшим сроком хранения
+ * @param error текст ошибки или null, если запуск прошёл успешно
+ */
+public record RetentionRunStats(LocalDateTime startedAt, long durationMs, List<String> created,
+                                List<String> dropped, String error) {
+}
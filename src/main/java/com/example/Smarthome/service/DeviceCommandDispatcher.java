@@ -0,0 +1,332 @@
+package com.example.Smarthome.service;
+
+import com.example.Smarthome.dto.DeviceCommand;
+import com.example.Smarthome.dto.DeviceCommandBatchRequest;
+import com.example.Smarthome.dto.DeviceCommandResult;
+import com.example.Smarthome.model.Device;
+import com.example.Smarthome.repository.DeviceRepository;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Параллельное выполнение команд группе устройств (сценарии, групповые команды).
+ * Устройства загружаются одним запросом, команды разных устройств выполняются адаптерами
+ * протоколов одновременно в пуле device.commands.concurrency, команды одного устройства - по порядку.
+ * Изменённые свойства всех устройств записываются в базу одним пакетом, а отправка в ThingsBoard
+ * ставится в пул ThingsBoardTelemetryPushEngine одной группой. Общее время определяется
+ * самым медленным устройством, но не превышает device.commands.timeout.
+ */
+@Service
+@Slf4j
+public class DeviceCommandDispatcher {
+
+    private final DeviceRepository deviceRepository;
+    private final ProtocolAdapterService protocolAdapterService;
+    private final DeviceStateStore deviceStateStore;
+    private final ThingsBoardTelemetryPushEngine pushEngine;
+
+    private final ExecutorService executor;
+    private final long commandTimeoutMs;
+    private final Timer dispatchTimer;
+
+    public DeviceCommandDispatcher(
+            DeviceRepository deviceRepository,
+            ProtocolAdapterService protocolAdapterService,
+            DeviceStateStore deviceStateStore,
+            ThingsBoardTelemetryPushEngine pushEngine,
+            MeterRegistry meterRegistry,
+            @Value("${device.commands.concurrency:16}") int concurrency,
+            @Value("${device.commands.timeout:10000}") long commandTimeoutMs) {
+        this.deviceRepository = deviceRepository;
+        this.protocolAdapterService = protocolAdapterService;
+        this.deviceStateStore = deviceStateStore;
+        this.pushEngine = pushEngine;
+        this.executor = Executors.newFixedThreadPool(Math.max(1, concurrency),
+                new CustomizableThreadFactory("device-cmd-"));
+        this.commandTimeoutMs = commandTimeoutMs;
+        this.dispatchTimer = Timer.builder("smarthome.device.commands.dispatch")
+                .description("Время выполнения группы команд устройствам")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Выполняет команды и ждёт их завершения (не дольше device.commands.timeout на устройство)
+     * @return результаты в порядке команд
+     */
+    public List<DeviceCommandResult> dispatch(List<DeviceCommand> commands) {
+        return dispatch(commands, Integer.MAX_VALUE, result -> { });
+    }
+
+    /**
+     * Выполняет команды, передавая результат каждой сразу по готовности
+     * @param maxConcurrency сколько устройств этой группы выполняют команды одновременно
+     * @param listener получает результаты из потоков пула, поэтому должен быть потокобезопасным
+     * @return результаты в порядке команд
+     */
+    public List<DeviceCommandResult> dispatch(List<DeviceCommand> commands, int maxConcurrency,
+                                              Consumer<DeviceCommandResult> listener) {
+        if (commands.isEmpty()) {
+            return List.of();
+        }
+        Map<UUID, Device> devices = deviceRepository.findAllById(commands.stream()
+                        .map(DeviceCommand::deviceId)
+                        .filter(Objects::nonNull)
+                        .distinct()
+                        .collect(Collectors.toList())).stream()
+                .collect(Collectors.toMap(Device::getId, Function.identity()));
+        return dispatch(devices, commands, maxConcurrency, listener);
+    }
+
+    /**
+     * Разбирает групповой запрос: явный список команд или одна команда всем устройствам,
+     * выбранным селектором. Устройства загружаются одним запросом
+     * @throws IllegalArgumentException если запрос не задаёт ни команд, ни селектора с командой
+     */
+    public PreparedBatch prepareBatch(DeviceCommandBatchRequest request) {
+        List<DeviceCommand> explicit = request.getCommands() != null ? request.getCommands() : List.of();
+        boolean hasSelector = request.getRoomId() != null || request.getLocationId() != null
+                || (request.getType() != null && !request.getType().isBlank());
+
+        if (!explicit.isEmpty()) {
+            if (hasSelector) {
+                throw new IllegalArgumentException("Нужно указать либо список команд, либо селектор устройств");
+            }
+            for (DeviceCommand command : explicit) {
+                if (command.deviceId() == null || command.command() == null || command.command().isBlank()) {
+                    throw new IllegalArgumentException("Для каждой команды нужны deviceId и command");
+                }
+            }
+            Map<UUID, Device> devices = deviceRepository.findAllById(explicit.stream()
+                            .map(DeviceCommand::deviceId)
+                            .distinct()
+                            .collect(Collectors.toList())).stream()
+                    .collect(Collectors.toMap(Device::getId, Function.identity()));
+            return new PreparedBatch(devices, explicit);
+        }
+
+        if (!hasSelector) {
+            throw new IllegalArgumentException("Не указаны команды или селектор устройств (roomId, locationId, type)");
+        }
+        if (request.getCommand() == null || request.getCommand().isBlank()) {
+            throw new IllegalArgumentException("Команда не указана");
+        }
+        String type = request.getType() != null && !request.getType().isBlank() ? request.getType() : null;
+        Map<String, String> parameters = request.getParameters() != null ? request.getParameters() : Map.of();
+
+        Map<UUID, Device> devices = new LinkedHashMap<>();
+        List<DeviceCommand> commands = new ArrayList<>();
+        for (Device device : deviceRepository.findBySelector(request.getRoomId(), request.getLocationId(), type)) {
+            devices.put(device.getId(), device);
+            commands.add(new DeviceCommand(device.getId(), request.getCommand(), parameters));
+        }
+        return new PreparedBatch(devices, commands);
+    }
+
+    /**
+     * Выполняет команды уже загруженным устройствам (групповые команды по комнате, локации или типу)
+     */
+    public List<DeviceCommandResult> dispatch(Map<UUID, Device> devices, List<DeviceCommand> commands,
+                                              int maxConcurrency, Consumer<DeviceCommandResult> listener) {
+        if (commands.isEmpty()) {
+            return List.of();
+        }
+        long start = System.nanoTime();
+        Results results = new Results(commands.size(), listener);
+
+        Map<UUID, List<Integer>> byDevice = new LinkedHashMap<>();
+        for (int i = 0; i < commands.size(); i++) {
+            DeviceCommand command = commands.get(i);
+            if (devices.containsKey(command.deviceId())) {
+                byDevice.computeIfAbsent(command.deviceId(), id -> new ArrayList<>()).add(i);
+            } else {
+                results.complete(i, failed(command, null, "Устройство не найдено", 0));
+            }
+        }
+
+        // Каждая задача возвращает изменённые командами свойства своего устройства.
+        // Разрешение освобождается по завершении или по истечении времени ожидания устройства
+        Semaphore permits = new Semaphore(Math.max(1, maxConcurrency));
+        Map<UUID, Map<String, String>> changes = new ConcurrentHashMap<>();
+        List<CompletableFuture<Void>> waits = new ArrayList<>();
+        for (Map.Entry<UUID, List<Integer>> entry : byDevice.entrySet()) {
+            Device device = devices.get(entry.getKey());
+            List<Integer> indexes = entry.getValue();
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                indexes.forEach(i -> results.complete(i, failed(commands.get(i), device, "Выполнение прервано", 0)));
+                continue;
+            }
+
+            CompletableFuture<Map<String, String>> task;
+            try {
+                task = CompletableFuture.supplyAsync(() -> execute(device, indexes, commands, results), executor);
+            } catch (RejectedExecutionException e) {
+                permits.release();
+                indexes.forEach(i -> results.complete(i, failed(commands.get(i), device, "Пул команд остановлен", 0)));
+                continue;
+            }
+
+            waits.add(task.copy()
+                    .orTimeout(commandTimeoutMs, TimeUnit.MILLISECONDS)
+                    .handle((changed, error) -> {
+                        permits.release();
+                        if (error == null) {
+                            changes.put(device.getId(), changed);
+                        } else if (error instanceof TimeoutException || error.getCause() instanceof TimeoutException) {
+                            indexes.forEach(i -> results.complete(i, failed(commands.get(i), device,
+                                    "Превышено время ожидания ответа", commandTimeoutMs)));
+                            // Команда может выполниться позже - тогда её изменения применяются отдельно
+                            task.thenAccept(late -> applyLate(device, late));
+                        } else {
+                            log.error("Ошибка при выполнении команд устройству {}: {}", device.getName(), error.getMessage());
+                        }
+                        return null;
+                    }));
+        }
+        CompletableFuture.allOf(waits.toArray(new CompletableFuture[0])).join();
+
+        deviceStateStore.updatePropertiesNow(changes);
+        pushEngine.pushNow(changes.entrySet().stream()
+                .filter(entry -> !entry.getValue().isEmpty())
+                .map(entry -> devices.get(entry.getKey()))
+                .collect(Collectors.toList()));
+
+        List<DeviceCommandResult> ordered = new ArrayList<>(commands.size());
+        for (int i = 0; i < commands.size(); i++) {
+            DeviceCommand command = commands.get(i);
+            results.complete(i, failed(command, devices.get(command.deviceId()), "Команда не выполнена", 0));
+            ordered.add(results.get(i));
+        }
+
+        long elapsed = System.nanoTime() - start;
+        dispatchTimer.record(elapsed, TimeUnit.NANOSECONDS);
+        log.info("Выполнено {} команд для {} устройств за {} мс, успешно: {}", commands.size(), byDevice.size(),
+                TimeUnit.NANOSECONDS.toMillis(elapsed), ordered.stream().filter(DeviceCommandResult::success).count());
+        return ordered;
+    }
+
+    /**
+     * Свойства, которые устанавливает успешно выполненная команда: непустые параметры
+     * (кроме имени самой команды) с префиксом tb_, значения которых отличаются от текущих
+     */
+    public static Map<String, String> commandProperties(Map<String, String> parameters, Map<String, String> current) {
+        Map<String, String> changed = new HashMap<>();
+        parameters.forEach((key, value) -> {
+            if ("command".equals(key) || value == null || value.isEmpty()) {
+                return;
+            }
+            String propertyKey = key.startsWith("tb_") ? key : "tb_" + key;
+            if (!value.equals(current.get(propertyKey))) {
+                changed.put(propertyKey, value);
+            }
+        });
+        return changed;
+    }
+
+    /**
+     * Выполняет команды одного устройства по порядку (в пуле команд)
+     */
+    private Map<String, String> execute(Device device, List<Integer> indexes, List<DeviceCommand> commands,
+                                        Results results) {
+        Map<String, String> changed = new HashMap<>();
+        for (int index : indexes) {
+            DeviceCommand command = commands.get(index);
+            Map<String, String> parameters = command.parameters() != null ? command.parameters() : Map.of();
+            long started = System.nanoTime();
+            boolean success = protocolAdapterService.sendCommand(device, command.command(), parameters);
+            long durationMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+
+            if (success) {
+                Map<String, String> current = new HashMap<>(deviceStateStore.getProperties(device.getId()));
+                current.putAll(changed);
+                changed.putAll(commandProperties(parameters, current));
+                results.complete(index, new DeviceCommandResult(device.getId(), device.getName(),
+                        command.command(), true, null, durationMs));
+            } else {
+                results.complete(index, failed(command, device, "Адаптер протокола не выполнил команду", durationMs));
+            }
+        }
+        return changed;
+    }
+
+    private void applyLate(Device device, Map<String, String> changed) {
+        if (changed.isEmpty()) {
+            return;
+        }
+        deviceStateStore.updateProperties(device.getId(), changed);
+        pushEngine.pushNow(List.of(device));
+        log.info("Команды устройству {} выполнены после истечения времени ожидания", device.getName());
+    }
+
+    private static DeviceCommandResult failed(DeviceCommand command, Device device, String error, long durationMs) {
+        return new DeviceCommandResult(command.deviceId(), device != null ? device.getName() : null,
+                command.command(), false, error, durationMs);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Групповой запрос, готовый к выполнению: загруженные устройства и команды им
+     */
+    public record PreparedBatch(Map<UUID, Device> devices, List<DeviceCommand> commands) {
+    }
+
+    /**
+     * Результаты группы: первый записанный результат команды окончательный
+     * и сразу передаётся слушателю
+     */
+    private static class Results {
+        private final AtomicReferenceArray<DeviceCommandResult> values;
+        private final Consumer<DeviceCommandResult> listener;
+
+        private Results(int size, Consumer<DeviceCommandResult> listener) {
+            this.values = new AtomicReferenceArray<>(size);
+            this.listener = listener;
+        }
+
+        private void complete(int index, DeviceCommandResult result) {
+            if (!values.compareAndSet(index, null, result)) {
+                return;
+            }
+            try {
+                listener.accept(result);
+            } catch (RuntimeException e) {
+                log.debug("Ошибка при передаче результата команды {}: {}", result.deviceId(), e.getMessage());
+            }
+        }
+
+        private DeviceCommandResult get(int index) {
+            return values.get(index);
+        }
+    }
+}
@@ -0,0 +1,435 @@
+package com.example.Smarthome.service;
+
+import com.example.Smarthome.dto.CommandStatusDto;
+import com.example.Smarthome.model.CommandStatus;
+import com.example.Smarthome.model.Device;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Асинхронный конвейер одиночных команд устройствам.
+ * Команда получает идентификатор и сразу возвращается вызывающему в статусе PENDING,
+ * отправка выполняется в пуле конвейера. Если протокол подтверждает команды (MQTT),
+ * конвейер ждёт сообщения о состоянии с command_id команды (или с установленными ею значениями)
+ * не дольше device.commands.ack-timeout и при необходимости отправляет команду повторно,
+ * всего до device.commands.max-attempts раз. Завершённые команды доступны по идентификатору
+ * ещё device.commands.status-retention мс.
+ */
+@Service
+@Slf4j
+public class DeviceCommandPipeline {
+
+    /**
+     * Поле с идентификатором команды в MQTT сообщениях команд и подтверждений
+     */
+    public static final String COMMAND_ID_FIELD = "command_id";
+
+    private final ProtocolAdapterService protocolAdapterService;
+    private final DeviceStateStore deviceStateStore;
+    private final ThingsBoardTelemetryPushEngine pushEngine;
+    private final MeterRegistry meterRegistry;
+
+    private final ScheduledThreadPoolExecutor scheduler;
+    private final long ackTimeoutMs;
+    private final int maxAttempts;
+    private final long retryBackoffMs;
+    private final long statusRetentionMs;
+    private final int maxTracked;
+    private final Counter retryCounter;
+    private final Counter supersededCounter;
+
+    private final Map<UUID, TrackedCommand> commands = new ConcurrentHashMap<>();
+    // Ещё не завершённые команды; завершённые хранятся только для запроса статуса и в лимит не входят
+    private final AtomicInteger active = new AtomicInteger();
+    // Команды, ожидающие подтверждения, по устройствам в порядке отправки
+    private final Map<UUID, Queue<TrackedCommand>> awaitingAck = new ConcurrentHashMap<>();
+
+    public DeviceCommandPipeline(
+            ProtocolAdapterService protocolAdapterService,
+            DeviceStateStore deviceStateStore,
+            ThingsBoardTelemetryPushEngine pushEngine,
+            MeterRegistry meterRegistry,
+            @Value("${device.commands.pipeline.threads:4}") int threads,
+            @Value("${device.commands.ack-timeout:5000}") long ackTimeoutMs,
+            @Value("${device.commands.max-attempts:3}") int maxAttempts,
+            @Value("${device.commands.retry-backoff:500}") long retryBackoffMs,
+            @Value("${device.commands.status-retention:300000}") long statusRetentionMs,
+            @Value("${device.commands.max-tracked:10000}") int maxTracked) {
+        this.protocolAdapterService = protocolAdapterService;
+        this.deviceStateStore = deviceStateStore;
+        this.pushEngine = pushEngine;
+        this.meterRegistry = meterRegistry;
+        this.scheduler = new ScheduledThreadPoolExecutor(Math.max(1, threads),
+                new CustomizableThreadFactory("device-cmd-pipeline-"));
+        // Отменённые ожидания подтверждения сразу удаляются из очереди планировщика
+        this.scheduler.setRemoveOnCancelPolicy(true);
+        this.ackTimeoutMs = ackTimeoutMs;
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.retryBackoffMs = retryBackoffMs;
+        this.statusRetentionMs = statusRetentionMs;
+        this.maxTracked = maxTracked;
+        this.retryCounter = Counter.builder("smarthome.device.commands.retries")
+                .description("Повторные отправки команд устройствам")
+                .register(meterRegistry);
+        this.supersededCounter = Counter.builder("smarthome.device.commands.superseded")
+                .description("Команды, объединённые с ещё не отправленной командой устройству")
+                .register(meterRegistry);
+        Gauge.builder("smarthome.device.commands.tracked", commands, Map::size)
+                .description("Команды в конвейере, включая недавно завершённые")
+                .register(meterRegistry);
+        Gauge.builder("smarthome.device.commands.active", active, AtomicInteger::get)
+                .description("Незавершённые команды в конвейере")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Принимает команду к отправке и сразу возвращает её состояние (PENDING)
+     * @throws IllegalStateException если в конвейере слишком много незавершённых команд
+     */
+    public CommandStatusDto submit(Device device, String command, Map<String, String> parameters) {
+        return submit(device, command, parameters, 0);
+    }
+
+    /**
+     * Принимает команду с отложенной отправкой. Пока команда не отправлена,
+     * её параметры можно дополнить через supersede
+     * @param delayMs через сколько миллисекунд отправить команду
+     */
+    public CommandStatusDto submit(Device device, String command, Map<String, String> parameters, long delayMs) {
+        if (active.incrementAndGet() > maxTracked) {
+            active.decrementAndGet();
+            throw new IllegalStateException("Слишком много команд в обработке, повторите позже");
+        }
+        TrackedCommand tracked = new TrackedCommand(UUID.randomUUID(), device, command, parameters,
+                protocolAdapterService.supportsAcknowledgement(device));
+        commands.put(tracked.id, tracked);
+        if (tracked.expectsAck) {
+            // Регистрируем до отправки, чтобы не пропустить быстрое подтверждение
+            awaitingAck.compute(device.getId(), (id, queue) -> {
+                Queue<TrackedCommand> waiting = queue != null ? queue : new ConcurrentLinkedQueue<>();
+                waiting.add(tracked);
+                return waiting;
+            });
+        }
+        CommandStatusDto status = tracked.toDto();
+        schedule(tracked, () -> attempt(tracked), delayMs);
+        log.debug("Команда {} '{}' устройству {} принята в конвейер", tracked.id, command, device.getName());
+        return status;
+    }
+
+    /**
+     * Заменяет значения параметров ещё не отправленной команды более новыми
+     * @return состояние команды или пусто, если команда уже отправлялась или не найдена
+     */
+    public Optional<CommandStatusDto> supersede(UUID commandId, Map<String, String> parameters) {
+        TrackedCommand tracked = commands.get(commandId);
+        if (tracked == null || !tracked.supersede(parameters)) {
+            return Optional.empty();
+        }
+        supersededCounter.increment();
+        return Optional.of(tracked.toDto());
+    }
+
+    /**
+     * Текущее состояние команды
+     */
+    public Optional<CommandStatusDto> getStatus(UUID commandId) {
+        return Optional.ofNullable(commands.get(commandId)).map(TrackedCommand::toDto);
+    }
+
+    /**
+     * Future, который завершается итоговым состоянием команды
+     */
+    public Optional<CompletableFuture<CommandStatusDto>> awaitCompletion(UUID commandId) {
+        return Optional.ofNullable(commands.get(commandId)).map(tracked -> tracked.completion.copy());
+    }
+
+    /**
+     * Сопоставляет сообщение о состоянии устройства с ожидающими подтверждения командами.
+     * Сообщение с command_id подтверждает эту команду; без него, а также с command_id,
+     * который не удалось разобрать или который не ждёт подтверждения (например, устройство
+     * повторило идентификатор уже завершённой команды), - самую раннюю отправленную команду,
+     * все значения которой совпадают с сообщёнными
+     * @param commandId значение command_id из сообщения или null
+     * @return true если сообщение подтвердило команду
+     */
+    public boolean acknowledge(UUID deviceId, String commandId, Map<String, String> reported) {
+        Queue<TrackedCommand> waiting = awaitingAck.get(deviceId);
+        if (waiting == null) {
+            return false;
+        }
+        UUID id = parseCommandId(deviceId, commandId);
+        if (id != null) {
+            for (TrackedCommand tracked : waiting) {
+                if (tracked.id.equals(id)) {
+                    return finish(tracked, CommandStatus.ACKNOWLEDGED, null);
+                }
+            }
+            log.debug("Команда {} устройства {} не ждёт подтверждения, сопоставляем по значениям", id, deviceId);
+        }
+        for (TrackedCommand tracked : waiting) {
+            if (tracked.matches(reported) && finish(tracked, CommandStatus.ACKNOWLEDGED, null)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private UUID parseCommandId(UUID deviceId, String commandId) {
+        if (commandId == null) {
+            return null;
+        }
+        try {
+            return UUID.fromString(commandId);
+        } catch (IllegalArgumentException e) {
+            log.debug("Некорректный идентификатор команды в подтверждении устройства {}: {}", deviceId, commandId);
+            return null;
+        }
+    }
+
+    /**
+     * Очередная попытка отправки (в пуле конвейера)
+     */
+    private void attempt(TrackedCommand tracked) {
+        int attempt;
+        Map<String, String> parameters;
+        synchronized (tracked) {
+            if (tracked.status.isFinal()) {
+                return;
+            }
+            attempt = ++tracked.attempts;
+            parameters = tracked.parameters;
+            tracked.touch();
+        }
+        if (attempt > 1) {
+            retryCounter.increment();
+        }
+        protocolAdapterService.sendCommandAsync(tracked.device, tracked.id, tracked.command, parameters)
+                .whenComplete((sent, error) -> onSent(tracked, attempt, error == null && Boolean.TRUE.equals(sent)));
+    }
+
+    private void onSent(TrackedCommand tracked, int attempt, boolean sent) {
+        if (!sent) {
+            retryOrFinish(tracked, attempt, CommandStatus.FAILED, "Адаптер протокола не отправил команду");
+            return;
+        }
+        if (!tracked.expectsAck) {
+            finish(tracked, CommandStatus.DELIVERED, null);
+            return;
+        }
+        synchronized (tracked) {
+            if (tracked.status.isFinal() || tracked.attempts != attempt) {
+                return;
+            }
+            tracked.status = CommandStatus.SENT;
+            tracked.error = null;
+            tracked.touch();
+            tracked.timeout = schedule(tracked, () -> retryOrFinish(tracked, attempt, CommandStatus.TIMED_OUT,
+                    "Устройство не подтвердило команду"), ackTimeoutMs);
+        }
+    }
+
+    /**
+     * Отправляет команду повторно с нарастающей задержкой или завершает её, если попытки исчерпаны
+     */
+    private void retryOrFinish(TrackedCommand tracked, int attempt, CommandStatus finalStatus, String error) {
+        synchronized (tracked) {
+            if (tracked.status.isFinal() || tracked.attempts != attempt) {
+                return;
+            }
+            if (attempt < maxAttempts) {
+                tracked.error = error;
+                tracked.touch();
+                log.debug("Повторная отправка команды {} устройству {}: {}", tracked.id, tracked.device.getName(), error);
+                schedule(tracked, () -> attempt(tracked), retryBackoffMs * attempt);
+                return;
+            }
+        }
+        finish(tracked, finalStatus, error);
+    }
+
+    /**
+     * Переводит команду в итоговое состояние. Успешная команда применяет свои свойства
+     * к состоянию устройства и ставит отправку в ThingsBoard
+     * @return false если команда уже была завершена
+     */
+    private boolean finish(TrackedCommand tracked, CommandStatus status, String error) {
+        synchronized (tracked) {
+            if (tracked.status.isFinal()) {
+                return false;
+            }
+            tracked.status = status;
+            tracked.error = error;
+            tracked.touch();
+            if (tracked.timeout != null) {
+                tracked.timeout.cancel(false);
+            }
+        }
+        active.decrementAndGet();
+        if (tracked.expectsAck) {
+            awaitingAck.computeIfPresent(tracked.device.getId(), (id, waiting) -> {
+                waiting.remove(tracked);
+                return waiting.isEmpty() ? null : waiting;
+            });
+        }
+
+        Timer.builder("smarthome.device.commands.completion")
+                .description("Время от приёма команды до её завершения")
+                .tag("status", status.name())
+                .register(meterRegistry)
+                .record(System.nanoTime() - tracked.startedNanos, TimeUnit.NANOSECONDS);
+
+        if (status.isSuccessful()) {
+            log.info("Команда '{}' устройству {} завершена: {}", tracked.command, tracked.device.getName(), status);
+            try {
+                applyState(tracked);
+            } catch (RuntimeException e) {
+                log.error("Ошибка при применении результата команды {} устройства {}: {}",
+                        tracked.id, tracked.device.getName(), e.getMessage(), e);
+            }
+        } else {
+            log.warn("Команда '{}' устройству {} не выполнена ({}): {}", tracked.command,
+                    tracked.device.getName(), status, error);
+        }
+        tracked.completion.complete(tracked.toDto());
+
+        try {
+            scheduler.schedule(() -> commands.remove(tracked.id), statusRetentionMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            commands.remove(tracked.id);
+        }
+        return true;
+    }
+
+    private void applyState(TrackedCommand tracked) {
+        UUID deviceId = tracked.device.getId();
+        Map<String, String> changed = DeviceCommandDispatcher.commandProperties(
+                tracked.parameters(), deviceStateStore.getProperties(deviceId));
+        if (changed.isEmpty()) {
+            return;
+        }
+        deviceStateStore.updateProperties(deviceId, changed);
+        pushEngine.pushNow(List.of(tracked.device));
+    }
+
+    private ScheduledFuture<?> schedule(TrackedCommand tracked, Runnable action, long delayMs) {
+        try {
+            return scheduler.schedule(action, delayMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            finish(tracked, CommandStatus.FAILED, "Конвейер команд остановлен");
+            return null;
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Команда в конвейере. Изменяемые поля защищены монитором самого объекта
+     */
+    private static class TrackedCommand {
+        private final UUID id;
+        private final Device device;
+        private final String command;
+        private final boolean expectsAck;
+        private final LocalDateTime createdAt = LocalDateTime.now();
+        private final long startedNanos = System.nanoTime();
+        private final CompletableFuture<CommandStatusDto> completion = new CompletableFuture<>();
+
+        private CommandStatus status = CommandStatus.PENDING;
+        private int attempts;
+        private String error;
+        private LocalDateTime updatedAt = createdAt;
+        private ScheduledFuture<?> timeout;
+        private Map<String, String> parameters;
+        // Значения, которые устройство должно сообщить после выполнения (без префикса tb_)
+        private Map<String, String> expected;
+
+        private TrackedCommand(UUID id, Device device, String command, Map<String, String> parameters,
+                               boolean expectsAck) {
+            this.id = id;
+            this.device = device;
+            this.command = command;
+            this.expectsAck = expectsAck;
+            setParameters(new HashMap<>(parameters));
+        }
+
+        private void setParameters(Map<String, String> values) {
+            parameters = Collections.unmodifiableMap(values);
+            expected = new HashMap<>();
+            values.forEach((key, value) -> {
+                if (!"command".equals(key) && value != null && !value.isEmpty()) {
+                    expected.put(key.startsWith("tb_") ? key.substring(3) : key, value);
+                }
+            });
+        }
+
+        /**
+         * Дополняет параметры новыми значениями, если команда ещё ни разу не отправлялась
+         */
+        private synchronized boolean supersede(Map<String, String> values) {
+            if (status != CommandStatus.PENDING || attempts > 0) {
+                return false;
+            }
+            Map<String, String> merged = new HashMap<>(parameters);
+            merged.putAll(values);
+            setParameters(merged);
+            touch();
+            return true;
+        }
+
+        private synchronized Map<String, String> parameters() {
+            return parameters;
+        }
+
+        /**
+         * Подтверждает ли сообщение о состоянии эту команду без command_id: только отправленная
+         * команда с параметрами, все значения которых совпадают с сообщёнными
+         */
+        private synchronized boolean matches(Map<String, String> reported) {
+            if (status != CommandStatus.SENT || expected.isEmpty()) {
+                return false;
+            }
+            for (Map.Entry<String, String> entry : expected.entrySet()) {
+                if (!entry.getValue().equals(reported.get(entry.getKey()))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void touch() {
+            updatedAt = LocalDateTime.now();
+        }
+
+        private synchronized CommandStatusDto toDto() {
+            return new CommandStatusDto(id, device.getId(), command, status, attempts, error, createdAt, updatedAt);
+        }
+    }
+}
@@ -23,17 +23,20 @@ public class DeviceEventHandler {
     private final SensorHistoryService sensorHistoryService;
     private final LockHistoryService lockHistoryService;
     private final ThingsBoardIntegrationService thingsBoardService;
+    private final DeviceStateStore deviceStateStore;
     
     // Используем конструктор с @Lazy вместо @RequiredArgsConstructor
     public DeviceEventHandler(
             DeviceRepository deviceRepository,
             SensorHistoryService sensorHistoryService,
             LockHistoryService lockHistoryService,
-            @Lazy ThingsBoardIntegrationService thingsBoardService) {
+            @Lazy ThingsBoardIntegrationService thingsBoardService,
+            DeviceStateStore deviceStateStore) {
         this.deviceRepository = deviceRepository;
         this.sensorHistoryService = sensorHistoryService;
         this.lockHistoryService = lockHistoryService;
         this.thingsBoardService = thingsBoardService;
+        this.deviceStateStore = deviceStateStore;
     }
 
     /**
@@ -153,8 +156,8 @@ public class DeviceEventHandler {
                 // Устанавливаем сообщение в зависимости от типа датчика и значения
                 historyDto.setMessage(getSensorMessage(sensorType, value));
                 
-                // Добавляем запись в историю
-                SensorHistoryDto savedEntry = sensorHistoryService.addSensorHistoryEntry(device.getId(), historyDto);
+                // Добавляем запись в историю (вставка в базу - пакетами в фоне)
+                sensorHistoryService.appendSensorHistoryEntry(device.getId(), historyDto);
                 log.info("Добавлена запись в историю датчика {} ({}): {}", device.getName(), sensorType, historyDto.getMessage());
                 
                 // Если нужно сбросить состояние датчика (например, для датчиков движения)
@@ -197,8 +200,8 @@ public class DeviceEventHandler {
             properties.putAll(resetAttributes);
             device.setProperties(properties);
             
-            // Сохраняем обновленное устройство
-            deviceRepository.save(device);
+            // Сохраняем состояние (запись в базу - асинхронно)
+            deviceStateStore.updateProperties(device.getId(), resetAttributes);
             
             // Обновляем атрибуты в ThingsBoard
             thingsBoardService.updateClientAttributes(device, resetAttributes);
@@ -0,0 +1,13 @@
+package com.example.Smarthome.service;
+
+import java.util.UUID;
+
+/**
+ * Свойство устройства изменено точечным обновлением и уже записано в базу
+ * @param deviceId ID устройства
+ * @param name имя свойства
+ * @param value новое значение
+ * @param version версия состояния устройства после изменения
+ */
+public record DevicePropertyChangedEvent(UUID deviceId, String name, String value, long version) {
+}
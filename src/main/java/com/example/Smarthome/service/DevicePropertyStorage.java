@@ -0,0 +1,418 @@
+package com.example.Smarthome.service;
+
+import com.example.Smarthome.model.Device;
+import com.example.Smarthome.model.DevicePropertyStorageMode;
+import com.example.Smarthome.repository.DeviceRepository;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalLong;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Хранение карт свойств, возможностей и атрибутов устройств.
+ * <p>
+ * Режим задаётся device.properties.storage:
+ * COLLECTION - таблицы device_properties, device_capabilities, device_attributes (строка на ключ);
+ * JSONB - колонки properties_json, capabilities_json, attributes_json таблицы devices.
+ * В режиме JSONB изменение одного свойства - один UPDATE строки устройства через jsonb_set.
+ * Сохранение сущности документ свойств не перезаписывает: writeDocumentChanges пишет только
+ * свойства, изменённые с момента загрузки, как Hibernate делает для строк таблицы коллекции.
+ * <p>
+ * Сущность Device хранит карту в jsonb-колонке, если колонка заполнена. Миграция режима JSONB
+ * заполняет колонки всех устройств, новые устройства переносит DevicePropertyStorageListener.
+ * <p>
+ * При запуске данные переносятся в хранилище выбранного режима (из таблиц в jsonb или обратно)
+ * одной транзакцией; для jsonb-колонок создаются GIN-индексы. Режим JSONB доступен только
+ * для PostgreSQL, для других СУБД (H2 в тестах) используется COLLECTION. Запросы COLLECTION
+ * для PostgreSQL используют ON CONFLICT и изменяющий CTE, для других СУБД - MERGE INTO ... KEY
+ * и отдельные запросы в одной транзакции.
+ */
+@Service
+@Slf4j
+@DependsOn("entityManagerFactory")
+public class DevicePropertyStorage {
+
+    private static final String UPSERT_PROPERTY_SQL =
+            "INSERT INTO device_properties (device_id, property_name, property_value) " +
+            "SELECT ?, ?, ? WHERE EXISTS (SELECT 1 FROM devices WHERE id = ?) " +
+            "ON CONFLICT (device_id, property_name) DO UPDATE SET property_value = EXCLUDED.property_value";
+
+    // Для СУБД без ON CONFLICT (H2)
+    private static final String MERGE_PROPERTY_SQL =
+            "MERGE INTO device_properties (device_id, property_name, property_value) " +
+            "KEY (device_id, property_name) " +
+            "SELECT id, CAST(? AS VARCHAR), CAST(? AS VARCHAR) FROM devices WHERE id = ?";
+
+    private static final String INCREMENT_STATE_VERSION_SQL =
+            "UPDATE devices SET state_version = COALESCE(state_version, 0) + 1 WHERE id = ?";
+
+    private static final String SELECT_STATE_VERSION_SQL = "SELECT state_version FROM devices WHERE id = ?";
+
+    private static final String SET_PROPERTY_JSONB_SQL =
+            "UPDATE devices SET properties_json = jsonb_set(COALESCE(properties_json, '{}'::jsonb), " +
+            "ARRAY[?], COALESCE(to_jsonb(?::text), 'null'::jsonb)) WHERE id = ?";
+
+    // Точечное изменение: свойство и версия устройства меняются одним запросом;
+    // для неизвестного устройства запрос не возвращает строк
+    private static final String UPDATE_PROPERTY_SQL =
+            "WITH device AS (UPDATE devices SET state_version = COALESCE(state_version, 0) + 1 " +
+            "WHERE id = ? RETURNING id, state_version) " +
+            "INSERT INTO device_properties (device_id, property_name, property_value) " +
+            "SELECT id, ?, ? FROM device " +
+            "ON CONFLICT (device_id, property_name) DO UPDATE SET property_value = EXCLUDED.property_value " +
+            "RETURNING (SELECT state_version FROM device)";
+
+    private static final String UPDATE_PROPERTY_JSONB_SQL =
+            "UPDATE devices SET properties_json = jsonb_set(COALESCE(properties_json, '{}'::jsonb), " +
+            "ARRAY[?], COALESCE(to_jsonb(?::text), 'null'::jsonb)), " +
+            "state_version = COALESCE(state_version, 0) + 1 WHERE id = ? RETURNING state_version";
+
+    private static final String MERGE_PROPERTIES_JSONB_SQL =
+            "UPDATE devices SET properties_json = COALESCE(properties_json, '{}'::jsonb) || ?::jsonb WHERE id = ?";
+
+    private static final String REMOVE_PROPERTIES_JSONB_SQL =
+            "UPDATE devices SET properties_json = COALESCE(properties_json, '{}'::jsonb) - ?::text[] WHERE id = ?";
+
+    // Таблица коллекции и соответствующая ей jsonb-колонка
+    private record MapStorage(String table, String keyColumn, String valueColumn, String jsonColumn) {
+    }
+
+    private static final List<MapStorage> MAPS = List.of(
+            new MapStorage("device_properties", "property_name", "property_value", "properties_json"),
+            new MapStorage("device_capabilities", "capability_name", "capability_value", "capabilities_json"),
+            new MapStorage("device_attributes", "attribute_name", "attribute_value", "attributes_json"));
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final DeviceRepository deviceRepository;
+    private final ObjectMapper objectMapper;
+    private final DevicePropertyStorageMode requestedMode;
+    private final boolean migrate;
+
+    private volatile DevicePropertyStorageMode mode = DevicePropertyStorageMode.COLLECTION;
+    private volatile boolean postgres;
+
+    public DevicePropertyStorage(
+            JdbcTemplate jdbcTemplate,
+            PlatformTransactionManager transactionManager,
+            DeviceRepository deviceRepository,
+            ObjectMapper objectMapper,
+            @Value("${device.properties.storage:COLLECTION}") DevicePropertyStorageMode requestedMode,
+            @Value("${device.properties.migrate:true}") boolean migrate) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.deviceRepository = deviceRepository;
+        this.objectMapper = objectMapper;
+        this.requestedMode = requestedMode;
+        this.migrate = migrate;
+    }
+
+    /**
+     * Выбирает режим хранения до первой загрузки устройств и переносит данные в его хранилище
+     */
+    @PostConstruct
+    public void init() {
+        postgres = isPostgres();
+        DevicePropertyStorageMode effective = requestedMode;
+        if (effective == DevicePropertyStorageMode.JSONB && !postgres) {
+            log.warn("Хранение свойств в jsonb поддерживается только PostgreSQL, используются таблицы коллекций");
+            effective = DevicePropertyStorageMode.COLLECTION;
+        }
+
+        if (postgres && migrate) {
+            migrateTo(effective);
+        }
+
+        mode = effective;
+        log.info("Режим хранения свойств устройств: {}", effective);
+    }
+
+    public DevicePropertyStorageMode getMode() {
+        return mode;
+    }
+
+    /**
+     * Записывает изменения свойств устройств без загрузки сущностей.
+     * В режиме JSONB одно изменённое свойство записывается через jsonb_set,
+     * несколько - одним слиянием документа.
+     * @param changes изменённые свойства по устройствам
+     * @param batchSize размер JDBC-пакета
+     * @return количество записанных свойств
+     */
+    public int writeProperties(Map<UUID, Map<String, String>> changes, int batchSize) {
+        if (mode == DevicePropertyStorageMode.JSONB) {
+            return writePropertiesJsonb(changes, batchSize);
+        }
+
+        List<Object[]> rows = new ArrayList<>();
+        changes.forEach((deviceId, properties) -> properties.forEach((name, value) ->
+                rows.add(new Object[] { deviceId, name, value, deviceId })));
+
+        if (postgres) {
+            jdbcTemplate.batchUpdate(UPSERT_PROPERTY_SQL, rows, batchSize,
+                    (ps, row) -> {
+                        ps.setObject(1, row[0]);
+                        ps.setString(2, (String) row[1]);
+                        ps.setString(3, (String) row[2]);
+                        ps.setObject(4, row[3]);
+                    });
+        } else {
+            jdbcTemplate.batchUpdate(MERGE_PROPERTY_SQL, rows, batchSize,
+                    (ps, row) -> {
+                        ps.setString(1, (String) row[1]);
+                        ps.setString(2, (String) row[2]);
+                        ps.setObject(3, row[0]);
+                    });
+        }
+        return rows.size();
+    }
+
+    private int writePropertiesJsonb(Map<UUID, Map<String, String>> changes, int batchSize) {
+        List<Object[]> singleKeyRows = new ArrayList<>();
+        List<Object[]> mergeRows = new ArrayList<>();
+        int count = 0;
+
+        for (Map.Entry<UUID, Map<String, String>> entry : changes.entrySet()) {
+            Map<String, String> properties = entry.getValue();
+            if (properties.isEmpty()) {
+                continue;
+            }
+            count += properties.size();
+            if (properties.size() == 1) {
+                Map.Entry<String, String> property = properties.entrySet().iterator().next();
+                singleKeyRows.add(new Object[] { property.getKey(), property.getValue(), entry.getKey() });
+            } else {
+                mergeRows.add(new Object[] { toJson(properties), entry.getKey() });
+            }
+        }
+
+        jdbcTemplate.batchUpdate(SET_PROPERTY_JSONB_SQL, singleKeyRows, batchSize,
+                (ps, row) -> {
+                    ps.setString(1, (String) row[0]);
+                    ps.setString(2, (String) row[1]);
+                    ps.setObject(3, row[2]);
+                });
+        jdbcTemplate.batchUpdate(MERGE_PROPERTIES_JSONB_SQL, mergeRows, batchSize,
+                (ps, row) -> {
+                    ps.setString(1, (String) row[0]);
+                    ps.setObject(2, row[1]);
+                });
+        return count;
+    }
+
+    /**
+     * Записывает свойства, которые вызывающий изменил или удалил в документе свойств сущности
+     * после её загрузки. Остальные ключи документа в базе не трогаются: их могли изменить
+     * точечные записи после загрузки сущности. В режиме COLLECTION ничего не делает -
+     * строки таблицы свойств сравнивает и пишет Hibernate.
+     * @param device сущность, которую изменял вызывающий
+     * @param saved результат сохранения (при merge - другой экземпляр)
+     */
+    public void writeDocumentChanges(Device device, Device saved) {
+        if (mode == DevicePropertyStorageMode.JSONB && device.getId() != null) {
+            Map<String, String> changed = device.changedDocumentProperties();
+            Set<String> removed = device.removedDocumentProperties();
+            if (!changed.isEmpty()) {
+                writePropertiesJsonb(Map.of(device.getId(), changed), changed.size());
+            }
+            if (!removed.isEmpty()) {
+                jdbcTemplate.update(REMOVE_PROPERTIES_JSONB_SQL, removed.toArray(new String[0]), device.getId());
+            }
+            if (!changed.isEmpty() || !removed.isEmpty()) {
+                log.debug("Записаны изменения документа свойств устройства {}: изменено {}, удалено {}",
+                        device.getId(), changed.keySet(), removed);
+            }
+        }
+        device.markPropertyDocumentSaved();
+        if (saved != device) {
+            saved.markPropertyDocumentSaved();
+        }
+    }
+
+    /**
+     * Изменяет одно свойство устройства и увеличивает версию его состояния одним запросом
+     * @return новая версия состояния или пусто, если устройство не найдено
+     */
+    public OptionalLong updateProperty(UUID deviceId, String name, String value) {
+        if (!postgres) {
+            return updatePropertyWithMerge(deviceId, name, value);
+        }
+        List<Long> versions = mode == DevicePropertyStorageMode.JSONB
+                ? jdbcTemplate.query(UPDATE_PROPERTY_JSONB_SQL, (rs, rowNum) -> rs.getLong(1), name, value, deviceId)
+                : jdbcTemplate.query(UPDATE_PROPERTY_SQL, (rs, rowNum) -> rs.getLong(1), deviceId, name, value);
+        return versions.isEmpty() ? OptionalLong.empty() : OptionalLong.of(versions.get(0));
+    }
+
+    /**
+     * То же для СУБД без изменяющих CTE: версия, свойство и чтение версии в одной транзакции
+     */
+    private OptionalLong updatePropertyWithMerge(UUID deviceId, String name, String value) {
+        return transactionTemplate.execute(status -> {
+            if (jdbcTemplate.update(INCREMENT_STATE_VERSION_SQL, deviceId) == 0) {
+                return OptionalLong.empty();
+            }
+            jdbcTemplate.update(MERGE_PROPERTY_SQL, name, value, deviceId);
+            Long version = jdbcTemplate.queryForObject(SELECT_STATE_VERSION_SQL, Long.class, deviceId);
+            return version != null ? OptionalLong.of(version) : OptionalLong.empty();
+        });
+    }
+
+    /**
+     * Свойства указанных устройств одним запросом
+     */
+    public Map<UUID, Map<String, String>> findProperties(Collection<UUID> deviceIds) {
+        if (deviceIds.isEmpty()) {
+            return Map.of();
+        }
+        return mode == DevicePropertyStorageMode.JSONB
+                ? documentsByDevice(deviceRepository.findPropertyDocumentsByDeviceIds(deviceIds))
+                : groupByDevice(deviceRepository.findPropertiesByDeviceIds(deviceIds));
+    }
+
+    /**
+     * Возможности всех устройств одним запросом
+     */
+    public Map<UUID, Map<String, String>> findAllCapabilities() {
+        return mode == DevicePropertyStorageMode.JSONB
+                ? documentsByDevice(deviceRepository.findAllCapabilityDocuments())
+                : groupByDevice(deviceRepository.findAllCapabilities());
+    }
+
+    /**
+     * Атрибуты всех устройств одним запросом
+     */
+    public Map<UUID, Map<String, String>> findAllAttributes() {
+        return mode == DevicePropertyStorageMode.JSONB
+                ? documentsByDevice(deviceRepository.findAllAttributeDocuments())
+                : groupByDevice(deviceRepository.findAllAttributes());
+    }
+
+    /**
+     * ID устройств с заданным значением свойства; в режиме JSONB запрос использует GIN-индекс
+     */
+    public List<UUID> findDeviceIdsByProperty(String name, String value) {
+        return mode == DevicePropertyStorageMode.JSONB
+                ? deviceRepository.findIdsByPropertyDocument(name, value)
+                : deviceRepository.findIdsByProperty(name, value);
+    }
+
+    /**
+     * Переносит данные всех карт в хранилище указанного режима. Перенос идемпотентен:
+     * в уже перенесённом состоянии исходное хранилище пусто и запросы ничего не меняют
+     */
+    private void migrateTo(DevicePropertyStorageMode target) {
+        try {
+            transactionTemplate.executeWithoutResult(status -> {
+                for (MapStorage map : MAPS) {
+                    if (target == DevicePropertyStorageMode.JSONB) {
+                        migrateToJsonb(map);
+                    } else {
+                        migrateToCollection(map);
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            // Данные остались в прежнем хранилище; работа в новом режиме показала бы пустые свойства
+            throw new IllegalStateException("Не удалось перенести свойства устройств в режим " + target, e);
+        }
+
+        if (target == DevicePropertyStorageMode.JSONB) {
+            for (MapStorage map : MAPS) {
+                jdbcTemplate.execute(String.format(
+                        "CREATE INDEX IF NOT EXISTS idx_devices_%s ON devices USING gin (%s jsonb_path_ops)",
+                        map.jsonColumn(), map.jsonColumn()));
+            }
+        }
+    }
+
+    private void migrateToJsonb(MapStorage map) {
+        // Значения из таблицы новее: они действовали в режиме COLLECTION
+        int devices = jdbcTemplate.update(String.format(
+                "UPDATE devices d SET %1$s = COALESCE(d.%1$s, '{}'::jsonb) || m.doc " +
+                "FROM (SELECT device_id, jsonb_object_agg(%2$s, %3$s) AS doc FROM %4$s GROUP BY device_id) m " +
+                "WHERE d.id = m.device_id",
+                map.jsonColumn(), map.keyColumn(), map.valueColumn(), map.table()));
+        int rows = jdbcTemplate.update("DELETE FROM " + map.table());
+        // Сущность читает карту из колонки, только если колонка заполнена
+        jdbcTemplate.update(String.format(
+                "UPDATE devices SET %1$s = '{}'::jsonb WHERE %1$s IS NULL", map.jsonColumn()));
+        if (rows > 0) {
+            log.info("Перенесено в {}: {} записей {} устройств", map.jsonColumn(), rows, devices);
+        }
+    }
+
+    private void migrateToCollection(MapStorage map) {
+        // Значения из jsonb новее: они действовали в режиме JSONB
+        int rows = jdbcTemplate.update(String.format(
+                "INSERT INTO %1$s (device_id, %2$s, %3$s) " +
+                "SELECT d.id, e.key, e.value FROM devices d CROSS JOIN LATERAL jsonb_each_text(d.%4$s) e " +
+                "WHERE d.%4$s IS NOT NULL " +
+                "ON CONFLICT (device_id, %2$s) DO UPDATE SET %3$s = EXCLUDED.%3$s",
+                map.table(), map.keyColumn(), map.valueColumn(), map.jsonColumn()));
+        int devices = jdbcTemplate.update(String.format(
+                "UPDATE devices SET %1$s = NULL WHERE %1$s IS NOT NULL", map.jsonColumn()));
+        if (devices > 0) {
+            log.info("Перенесено в {}: {} записей {} устройств", map.table(), rows, devices);
+        }
+    }
+
+    private boolean isPostgres() {
+        try {
+            String product = jdbcTemplate.execute(
+                    (ConnectionCallback<String>) connection -> connection.getMetaData().getDatabaseProductName());
+            return "PostgreSQL".equalsIgnoreCase(product);
+        } catch (DataAccessException e) {
+            log.error("Не удалось определить тип СУБД: {}", e.getMessage());
+            return false;
+        }
+    }
+
+    private String toJson(Map<String, String> properties) {
+        try {
+            return objectMapper.writeValueAsString(properties);
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("Не удалось сериализовать свойства устройства", e);
+        }
+    }
+
+    /**
+     * Группирует строки [id устройства, ключ, значение] в карты по устройствам
+     */
+    private static Map<UUID, Map<String, String>> groupByDevice(List<Object[]> rows) {
+        Map<UUID, Map<String, String>> result = new HashMap<>();
+        for (Object[] row : rows) {
+            result.computeIfAbsent((UUID) row[0], id -> new HashMap<>())
+                    .put((String) row[1], (String) row[2]);
+        }
+        return result;
+    }
+
+    /**
+     * Собирает строки [id устройства, документ] в карты по устройствам
+     */
+    @SuppressWarnings("unchecked")
+    private static Map<UUID, Map<String, String>> documentsByDevice(List<Object[]> rows) {
+        Map<UUID, Map<String, String>> result = new HashMap<>();
+        for (Object[] row : rows) {
+            result.put((UUID) row[0], new HashMap<>((Map<String, String>) row[1]));
+        }
+        return result;
+    }
+}
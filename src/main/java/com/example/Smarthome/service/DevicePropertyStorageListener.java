@@ -0,0 +1,30 @@
+package com.example.Smarthome.service;
+
+import com.example.Smarthome.model.Device;
+import com.example.Smarthome.model.DevicePropertyStorageMode;
+import jakarta.persistence.PrePersist;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.stereotype.Component;
+
+/**
+ * Размещает карты нового устройства в хранилище текущего режима DevicePropertyStorage.
+ * Загруженные устройства в этом не нуждаются: их карты уже лежат там, куда их перенесла миграция
+ */
+@Component
+public class DevicePropertyStorageListener {
+
+    // Хранилище создаётся после EntityManagerFactory, поэтому получается при первом вызове
+    private final ObjectProvider<DevicePropertyStorage> propertyStorage;
+
+    public DevicePropertyStorageListener(ObjectProvider<DevicePropertyStorage> propertyStorage) {
+        this.propertyStorage = propertyStorage;
+    }
+
+    @PrePersist
+    public void beforeInsert(Device device) {
+        DevicePropertyStorage storage = propertyStorage.getIfAvailable();
+        if (storage != null && storage.getMode() == DevicePropertyStorageMode.JSONB) {
+            device.usePropertyDocuments();
+        }
+    }
+}
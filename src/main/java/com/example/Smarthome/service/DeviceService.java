@@ -1,7 +1,11 @@
 package com.example.Smarthome.service;
 
+import com.example.Smarthome.dto.CommandStatusDto;
+import com.example.Smarthome.dto.DeviceDto;
+import com.example.Smarthome.dto.DeviceSummary;
 import com.example.Smarthome.model.ConnectionProtocol;
 import com.example.Smarthome.model.Device;
+import com.example.Smarthome.model.DeviceStateSnapshot;
 import com.example.Smarthome.model.DeviceStatus;
 import com.example.Smarthome.model.Room;
 import com.example.Smarthome.repository.DeviceRepository;
@@ -9,6 +13,8 @@ import com.example.Smarthome.repository.RoomRepository;
 import com.example.Smarthome.service.ThingsBoardIntegrationService;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
@@ -16,9 +22,13 @@ import java.time.LocalDateTime;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.OptionalLong;
 import java.util.UUID;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 @Service
 @RequiredArgsConstructor
@@ -29,42 +39,130 @@ public class DeviceService {
     private final ProtocolAdapterService protocolAdapterService;
     private final ThingsBoardIntegrationService thingsBoardService;
     private final RoomRepository roomRepository;
+    private final DeviceStateStore deviceStateStore;
+    private final DevicePropertyStorage propertyStorage;
+    private final ApplicationEventPublisher eventPublisher;
+    private final DeviceCommandPipeline commandPipeline;
     
-    // Карта для хранения времени последней отправки команды для каждого устройства
-    private final ConcurrentHashMap<UUID, LocalDateTime> lastCommandTime = new ConcurrentHashMap<>();
+    // Окно объединения быстро следующих команд одному устройству (мс), 0 - не объединять
+    @Value("${device.commands.coalesce.window:150}")
+    private long coalesceWindowMs;
     
-    // Время (в секундах), в течение которого не нужно синхронизировать устройство после отправки команды
-    private static final int SYNC_BLOCK_DURATION_SECONDS = 90;
+    // Команды, параметры которых можно объединять (новые значения заменяют старые)
+    @Value("${device.commands.coalesce.commands:setState}")
+    private Set<String> coalescedCommands;
     
-    /**
-     * Проверяем, нужно ли блокировать синхронизацию для устройства
-     * @param deviceId ID устройства
-     * @return true, если синхронизацию нужно заблокировать
-     */
-    public boolean shouldBlockSync(UUID deviceId) {
-        LocalDateTime lastTime = lastCommandTime.get(deviceId);
-        if (lastTime == null) {
-            return false;
-        }
-        
-        // Если с момента последней команды прошло меньше SYNC_BLOCK_DURATION_SECONDS секунд, блокируем синхронизацию
-        return lastTime.plusSeconds(SYNC_BLOCK_DURATION_SECONDS).isAfter(LocalDateTime.now());
-    }
+    // Открытые окна объединения по устройствам
+    private final Map<UUID, CoalescingWindow> coalescingWindows = new ConcurrentHashMap<>();
     
     public List<Device> getAllDevices() {
         return deviceRepository.findAll();
     }
     
+    /**
+     * Список устройств для обзорных экранов без загрузки сущностей.
+     * Строится фиксированным числом запросов: проекции устройств с комнатой и локацией,
+     * возможности и атрибуты. Свойства и статус берутся из хранилища состояния,
+     * для отсутствующих в нём устройств свойства читаются одним пакетным запросом.
+     */
+    public List<DeviceDto> getDeviceList() {
+        return getDeviceList(deviceRepository.findAllSummaries());
+    }
+
+    /**
+     * Список устройств, у которых свойство имеет заданное значение
+     */
+    public List<DeviceDto> getDeviceListByProperty(String name, String value) {
+        Set<UUID> ids = new HashSet<>(propertyStorage.findDeviceIdsByProperty(name, value));
+        if (ids.isEmpty()) {
+            return List.of();
+        }
+        return getDeviceList(deviceRepository.findAllSummaries().stream()
+                .filter(summary -> ids.contains(summary.id()))
+                .toList());
+    }
+
+    private List<DeviceDto> getDeviceList(List<DeviceSummary> summaries) {
+        if (summaries.isEmpty()) {
+            return List.of();
+        }
+        Map<UUID, Map<String, String>> capabilities = propertyStorage.findAllCapabilities();
+        Map<UUID, Map<String, String>> attributes = propertyStorage.findAllAttributes();
+
+        List<UUID> notInStore = summaries.stream()
+                .map(DeviceSummary::id)
+                .filter(id -> deviceStateStore.get(id).isEmpty())
+                .toList();
+        Map<UUID, Map<String, String>> storedProperties = propertyStorage.findProperties(notInStore);
+
+        return summaries.stream()
+                .map(summary -> toListDto(summary,
+                        storedProperties.getOrDefault(summary.id(), Map.of()),
+                        capabilities.getOrDefault(summary.id(), Map.of()),
+                        attributes.getOrDefault(summary.id(), Map.of())))
+                .toList();
+    }
+
+    private DeviceDto toListDto(DeviceSummary summary, Map<String, String> storedProperties,
+                                Map<String, String> capabilities, Map<String, String> attributes) {
+        DeviceDto dto = new DeviceDto();
+        dto.setId(summary.id());
+        dto.setName(summary.name());
+        dto.setType(summary.type());
+        dto.setCategory(summary.category());
+        dto.setSubType(summary.subType());
+        dto.setProtocol(summary.protocol() != null ? summary.protocol().name() : null);
+        dto.setStatus(summary.status() != null ? summary.status().name() : null);
+        dto.setConnectionParams(summary.connectionParams());
+        dto.setLastSeen(summary.lastSeen());
+        dto.setProperties(new HashMap<>(storedProperties));
+
+        Optional<DeviceStateSnapshot> snapshot = deviceStateStore.get(summary.id());
+        snapshot.ifPresent(state -> {
+            if (state.status() != null) {
+                dto.setStatus(state.status().name());
+            }
+            dto.setLastSeen(state.lastSeen());
+            dto.setProperties(state.properties());
+        });
+
+        dto.setCapabilities(new HashMap<>(capabilities));
+        dto.setAttributes(new HashMap<>(attributes));
+        dto.setManufacturer(summary.manufacturer());
+        dto.setModel(summary.model());
+        dto.setFirmwareVersion(summary.firmwareVersion());
+        dto.setThingsboardToken(summary.thingsboardToken());
+        dto.setThingsboardId(summary.thingsboardDeviceId());
+        dto.setRoomId(summary.roomId());
+        dto.setRoomName(summary.roomName());
+        dto.setLocationId(summary.locationId());
+        dto.setLocationName(summary.locationName());
+        return dto;
+    }
+
     public Optional<Device> getDeviceById(UUID id) {
         return deviceRepository.findById(id);
     }
     
     public Device saveDevice(Device device) {
-        return deviceRepository.save(device);
+        return saveDevice(device, Set.of());
+    }
+
+    /**
+     * Сохраняет устройство, в котором вызывающий изменил свойства changedKeys.
+     * Значения остальных свойств в кэше состояния не откатываются, даже если сущность устарела.
+     * В режиме JSONB изменения документа свойств записываются отдельно (см. DevicePropertyStorage)
+     */
+    public Device saveDevice(Device device, Set<String> changedKeys) {
+        Device saved = deviceRepository.save(device);
+        propertyStorage.writeDocumentChanges(device, saved);
+        deviceStateStore.refresh(saved, changedKeys);
+        return saved;
     }
     
     public void deleteDevice(UUID id) {
         deviceRepository.deleteById(id);
+        deviceStateStore.remove(id);
     }
     
     public List<Device> getDevicesByStatus(DeviceStatus status) {
@@ -83,104 +181,111 @@ public class DeviceService {
             if (status == DeviceStatus.ONLINE) {
                 device.setLastSeen(LocalDateTime.now());
             }
-            return deviceRepository.save(device);
+            return saveDevice(device);
         }
         throw new IllegalArgumentException("Устройство с ID " + deviceId + " не найдено");
     }
     
     /**
-     * Обновляет свойство устройства
+     * Изменяет одно свойство устройства одним запросом к базе (без загрузки сущности)
+     * с увеличением версии состояния. Синхронизация с ThingsBoard выполняется асинхронно
+     * по событию DevicePropertyChangedEvent.
      * @param deviceId ID устройства
      * @param propertyName Имя свойства
      * @param propertyValue Значение свойства
      * @return true если свойство успешно обновлено
      */
     public boolean updateDeviceProperty(UUID deviceId, String propertyName, String propertyValue) {
-        Optional<Device> deviceOptional = deviceRepository.findById(deviceId);
-        if (deviceOptional.isPresent()) {
-            Device device = deviceOptional.get();
-            device.getProperties().put(propertyName, propertyValue);
-            deviceRepository.save(device);
-            
-            // Синхронизируем с ThingsBoard, если имеется токен
-            if (device.getThingsboardToken() != null && !device.getThingsboardToken().isEmpty()) {
-                thingsBoardService.sendDeviceUpdate(device);
-            }
-            
-            return true;
+        OptionalLong version = deviceStateStore.updatePropertyNow(deviceId, propertyName, propertyValue);
+        if (version.isEmpty()) {
+            return false;
         }
-        return false;
+        eventPublisher.publishEvent(
+                new DevicePropertyChangedEvent(deviceId, propertyName, propertyValue, version.getAsLong()));
+        return true;
     }
     
-    public boolean sendCommandToDevice(UUID deviceId, String command, Map<String, String> parameters) {
-        Optional<Device> deviceOpt = deviceRepository.findById(deviceId);
-        if (deviceOpt.isPresent()) {
-            Device device = deviceOpt.get();
-            log.debug("Отправка команды '{}' устройству {} ({}), параметры: {}", command, device.getName(), deviceId, parameters);
-            
-            try {
-                boolean success = protocolAdapterService.sendCommand(device, command, parameters);
+    /**
+     * Ставит команду в асинхронный конвейер, объединяя быстро следующие команды одному устройству
+     * (например, при перемещении ползунка яркости или температуры).
+     * Первая команда отправляется сразу и открывает окно device.commands.coalesce.window.
+     * Команды внутри окна собираются в одну отложенную команду, которая отправляется в конце окна
+     * с последними значениями параметров и открывает следующее окно. Последнее значение
+     * доставляется всегда, а устройство получает не больше одной команды за окно
+     * @return состояние команды, в которую попали параметры (у объединённых запросов - общее)
+     */
+    public CommandStatusDto submitCommand(Device device, String command, Map<String, String> parameters) {
+        if (coalesceWindowMs <= 0 || !coalescedCommands.contains(command)) {
+            return commandPipeline.submit(device, command, parameters);
+        }
+        
+        long windowNanos = TimeUnit.MILLISECONDS.toNanos(coalesceWindowMs);
+        while (true) {
+            // Окно только выбирается под блокировкой карты, конвейер вызывается под блокировкой окна
+            CoalescingWindow window = coalescingWindows.computeIfAbsent(device.getId(), id -> new CoalescingWindow());
+            synchronized (window) {
+                if (window.closed) {
+                    // Окно удалено очисткой между выбором и блокировкой - берём новое
+                    continue;
+                }
+                long now = System.nanoTime();
+                if (window.command == null || now - window.endsAtNanos >= 0) {
+                    // Окно закрыто - отправляем сразу
+                    CommandStatusDto status = commandPipeline.submit(device, command, parameters);
+                    window.open(now + windowNanos, command, null);
+                    return status;
+                }
                 
-                if (success) {
-                    log.info("Команда '{}' успешно отправлена устройству {} ({})", command, device.getName(), deviceId);
-                    
-                    boolean devicePropertiesChanged = false;
-                    
-                    // Обрабатываем все параметры, кроме самой команды
-                    for (Map.Entry<String, String> entry : parameters.entrySet()) {
-                        String paramKey = entry.getKey();
-                        String paramValue = entry.getValue();
-                        
-                        // Пропускаем параметр 'command', так как это имя самой команды
-                        if ("command".equals(paramKey)) {
-                            continue;
-                        }
-                        
-                        // Проверяем, есть ли уже префикс tb_ в ключе параметра
-                        String propertyKey = paramKey.startsWith("tb_") ? paramKey : "tb_" + paramKey;
-                        
-                        // Сохраняем значение параметра в свойства устройства
-                        if (paramValue != null && !paramValue.isEmpty()) {
-                            // Проверяем, изменилось ли значение
-                            String currentValue = device.getProperties().get(propertyKey);
-                            if (currentValue == null || !currentValue.equals(paramValue)) {
-                                device.getProperties().put(propertyKey, paramValue);
-                                devicePropertiesChanged = true;
-                                log.debug("Обновлено свойство {} устройства на {}", propertyKey, paramValue);
-                            }
-                        }
-                    }
-                    
-                    // Обновляем время последней отправки команды для ЛЮБОЙ успешной команды
-                    lastCommandTime.put(deviceId, LocalDateTime.now());
-                    log.debug("Блокировка синхронизации устройства {} на {} секунд", device.getName(), SYNC_BLOCK_DURATION_SECONDS);
-                    
-                    // Если свойства изменились, сохраняем устройство
-                    if (devicePropertiesChanged) {
-                        deviceRepository.save(device);
-                        
-                        // Немедленно отправляем обновление в ThingsBoard, чтобы синхронизировать данные
-                        if (device.getThingsboardToken() != null && !device.getThingsboardToken().isEmpty()) {
-                            boolean tbUpdated = thingsBoardService.sendDeviceUpdate(device);
-                            if (tbUpdated) {
-                                log.info("Обновление устройства {} успешно отправлено в ThingsBoard", device.getName());
-                            } else {
-                                log.warn("Не удалось отправить обновление устройства {} в ThingsBoard", device.getName());
-                            }
-                        }
+                if (window.pendingCommandId != null && window.command.equals(command)) {
+                    Optional<CommandStatusDto> merged = commandPipeline.supersede(window.pendingCommandId, parameters);
+                    if (merged.isPresent()) {
+                        log.debug("Команда '{}' устройству {} объединена с ожидающей {}", 
+                                command, device.getName(), window.pendingCommandId);
+                        return merged.get();
                     }
-                } else {
-                    log.warn("Не удалось отправить команду '{}' устройству {} ({})", command, device.getName(), deviceId);
                 }
                 
-                return success;
-            } catch (Exception e) {
-                log.error("Ошибка при отправке команды на устройство {} ({}): {}", device.getName(), deviceId, e.getMessage());
-                return false;
+                // Отложенная команда уходит в конце текущего окна, следующее окно начинается с её отправки
+                long delayMs = TimeUnit.NANOSECONDS.toMillis(window.endsAtNanos - now) + 1;
+                CommandStatusDto status = commandPipeline.submit(device, command, parameters, delayMs);
+                window.open(window.endsAtNanos + windowNanos, command, status.commandId());
+                return status;
             }
         }
-        log.error("Устройство с ID {} не найдено", deviceId);
-        throw new IllegalArgumentException("Устройство с ID " + deviceId + " не найдено");
+    }
+    
+    /**
+     * Удаляет истёкшие окна объединения, чтобы карта не росла на каждое когда-либо управлявшееся устройство
+     */
+    @Scheduled(fixedDelayString = "${device.commands.coalesce.cleanup-interval:60000}")
+    public void closeExpiredCoalescingWindows() {
+        long now = System.nanoTime();
+        coalescingWindows.forEach((deviceId, window) -> {
+            synchronized (window) {
+                if (window.command == null || now - window.endsAtNanos >= 0) {
+                    window.closed = true;
+                    coalescingWindows.remove(deviceId, window);
+                }
+            }
+        });
+    }
+    
+    /**
+     * Окно объединения команд устройства. Поля меняются под монитором окна;
+     * pendingCommandId - отложенная команда окна, в которую добавляются новые значения, или null
+     */
+    private static final class CoalescingWindow {
+        private long endsAtNanos;
+        private String command;
+        private UUID pendingCommandId;
+        // Окно удалено из карты, новые команды должны открыть другое
+        private boolean closed;
+        
+        private void open(long endsAtNanos, String command, UUID pendingCommandId) {
+            this.endsAtNanos = endsAtNanos;
+            this.command = command;
+            this.pendingCommandId = pendingCommandId;
+        }
     }
     
     // Планировщик для проверки состояния устройств
@@ -195,19 +300,19 @@ public class DeviceService {
                     device.getLastSeen().plusMinutes(30).isBefore(LocalDateTime.now())) {
                 log.info("Устройство {} не в сети (таймаут)", device.getName());
                 device.setStatus(DeviceStatus.OFFLINE);
-                deviceRepository.save(device);
+                saveDevice(device);
             } else {
                 // Запрашиваем статус через адаптер
                 boolean isOnline = protocolAdapterService.checkDeviceStatus(device);
                 if (!isOnline && device.getStatus() == DeviceStatus.ONLINE) {
                     log.info("Устройство {} перешло в статус OFFLINE", device.getName());
                     device.setStatus(DeviceStatus.OFFLINE);
-                    deviceRepository.save(device);
+                    saveDevice(device);
                 } else if (isOnline && device.getStatus() == DeviceStatus.OFFLINE) {
                     log.info("Устройство {} перешло в статус ONLINE", device.getName());
                     device.setStatus(DeviceStatus.ONLINE);
                     device.setLastSeen(LocalDateTime.now());
-                    deviceRepository.save(device);
+                    saveDevice(device);
                 }
             }
         }
@@ -265,5 +370,6 @@ public class DeviceService {
     public void deleteAllDevices() {
         log.info("Удаление всех устройств из базы данных");
         deviceRepository.deleteAll();
+        deviceStateStore.clear();
     }
 } 
\ No newline at end of file
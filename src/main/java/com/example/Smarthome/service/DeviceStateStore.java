@@ -0,0 +1,318 @@
+package com.example.Smarthome.service;
+
+import com.example.Smarthome.model.Device;
+import com.example.Smarthome.model.DeviceStateSnapshot;
+import com.example.Smarthome.model.DeviceStatus;
+import com.example.Smarthome.repository.DeviceRepository;
+import com.example.Smarthome.timeseries.TimeSeriesStore;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.DataAccessException;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Хранилище текущего состояния устройств в памяти.
+ * Является основным источником состояния для адаптеров протоколов, DeviceService
+ * и чтения панели управления. Снимки неизменяемы и заменяются целиком (copy-on-write),
+ * а изменения записываются в базу асинхронно через DeviceStateWriteBehindService.
+ * <p>
+ * Каждое свойство снимка несёт отметку последней записи. Локальные записи (команды, MQTT, эмуляция)
+ * получают отметку гибридных часов: микросекунды системного времени, строго возрастающие
+ * и не меньше любой принятой отметки. Значения из ThingsBoard несут время значения ts
+ * и применяются, только если оно не старше отметки ключа (last-writer-wins по каждому ключу).
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class DeviceStateStore {
+
+    private final DeviceRepository deviceRepository;
+    private final DeviceStateWriteBehindService writeBehindService;
+    private final TimeSeriesStore timeSeriesStore;
+
+    private final ConcurrentHashMap<UUID, DeviceStateSnapshot> snapshots = new ConcurrentHashMap<>();
+
+    // Последняя выданная или принятая отметка записи свойства, мкс
+    private final AtomicLong clock = new AtomicLong();
+
+    // До загрузки из базы принимаем состояние и от ещё не известных устройств
+    private volatile boolean warmedUp = false;
+
+    /**
+     * Загружает состояние всех устройств из базы после запуска приложения
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void warmUp() {
+        for (Device device : deviceRepository.findAll()) {
+            // Состояние, полученное до загрузки, новее данных из базы
+            snapshots.merge(device.getId(), DeviceStateSnapshot.of(device, 0),
+                    (early, fromDb) -> new DeviceStateSnapshot(early.deviceId(), 1, early.status(),
+                            early.lastSeen() != null ? early.lastSeen() : fromDb.lastSeen(),
+                            merge(fromDb.properties(), early.properties()), early.propertyVersions()));
+        }
+        warmedUp = true;
+        log.info("Загружено состояние {} устройств в память", snapshots.size());
+    }
+
+    /**
+     * Текущий снимок состояния устройства
+     */
+    public Optional<DeviceStateSnapshot> get(UUID deviceId) {
+        return Optional.ofNullable(snapshots.get(deviceId));
+    }
+
+    /**
+     * Снимки всех известных устройств
+     */
+    public Collection<DeviceStateSnapshot> getAll() {
+        return Collections.unmodifiableCollection(snapshots.values());
+    }
+
+    /**
+     * Текущие свойства устройства (неизменяемая карта)
+     */
+    public Map<String, String> getProperties(UUID deviceId) {
+        DeviceStateSnapshot snapshot = snapshots.get(deviceId);
+        return snapshot != null ? snapshot.properties() : Collections.emptyMap();
+    }
+
+    /**
+     * Применяет состояние, сообщённое самим устройством: свойства, статус ONLINE и время ответа
+     * @return новый снимок или null, если устройство неизвестно
+     */
+    public DeviceStateSnapshot applyReportedState(UUID deviceId, Map<String, String> properties,
+                                                  LocalDateTime lastSeen) {
+        DeviceStateSnapshot updated;
+        if (warmedUp) {
+            updated = snapshots.computeIfPresent(deviceId,
+                    (id, current) -> current.withProperties(properties, DeviceStatus.ONLINE, lastSeen, nextStamp()));
+        } else {
+            updated = snapshots.compute(deviceId, (id, current) -> current != null
+                    ? current.withProperties(properties, DeviceStatus.ONLINE, lastSeen, nextStamp())
+                    : newSnapshot(id, DeviceStatus.ONLINE, lastSeen, properties));
+        }
+
+        if (updated != null) {
+            writeBehindService.submit(deviceId, properties, lastSeen);
+            timeSeriesStore.recordProperties(deviceId, properties, System.currentTimeMillis());
+        }
+        return updated;
+    }
+
+    /**
+     * Обновляет свойства устройства (команды, эмуляция) и ставит их на асинхронную запись
+     * @return новый снимок или null, если устройство неизвестно
+     */
+    public DeviceStateSnapshot updateProperties(UUID deviceId, Map<String, String> changes) {
+        if (changes.isEmpty()) {
+            return snapshots.get(deviceId);
+        }
+
+        DeviceStateSnapshot updated = applyLocalChanges(deviceId, changes);
+        if (updated != null) {
+            writeBehindService.submit(deviceId, changes, null);
+            timeSeriesStore.recordProperties(deviceId, changes, System.currentTimeMillis());
+        }
+        return updated;
+    }
+
+    /**
+     * Обновляет свойства группы устройств (сценарии, групповые команды) и записывает их в базу
+     * сразу, одним пакетом. Неизвестные устройства пропускаются. Если запись не удалась,
+     * изменения ставятся на отложенную запись
+     */
+    public void updatePropertiesNow(Map<UUID, Map<String, String>> changes) {
+        Map<UUID, Map<String, String>> nonEmpty = new HashMap<>();
+        long now = System.currentTimeMillis();
+        changes.forEach((deviceId, properties) -> {
+            if (!properties.isEmpty() && applyLocalChanges(deviceId, properties) != null) {
+                nonEmpty.put(deviceId, properties);
+                timeSeriesStore.recordProperties(deviceId, properties, now);
+            }
+        });
+        if (nonEmpty.isEmpty()) {
+            return;
+        }
+
+        try {
+            writeBehindService.writeNow(nonEmpty);
+        } catch (DataAccessException e) {
+            log.error("Ошибка при пакетной записи свойств {} устройств, изменения поставлены в очередь: {}",
+                    nonEmpty.size(), e.getMessage());
+            nonEmpty.forEach((deviceId, properties) -> writeBehindService.submit(deviceId, properties, null));
+        }
+    }
+
+    /**
+     * Изменяет одно свойство сразу в базе (одним запросом, минуя окно отложенной записи) и в памяти
+     * @return новая версия состояния устройства в базе или пусто, если устройство не найдено
+     */
+    public OptionalLong updatePropertyNow(UUID deviceId, String name, String value) {
+        OptionalLong version = writeBehindService.writeNow(deviceId, name, value);
+        if (version.isPresent()) {
+            Map<String, String> change = Collections.singletonMap(name, value);
+            applyLocalChanges(deviceId, change);
+            timeSeriesStore.recordProperties(deviceId, change, System.currentTimeMillis());
+        }
+        return version;
+    }
+
+    /**
+     * Применяет значения из ThingsBoard с временем их записи там: ключ меняется, только если
+     * его значение не старше последней записи этого ключа в памяти (команды или MQTT).
+     * Принятые изменения ставятся на асинхронную запись; история значений пишется вызывающим.
+     * @param timestamps время значения по ключу, мс (отсутствующее считается самым старым)
+     * @return применённые изменения (пусто, если устройство неизвестно или всё устарело)
+     */
+    public Map<String, String> applyRemoteProperties(UUID deviceId, Map<String, String> values,
+                                                     Map<String, Long> timestamps) {
+        if (values.isEmpty()) {
+            return Map.of();
+        }
+        Map<String, Long> stamps = new HashMap<>();
+        timestamps.forEach((name, ts) -> stamps.put(name, ts * 1000));
+        stamps.values().stream().max(Long::compare).ifPresent(max -> clock.accumulateAndGet(max, Math::max));
+
+        Map<String, String> accepted = new HashMap<>();
+        snapshots.computeIfPresent(deviceId, (id, current) -> {
+            accepted.clear();
+            return current.withNewerProperties(values, stamps, accepted);
+        });
+
+        if (!accepted.isEmpty()) {
+            writeBehindService.submit(deviceId, accepted, null);
+        }
+        return accepted;
+    }
+
+    /**
+     * Добавляет только отсутствующие свойства (начальные значения по умолчанию)
+     */
+    public DeviceStateSnapshot putMissingProperties(UUID deviceId, Map<String, String> defaults) {
+        Map<String, String> current = getProperties(deviceId);
+        Map<String, String> missing = new HashMap<>();
+        defaults.forEach((key, value) -> {
+            if (!current.containsKey(key)) {
+                missing.put(key, value);
+            }
+        });
+        return updateProperties(deviceId, missing);
+    }
+
+    /**
+     * Обновляет снимок по только что сохранённой сущности устройства, которая не меняла свойств
+     */
+    public DeviceStateSnapshot refresh(Device device) {
+        return refresh(device, Set.of());
+    }
+
+    /**
+     * Обновляет снимок по только что сохранённой сущности устройства (без повторной записи в базу).
+     * Из сущности применяются только ключи changedKeys, изменённые вызывающим. Если сохранение
+     * записало в базу устаревшие значения остальных ключей (сущность прочитана до последних
+     * изменений в памяти), значения из памяти снова ставятся на отложенную запись
+     * @param changedKeys свойства, которые вызывающий изменил в сущности (в том числе удалил)
+     */
+    public DeviceStateSnapshot refresh(Device device, Set<String> changedKeys) {
+        if (device == null || device.getId() == null) {
+            return null;
+        }
+        Map<String, String> stale = new HashMap<>();
+        DeviceStateSnapshot updated = snapshots.compute(device.getId(), (id, current) -> {
+            stale.clear();
+            if (current == null) {
+                return DeviceStateSnapshot.of(device, 1);
+            }
+            DeviceStateSnapshot next = current.withEntity(device, changedKeys, nextStamp());
+            Map<String, String> saved = device.getProperties();
+            next.properties().forEach((name, value) -> {
+                if (!saved.containsKey(name) || !Objects.equals(saved.get(name), value)) {
+                    stale.put(name, value);
+                }
+            });
+            return next;
+        });
+
+        if (!stale.isEmpty()) {
+            log.debug("Сохранение устройства {} записало устаревшие значения {}, восстанавливаем из памяти",
+                    device.getId(), stale.keySet());
+            writeBehindService.submit(device.getId(), stale, null);
+        }
+        return updated;
+    }
+
+    /**
+     * Переносит текущее состояние из памяти в сущность устройства
+     * (перед отправкой в ThingsBoard или преобразованием в DTO)
+     */
+    public Device overlay(Device device) {
+        DeviceStateSnapshot snapshot = snapshots.get(device.getId());
+        if (snapshot != null) {
+            device.setProperties(new HashMap<>(snapshot.properties()));
+            device.setStatus(snapshot.status());
+            device.setLastSeen(snapshot.lastSeen());
+        }
+        return device;
+    }
+
+    public void remove(UUID deviceId) {
+        snapshots.remove(deviceId);
+    }
+
+    public void clear() {
+        snapshots.clear();
+    }
+
+    /**
+     * Применяет локальные изменения (команды, эмуляция) к снимку устройства.
+     * После загрузки из базы неизвестные устройства пропускаются, как и в applyReportedState,
+     * до неё снимок создаётся и будет объединён с данными из базы
+     * @return новый снимок или null, если устройство неизвестно
+     */
+    private DeviceStateSnapshot applyLocalChanges(UUID deviceId, Map<String, String> changes) {
+        if (warmedUp) {
+            return snapshots.computeIfPresent(deviceId,
+                    (id, current) -> current.withProperties(changes, null, null, nextStamp()));
+        }
+        return snapshots.compute(deviceId, (id, current) -> current != null
+                ? current.withProperties(changes, null, null, nextStamp())
+                : newSnapshot(id, DeviceStatus.OFFLINE, null, changes));
+    }
+
+    /**
+     * Отметка локальной записи: строго больше всех выданных и принятых, мкс
+     */
+    private long nextStamp() {
+        long now = System.currentTimeMillis() * 1000;
+        return clock.updateAndGet(last -> Math.max(last + 1, now));
+    }
+
+    private DeviceStateSnapshot newSnapshot(UUID deviceId, DeviceStatus status, LocalDateTime lastSeen,
+                                            Map<String, String> properties) {
+        long stamp = nextStamp();
+        Map<String, Long> versions = new HashMap<>();
+        properties.keySet().forEach(name -> versions.put(name, stamp));
+        return new DeviceStateSnapshot(deviceId, 1, status, lastSeen, properties, versions);
+    }
+
+    private static Map<String, String> merge(Map<String, String> base, Map<String, String> changes) {
+        Map<String, String> merged = new HashMap<>(base);
+        merged.putAll(changes);
+        return merged;
+    }
+}
@@ -0,0 +1,233 @@
+package com.example.Smarthome.service;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalLong;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Отложенная (write-behind) запись состояния устройств, полученного по MQTT.
+ * Обновления свойств накапливаются по каждому устройству в течение окна
+ * mqtt.write-behind.flush-interval и затем сбрасываются в базу пакетными
+ * запросами через DevicePropertyStorage, без загрузки сущности Device через JPA.
+ */
+@Service
+@Slf4j
+public class DeviceStateWriteBehindService {
+
+    private static final String UPDATE_DEVICE_SQL =
+            "UPDATE devices SET status = 'ONLINE', last_seen = ? WHERE id = ?";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final DevicePropertyStorage propertyStorage;
+    private final int maxPendingDevices;
+    private final int batchSize;
+
+    // Накопленные, ещё не записанные изменения по устройствам
+    private final ConcurrentHashMap<UUID, PendingState> pending = new ConcurrentHashMap<>();
+
+    // Одновременно выполняется только один сброс в базу
+    private final ReentrantLock flushLock = new ReentrantLock();
+
+    public DeviceStateWriteBehindService(
+            JdbcTemplate jdbcTemplate,
+            DevicePropertyStorage propertyStorage,
+            @Value("${mqtt.write-behind.max-pending-devices:10000}") int maxPendingDevices,
+            @Value("${mqtt.write-behind.batch-size:500}") int batchSize) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.propertyStorage = propertyStorage;
+        this.maxPendingDevices = maxPendingDevices;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Ставит обновление свойств устройства в очередь на запись.
+     * Если очередь заполнена, сброс выполняется синхронно в потоке вызывающего,
+     * что притормаживает источник сообщений (backpressure).
+     * @param deviceId ID устройства
+     * @param properties новые значения свойств
+     * @param lastSeen время получения сообщения от устройства или null,
+     *                 если изменение пришло не от самого устройства
+     */
+    public void submit(UUID deviceId, Map<String, String> properties, LocalDateTime lastSeen) {
+        if (!pending.containsKey(deviceId) && pending.size() >= maxPendingDevices) {
+            log.debug("Очередь отложенной записи заполнена ({} устройств), выполняем сброс в потоке вызывающего",
+                    pending.size());
+            flush();
+        }
+
+        pending.compute(deviceId, (id, state) -> {
+            PendingState target = state != null ? state : new PendingState();
+            target.merge(properties, lastSeen);
+            return target;
+        });
+    }
+
+    /**
+     * Записывает одно свойство сразу, одним запросом, с увеличением версии состояния устройства.
+     * Выполняется под блокировкой сброса, а ожидающее в окне значение этого свойства отбрасывается,
+     * чтобы более старое значение не перезаписало новое при следующем сбросе.
+     * @return новая версия состояния или пусто, если устройство не найдено
+     */
+    public OptionalLong writeNow(UUID deviceId, String name, String value) {
+        flushLock.lock();
+        try {
+            pending.computeIfPresent(deviceId, (id, state) -> {
+                state.properties.remove(name);
+                return state.properties.isEmpty() && state.lastSeen == null ? null : state;
+            });
+            return propertyStorage.updateProperty(deviceId, name, value);
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * Записывает изменения группы устройств сразу, одним пакетом (сценарии, групповые команды).
+     * Ожидающие в окне значения тех же свойств отбрасываются, как и в writeNow для одного свойства.
+     * @return количество записанных свойств
+     */
+    public int writeNow(Map<UUID, Map<String, String>> changes) {
+        flushLock.lock();
+        try {
+            changes.forEach((deviceId, properties) -> pending.computeIfPresent(deviceId, (id, state) -> {
+                state.properties.keySet().removeAll(properties.keySet());
+                return state.properties.isEmpty() && state.lastSeen == null ? null : state;
+            }));
+            return propertyStorage.writeProperties(changes, batchSize);
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * Количество устройств с ещё не записанными изменениями
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Периодически сбрасывает накопленные изменения в базу данных
+     */
+    @Scheduled(fixedDelayString = "${mqtt.write-behind.flush-interval:1000}")
+    public void flush() {
+        flushLock.lock();
+        try {
+            if (pending.isEmpty()) {
+                return;
+            }
+
+            // Забираем накопленные изменения; новые сообщения начинают новое окно
+            Map<UUID, PendingState> drained = new HashMap<>();
+            for (UUID deviceId : pending.keySet()) {
+                PendingState state = pending.remove(deviceId);
+                if (state != null) {
+                    drained.put(deviceId, state);
+                }
+            }
+
+            try {
+                writeBatch(drained);
+            } catch (DataAccessException e) {
+                log.error("Ошибка при пакетной записи состояния {} устройств: {}", drained.size(), e.getMessage(), e);
+                requeue(drained);
+            }
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * Сбрасывает все накопленные изменения при остановке приложения
+     */
+    @PreDestroy
+    public void flushOnShutdown() {
+        log.info("Сброс отложенных изменений состояния перед остановкой: {} устройств", pending.size());
+        flush();
+    }
+
+    private void writeBatch(Map<UUID, PendingState> drained) {
+        Map<UUID, Map<String, String>> propertyChanges = new HashMap<>();
+        List<Object[]> deviceRows = new ArrayList<>();
+        List<UUID> deviceIds = new ArrayList<>();
+
+        for (Map.Entry<UUID, PendingState> entry : drained.entrySet()) {
+            UUID deviceId = entry.getKey();
+            PendingState state = entry.getValue();
+
+            propertyChanges.put(deviceId, state.properties);
+            // Статус и время ответа обновляются только для состояния, сообщённого устройством
+            if (state.lastSeen != null) {
+                deviceRows.add(new Object[] { Timestamp.valueOf(state.lastSeen), deviceId });
+                deviceIds.add(deviceId);
+            }
+        }
+
+        int[][] deviceCounts = jdbcTemplate.batchUpdate(UPDATE_DEVICE_SQL, deviceRows, batchSize,
+                (ps, row) -> {
+                    ps.setTimestamp(1, (Timestamp) row[0]);
+                    ps.setObject(2, row[1]);
+                });
+
+        int propertyCount = propertyStorage.writeProperties(propertyChanges, batchSize);
+
+        // Устройства, которых нет в базе, не обновляются - сообщаем о них
+        int index = 0;
+        for (int[] batch : deviceCounts) {
+            for (int count : batch) {
+                if (count == 0) {
+                    log.warn("Получено сообщение от неизвестного устройства с ID: {}", deviceIds.get(index));
+                }
+                index++;
+            }
+        }
+
+        log.debug("Записано состояние {} устройств ({} свойств)", drained.size(), propertyCount);
+    }
+
+    /**
+     * Возвращает незаписанные изменения в очередь, не перетирая более новые значения
+     */
+    private void requeue(Map<UUID, PendingState> drained) {
+        for (Map.Entry<UUID, PendingState> entry : drained.entrySet()) {
+            pending.compute(entry.getKey(), (id, newer) -> {
+                if (newer == null) {
+                    return entry.getValue();
+                }
+                entry.getValue().properties.forEach(newer.properties::putIfAbsent);
+                return newer;
+            });
+        }
+    }
+
+    /**
+     * Накопленные изменения одного устройства. Изменяется только внутри
+     * ConcurrentHashMap.compute, поэтому дополнительная синхронизация не нужна.
+     */
+    private static class PendingState {
+        private final Map<String, String> properties = new HashMap<>();
+        private LocalDateTime lastSeen;
+
+        private void merge(Map<String, String> update, LocalDateTime seen) {
+            properties.putAll(update);
+            if (seen != null && (lastSeen == null || seen.isAfter(lastSeen))) {
+                lastSeen = seen;
+            }
+        }
+    }
+}
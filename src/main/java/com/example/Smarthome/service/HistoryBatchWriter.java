@@ -0,0 +1,248 @@
+package com.example.Smarthome.service;
+
+import com.example.Smarthome.model.SensorHistory;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Асинхронная пакетная запись истории датчиков.
+ * Записи помещаются в кольцевой буфер фиксированной ёмкости, отдельный поток
+ * забирает из него всё накопленное (до history.writer.batch-size) и вставляет
+ * одним JDBC-пакетом в одной транзакции. Драйвер PostgreSQL с reWriteBatchedInserts
+ * объединяет пакет в многострочные INSERT.
+ * <p>
+ * Режимы надёжности (history.writer.durability):
+ * FIRE_AND_FORGET - вызывающий не ждёт записи; COMMIT_ACK - вызывающий ждёт
+ * фиксации транзакции пакета, в который попала запись.
+ */
+@Service
+@Slf4j
+public class HistoryBatchWriter {
+
+    public enum Durability {
+        FIRE_AND_FORGET,
+        COMMIT_ACK
+    }
+
+    private static final String INSERT_SENSOR_SQL =
+            "INSERT INTO sensor_history (id, device_id, device_name, room, sensor_type, value, message, " +
+            "priority, acknowledged, timestamp, retention_days) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final Durability durability;
+    private final int batchSize;
+    private final long ackTimeoutMs;
+    private final BlockingQueue<PendingRow> queue;
+    private final Thread worker;
+    private volatile boolean running = true;
+
+    private final Timer batchTimer;
+    private final Counter writtenRows;
+    private final Counter failedRows;
+
+    public HistoryBatchWriter(
+            JdbcTemplate jdbcTemplate,
+            PlatformTransactionManager transactionManager,
+            MeterRegistry meterRegistry,
+            @Value("${history.writer.durability:FIRE_AND_FORGET}") Durability durability,
+            @Value("${history.writer.capacity:8192}") int capacity,
+            @Value("${history.writer.batch-size:500}") int batchSize,
+            @Value("${history.writer.ack-timeout:5000}") long ackTimeoutMs) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.durability = durability;
+        this.batchSize = Math.max(1, batchSize);
+        this.ackTimeoutMs = ackTimeoutMs;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+
+        Gauge.builder("smarthome.history.writer.queue.depth", queue, BlockingQueue::size)
+                .description("Количество записей истории, ожидающих вставки")
+                .register(meterRegistry);
+        this.batchTimer = Timer.builder("smarthome.history.writer.batch")
+                .description("Длительность вставки пакета записей истории")
+                .register(meterRegistry);
+        this.writtenRows = Counter.builder("smarthome.history.writer.rows")
+                .description("Записи истории, вставленные пакетным писателем")
+                .tag("result", "written")
+                .register(meterRegistry);
+        this.failedRows = Counter.builder("smarthome.history.writer.rows")
+                .description("Записи истории, вставленные пакетным писателем")
+                .tag("result", "failed")
+                .register(meterRegistry);
+
+        this.worker = new Thread(this::run, "history-writer");
+        this.worker.setDaemon(true);
+        this.worker.start();
+
+        log.info("Запущена пакетная запись истории: режим {}, ёмкость буфера {}, размер пакета {}",
+                durability, capacity, this.batchSize);
+    }
+
+    /**
+     * Ставит запись истории датчика в очередь на вставку.
+     * ID и время записи должны быть заполнены вызывающим.
+     */
+    public void append(SensorHistory entry) {
+        submit(new PendingRow(INSERT_SENSOR_SQL, new Object[] {
+                entry.getId(), entry.getDeviceId(), entry.getDeviceName(), entry.getRoom(),
+                entry.getSensorType(), entry.getValue(), entry.getMessage(), entry.getPriority(),
+                entry.getAcknowledged(), Timestamp.valueOf(entry.getTimestamp()), entry.getRetentionDays()
+        }));
+    }
+
+    /**
+     * Количество записей, ожидающих вставки
+     */
+    public int getPendingCount() {
+        return queue.size();
+    }
+
+    private void submit(PendingRow row) {
+        if (!running || !queue.offer(row)) {
+            // Буфер заполнен или писатель остановлен: пишем в потоке вызывающего (backpressure)
+            log.debug("Буфер истории заполнен ({} записей), запись выполняется синхронно", queue.size());
+            writeBatch(List.of(row));
+        }
+
+        if (durability == Durability.COMMIT_ACK) {
+            awaitCommit(row);
+        }
+    }
+
+    private void awaitCommit(PendingRow row) {
+        try {
+            row.committed.get(ackTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Прервано ожидание записи истории", e);
+        } catch (TimeoutException e) {
+            throw new IllegalStateException("Запись истории не подтверждена за " + ackTimeoutMs + " мс", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Ошибка при записи истории: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    private void run() {
+        List<PendingRow> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingRow first = queue.poll(500, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                // Забираем всё, что накопилось, пока шла предыдущая вставка
+                batch.add(first);
+                queue.drainTo(batch, batchSize - 1);
+                writeBatch(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                log.error("Ошибка в потоке пакетной записи истории: {}", e.getMessage(), e);
+                // Ожидающие подтверждения не должны ждать до истечения таймаута
+                for (PendingRow row : batch) {
+                    if (row.committed.completeExceptionally(e)) {
+                        failedRows.increment();
+                    }
+                }
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void writeBatch(List<PendingRow> batch) {
+        Map<String, List<Object[]>> bySql = new LinkedHashMap<>();
+        for (PendingRow row : batch) {
+            bySql.computeIfAbsent(row.sql, sql -> new ArrayList<>()).add(row.args);
+        }
+
+        long start = System.nanoTime();
+        try {
+            transactionTemplate.executeWithoutResult(status -> {
+                for (Map.Entry<String, List<Object[]>> entry : bySql.entrySet()) {
+                    jdbcTemplate.batchUpdate(entry.getKey(), entry.getValue());
+                }
+            });
+            batchTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            writtenRows.increment(batch.size());
+            batch.forEach(row -> row.committed.complete(null));
+        } catch (RuntimeException e) {
+            log.error("Ошибка при пакетной вставке {} записей истории, повтор по одной: {}",
+                    batch.size(), e.getMessage());
+            writeOneByOne(batch);
+        }
+    }
+
+    /**
+     * Вставляет записи по одной, чтобы ошибочная запись не лишила сохранения остальные
+     */
+    private void writeOneByOne(List<PendingRow> batch) {
+        for (PendingRow row : batch) {
+            try {
+                jdbcTemplate.update(row.sql, row.args);
+                writtenRows.increment();
+                row.committed.complete(null);
+            } catch (DataAccessException e) {
+                failedRows.increment();
+                log.error("Запись истории потеряна: {}", e.getMessage());
+                row.committed.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Дописывает накопленные записи и останавливает поток записи
+     */
+    @PreDestroy
+    public void shutdown() {
+        log.info("Остановка пакетной записи истории, в очереди {} записей", queue.size());
+        running = false;
+        try {
+            worker.join(TimeUnit.SECONDS.toMillis(10));
+            if (worker.isAlive()) {
+                log.warn("Поток записи истории не завершился вовремя, не записано: {}", queue.size());
+                worker.interrupt();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Запись в очереди: SQL, параметры и признак фиксации
+     */
+    private static final class PendingRow {
+        private final String sql;
+        private final Object[] args;
+        private final CompletableFuture<Void> committed = new CompletableFuture<>();
+
+        private PendingRow(String sql, Object[] args) {
+            this.sql = sql;
+            this.args = args;
+        }
+    }
+}
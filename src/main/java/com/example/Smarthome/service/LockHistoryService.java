@@ -1,17 +1,20 @@
 package com.example.Smarthome.service;
 
+import com.example.Smarthome.dto.HistoryCursor;
+import com.example.Smarthome.dto.HistoryPage;
 import com.example.Smarthome.dto.LockHistoryDto;
 import com.example.Smarthome.model.LockHistory;
 import com.example.Smarthome.repository.LockHistoryRepository;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
 import org.springframework.stereotype.Service;
 
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.List;
 import java.util.UUID;
-import java.util.stream.Collectors;
 
 @Service
 @RequiredArgsConstructor
@@ -21,39 +24,40 @@ public class LockHistoryService {
     private final LockHistoryRepository lockHistoryRepository;
     
     /**
-     * Получить всю историю действий с замками
-     * @return список записей истории
+     * Получить страницу истории действий с замками, отсортированную от новых записей к старым.
+     * Позиция задаётся курсором, поэтому запрос не зависит от объёма таблицы.
+     * @param deviceId ID устройства или null для всех устройств
+     * @param before курсор: вернуть записи старше него, или null
+     * @param after курсор: вернуть записи новее него, или null
+     * @param limit размер страницы
+     * @return страница истории
      */
-    public List<LockHistoryDto> getAllLockHistory() {
+    public HistoryPage<LockHistoryDto> getLockHistoryPage(UUID deviceId, HistoryCursor before, HistoryCursor after, int limit) {
         try {
-            log.debug("Получение истории всех замков");
-            return lockHistoryRepository.findAllByOrderByTimestampDesc()
-                    .stream()
-                    .map(this::convertToDto)
-                    .collect(Collectors.toList());
-        } catch (Exception e) {
-            log.error("Ошибка при получении истории всех замков: {}", e.getMessage(), e);
-            // Возвращаем пустой список вместо ошибки
-            return List.of();
-        }
-    }
-    
-    /**
-     * Получить историю действий с конкретным замком
-     * @param deviceId ID устройства (замка)
-     * @return список записей истории
-     */
-    public List<LockHistoryDto> getLockHistoryByDeviceId(UUID deviceId) {
-        try {
-            log.debug("Получение истории для замка с ID: {}", deviceId);
-            return lockHistoryRepository.findByDeviceIdOrderByTimestampDesc(deviceId)
-                    .stream()
-                    .map(this::convertToDto)
-                    .collect(Collectors.toList());
+            log.debug("Получение истории замков: устройство {}, before {}, after {}, limit {}",
+                    deviceId, before, after, limit);
+            // Запрашиваем на одну запись больше, чтобы узнать, есть ли следующая страница
+            Pageable pageable = PageRequest.of(0, limit + 1);
+            List<LockHistory> rows;
+            if (after != null) {
+                rows = deviceId != null
+                        ? lockHistoryRepository.findByDeviceIdNewerThan(deviceId, after.timestamp(), after.id(), pageable)
+                        : lockHistoryRepository.findNewerThan(after.timestamp(), after.id(), pageable);
+            } else if (before != null) {
+                rows = deviceId != null
+                        ? lockHistoryRepository.findByDeviceIdOlderThan(deviceId, before.timestamp(), before.id(), pageable)
+                        : lockHistoryRepository.findOlderThan(before.timestamp(), before.id(), pageable);
+            } else {
+                rows = deviceId != null
+                        ? lockHistoryRepository.findByDeviceIdOrderByTimestampDescIdDesc(deviceId, pageable)
+                        : lockHistoryRepository.findAllByOrderByTimestampDescIdDesc(pageable);
+            }
+            return HistoryPage.of(rows, limit, after,
+                    entry -> new HistoryCursor(entry.getTimestamp(), entry.getId()), this::convertToDto);
         } catch (Exception e) {
-            log.error("Ошибка при получении истории замка {}: {}", deviceId, e.getMessage(), e);
-            // Возвращаем пустой список вместо ошибки
-            return List.of();
+            log.error("Ошибка при получении истории замков: {}", e.getMessage(), e);
+            // Возвращаем пустую страницу вместо ошибки
+            return HistoryPage.empty();
         }
     }
     
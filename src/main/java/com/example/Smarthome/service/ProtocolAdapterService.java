@@ -2,119 +2,325 @@ package com.example.Smarthome.service;
 
 import com.example.Smarthome.model.ConnectionProtocol;
 import com.example.Smarthome.model.Device;
-import com.example.Smarthome.protocol.*;
+import com.example.Smarthome.protocol.ProtocolAdapter;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.context.annotation.Profile;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.stereotype.Service;
 
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
 
+/**
+ * Реестр адаптеров протоколов.
+ * Адаптеры находятся в контексте Spring и регистрируются по объявленным протоколам
+ * (если протокол объявлен несколькими адаптерами - с наибольшим приоритетом).
+ * У каждого протокола свой ограниченный пул потоков (размер - maxConcurrency адаптера,
+ * очередь - protocol.adapters.queue-capacity), свой предохранитель и свои гистограммы времени
+ * вызовов, поэтому медленный или недоступный протокол не задерживает остальные.
+ */
 @Service
 @Slf4j
 public class ProtocolAdapterService {
 
-    private final Map<ConnectionProtocol, ProtocolAdapter> protocolAdapters = new HashMap<>();
-    private final VirtualDeviceAdapter virtualDeviceAdapter;
-    
-    // Конструктор с профилями для разных конфигураций
-    @Autowired
-    public ProtocolAdapterService(VirtualDeviceAdapter virtualDeviceAdapter, 
-                                  List<ProtocolAdapter> adapters) {
-        this.virtualDeviceAdapter = virtualDeviceAdapter;
-        
-        // Регистрируем адаптеры, найденные в контексте Spring
+    private final Map<ConnectionProtocol, ProtocolChannel> channels = new EnumMap<>(ConnectionProtocol.class);
+    private final MeterRegistry meterRegistry;
+    private final long callTimeoutMs;
+
+    public ProtocolAdapterService(
+            List<ProtocolAdapter> adapters,
+            MeterRegistry meterRegistry,
+            @Value("${protocol.adapters.queue-capacity:1000}") int queueCapacity,
+            @Value("${protocol.adapters.call-timeout:10000}") long callTimeoutMs,
+            @Value("${protocol.adapters.breaker.failure-threshold:5}") int failureThreshold,
+            @Value("${protocol.adapters.breaker.open-duration:30000}") long openDurationMs) {
+        this.meterRegistry = meterRegistry;
+        this.callTimeoutMs = callTimeoutMs;
+
+        Map<ConnectionProtocol, ProtocolAdapter> selected = new EnumMap<>(ConnectionProtocol.class);
         for (ProtocolAdapter adapter : adapters) {
-            if (adapter instanceof MqttProtocolAdapter) {
-                protocolAdapters.put(ConnectionProtocol.MQTT, adapter);
-                log.info("Зарегистрирован MQTT адаптер протокола");
-            } else if (adapter instanceof DummyProtocolAdapter) {
-                // Заглушка может обрабатывать MQTT запросы при отсутствии настоящего адаптера
-                if (!protocolAdapters.containsKey(ConnectionProtocol.MQTT)) {
-                    protocolAdapters.put(ConnectionProtocol.MQTT, adapter);
-                    log.info("Зарегистрирован заглушка-адаптер для MQTT протокола");
-                }
+            for (ConnectionProtocol protocol : adapter.supportedProtocols()) {
+                selected.merge(protocol, adapter,
+                        (current, candidate) -> candidate.priority() > current.priority() ? candidate : current);
             }
         }
-        
-        // Регистрируем виртуальный адаптер
-        protocolAdapters.put(ConnectionProtocol.VIRTUAL, virtualDeviceAdapter);
-        log.info("Зарегистрирован виртуальный адаптер протокола");
+
+        selected.forEach((protocol, adapter) -> {
+            channels.put(protocol, new ProtocolChannel(protocol, adapter, queueCapacity,
+                    new ProtocolCircuitBreaker(failureThreshold, openDurationMs)));
+            log.info("Зарегистрирован адаптер {} для протокола {}, одновременных вызовов: {}",
+                    adapter.getClass().getSimpleName(), protocol, adapter.maxConcurrency());
+        });
+
+        EnumSet<ConnectionProtocol> missing = EnumSet.allOf(ConnectionProtocol.class);
+        missing.removeAll(channels.keySet());
+        if (!missing.isEmpty()) {
+            log.info("Нет адаптеров для протоколов: {}", missing);
+        }
     }
-    
+
     /**
-     * Отправляет команду на устройство через соответствующий протокол
+     * Отправляет команду на устройство через соответствующий протокол.
+     * Вызов выполняется в пуле протокола, вызывающий поток ждёт не дольше protocol.adapters.call-timeout
      * @param device Устройство
      * @param command Команда
      * @param parameters Параметры команды
      * @return Успешность выполнения
      */
     public boolean sendCommand(Device device, String command, Map<String, String> parameters) {
-        ProtocolAdapter adapter = getAdapterForDevice(device);
-        if (adapter != null) {
-            try {
-                return adapter.sendCommand(device, command, parameters);
-            } catch (Exception e) {
-                log.error("Ошибка при отправке команды {} на устройство {}: {}", 
-                        command, device.getName(), e.getMessage(), e);
-                return false;
-            }
+        ProtocolChannel channel = getChannel(device);
+        if (channel == null) {
+            log.warn("Не найден адаптер для протокола {} устройства {}",
+                    device.getProtocol(), device.getName());
+            return false;
         }
-        log.warn("Не найден адаптер для протокола {} устройства {}", 
-                device.getProtocol(), device.getName());
-        return false;
+        return channel.call("send_command", device,
+                adapter -> adapter.sendCommand(device, command, parameters), false);
+    }
+
+    /**
+     * Отправляет команду с идентификатором, не дожидаясь её передачи
+     * @return Future с успешностью передачи; ошибки адаптера и связи дают false
+     */
+    public CompletableFuture<Boolean> sendCommandAsync(Device device, UUID commandId, String command,
+                                                       Map<String, String> parameters) {
+        ProtocolChannel channel = getChannel(device);
+        if (channel == null) {
+            log.warn("Не найден адаптер для протокола {} устройства {}",
+                    device.getProtocol(), device.getName());
+            return CompletableFuture.completedFuture(false);
+        }
+        return channel.callAsync("send_command", device,
+                adapter -> adapter.sendCommandAsync(device, commandId, command, parameters));
+    }
+
+    /**
+     * Подтверждает ли устройство выполнение команд сообщением о состоянии
+     */
+    public boolean supportsAcknowledgement(Device device) {
+        ProtocolChannel channel = getChannel(device);
+        return channel != null && channel.adapter.supportsAcknowledgement();
     }
-    
+
     /**
      * Проверяет статус устройства через соответствующий протокол
      * @param device Устройство
      * @return Онлайн ли устройство
      */
     public boolean checkDeviceStatus(Device device) {
-        ProtocolAdapter adapter = getAdapterForDevice(device);
-        if (adapter != null) {
-            try {
-                return adapter.checkDeviceStatus(device);
-            } catch (Exception e) {
-                log.error("Ошибка при проверке статуса устройства {}: {}", 
-                        device.getName(), e.getMessage(), e);
-                return false;
-            }
+        ProtocolChannel channel = getChannel(device);
+        if (channel == null) {
+            return false;
         }
-        return false;
+        return channel.call("check_status", device,
+                adapter -> adapter.checkDeviceStatus(device), false);
     }
-    
+
     /**
      * Получает текущие свойства устройства через соответствующий протокол
      * @param device Устройство
      * @return Карта свойств устройства
      */
     public Map<String, String> getDeviceProperties(Device device) {
-        ProtocolAdapter adapter = getAdapterForDevice(device);
-        if (adapter != null) {
-            try {
-                return adapter.getDeviceProperties(device);
-            } catch (Exception e) {
-                log.error("Ошибка при получении свойств устройства {}: {}", 
-                        device.getName(), e.getMessage(), e);
-            }
+        ProtocolChannel channel = getChannel(device);
+        if (channel == null) {
+            return new HashMap<>();
         }
-        return new HashMap<>();
+        Map<String, String> properties = channel.call("get_properties", device,
+                adapter -> adapter.getDeviceProperties(device), null);
+        return properties != null ? properties : new HashMap<>();
     }
-    
+
     /**
-     * Определяет соответствующий адаптер протокола для устройства
+     * Определяет канал (адаптер, пул, предохранитель) протокола устройства
      * @param device Устройство
-     * @return Подходящий адаптер или null
+     * @return Канал протокола или null
      */
-    private ProtocolAdapter getAdapterForDevice(Device device) {
+    private ProtocolChannel getChannel(Device device) {
         ConnectionProtocol protocol = device.getProtocol();
         if (protocol == null) {
             return null;
         }
-        
-        return protocolAdapters.get(protocol);
+
+        return channels.get(protocol);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        channels.values().forEach(channel -> channel.executor.shutdownNow());
+    }
+
+    /**
+     * Адаптер протокола со своим пулом, предохранителем и метриками
+     */
+    private class ProtocolChannel {
+        private final ConnectionProtocol protocol;
+        private final ProtocolAdapter adapter;
+        private final ThreadPoolExecutor executor;
+        private final ProtocolCircuitBreaker breaker;
+        private final Counter rejectedOpen;
+        private final Counter rejectedFull;
+
+        private ProtocolChannel(ConnectionProtocol protocol, ProtocolAdapter adapter, int queueCapacity,
+                                ProtocolCircuitBreaker breaker) {
+            this.protocol = protocol;
+            this.adapter = adapter;
+            this.breaker = breaker;
+            int threads = Math.max(1, adapter.maxConcurrency());
+            this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(Math.max(1, queueCapacity)),
+                    new CustomizableThreadFactory("protocol-" + protocol.name().toLowerCase() + "-"));
+            // Потоки простаивающего протокола освобождаются
+            this.executor.allowCoreThreadTimeOut(true);
+
+            String tag = protocol.name();
+            this.rejectedOpen = Counter.builder("smarthome.protocol.adapter.rejected")
+                    .description("Вызовы адаптера протокола, отклонённые без выполнения")
+                    .tag("protocol", tag)
+                    .tag("reason", "circuit_open")
+                    .register(meterRegistry);
+            this.rejectedFull = Counter.builder("smarthome.protocol.adapter.rejected")
+                    .description("Вызовы адаптера протокола, отклонённые без выполнения")
+                    .tag("protocol", tag)
+                    .tag("reason", "queue_full")
+                    .register(meterRegistry);
+            Gauge.builder("smarthome.protocol.adapter.queue", executor, pool -> pool.getQueue().size())
+                    .description("Вызовы адаптера протокола в очереди пула")
+                    .tag("protocol", tag)
+                    .register(meterRegistry);
+            Gauge.builder("smarthome.protocol.adapter.breaker.open", breaker,
+                            b -> b.state() == ProtocolCircuitBreaker.State.CLOSED ? 0 : 1)
+                    .description("Разомкнут ли предохранитель протокола")
+                    .tag("protocol", tag)
+                    .register(meterRegistry);
+        }
+
+        /**
+         * Синхронный вызов адаптера в пуле протокола. Любой возвращённый адаптером результат
+         * (в том числе false или "не в сети") считается успешным вызовом, предохранитель
+         * учитывает только исключения, превышение времени ожидания и отказы пула
+         * @param fallback результат при отказе, ошибке или превышении времени ожидания
+         */
+        private <T> T call(String operation, Device device, Function<ProtocolAdapter, T> action, T fallback) {
+            ProtocolCircuitBreaker.Admission admission = admit(operation, device);
+            if (!admission.admitted()) {
+                return fallback;
+            }
+            long start = System.nanoTime();
+            Future<T> future;
+            try {
+                future = executor.submit(() -> action.apply(adapter));
+            } catch (RejectedExecutionException e) {
+                queueFull(operation, device, admission);
+                return fallback;
+            }
+
+            try {
+                T result = future.get(callTimeoutMs, TimeUnit.MILLISECONDS);
+                record(operation, start, admission, true);
+                return result;
+            } catch (TimeoutException e) {
+                future.cancel(true);
+                record(operation, start, admission, false);
+                log.warn("Адаптер протокола {} не ответил за {} мс ({}, устройство {})",
+                        protocol, callTimeoutMs, operation, device.getName());
+            } catch (ExecutionException e) {
+                record(operation, start, admission, false);
+                log.error("Ошибка адаптера протокола {} ({}, устройство {}): {}",
+                        protocol, operation, device.getName(), e.getCause().getMessage(), e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                future.cancel(true);
+                record(operation, start, admission, false);
+            }
+            return fallback;
+        }
+
+        /**
+         * Асинхронный вызов адаптера: вызов начинается в пуле протокола,
+         * а Future адаптера ограничивается protocol.adapters.call-timeout.
+         * Как и в call, ошибкой считается только исключительное завершение Future
+         */
+        private CompletableFuture<Boolean> callAsync(String operation, Device device,
+                                                     Function<ProtocolAdapter, CompletableFuture<Boolean>> action) {
+            ProtocolCircuitBreaker.Admission admission = admit(operation, device);
+            if (!admission.admitted()) {
+                return CompletableFuture.completedFuture(false);
+            }
+            long start = System.nanoTime();
+            CompletableFuture<Boolean> result;
+            try {
+                result = CompletableFuture.supplyAsync(() -> action.apply(adapter), executor)
+                        .thenCompose(Function.identity());
+            } catch (RejectedExecutionException e) {
+                queueFull(operation, device, admission);
+                return CompletableFuture.completedFuture(false);
+            }
+            return result.orTimeout(callTimeoutMs, TimeUnit.MILLISECONDS)
+                    .handle((sent, error) -> {
+                        record(operation, start, admission, error == null);
+                        if (error != null) {
+                            log.error("Ошибка адаптера протокола {} ({}, устройство {}): {}",
+                                    protocol, operation, device.getName(), error.getMessage());
+                            return false;
+                        }
+                        return Boolean.TRUE.equals(sent);
+                    });
+        }
+
+        private ProtocolCircuitBreaker.Admission admit(String operation, Device device) {
+            ProtocolCircuitBreaker.Admission admission = breaker.tryAcquire();
+            if (!admission.admitted()) {
+                rejectedOpen.increment();
+                log.debug("Предохранитель протокола {} разомкнут, вызов {} для устройства {} отклонён",
+                        protocol, operation, device.getName());
+            }
+            return admission;
+        }
+
+        private void queueFull(String operation, Device device, ProtocolCircuitBreaker.Admission admission) {
+            rejectedFull.increment();
+            // Переполненная очередь - признак медленного протокола
+            if (breaker.onFailure(admission)) {
+                log.warn("Предохранитель протокола {} разомкнут: очередь пула заполнена", protocol);
+            }
+            log.warn("Очередь протокола {} заполнена, вызов {} для устройства {} отклонён",
+                    protocol, operation, device.getName());
+        }
+
+        private void record(String operation, long startNanos, ProtocolCircuitBreaker.Admission admission,
+                            boolean ok) {
+            Timer.builder("smarthome.protocol.adapter.latency")
+                    .description("Время вызовов адаптера протокола")
+                    .tag("protocol", protocol.name())
+                    .tag("operation", operation)
+                    .tag("outcome", ok ? "success" : "failure")
+                    .publishPercentileHistogram()
+                    .register(meterRegistry)
+                    .record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+            if (ok) {
+                breaker.onSuccess(admission);
+            } else if (breaker.onFailure(admission)) {
+                log.warn("Предохранитель протокола {} разомкнут после ошибок вызовов адаптера", protocol);
+            }
+        }
     }
-} 
\ No newline at end of file
+}
@@ -0,0 +1,113 @@
+package com.example.Smarthome.service;
+
+/**
+ * Предохранитель вызовов адаптера протокола.
+ * После failureThreshold ошибок подряд размыкается и openDurationMs отклоняет вызовы сразу,
+ * затем пропускает один пробный вызов: его успех замыкает предохранитель, ошибка снова размыкает.
+ * Результаты вызовов, допущенных до размыкания и завершившихся позже, состояние не меняют.
+ */
+class ProtocolCircuitBreaker {
+
+    enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    /**
+     * Решение о допуске вызова; с ним же вызывающий сообщает результат
+     */
+    enum Admission {
+        REJECTED,
+        ADMITTED,
+        TRIAL;
+
+        boolean admitted() {
+            return this != REJECTED;
+        }
+    }
+
+    private final int failureThreshold;
+    private final long openDurationMs;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAt;
+    private boolean trialInFlight;
+
+    ProtocolCircuitBreaker(int failureThreshold, long openDurationMs) {
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.openDurationMs = openDurationMs;
+    }
+
+    /**
+     * Можно ли выполнить вызов. В полуоткрытом состоянии разрешает только один пробный вызов (TRIAL)
+     */
+    synchronized Admission tryAcquire() {
+        return tryAcquire(System.currentTimeMillis());
+    }
+
+    synchronized Admission tryAcquire(long now) {
+        if (state == State.OPEN && now - openedAt >= openDurationMs) {
+            state = State.HALF_OPEN;
+            trialInFlight = false;
+        }
+        switch (state) {
+            case CLOSED:
+                return Admission.ADMITTED;
+            case HALF_OPEN:
+                if (trialInFlight) {
+                    return Admission.REJECTED;
+                }
+                trialInFlight = true;
+                return Admission.TRIAL;
+            default:
+                return Admission.REJECTED;
+        }
+    }
+
+    /**
+     * Успешный вызов. Замыкает предохранитель только пробный вызов,
+     * поздний успех вызова, допущенного до размыкания, игнорируется
+     */
+    synchronized void onSuccess(Admission admission) {
+        if (admission == Admission.TRIAL && state == State.HALF_OPEN) {
+            state = State.CLOSED;
+            trialInFlight = false;
+            consecutiveFailures = 0;
+        } else if (state == State.CLOSED) {
+            consecutiveFailures = 0;
+        }
+    }
+
+    /**
+     * @return true если эта ошибка разомкнула предохранитель
+     */
+    synchronized boolean onFailure(Admission admission) {
+        return onFailure(admission, System.currentTimeMillis());
+    }
+
+    synchronized boolean onFailure(Admission admission, long now) {
+        if (admission == Admission.TRIAL && state == State.HALF_OPEN) {
+            trialInFlight = false;
+            return open(now);
+        }
+        if (state != State.CLOSED) {
+            // Поздняя ошибка вызова, допущенного до размыкания, не продлевает размыкание
+            return false;
+        }
+        consecutiveFailures++;
+        return consecutiveFailures >= failureThreshold && open(now);
+    }
+
+    private boolean open(long now) {
+        state = State.OPEN;
+        openedAt = now;
+        consecutiveFailures = 0;
+        return true;
+    }
+
+    synchronized State state() {
+        return state;
+    }
+}
@@ -0,0 +1,70 @@
+package com.example.Smarthome.service;
+
+import com.example.Smarthome.dto.DeviceCommand;
+import com.example.Smarthome.dto.DeviceCommandResult;
+import com.example.Smarthome.dto.SceneExecutionResult;
+import com.example.Smarthome.model.Scene;
+import com.example.Smarthome.repository.SceneRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Сценарии: хранение и выполнение на сервере.
+ * Команды сценария рассылаются устройствам параллельно через DeviceCommandDispatcher.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class SceneService {
+
+    private final SceneRepository sceneRepository;
+    private final DeviceCommandDispatcher commandDispatcher;
+
+    public List<Scene> getAllScenes() {
+        return sceneRepository.findAll();
+    }
+
+    public Optional<Scene> getSceneById(UUID id) {
+        return sceneRepository.findById(id);
+    }
+
+    public Scene saveScene(Scene scene) {
+        return sceneRepository.save(scene);
+    }
+
+    public void deleteScene(UUID id) {
+        sceneRepository.deleteById(id);
+    }
+
+    /**
+     * Выполняет сценарий
+     * @return результат по каждому устройству или пусто, если сценарий не найден
+     */
+    public Optional<SceneExecutionResult> executeScene(UUID id) {
+        Optional<Scene> sceneOpt = sceneRepository.findById(id);
+        if (sceneOpt.isEmpty()) {
+            return Optional.empty();
+        }
+        Scene scene = sceneOpt.get();
+
+        long start = System.nanoTime();
+        List<DeviceCommand> commands = scene.getActions().stream()
+                .map(action -> new DeviceCommand(action.getDeviceId(), action.getCommand(), action.getParameters()))
+                .collect(Collectors.toList());
+        List<DeviceCommandResult> results = commandDispatcher.dispatch(commands);
+        long durationMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        long succeeded = results.stream().filter(DeviceCommandResult::success).count();
+        log.info("Сценарий '{}' выполнен за {} мс: успешно {} из {}", scene.getName(), durationMs,
+                succeeded, results.size());
+        return Optional.of(new SceneExecutionResult(scene.getId(), scene.getName(), durationMs,
+                succeeded, results.size() - succeeded, results));
+    }
+}
@@ -1,10 +1,15 @@
 package com.example.Smarthome.service;
 
+import com.example.Smarthome.dto.HistoryCursor;
+import com.example.Smarthome.dto.HistoryPage;
 import com.example.Smarthome.dto.SensorHistoryDto;
 import com.example.Smarthome.model.SensorHistory;
 import com.example.Smarthome.repository.SensorHistoryRepository;
+import com.example.Smarthome.retention.RetentionPolicy;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
 import org.springframework.stereotype.Service;
 
 import java.time.LocalDateTime;
@@ -19,41 +24,44 @@ import java.util.stream.Collectors;
 public class SensorHistoryService {
     
     private final SensorHistoryRepository sensorHistoryRepository;
+    private final RetentionPolicy retentionPolicy;
+    private final HistoryBatchWriter historyBatchWriter;
     
     /**
-     * Получить всю историю срабатываний датчиков
-     * @return список записей истории
-     */
-    public List<SensorHistoryDto> getAllSensorHistory() {
-        try {
-            log.debug("Получение истории всех датчиков");
-            return sensorHistoryRepository.findAllByOrderByTimestampDesc()
-                    .stream()
-                    .map(this::convertToDto)
-                    .collect(Collectors.toList());
-        } catch (Exception e) {
-            log.error("Ошибка при получении истории всех датчиков: {}", e.getMessage(), e);
-            // Возвращаем пустой список вместо ошибки
-            return List.of();
-        }
-    }
-    
-    /**
-     * Получить историю срабатываний конкретного датчика
-     * @param deviceId ID устройства (датчика)
-     * @return список записей истории
+     * Получить страницу истории срабатываний датчиков, отсортированную от новых записей к старым.
+     * Позиция задаётся курсором, поэтому запрос не зависит от объёма таблицы.
+     * @param deviceId ID устройства или null для всех устройств
+     * @param before курсор: вернуть записи старше него, или null
+     * @param after курсор: вернуть записи новее него, или null
+     * @param limit размер страницы
+     * @return страница истории
      */
-    public List<SensorHistoryDto> getSensorHistoryByDeviceId(UUID deviceId) {
+    public HistoryPage<SensorHistoryDto> getSensorHistoryPage(UUID deviceId, HistoryCursor before, HistoryCursor after, int limit) {
         try {
-            log.debug("Получение истории для датчика с ID: {}", deviceId);
-            return sensorHistoryRepository.findByDeviceIdOrderByTimestampDesc(deviceId)
-                    .stream()
-                    .map(this::convertToDto)
-                    .collect(Collectors.toList());
+            log.debug("Получение истории датчиков: устройство {}, before {}, after {}, limit {}",
+                    deviceId, before, after, limit);
+            // Запрашиваем на одну запись больше, чтобы узнать, есть ли следующая страница
+            Pageable pageable = PageRequest.of(0, limit + 1);
+            List<SensorHistory> rows;
+            if (after != null) {
+                rows = deviceId != null
+                        ? sensorHistoryRepository.findByDeviceIdNewerThan(deviceId, after.timestamp(), after.id(), pageable)
+                        : sensorHistoryRepository.findNewerThan(after.timestamp(), after.id(), pageable);
+            } else if (before != null) {
+                rows = deviceId != null
+                        ? sensorHistoryRepository.findByDeviceIdOlderThan(deviceId, before.timestamp(), before.id(), pageable)
+                        : sensorHistoryRepository.findOlderThan(before.timestamp(), before.id(), pageable);
+            } else {
+                rows = deviceId != null
+                        ? sensorHistoryRepository.findByDeviceIdOrderByTimestampDescIdDesc(deviceId, pageable)
+                        : sensorHistoryRepository.findAllByOrderByTimestampDescIdDesc(pageable);
+            }
+            return HistoryPage.of(rows, limit, after,
+                    entry -> new HistoryCursor(entry.getTimestamp(), entry.getId()), this::convertToDto);
         } catch (Exception e) {
-            log.error("Ошибка при получении истории датчика {}: {}", deviceId, e.getMessage(), e);
-            // Возвращаем пустой список вместо ошибки
-            return List.of();
+            log.error("Ошибка при получении истории датчиков: {}", e.getMessage(), e);
+            // Возвращаем пустую страницу вместо ошибки
+            return HistoryPage.empty();
         }
     }
     
@@ -105,16 +113,7 @@ public class SensorHistoryService {
             log.debug("Добавление записи в историю датчика: {} - {}", deviceId, historyDto);
             
             // Создаем новую запись
-            SensorHistory entry = new SensorHistory();
-            entry.setDeviceId(deviceId);
-            entry.setDeviceName(historyDto.getDeviceName());
-            entry.setRoom(historyDto.getRoom());
-            entry.setSensorType(historyDto.getSensorType());
-            entry.setValue(historyDto.getValue());
-            entry.setMessage(historyDto.getMessage());
-            entry.setPriority(historyDto.getPriority());
-            entry.setAcknowledged(historyDto.getAcknowledged() != null ? historyDto.getAcknowledged() : false);
-            entry.setTimestamp(LocalDateTime.now());
+            SensorHistory entry = buildEntry(deviceId, historyDto);
             
             // Сохраняем запись в репозитории
             SensorHistory savedEntry = sensorHistoryRepository.save(entry);
@@ -128,6 +127,44 @@ public class SensorHistoryService {
         }
     }
     
+    /**
+     * Добавить запись о срабатывании датчика через пакетную запись истории.
+     * Вставка в базу выполняется асинхронно, ожидание зависит от history.writer.durability.
+     * @param deviceId ID устройства (датчика)
+     * @param historyDto данные о срабатывании
+     * @return запись с назначенным ID
+     */
+    public SensorHistoryDto appendSensorHistoryEntry(UUID deviceId, SensorHistoryDto historyDto) {
+        try {
+            log.debug("Постановка записи в очередь истории датчика: {} - {}", deviceId, historyDto);
+            
+            // ID назначается здесь, так как запись сохраняется без JPA
+            SensorHistory entry = buildEntry(deviceId, historyDto);
+            entry.setId(UUID.randomUUID());
+            historyBatchWriter.append(entry);
+            
+            return convertToDto(entry);
+        } catch (Exception e) {
+            log.error("Ошибка при добавлении записи в историю датчика {}: {}", deviceId, e.getMessage(), e);
+            throw e;
+        }
+    }
+    
+    private SensorHistory buildEntry(UUID deviceId, SensorHistoryDto historyDto) {
+        SensorHistory entry = new SensorHistory();
+        entry.setDeviceId(deviceId);
+        entry.setDeviceName(historyDto.getDeviceName());
+        entry.setRoom(historyDto.getRoom());
+        entry.setSensorType(historyDto.getSensorType());
+        entry.setValue(historyDto.getValue());
+        entry.setMessage(historyDto.getMessage());
+        entry.setPriority(historyDto.getPriority());
+        entry.setAcknowledged(historyDto.getAcknowledged() != null ? historyDto.getAcknowledged() : false);
+        entry.setTimestamp(LocalDateTime.now());
+        entry.setRetentionDays(retentionPolicy.sensorRetentionDays(entry.getSensorType(), entry.getPriority()));
+        return entry;
+    }
+    
     /**
      * Обновить статус подтверждения записи
      * @param entryId ID записи
@@ -158,23 +195,17 @@ public class SensorHistoryService {
     }
     
     /**
-     * Подтвердить все неподтвержденные записи
+     * Подтвердить все неподтвержденные записи, созданные не позже указанного времени.
+     * Выполняется одним запросом UPDATE; записи, добавленные после границы, не затрагиваются.
+     * @param until верхняя граница времени записи или null для текущего момента
      * @return количество обновленных записей
      */
-    public int acknowledgeAllEvents() {
+    public int acknowledgeAllEvents(LocalDateTime until) {
         try {
-            log.debug("Подтверждение всех неподтвержденных записей");
-            
-            // Получаем все неподтвержденные записи
-            List<SensorHistory> unacknowledgedEntries = sensorHistoryRepository.findByAcknowledgedFalseOrderByTimestampDesc();
+            LocalDateTime bound = until != null ? until : LocalDateTime.now();
+            log.debug("Подтверждение всех неподтвержденных записей до {}", bound);
             
-            // Обновляем статус для каждой записи
-            int count = 0;
-            for (SensorHistory entry : unacknowledgedEntries) {
-                entry.setAcknowledged(true);
-                sensorHistoryRepository.save(entry);
-                count++;
-            }
+            int count = sensorHistoryRepository.acknowledgeAllUntil(bound);
             
             log.debug("Подтверждено записей: {}", count);
             return count;
@@ -185,24 +216,17 @@ public class SensorHistoryService {
     }
     
     /**
-     * Подтвердить все неподтвержденные записи для конкретного датчика
+     * Подтвердить все неподтвержденные записи для конкретного датчика, созданные не позже указанного времени
      * @param deviceId ID устройства (датчика)
+     * @param until верхняя граница времени записи или null для текущего момента
      * @return количество обновленных записей
      */
-    public int acknowledgeAllEventsForDevice(UUID deviceId) {
+    public int acknowledgeAllEventsForDevice(UUID deviceId, LocalDateTime until) {
         try {
-            log.debug("Подтверждение всех неподтвержденных записей для датчика: {}", deviceId);
+            LocalDateTime bound = until != null ? until : LocalDateTime.now();
+            log.debug("Подтверждение всех неподтвержденных записей для датчика {} до {}", deviceId, bound);
             
-            // Получаем все неподтвержденные записи для датчика
-            List<SensorHistory> unacknowledgedEntries = sensorHistoryRepository.findByDeviceIdAndAcknowledgedFalseOrderByTimestampDesc(deviceId);
-            
-            // Обновляем статус для каждой записи
-            int count = 0;
-            for (SensorHistory entry : unacknowledgedEntries) {
-                entry.setAcknowledged(true);
-                sensorHistoryRepository.save(entry);
-                count++;
-            }
+            int count = sensorHistoryRepository.acknowledgeAllForDeviceUntil(deviceId, bound);
             
             log.debug("Подтверждено записей для датчика {}: {}", deviceId, count);
             return count;
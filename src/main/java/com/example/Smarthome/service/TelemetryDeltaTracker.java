@@ -0,0 +1,96 @@
+package com.example.Smarthome.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Запоминает телеметрию, успешно отправленную в ThingsBoard по каждому устройству,
+ * чтобы отправлять только изменившиеся ключи. Раз в
+ * thingsboard.push.full-resync-interval устройство отправляется целиком,
+ * на случай если ThingsBoard потерял данные.
+ */
+@Component
+public class TelemetryDeltaTracker {
+
+    private final long fullResyncIntervalMs;
+    private final Counter sentKeysCounter;
+    private final Counter skippedKeysCounter;
+
+    private final ConcurrentHashMap<UUID, PushedTelemetry> pushed = new ConcurrentHashMap<>();
+
+    public TelemetryDeltaTracker(
+            MeterRegistry meterRegistry,
+            @Value("${thingsboard.push.full-resync-interval:3600000}") long fullResyncIntervalMs) {
+        this.fullResyncIntervalMs = fullResyncIntervalMs;
+        this.sentKeysCounter = Counter.builder("smarthome.thingsboard.push.keys")
+                .description("Ключи телеметрии при отправке в ThingsBoard")
+                .tag("result", "sent")
+                .register(meterRegistry);
+        this.skippedKeysCounter = Counter.builder("smarthome.thingsboard.push.keys")
+                .description("Ключи телеметрии при отправке в ThingsBoard")
+                .tag("result", "unchanged")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Возвращает только ключи, изменившиеся с последней успешной отправки
+     * @param deviceId ID устройства
+     * @param telemetry полная текущая телеметрия устройства
+     * @return изменившиеся ключи (пустая карта, если отправлять нечего)
+     */
+    public Map<String, Object> changedKeys(UUID deviceId, Map<String, Object> telemetry) {
+        PushedTelemetry last = pushed.get(deviceId);
+        if (last == null || System.currentTimeMillis() - last.fullSyncAt >= fullResyncIntervalMs) {
+            sentKeysCounter.increment(telemetry.size());
+            return telemetry;
+        }
+
+        Map<String, Object> changed = new HashMap<>();
+        for (Map.Entry<String, Object> entry : telemetry.entrySet()) {
+            String value = String.valueOf(entry.getValue());
+            if (!value.equals(last.values.get(entry.getKey()))) {
+                changed.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        sentKeysCounter.increment(changed.size());
+        skippedKeysCounter.increment(telemetry.size() - changed.size());
+        return changed;
+    }
+
+    /**
+     * Запоминает успешно отправленные значения
+     * @param deviceId ID устройства
+     * @param sent отправленные ключи
+     * @param fullSync была ли отправлена вся телеметрия устройства
+     */
+    public void markPushed(UUID deviceId, Map<String, Object> sent, boolean fullSync) {
+        pushed.compute(deviceId, (id, current) -> {
+            PushedTelemetry updated = current != null ? current : new PushedTelemetry();
+            sent.forEach((key, value) -> updated.values.put(key, String.valueOf(value)));
+            if (fullSync) {
+                updated.fullSyncAt = System.currentTimeMillis();
+            }
+            return updated;
+        });
+    }
+
+    /**
+     * Сбрасывает сведения об отправленной телеметрии (следующая отправка будет полной)
+     */
+    public void forget(UUID deviceId) {
+        pushed.remove(deviceId);
+    }
+
+    private static class PushedTelemetry {
+        private final Map<String, String> values = new ConcurrentHashMap<>();
+        private volatile long fullSyncAt;
+    }
+}
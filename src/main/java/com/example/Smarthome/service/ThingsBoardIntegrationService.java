@@ -5,9 +5,9 @@ import com.example.Smarthome.model.Device;
 import com.example.Smarthome.repository.DeviceRepository;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.*;
-import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestTemplate;
@@ -34,8 +34,10 @@ import org.springframework.context.annotation.Lazy;
 @Slf4j
 public class ThingsBoardIntegrationService {
 
+    @Qualifier("thingsBoardRestTemplate")
     private final RestTemplate restTemplate;
     private final DeviceRepository deviceRepository;
+    private final TelemetryDeltaTracker telemetryDeltaTracker;
     
     @Value("${thingsboard.url}")
     private String thingsBoardUrl;
@@ -46,7 +48,15 @@ public class ThingsBoardIntegrationService {
     @Value("${thingsboard.password}")
     private String thingsBoardPassword;
     
-    private String accessToken;
+    // Режим отправки телеметрии: per-token (запрос на каждое устройство) или gateway (пакетами)
+    @Value("${thingsboard.uplink.mode:per-token}")
+    private String uplinkMode;
+    
+    // Адрес приёма телеметрии в формате шлюза {deviceName: [{ts, values}]}
+    @Value("${thingsboard.gateway.telemetry-url:}")
+    private String gatewayTelemetryUrl;
+    
+    private volatile String accessToken;
     
     @Autowired
     @Lazy
@@ -323,9 +333,122 @@ public class ThingsBoardIntegrationService {
     }
     
     /**
-     * Отправляет данные устройства в ThingsBoard
+     * Формирует телеметрию устройства: все свойства, кроме атрибутов, и статус
+     * @param device Устройство
+     * @return карта телеметрии
+     */
+    public Map<String, Object> buildTelemetry(Device device) {
+        Map<String, Object> telemetry = new HashMap<>();
+        
+        // Добавляем только свойства телеметрии, исключая атрибуты
+        for (Map.Entry<String, String> entry : device.getProperties().entrySet()) {
+            String key = entry.getKey();
+            // Исключаем атрибуты
+            if (!key.startsWith("attr_")) {
+                // Для свойств телеметрии удаляем префикс tb_ при отправке
+                if (key.startsWith("tb_")) {
+                    telemetry.put(key.substring(3), entry.getValue());
+                } else {
+                    telemetry.put(key, entry.getValue());
+                }
+            }
+        }
+        
+        // Добавляем статус устройства
+        telemetry.put("status", device.getStatus().toString());
+        return telemetry;
+    }
+    
+    /**
+     * Включена ли пакетная отправка телеметрии в формате шлюза
+     */
+    public boolean isGatewayUplinkEnabled() {
+        return "gateway".equalsIgnoreCase(uplinkMode) && gatewayTelemetryUrl != null && !gatewayTelemetryUrl.isEmpty();
+    }
+    
+    /**
+     * Отправляет телеметрию нескольких устройств одним запросом в формате шлюза ThingsBoard:
+     * {"Имя устройства": [{"ts": 1700000000000, "values": {...}}], ...}.
+     * Ключ пакета - имя устройства, поэтому устройства с одинаковыми именами
+     * отправляются отдельными запросами, а не перезаписывают друг друга.
+     * Как и sendDeviceUpdate, отправляет только изменившиеся ключи.
+     * @param devices Устройства (с актуальным состоянием)
+     * @return true если все пакеты успешно отправлены или отправлять было нечего
+     */
+    public boolean sendGatewayTelemetry(List<Device> devices) {
+        long ts = System.currentTimeMillis();
+        List<GatewayRequest> requests = new ArrayList<>();
+        Map<UUID, Integer> fullSizes = new HashMap<>();
+        
+        for (Device device : devices) {
+            Map<String, Object> telemetry = buildTelemetry(device);
+            Map<String, Object> changed = telemetryDeltaTracker.changedKeys(device.getId(), telemetry);
+            if (changed.isEmpty()) {
+                continue;
+            }
+            
+            Map<String, Object> entry = new HashMap<>();
+            entry.put("ts", ts);
+            entry.put("values", changed);
+            GatewayRequest request = requests.stream()
+                    .filter(candidate -> !candidate.payload().containsKey(device.getName()))
+                    .findFirst()
+                    .orElseGet(() -> {
+                        GatewayRequest created = new GatewayRequest(new HashMap<>(), new HashMap<>());
+                        requests.add(created);
+                        return created;
+                    });
+            request.payload().put(device.getName(), List.of(entry));
+            request.sent().put(device.getId(), changed);
+            fullSizes.put(device.getId(), telemetry.size());
+        }
+        
+        if (requests.isEmpty()) {
+            log.debug("Телеметрия {} устройств не изменилась, пакетная отправка не требуется", devices.size());
+            return true;
+        }
+        if (requests.size() > 1) {
+            log.debug("В пакете есть устройства с одинаковыми именами, телеметрия отправляется {} запросами",
+                    requests.size());
+        }
+        
+        boolean success = true;
+        for (GatewayRequest request : requests) {
+            success &= postGatewayTelemetry(request, fullSizes);
+        }
+        return success;
+    }
+    
+    private boolean postGatewayTelemetry(GatewayRequest request, Map<UUID, Integer> fullSizes) {
+        try {
+            ResponseEntity<Void> response = restTemplate.postForEntity(gatewayTelemetryUrl, request.payload(), Void.class);
+            if (!response.getStatusCode().is2xxSuccessful()) {
+                log.warn("Ошибка при пакетной отправке телеметрии {} устройств в ThingsBoard. Код: {}", 
+                        request.payload().size(), response.getStatusCode());
+                return false;
+            }
+            
+            request.sent().forEach((deviceId, changed) -> telemetryDeltaTracker.markPushed(
+                    deviceId, changed, changed.size() == fullSizes.get(deviceId)));
+            log.debug("Телеметрия {} устройств отправлена в ThingsBoard одним запросом", request.payload().size());
+            return true;
+        } catch (RestClientException e) {
+            log.error("Ошибка соединения при пакетной отправке телеметрии в ThingsBoard: {}", e.getMessage());
+            return false;
+        }
+    }
+    
+    /**
+     * Один запрос в формате шлюза: тело по именам устройств и отправленные в нём значения по ID
+     */
+    private record GatewayRequest(Map<String, Object> payload, Map<UUID, Map<String, Object>> sent) {
+    }
+    
+    /**
+     * Отправляет данные устройства в ThingsBoard.
+     * Отправляются только ключи, изменившиеся с последней успешной отправки.
      * @param device Устройство, данные которого нужно отправить
-     * @return true если данные успешно отправлены
+     * @return true если данные успешно отправлены или отправлять было нечего
      */
     public boolean sendDeviceUpdate(Device device) {
         if (device.getThingsboardToken() == null || device.getThingsboardToken().isEmpty()) {
@@ -333,79 +456,38 @@ public class ThingsBoardIntegrationService {
             return false;
         }
         
-        // Проверяем, не заблокирована ли синхронизация для устройства
-        if (device.getId() != null && deviceService.shouldBlockSync(device.getId())) {
-            log.debug("Синхронизация для устройства {} временно заблокирована, пропускаем отправку", device.getName());
-            return false;
-        }
-        
         try {
             String url = thingsBoardUrl + "/api/v1/" + device.getThingsboardToken() + "/telemetry";
             
             // Формируем телеметрию
-            Map<String, Object> telemetry = new HashMap<>();
+            Map<String, Object> telemetry = buildTelemetry(device);
             
-            // Добавляем только свойства телеметрии, исключая атрибуты
-            for (Map.Entry<String, String> entry : device.getProperties().entrySet()) {
-                String key = entry.getKey();
-                // Исключаем атрибуты
-                if (!key.startsWith("attr_")) {
-                    // Для свойств телеметрии удаляем префикс tb_ при отправке
-                    if (key.startsWith("tb_")) {
-                        telemetry.put(key.substring(3), entry.getValue());
-                    } else {
-                        telemetry.put(key, entry.getValue());
-                    }
-                }
+            // Оставляем только изменившиеся ключи
+            Map<String, Object> changed = telemetryDeltaTracker.changedKeys(device.getId(), telemetry);
+            if (changed.isEmpty()) {
+                log.debug("Телеметрия устройства {} не изменилась, отправка не требуется", device.getName());
+                return true;
             }
             
-            // Добавляем статус устройства
-            telemetry.put("status", device.getStatus().toString());
-            
-            // Максимальное количество попыток отправки
-            int maxAttempts = 3;
-            int attempt = 0;
-            boolean success = false;
-            ResponseEntity<Void> response = null;
-            
-            // Цикл повторных попыток при ошибках
-            while (!success && attempt < maxAttempts) {
-                attempt++;
+            // Одна попытка: повторные отправки с экспоненциальной задержкой
+            // выполняет ThingsBoardTelemetryPushEngine
+            boolean success;
+            try {
+                ResponseEntity<Void> response = restTemplate.postForEntity(url, changed, Void.class);
+                success = response.getStatusCode().is2xxSuccessful();
                 
-                try {
-                    // Отправляем данные в ThingsBoard
-                    response = restTemplate.postForEntity(url, telemetry, Void.class);
-                    success = response.getStatusCode().is2xxSuccessful();
-                    
-                    if (success) {
-                        log.debug("Данные устройства {} отправлены в ThingsBoard, ответ: {}", 
-                                device.getName(), response.getStatusCode());
-                    } else {
-                        log.warn("Ошибка при отправке данных устройства {} в ThingsBoard. Код: {}, Попытка: {}/{}", 
-                                device.getName(), response.getStatusCode(), attempt, maxAttempts);
-                        
-                        // Небольшая задержка перед повторной попыткой
-                        if (attempt < maxAttempts) {
-                            Thread.sleep(1000); // 1 секунда между попытками
-                        }
-                    }
-                } catch (RestClientException e) {
-                    log.error("Ошибка соединения при отправке данных устройства {} в ThingsBoard (попытка {}/{}): {}", 
-                            device.getName(), attempt, maxAttempts, e.getMessage());
-                    
-                    // Небольшая задержка перед повторной попыткой
-                    if (attempt < maxAttempts) {
-                        try {
-                            Thread.sleep(1000); // 1 секунда между попытками
-                        } catch (InterruptedException ie) {
-                            Thread.currentThread().interrupt();
-                        }
-                    }
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    log.error("Прерывание при ожидании между попытками отправки данных");
-                    break;
+                if (success) {
+                    telemetryDeltaTracker.markPushed(device.getId(), changed, changed.size() == telemetry.size());
+                    log.debug("Данные устройства {} отправлены в ThingsBoard ({} из {} ключей), ответ: {}", 
+                            device.getName(), changed.size(), telemetry.size(), response.getStatusCode());
+                } else {
+                    log.warn("Ошибка при отправке данных устройства {} в ThingsBoard. Код: {}", 
+                            device.getName(), response.getStatusCode());
                 }
+            } catch (RestClientException e) {
+                log.error("Ошибка соединения при отправке данных устройства {} в ThingsBoard: {}", 
+                        device.getName(), e.getMessage());
+                success = false;
             }
             
             return success;
@@ -662,40 +744,6 @@ public class ThingsBoardIntegrationService {
         }
     }
     
-    /**
-     * Планировщик для периодической отправки данных в ThingsBoard
-     * Выполняется каждые 5 минут
-     */
-    @Scheduled(fixedRateString = "${thingsboard.sync.interval:300000}")
-    public void syncDevicesWithThingsBoard() {
-        log.debug("Запуск автоматической синхронизации устройств с ThingsBoard");
-        
-        // Получаем устройства с токенами ThingsBoard
-        List<Device> devices = deviceRepository.findAllByThingsboardTokenIsNotNull();
-        
-        if (devices.isEmpty()) {
-            log.debug("Нет устройств с токенами ThingsBoard для синхронизации");
-            return;
-        }
-        
-        log.info("Синхронизация {} устройств с ThingsBoard", devices.size());
-        
-        int successCount = 0;
-        for (Device device : devices) {
-            try {
-                boolean success = sendDeviceUpdate(device);
-                if (success) {
-                    successCount++;
-                }
-            } catch (Exception e) {
-                log.error("Ошибка при синхронизации устройства {} с ThingsBoard: {}", 
-                        device.getName(), e.getMessage());
-            }
-        }
-        
-        log.info("Синхронизация завершена. Успешно: {}/{}", successCount, devices.size());
-    }
-
     /**
      * Получает токен устройства по его ID в ThingsBoard
      * @param deviceId ID устройства в ThingsBoard
@@ -783,6 +831,13 @@ public class ThingsBoardIntegrationService {
         return accessToken;
     }
 
+    /**
+     * Сбрасывает сохранённый токен, чтобы при следующем запросе выполнить вход заново
+     */
+    public void clearAccessToken() {
+        accessToken = null;
+    }
+
     /**
      * Обновляет атрибуты устройства в ThingsBoard на основе свойств с префиксами
      * @param device Устройство, атрибуты которого нужно обновить
@@ -1258,8 +1313,8 @@ public class ThingsBoardIntegrationService {
                 device.setLastSeen(LocalDateTime.now());
                 device.setOnline(true);
                 
-                // Сохраняем устройство
-                deviceRepository.save(device);
+                // Сохраняем устройство, новыми считаются только полученные атрибуты
+                deviceService.saveDevice(device, attributesData.keySet());
                 
                 // Отправляем событие обработчику
                 DeviceEventDto event = new DeviceEventDto();
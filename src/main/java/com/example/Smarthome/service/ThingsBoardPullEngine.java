@@ -0,0 +1,219 @@
+package com.example.Smarthome.service;
+
+import com.example.Smarthome.model.Device;
+import com.example.Smarthome.repository.DeviceRepository;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * Периодическое получение данных устройств из ThingsBoard.
+ * Устройства опрашиваются параллельно пулом ограниченного размера.
+ * Телеметрия запрашивается одним запросом на устройство и только
+ * за интервал после последнего полученного значения. Устройства, изменения которых приходят
+ * через подписку {@link ThingsBoardWebSocketSubscriber}, не опрашиваются на телеметрию,
+ * а их атрибуты сверяются не чаще thingsboard.ws.attributes-resync-interval
+ * (подписка не сообщает об удалении атрибутов). Остальные устройства (без ID в ThingsBoard
+ * или пока подписка не работает) опрашиваются как обычно.
+ */
+@Service
+@Slf4j
+public class ThingsBoardPullEngine {
+
+    private final DeviceRepository deviceRepository;
+    private final ThingsBoardSyncService syncService;
+    private final ThingsBoardIntegrationService thingsBoardService;
+    private final ThingsBoardWebSocketSubscriber webSocketSubscriber;
+    private final ExecutorService executor;
+
+    // Начало интервала следующего запроса телеметрии по каждому устройству (мс)
+    private final Map<UUID, Long> telemetrySince = new ConcurrentHashMap<>();
+    // Время последнего получения атрибутов по каждому устройству (мс)
+    private final Map<UUID, Long> attributesPulledAt = new ConcurrentHashMap<>();
+    private final long attributesResyncMs;
+
+    private final PullCycle telemetryCycle;
+    private final PullCycle attributesCycle;
+
+    public ThingsBoardPullEngine(
+            DeviceRepository deviceRepository,
+            ThingsBoardSyncService syncService,
+            ThingsBoardIntegrationService thingsBoardService,
+            ThingsBoardWebSocketSubscriber webSocketSubscriber,
+            MeterRegistry meterRegistry,
+            @Value("${thingsboard.pull.concurrency:8}") int concurrency,
+            @Value("${thingsboard.ws.attributes-resync-interval:3600000}") long attributesResyncMs) {
+        this.deviceRepository = deviceRepository;
+        this.syncService = syncService;
+        this.thingsBoardService = thingsBoardService;
+        this.webSocketSubscriber = webSocketSubscriber;
+        this.attributesResyncMs = attributesResyncMs;
+        this.executor = Executors.newFixedThreadPool(Math.max(1, concurrency),
+                new CustomizableThreadFactory("tb-pull-"));
+        this.telemetryCycle = new PullCycle("telemetry", "получение телеметрии", meterRegistry);
+        this.attributesCycle = new PullCycle("attributes", "получение атрибутов", meterRegistry);
+    }
+
+    /**
+     * Получение телеметрии устройств с токенами ThingsBoard, изменения которых
+     * не приходят через подписку WebSocket.
+     * Поток планировщика только запускает опрос и не ждёт его завершения.
+     */
+    @Scheduled(fixedRateString = "${thingsboard.sync.telemetry.interval:300000}")
+    public void pullTelemetryCycle() {
+        runCycle(telemetryCycle, this::pullTelemetry,
+                device -> !webSocketSubscriber.isSubscribed(device.getId()));
+    }
+
+    /**
+     * Получение атрибутов устройств с токенами ThingsBoard. Устройства с активной подпиской
+     * опрашиваются не чаще thingsboard.ws.attributes-resync-interval
+     */
+    @Scheduled(fixedRateString = "${thingsboard.pull.interval:3600000}")
+    public void pullAttributesCycle() {
+        long now = System.currentTimeMillis();
+        runCycle(attributesCycle, this::pullAttributes,
+                device -> !webSocketSubscriber.isSubscribed(device.getId())
+                        || now - attributesPulledAt.getOrDefault(device.getId(), 0L) >= attributesResyncMs);
+    }
+
+    /**
+     * Запускает внеочередное получение телеметрии всех устройств, включая подписанные
+     * @return false, если предыдущий цикл ещё выполняется
+     */
+    public boolean forceTelemetryCycle() {
+        return runCycle(telemetryCycle, this::pullTelemetry, device -> true);
+    }
+
+    /**
+     * @param filter какие из устройств с токенами ThingsBoard опрашивать в этом цикле
+     */
+    private boolean runCycle(PullCycle cycle, Predicate<Device> task, Predicate<Device> filter) {
+        if (!cycle.running.compareAndSet(false, true)) {
+            log.warn("Предыдущий цикл ThingsBoard ({}) ещё выполняется, запуск пропущен", cycle.name);
+            return false;
+        }
+
+        long start = System.nanoTime();
+        try {
+            List<Device> allDevices = deviceRepository.findAllByThingsboardTokenIsNotNull();
+
+            // Забываем отметки удалённых устройств
+            Set<UUID> ids = allDevices.stream().map(Device::getId).collect(Collectors.toSet());
+            telemetrySince.keySet().retainAll(ids);
+            attributesPulledAt.keySet().retainAll(ids);
+
+            List<Device> devices = allDevices.stream().filter(filter).toList();
+            if (devices.isEmpty()) {
+                log.debug("Нет устройств ThingsBoard для опроса ({}), все получают изменения через подписку "
+                        + "или не имеют токенов", cycle.name);
+                cycle.running.set(false);
+                return true;
+            }
+
+            // Аутентифицируемся заранее, чтобы потоки опроса не выполняли вход одновременно
+            thingsBoardService.ensureAuthenticated();
+
+            List<CompletableFuture<Boolean>> futures = new ArrayList<>(devices.size());
+            for (Device device : devices) {
+                futures.add(CompletableFuture.supplyAsync(() -> pullSafely(task, device), executor));
+            }
+
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]))
+                    .whenComplete((ignored, error) -> {
+                        long updated = futures.stream().filter(f -> f.getNow(false)).count();
+                        long elapsed = System.nanoTime() - start;
+                        cycle.timer.record(elapsed, TimeUnit.NANOSECONDS);
+                        cycle.lastDurationMs.set(TimeUnit.NANOSECONDS.toMillis(elapsed));
+                        cycle.running.set(false);
+
+                        log.info("ThingsBoard, {}: обновлено {}/{}, длительность {} мс",
+                                cycle.name, updated, devices.size(), TimeUnit.NANOSECONDS.toMillis(elapsed));
+                    });
+            return true;
+        } catch (RuntimeException e) {
+            cycle.running.set(false);
+            log.error("Ошибка при запуске цикла ThingsBoard ({}): {}", cycle.name, e.getMessage(), e);
+            return false;
+        }
+    }
+
+    private boolean pullSafely(Predicate<Device> task, Device device) {
+        try {
+            return task.test(device);
+        } catch (Exception e) {
+            log.error("Ошибка при синхронизации устройства {} из ThingsBoard: {}", device.getName(), e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Получает телеметрию одного устройства (выполняется в пуле опроса)
+     */
+    private boolean pullTelemetry(Device device) {
+        ThingsBoardSyncService.TelemetryPullResult result =
+                syncService.pullDeviceTelemetry(device, telemetrySince.get(device.getId()));
+        // Отметка сдвигается только после успешного запроса, иначе изменения будут запрошены повторно
+        if (result.success() && result.nextSinceTs() != null) {
+            telemetrySince.put(device.getId(), result.nextSinceTs());
+        }
+        return result.updated();
+    }
+
+    /**
+     * Получает атрибуты одного устройства (выполняется в пуле опроса)
+     */
+    private boolean pullAttributes(Device device) {
+        attributesPulledAt.put(device.getId(), System.currentTimeMillis());
+        return syncService.syncDeviceFromThingsBoard(device);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Состояние и метрики одного вида опроса
+     */
+    private static class PullCycle {
+        private final String name;
+        private final AtomicBoolean running = new AtomicBoolean(false);
+        private final AtomicLong lastDurationMs = new AtomicLong();
+        private final Timer timer;
+
+        private PullCycle(String kind, String name, MeterRegistry meterRegistry) {
+            this.name = name;
+            this.timer = Timer.builder("smarthome.thingsboard.pull.cycle")
+                    .description("Общая длительность цикла получения данных из ThingsBoard")
+                    .tag("kind", kind)
+                    .register(meterRegistry);
+            Gauge.builder("smarthome.thingsboard.pull.last.cycle.duration", lastDurationMs, AtomicLong::get)
+                    .description("Длительность последнего цикла получения данных из ThingsBoard, мс")
+                    .tag("kind", kind)
+                    .baseUnit("milliseconds")
+                    .register(meterRegistry);
+        }
+    }
+}
@@ -4,11 +4,12 @@ import com.example.Smarthome.model.Device;
 import com.example.Smarthome.model.ConnectionProtocol;
 import com.example.Smarthome.model.DeviceStatus;
 import com.example.Smarthome.repository.DeviceRepository;
+import com.example.Smarthome.timeseries.TimeSeriesStore;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.*;
-import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestTemplate;
@@ -31,89 +32,27 @@ public class ThingsBoardSyncService {
     private final DeviceRepository deviceRepository;
     private final ThingsBoardIntegrationService thingsBoardService;
     private final DeviceService deviceService;
+    private final TimeSeriesStore timeSeriesStore;
+    private final DeviceStateStore deviceStateStore;
+    @Qualifier("thingsBoardRestTemplate")
     private final RestTemplate restTemplate;
     
     @Value("${thingsboard.url}")
     private String thingsBoardUrl;
     
     /**
-     * Периодически синхронизирует данные устройств из ThingsBoard
-     * Выполняется каждый час
+     * Ключи телеметрии, которые запрашиваются из ThingsBoard
      */
-    @Scheduled(fixedRateString = "${thingsboard.pull.interval:3600000}")
-    public void syncFromThingsBoard() {
-        log.info("Запуск синхронизации устройств из ThingsBoard");
-        
-        // Получаем все устройства с токенами ThingsBoard
-        List<Device> devices = deviceRepository.findAllByThingsboardTokenIsNotNull();
-        
-        if (devices.isEmpty()) {
-            log.debug("Нет устройств с токенами ThingsBoard для синхронизации");
-            return;
-        }
-        
-        log.info("Синхронизация {} устройств из ThingsBoard", devices.size());
-        
-        int updatedCount = 0;
-        for (Device device : devices) {
-            try {
-                boolean updated = syncDeviceFromThingsBoard(device);
-                if (updated) {
-                    updatedCount++;
-                }
-            } catch (Exception e) {
-                log.error("Ошибка при синхронизации устройства {} из ThingsBoard: {}", 
-                        device.getName(), e.getMessage(), e);
-            }
-        }
-        
-        log.info("Синхронизация из ThingsBoard завершена. Обновлено: {}/{}", updatedCount, devices.size());
-    }
+    static final String[] TELEMETRY_KEYS = {"power", "state", "brightness", "color", "temperature", "humidity", "locked"};
     
     /**
-     * Синхронизирует все данные устройств из ThingsBoard
-     * Включая атрибуты и телеметрию
-     * Выполняется каждые 5 минут
+     * Результат получения телеметрии устройства
+     * @param success запрос выполнен успешно
+     * @param updated свойства устройства изменились
+     * @param nextSinceTs начало интервала для следующего запроса или null, если данных ещё нет
      */
-    @Scheduled(fixedRateString = "${thingsboard.sync.telemetry.interval:300000}")
-    public void syncTelemetryFromThingsBoard() {
-        log.info("Запуск синхронизации телеметрии устройств из ThingsBoard");
-        
-        // Получаем все устройства с токенами ThingsBoard
-        List<Device> devices = deviceRepository.findAllByThingsboardTokenIsNotNull();
-        
-        if (devices.isEmpty()) {
-            log.debug("Нет устройств с токенами ThingsBoard для синхронизации телеметрии");
-            return;
-        }
-        
-        log.info("Синхронизация телеметрии {} устройств из ThingsBoard", devices.size());
-        
-        int updatedCount = 0;
-        int blockedCount = 0;
-        
-        for (Device device : devices) {
-            try {
-                // Проверяем блокировку синхронизации
-                if (device.getId() != null && deviceService.shouldBlockSync(device.getId())) {
-                    log.debug("Устройство {} ({}) заблокировано для синхронизации", device.getName(), device.getId());
-                    blockedCount++;
-                    continue;
-                }
-                
-                boolean updated = syncDeviceTelemetryFromThingsBoard(device);
-                if (updated) {
-                    updatedCount++;
-                    log.debug("Успешно обновлена телеметрия устройства {} из ThingsBoard", device.getName());
-                }
-            } catch (Exception e) {
-                log.error("Ошибка при синхронизации телеметрии устройства {} из ThingsBoard: {}", 
-                        device.getName(), e.getMessage(), e);
-            }
-        }
-        
-        log.info("Синхронизация телеметрии из ThingsBoard завершена. Обновлено: {}/{}, Заблокировано: {}", 
-               updatedCount, devices.size(), blockedCount);
+    public record TelemetryPullResult(boolean success, boolean updated, Long nextSinceTs) {
+        static final TelemetryPullResult FAILED = new TelemetryPullResult(false, false, null);
     }
     
     /**
@@ -121,7 +60,7 @@ public class ThingsBoardSyncService {
      * @param device Устройство для синхронизации
      * @return true если устройство было обновлено
      */
-    private boolean syncDeviceFromThingsBoard(Device device) {
+    public boolean syncDeviceFromThingsBoard(Device device) {
         if (device.getThingsboardToken() == null || device.getThingsboardToken().isEmpty()) {
             log.debug("Устройство {} не имеет токена ThingsBoard, пропускаем синхронизацию", device.getName());
             return false;
@@ -332,9 +271,20 @@ public class ThingsBoardSyncService {
                         key, device.getName());
             }
             
-            // Если есть изменения, сохраняем устройство
+            // Если есть изменения, сохраняем устройство. Синхронизация атрибутов отвечает только
+            // за ключи attr_*, остальные свойства берутся из текущего состояния в памяти,
+            // чтобы сохранение не вернуло значения, изменённые командами или MQTT после чтения устройства
             if (updated) {
-                deviceRepository.save(device);
+                deviceStateStore.getProperties(device.getId()).forEach((key, value) -> {
+                    if (!key.startsWith("attr_")) {
+                        device.getProperties().put(key, value);
+                    }
+                });
+                Set<String> changedKeys = new HashSet<>(keysToRemove);
+                device.getProperties().keySet().stream()
+                        .filter(key -> key.startsWith("attr_"))
+                        .forEach(changedKeys::add);
+                deviceService.saveDevice(device, changedKeys);
                 log.info("Устройство {} обновлено на основе данных из ThingsBoard", device.getName());
                 return true;
             }
@@ -348,140 +298,133 @@ public class ThingsBoardSyncService {
     }
     
     /**
-     * Синхронизирует телеметрию одного устройства из ThingsBoard
+     * Получает последние значения телеметрии устройства одним запросом по всем ключам.
+     * Если задан sinceTs, ThingsBoard возвращает только ключи, изменённые с этого момента.
+     * Значение применяется, только если оно записано в ThingsBoard не раньше последнего
+     * локального изменения того же свойства (команды или MQTT).
      * @param device Устройство для синхронизации
-     * @return true если устройство было обновлено
+     * @param sinceTs Начало интервала (мс) или null для получения последних значений всех ключей
+     * @return результат получения с отметкой времени для следующего запроса
      */
-    private boolean syncDeviceTelemetryFromThingsBoard(Device device) {
+    public TelemetryPullResult pullDeviceTelemetry(Device device, Long sinceTs) {
         if (device.getThingsboardToken() == null || device.getThingsboardToken().isEmpty()) {
             log.debug("Устройство {} не имеет токена ThingsBoard, пропускаем синхронизацию телеметрии", device.getName());
-            return false;
-        }
-        
-        // Проверяем, не заблокирована ли синхронизация для устройства
-        if (device.getId() != null && deviceService.shouldBlockSync(device.getId())) {
-            log.debug("Синхронизация для устройства {} временно заблокирована, пропускаем обновление телеметрии", device.getName());
-            return false;
+            return TelemetryPullResult.FAILED;
         }
         
-        try {
-            boolean updated = false;
-            
-            // Создаем ключи для свойств, которые мы хотим проверить
-            String[] keysToTest = {"power", "state", "brightness", "color", "temperature", "humidity", "locked"};
-            
-            for (String key : keysToTest) {
-                updated = testAndUpdateTelemetryPost(device, key, updated) || updated;
-            }
-            
-            // Если что-то обновилось, сохраняем устройство
-            if (updated) {
-                // Обновляем время последнего обновления
-                device.getProperties().put("tb_last_updated", LocalDateTime.now().toString());
-                deviceRepository.save(device);
-                
-                log.info("Телеметрия устройства {} обновлена из ThingsBoard", device.getName());
-            } else {
-                log.debug("Телеметрия устройства {} не изменилась", device.getName());
-            }
-            
-            return updated;
-        } catch (Exception e) {
-            log.error("Ошибка при синхронизации телеметрии устройства {} из ThingsBoard: {}", 
-                    device.getName(), e.getMessage(), e);
-            return false;
-        }
-    }
-    
-    /**
-     * Пробует получить и обновить конкретный ключ телеметрии для устройства
-     * @param device Устройство
-     * @param key Ключ телеметрии
-     * @param currentlyUpdated Текущий статус обновления
-     * @return true если произошло обновление
-     */
-    private boolean testAndUpdateTelemetryPost(Device device, String key, boolean currentlyUpdated) {
         try {
             // Для получения телеметрии используем API v2, который требует аутентификации
             if (!thingsBoardService.ensureAuthenticated()) {
                 log.error("Не удалось аутентифицироваться в ThingsBoard для получения телеметрии");
-                return false;
+                return TelemetryPullResult.FAILED;
             }
             
-            // Получаем deviceId от ThingsBoard
-            String deviceId;
-            
-            // Если у устройства уже сохранен ThingsBoard ID
-            if (device.getThingsboardDeviceId() != null && !device.getThingsboardDeviceId().isEmpty()) {
-                deviceId = device.getThingsboardDeviceId();
-            } else {
-                // Если нет, получаем ID устройства по токену
-                deviceId = thingsBoardService.getDeviceIdByToken(device.getThingsboardToken());
-                if (deviceId == null) {
-                    log.error("Не удалось получить ID устройства по токену: {}", device.getThingsboardToken());
-                    return false;
-                }
-                // Сохраняем ID для будущих запросов
-                device.setThingsboardDeviceId(deviceId);
-                deviceRepository.save(device);
+            String deviceId = resolveThingsBoardDeviceId(device);
+            if (deviceId == null) {
+                return TelemetryPullResult.FAILED;
             }
             
-            // Используем API v2 для получения последних значений телеметрии по конкретному ключу
-            String specificUrl = thingsBoardUrl + "/api/plugins/telemetry/DEVICE/" + deviceId + "/values/timeseries?keys=" + key;
-            log.debug("Пробуем получить телеметрию {} для устройства {} через API v2: {}", key, device.getName(), specificUrl);
+            StringBuilder url = new StringBuilder(thingsBoardUrl)
+                    .append("/api/plugins/telemetry/DEVICE/").append(deviceId)
+                    .append("/values/timeseries?keys=").append(String.join(",", TELEMETRY_KEYS));
+            if (sinceTs != null) {
+                // Последнее значение каждого ключа, записанное после sinceTs
+                url.append("&startTs=").append(sinceTs)
+                        .append("&endTs=").append(System.currentTimeMillis())
+                        .append("&limit=1&orderBy=DESC");
+            }
             
             HttpHeaders headers = new HttpHeaders();
             headers.set("X-Authorization", "Bearer " + thingsBoardService.getAccessToken());
             
-            HttpEntity<Void> entity = new HttpEntity<>(headers);
+            ResponseEntity<Map> response = restTemplate.exchange(
+                    url.toString(),
+                    HttpMethod.GET,
+                    new HttpEntity<>(headers),
+                    Map.class);
             
-            try {
-                ResponseEntity<Map> response = restTemplate.exchange(
-                        specificUrl,
-                        HttpMethod.GET,
-                        entity,
-                        Map.class);
+            if (!response.getStatusCode().is2xxSuccessful()) {
+                log.warn("Не удалось получить телеметрию устройства {} из ThingsBoard. Код: {}", 
+                        device.getName(), response.getStatusCode());
+                return TelemetryPullResult.FAILED;
+            }
+            
+            Map<String, Object> body = response.getBody() != null ? response.getBody() : Map.of();
+            long nextSinceTs = sinceTs != null ? sinceTs : 0;
+            Map<String, String> values = new HashMap<>();
+            Map<String, Long> timestamps = new HashMap<>();
+            
+            for (String key : TELEMETRY_KEYS) {
+                Object value = body.get(key);
+                if (value == null) {
+                    continue;
+                }
+                long valueTs = extractTimestamp(value);
+                nextSinceTs = Math.max(nextSinceTs, valueTs + 1);
                 
-                if (response.getStatusCode().is2xxSuccessful() && 
-                        response.getBody() != null && 
-                        !response.getBody().isEmpty() && 
-                        response.getBody().containsKey(key)) {
-                    
-                    Object value = response.getBody().get(key);
-                    log.debug("Получено значение для ключа {}: {}", key, value);
-                    
-                    String stringValue = extractValueFromTelemetry(value);
-                    if (stringValue != null) {
-                        // Используем префикс tb_ для различения полей телеметрии от других свойств
-                        String propKey = "tb_" + key;
-                        String currentValue = device.getProperties().get(propKey);
-                        if (currentValue == null || !currentValue.equals(stringValue)) {
-                            device.getProperties().put(propKey, stringValue);
-                            log.info("Обновлена конкретная телеметрия {} устройства {}: {} -> {}", 
-                                    key, device.getName(), currentValue, stringValue);
-                            return true;
-                        }
-                    }
-                } else if (response.getStatusCode().is4xxClientError()) {
-                    log.warn("Клиентская ошибка при получении телеметрии {} для устройства {}: код {}", 
-                            key, device.getName(), response.getStatusCode());
-                } else if (response.getStatusCode().is5xxServerError()) {
-                    log.error("Серверная ошибка ThingsBoard при получении телеметрии {} для устройства {}: код {}", 
-                            key, device.getName(), response.getStatusCode());
+                String stringValue = extractValueFromTelemetry(value);
+                if (stringValue == null) {
+                    continue;
+                }
+                if (valueTs > 0) {
+                    // История хранится со временем измерения из ThingsBoard
+                    timeSeriesStore.recordProperties(device.getId(), Map.of(key, stringValue), valueTs);
                 }
-            } catch (RestClientException e) {
-                log.error("Ошибка REST-клиента при получении телеметрии {} для устройства {}: {}", 
-                        key, device.getName(), e.getMessage());
+                
+                // Используем префикс tb_ для различения полей телеметрии от других свойств
+                values.put("tb_" + key, stringValue);
+                timestamps.put("tb_" + key, valueTs);
             }
             
-            return false;
+            // Устаревшие значения (свойство изменено локально позже) отбрасываются по каждому ключу
+            Map<String, String> applied = deviceStateStore.applyRemoteProperties(device.getId(), values, timestamps);
+            boolean updated = !applied.isEmpty();
+            if (updated) {
+                deviceStateStore.updateProperties(device.getId(),
+                        Map.of("tb_last_updated", LocalDateTime.now().toString()));
+                log.info("Телеметрия устройства {} обновлена из ThingsBoard: {}", device.getName(), applied);
+            } else {
+                log.debug("Телеметрия устройства {} не изменилась", device.getName());
+            }
+            
+            return new TelemetryPullResult(true, updated, nextSinceTs > 0 ? nextSinceTs : null);
         } catch (Exception e) {
-            log.warn("Не удалось получить телеметрию {} для устройства {}: {}", 
-                    key, device.getName(), e.getMessage());
-            return false;
+            log.error("Ошибка при синхронизации телеметрии устройства {} из ThingsBoard: {}", 
+                    device.getName(), e.getMessage());
+            return TelemetryPullResult.FAILED;
         }
     }
     
+    /**
+     * Возвращает ID устройства в ThingsBoard, при необходимости получая его по токену
+     */
+    private String resolveThingsBoardDeviceId(Device device) {
+        if (device.getThingsboardDeviceId() != null && !device.getThingsboardDeviceId().isEmpty()) {
+            return device.getThingsboardDeviceId();
+        }
+        
+        String deviceId = thingsBoardService.getDeviceIdByToken(device.getThingsboardToken());
+        if (deviceId == null) {
+            log.error("Не удалось получить ID устройства по токену: {}", device.getThingsboardToken());
+            return null;
+        }
+        // Сохраняем ID для будущих запросов
+        device.setThingsboardDeviceId(deviceId);
+        deviceService.saveDevice(device);
+        return deviceId;
+    }
+    
+    /**
+     * Извлекает время значения из ответа формата [{"ts": timestamp, "value": value}]
+     */
+    private long extractTimestamp(Object telemetryValue) {
+        if (telemetryValue instanceof List<?> values && !values.isEmpty()
+                && values.get(0) instanceof Map<?, ?> first && first.get("ts") instanceof Number ts) {
+            return ts.longValue();
+        }
+        return 0;
+    }
+    
     /**
      * Вспомогательный метод для извлечения значения телеметрии из разных форматов данных
      */
@@ -563,14 +506,6 @@ public class ThingsBoardSyncService {
         }
     }
     
-    /**
-     * Принудительная синхронизация телеметрии всех устройств
-     * Может быть вызвана из контроллера
-     */
-    public void forceSyncTelemetry() {
-        syncTelemetryFromThingsBoard();
-    }
-    
     /**
      * Принудительная синхронизация всех данных устройства
      * @param deviceId ID устройства
@@ -584,7 +519,7 @@ public class ThingsBoardSyncService {
         }
         
         boolean attrUpdated = syncDeviceFromThingsBoard(device);
-        boolean telemetryUpdated = syncDeviceTelemetryFromThingsBoard(device);
+        boolean telemetryUpdated = pullDeviceTelemetry(device, null).updated();
         
         return attrUpdated || telemetryUpdated;
     }
@@ -655,11 +590,11 @@ public class ThingsBoardSyncService {
                 }
                 
                 // Получаем дополнительные атрибуты
-                device = deviceRepository.save(device);
+                device = deviceService.saveDevice(device);
                 
                 // Синхронизируем атрибуты и телеметрию
                 syncDeviceFromThingsBoard(device);
-                syncDeviceTelemetryFromThingsBoard(device);
+                pullDeviceTelemetry(device, null);
                 
                 importedCount++;
                 log.info("Импортировано устройство: {}", name);
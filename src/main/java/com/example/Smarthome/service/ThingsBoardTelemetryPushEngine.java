@@ -0,0 +1,458 @@
+package com.example.Smarthome.service;
+
+import com.example.Smarthome.model.Device;
+import com.example.Smarthome.model.TelemetryRetry;
+import com.example.Smarthome.repository.DeviceRepository;
+import com.example.Smarthome.repository.TelemetryRetryRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Периодическая отправка телеметрии устройств в ThingsBoard.
+ * Устройства отправляются параллельно пулом ограниченного размера с общим
+ * ограничением запросов в секунду. Неудачные отправки попадают в сохраняемую
+ * в базе очередь повторов с экспоненциальной задержкой, и до наступления
+ * времени повтора такие устройства в циклах пропускаются.
+ * В режиме шлюза (thingsboard.uplink.mode=gateway) устройства отправляются
+ * пакетами по thingsboard.gateway.batch-size в одном запросе.
+ * Точечные изменения свойств (DevicePropertyChangedEvent) отправляются сразу
+ * в том же пуле, не дожидаясь цикла и не задерживая изменившего свойство.
+ */
+@Service
+@Slf4j
+public class ThingsBoardTelemetryPushEngine {
+
+    private final DeviceRepository deviceRepository;
+    private final TelemetryRetryRepository retryRepository;
+    private final ThingsBoardIntegrationService thingsBoardService;
+    private final DeviceStateStore deviceStateStore;
+
+    private final ExecutorService executor;
+    private final RequestRateLimiter rateLimiter;
+    private final long retryBaseDelayMs;
+    private final long retryMaxDelayMs;
+    private final int gatewayBatchSize;
+
+    // Цикл отправки и проход по очереди повторов не выполняются одновременно
+    private final AtomicBoolean cycleRunning = new AtomicBoolean(false);
+
+    // Устройства, отправка изменений которых уже поставлена в пул
+    private final Set<UUID> queuedChanges = ConcurrentHashMap.newKeySet();
+
+    private final Counter attemptedCounter;
+    private final Counter succeededCounter;
+    private final Counter failedCounter;
+    private final Counter deferredCounter;
+    private final Timer cycleTimer;
+    private final AtomicInteger lastCycleAttempted = new AtomicInteger();
+    private final AtomicInteger lastCycleSucceeded = new AtomicInteger();
+    private final AtomicInteger lastCycleDeferred = new AtomicInteger();
+    // Размер очереди повторов для метрики: считается при запуске, ведётся при постановке
+    // и снятии с очереди и уточняется в каждом цикле, чтобы не запрашивать COUNT(*) при сборе метрик
+    private final AtomicLong retryQueueSize = new AtomicLong();
+
+    public ThingsBoardTelemetryPushEngine(
+            DeviceRepository deviceRepository,
+            TelemetryRetryRepository retryRepository,
+            ThingsBoardIntegrationService thingsBoardService,
+            DeviceStateStore deviceStateStore,
+            MeterRegistry meterRegistry,
+            @Value("${thingsboard.push.concurrency:8}") int concurrency,
+            @Value("${thingsboard.push.max-rps:20}") double maxRequestsPerSecond,
+            @Value("${thingsboard.push.retry.base-delay:5000}") long retryBaseDelayMs,
+            @Value("${thingsboard.push.retry.max-delay:600000}") long retryMaxDelayMs,
+            @Value("${thingsboard.gateway.batch-size:100}") int gatewayBatchSize) {
+        this.deviceRepository = deviceRepository;
+        this.retryRepository = retryRepository;
+        this.thingsBoardService = thingsBoardService;
+        this.deviceStateStore = deviceStateStore;
+        this.executor = Executors.newFixedThreadPool(Math.max(1, concurrency),
+                new CustomizableThreadFactory("tb-push-"));
+        this.rateLimiter = new RequestRateLimiter(maxRequestsPerSecond);
+        this.retryBaseDelayMs = retryBaseDelayMs;
+        this.retryMaxDelayMs = retryMaxDelayMs;
+        this.gatewayBatchSize = Math.max(1, gatewayBatchSize);
+
+        this.attemptedCounter = pushCounter(meterRegistry, "attempted");
+        this.succeededCounter = pushCounter(meterRegistry, "succeeded");
+        this.failedCounter = pushCounter(meterRegistry, "failed");
+        this.deferredCounter = pushCounter(meterRegistry, "deferred");
+        this.cycleTimer = Timer.builder("smarthome.thingsboard.push.cycle")
+                .description("Общая длительность цикла отправки телеметрии в ThingsBoard")
+                .register(meterRegistry);
+        Gauge.builder("smarthome.thingsboard.push.last.cycle", lastCycleAttempted, AtomicInteger::get)
+                .tag("outcome", "attempted").register(meterRegistry);
+        Gauge.builder("smarthome.thingsboard.push.last.cycle", lastCycleSucceeded, AtomicInteger::get)
+                .tag("outcome", "succeeded").register(meterRegistry);
+        Gauge.builder("smarthome.thingsboard.push.last.cycle", lastCycleDeferred, AtomicInteger::get)
+                .tag("outcome", "deferred").register(meterRegistry);
+        Gauge.builder("smarthome.thingsboard.push.retry.queue", retryQueueSize, AtomicLong::get)
+                .description("Количество устройств в очереди повторной отправки")
+                .register(meterRegistry);
+    }
+
+    private static Counter pushCounter(MeterRegistry meterRegistry, String outcome) {
+        return Counter.builder("smarthome.thingsboard.push.devices")
+                .description("Количество устройств в циклах отправки телеметрии по результату")
+                .tag("outcome", outcome)
+                .register(meterRegistry);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void initRetryQueueSize() {
+        try {
+            retryQueueSize.set(retryRepository.count());
+        } catch (Exception e) {
+            log.warn("Не удалось получить размер очереди повторов отправки: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Цикл отправки телеметрии всех устройств с токенами ThingsBoard.
+     * Поток планировщика только запускает отправку и не ждёт её завершения.
+     */
+    @Scheduled(fixedRateString = "${thingsboard.sync.interval:300000}")
+    public void pushCycle() {
+        List<Device> devices = deviceRepository.findAllByThingsboardTokenIsNotNull();
+        if (devices.isEmpty()) {
+            log.debug("Нет устройств с токенами ThingsBoard для синхронизации");
+            return;
+        }
+        runCycle("цикл отправки", devices);
+    }
+
+    /**
+     * Повторная отправка для устройств, у которых подошло время повтора
+     */
+    @Scheduled(fixedDelayString = "${thingsboard.push.retry.interval:10000}")
+    public void retryDue() {
+        List<TelemetryRetry> due = retryRepository.findByNextAttemptAtBefore(LocalDateTime.now());
+        if (due.isEmpty()) {
+            return;
+        }
+
+        List<UUID> ids = due.stream().map(TelemetryRetry::getDeviceId).collect(Collectors.toList());
+        List<Device> devices = deviceRepository.findAllById(ids);
+
+        // Устройства удалены или потеряли токен - повторять нечего
+        List<UUID> found = devices.stream().map(Device::getId).collect(Collectors.toList());
+        ids.stream().filter(id -> !found.contains(id)).forEach(this::removeRetry);
+
+        if (!devices.isEmpty()) {
+            runCycle("повтор отправки", devices);
+        }
+    }
+
+    /**
+     * Ставит отправку изменённого устройства в пул. Изменения, пришедшие до начала отправки,
+     * объединяются: отправляется актуальное состояние из памяти.
+     */
+    @EventListener
+    public void onPropertyChanged(DevicePropertyChangedEvent event) {
+        UUID deviceId = event.deviceId();
+        if (!queuedChanges.add(deviceId)) {
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                queuedChanges.remove(deviceId);
+                pushChangedDevice(deviceId);
+            });
+        } catch (RejectedExecutionException e) {
+            queuedChanges.remove(deviceId);
+            log.debug("Пул отправки остановлен, изменение устройства {} будет отправлено циклом", deviceId);
+        }
+    }
+
+    /**
+     * Ставит отправку изменений группы устройств в пул, не дожидаясь цикла (сценарии, групповые команды).
+     * В режиме шлюза группа уходит пакетами по thingsboard.gateway.batch-size, иначе - запросом
+     * на каждое устройство. Устройства в паузе повтора отправятся ближайшим циклом.
+     */
+    public void pushNow(List<Device> devices) {
+        List<Device> withToken = devices.stream()
+                .filter(device -> device.getThingsboardToken() != null && !device.getThingsboardToken().isEmpty())
+                .collect(Collectors.toList());
+        if (withToken.isEmpty()) {
+            return;
+        }
+        try {
+            executor.execute(() -> pushGroup(withToken));
+        } catch (RejectedExecutionException e) {
+            log.debug("Пул отправки остановлен, изменения {} устройств будут отправлены циклом", withToken.size());
+        }
+    }
+
+    private void pushGroup(List<Device> devices) {
+        try {
+            LocalDateTime now = LocalDateTime.now();
+            Map<UUID, TelemetryRetry> retries = retryRepository.findAllById(
+                            devices.stream().map(Device::getId).collect(Collectors.toList())).stream()
+                    .collect(Collectors.toMap(TelemetryRetry::getDeviceId, Function.identity()));
+
+            List<Device> eligible = new ArrayList<>();
+            for (Device device : devices) {
+                TelemetryRetry retry = retries.get(device.getId());
+                if (retry != null && retry.getNextAttemptAt().isAfter(now)) {
+                    deferredCounter.increment();
+                } else {
+                    eligible.add(device);
+                }
+            }
+
+            if (thingsBoardService.isGatewayUplinkEnabled()) {
+                for (int i = 0; i < eligible.size(); i += gatewayBatchSize) {
+                    pushBatch(eligible.subList(i, Math.min(i + gatewayBatchSize, eligible.size())), retries);
+                }
+            } else {
+                for (Device device : eligible) {
+                    executor.execute(() -> pushDevice(device, retries.get(device.getId())));
+                }
+            }
+        } catch (RejectedExecutionException e) {
+            log.debug("Пул отправки остановлен, изменения группы устройств будут отправлены циклом");
+        } catch (Exception e) {
+            log.error("Ошибка при отправке изменений группы из {} устройств в ThingsBoard: {}",
+                    devices.size(), e.getMessage());
+        }
+    }
+
+    private void pushChangedDevice(UUID deviceId) {
+        try {
+            Device device = deviceRepository.findById(deviceId).orElse(null);
+            if (device == null || device.getThingsboardToken() == null || device.getThingsboardToken().isEmpty()) {
+                return;
+            }
+            TelemetryRetry retry = retryRepository.findById(deviceId).orElse(null);
+            // Устройство в паузе повтора - изменение уйдёт ближайшим циклом
+            if (retry != null && retry.getNextAttemptAt().isAfter(LocalDateTime.now())) {
+                deferredCounter.increment();
+                return;
+            }
+            pushDevice(device, retry);
+        } catch (Exception e) {
+            log.error("Ошибка при отправке изменения устройства {} в ThingsBoard: {}", deviceId, e.getMessage());
+        }
+    }
+
+    private void runCycle(String cycleName, List<Device> devices) {
+        if (!cycleRunning.compareAndSet(false, true)) {
+            log.warn("Предыдущий цикл отправки в ThingsBoard ещё выполняется, {} пропущен", cycleName);
+            return;
+        }
+
+        long start = System.nanoTime();
+        try {
+            LocalDateTime now = LocalDateTime.now();
+            Map<UUID, TelemetryRetry> retries = retryRepository.findAll().stream()
+                    .collect(Collectors.toMap(TelemetryRetry::getDeviceId, Function.identity()));
+            retryQueueSize.set(retries.size());
+
+            List<Device> eligible = new ArrayList<>();
+            int deferred = 0;
+
+            for (Device device : devices) {
+                TelemetryRetry retry = retries.get(device.getId());
+                if (retry != null && retry.getNextAttemptAt().isAfter(now)) {
+                    deferred++;
+                    continue;
+                }
+                eligible.add(device);
+            }
+
+            // Каждая задача возвращает количество успешно отправленных устройств
+            List<CompletableFuture<Integer>> futures = new ArrayList<>();
+            if (thingsBoardService.isGatewayUplinkEnabled()) {
+                for (int i = 0; i < eligible.size(); i += gatewayBatchSize) {
+                    List<Device> batch = eligible.subList(i, Math.min(i + gatewayBatchSize, eligible.size()));
+                    futures.add(CompletableFuture.supplyAsync(() -> pushBatch(batch, retries), executor));
+                }
+            } else {
+                for (Device device : eligible) {
+                    TelemetryRetry retry = retries.get(device.getId());
+                    futures.add(CompletableFuture.supplyAsync(() -> pushDevice(device, retry) ? 1 : 0, executor));
+                }
+            }
+
+            int attempted = eligible.size();
+            int deferredCount = deferred;
+            deferredCounter.increment(deferredCount);
+
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]))
+                    .whenComplete((ignored, error) -> {
+                        int succeeded = futures.stream().mapToInt(f -> f.getNow(0)).sum();
+                        long elapsed = System.nanoTime() - start;
+                        cycleTimer.record(elapsed, TimeUnit.NANOSECONDS);
+                        lastCycleAttempted.set(attempted);
+                        lastCycleSucceeded.set(succeeded);
+                        lastCycleDeferred.set(deferredCount);
+                        cycleRunning.set(false);
+
+                        log.info("ThingsBoard, {}: отправлено {}/{}, отложено {}, запросов {}, длительность {} мс",
+                                cycleName, succeeded, attempted, deferredCount, futures.size(),
+                                TimeUnit.NANOSECONDS.toMillis(elapsed));
+                    });
+        } catch (RuntimeException e) {
+            cycleRunning.set(false);
+            log.error("Ошибка при запуске цикла отправки в ThingsBoard: {}", e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Отправляет телеметрию группы устройств одним запросом в формате шлюза
+     * (выполняется в пуле отправки)
+     */
+    private int pushBatch(List<Device> batch, Map<UUID, TelemetryRetry> retries) {
+        boolean success = false;
+        String error = null;
+        try {
+            rateLimiter.acquire();
+            attemptedCounter.increment(batch.size());
+            List<Device> current = batch.stream().map(deviceStateStore::overlay).collect(Collectors.toList());
+            success = thingsBoardService.sendGatewayTelemetry(current);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            error = "Отправка прервана";
+        } catch (Exception e) {
+            error = e.getMessage();
+            log.error("Ошибка при пакетной синхронизации {} устройств с ThingsBoard: {}", batch.size(), error);
+        }
+
+        for (Device device : batch) {
+            recordOutcome(device, retries.get(device.getId()), success, error);
+        }
+        return success ? batch.size() : 0;
+    }
+
+    /**
+     * Отправляет телеметрию одного устройства (выполняется в пуле отправки)
+     */
+    private boolean pushDevice(Device device, TelemetryRetry retry) {
+        boolean success = false;
+        String error = null;
+        try {
+            rateLimiter.acquire();
+            attemptedCounter.increment();
+            // Отправляем актуальное состояние из памяти
+            success = thingsBoardService.sendDeviceUpdate(deviceStateStore.overlay(device));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            error = "Отправка прервана";
+        } catch (Exception e) {
+            error = e.getMessage();
+            log.error("Ошибка при синхронизации устройства {} с ThingsBoard: {}", device.getName(), error);
+        }
+
+        recordOutcome(device, retry, success, error);
+        return success;
+    }
+
+    /**
+     * Учитывает результат отправки устройства в метриках и очереди повторов
+     */
+    private void recordOutcome(Device device, TelemetryRetry retry, boolean success, String error) {
+        try {
+            if (success) {
+                succeededCounter.increment();
+                if (retry != null) {
+                    removeRetry(device.getId());
+                }
+            } else {
+                failedCounter.increment();
+                scheduleRetry(device.getId(), retry, error);
+            }
+        } catch (Exception e) {
+            log.error("Ошибка при обновлении очереди повторов для устройства {}: {}", device.getName(), e.getMessage());
+        }
+    }
+
+    /**
+     * Ставит устройство в очередь повторов с экспоненциальной задержкой
+     */
+    private void scheduleRetry(UUID deviceId, TelemetryRetry existing, String error) {
+        TelemetryRetry retry = existing != null ? existing : new TelemetryRetry();
+        retry.setDeviceId(deviceId);
+        retry.setAttempts(retry.getAttempts() + 1);
+        retry.setLastError(error);
+
+        long delay = retryBaseDelayMs << Math.min(retry.getAttempts() - 1, 20);
+        delay = Math.min(delay, retryMaxDelayMs);
+        // Небольшой разброс, чтобы повторы разных устройств не совпадали
+        delay += ThreadLocalRandom.current().nextLong(Math.max(1, delay / 5));
+        retry.setNextAttemptAt(LocalDateTime.now().plusNanos(TimeUnit.MILLISECONDS.toNanos(delay)));
+
+        retryRepository.save(retry);
+        if (existing == null) {
+            retryQueueSize.incrementAndGet();
+        }
+        log.debug("Повторная отправка телеметрии устройства {} через {} мс (попытка {})",
+                deviceId, delay, retry.getAttempts());
+    }
+
+    private void removeRetry(UUID deviceId) {
+        retryRepository.deleteById(deviceId);
+        retryQueueSize.updateAndGet(size -> Math.max(0, size - 1));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Равномерное ограничение числа запросов в секунду для всех потоков отправки
+     */
+    private static class RequestRateLimiter {
+        private final long intervalNanos;
+        private long nextFreeNanos = System.nanoTime();
+
+        private RequestRateLimiter(double permitsPerSecond) {
+            this.intervalNanos = permitsPerSecond > 0 ? (long) (1_000_000_000L / permitsPerSecond) : 0;
+        }
+
+        private void acquire() throws InterruptedException {
+            if (intervalNanos == 0) {
+                return;
+            }
+            long waitNanos;
+            synchronized (this) {
+                long now = System.nanoTime();
+                long slot = Math.max(now, nextFreeNanos);
+                nextFreeNanos = slot + intervalNanos;
+                waitNanos = slot - now;
+            }
+            if (waitNanos > 0) {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            }
+        }
+    }
+}
@@ -0,0 +1,406 @@
+package com.example.Smarthome.service;
+
+import com.example.Smarthome.model.Device;
+import com.example.Smarthome.repository.DeviceRepository;
+import com.example.Smarthome.timeseries.TimeSeriesStore;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.WebSocket;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Подписка на изменения телеметрии и атрибутов устройств через WebSocket ThingsBoard
+ * (/api/ws/plugins/telemetry). Изменения применяются к состоянию устройств сразу
+ * по мере поступления. При обрыве соединение восстанавливается с нарастающей задержкой,
+ * а подписки создаются заново. Устройства без подписки (нет ID в ThingsBoard или соединение
+ * не работает) опрашивает {@link ThingsBoardPullEngine}.
+ */
+@Service
+@Slf4j
+public class ThingsBoardWebSocketSubscriber {
+
+    private static final String[] ATTRIBUTE_SCOPES = {"CLIENT_SCOPE", "SHARED_SCOPE", "SERVER_SCOPE"};
+
+    private final DeviceRepository deviceRepository;
+    private final ThingsBoardIntegrationService thingsBoardService;
+    private final DeviceStateStore deviceStateStore;
+    private final TimeSeriesStore timeSeriesStore;
+    private final ObjectMapper objectMapper;
+
+    @Value("${thingsboard.url}")
+    private String thingsBoardUrl;
+
+    @Value("${thingsboard.ws.enabled:${thingsboard.enabled:true}}")
+    private boolean enabled;
+
+    @Value("${thingsboard.ws.reconnect.base-delay:1000}")
+    private long reconnectBaseDelayMs;
+
+    @Value("${thingsboard.ws.reconnect.max-delay:60000}")
+    private long reconnectMaxDelayMs;
+
+    private final HttpClient httpClient = HttpClient.newBuilder()
+            .connectTimeout(Duration.ofSeconds(5))
+            .build();
+    private final ScheduledExecutorService reconnectExecutor =
+            Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("tb-ws-"));
+
+    private final AtomicInteger cmdIds = new AtomicInteger();
+    // Подписка по cmdId: устройство и префикс свойств
+    private final Map<Integer, Subscription> subscriptions = new ConcurrentHashMap<>();
+    // Подписанные устройства: ID в ThingsBoard по локальному ID
+    private final Map<UUID, String> subscribedDevices = new ConcurrentHashMap<>();
+
+    private volatile WebSocket webSocket;
+    // Слушатель текущего соединения; обратные вызовы прежних соединений игнорируются
+    private volatile Listener currentListener;
+    private volatile boolean connected;
+    private volatile boolean stopped;
+    private int reconnectAttempts;
+    // Повторное подключение уже запланировано: ошибка, закрытие и неудачное подключение
+    // одного соединения планируют его только один раз
+    private final AtomicBoolean reconnectPending = new AtomicBoolean();
+
+    public ThingsBoardWebSocketSubscriber(
+            DeviceRepository deviceRepository,
+            ThingsBoardIntegrationService thingsBoardService,
+            DeviceStateStore deviceStateStore,
+            TimeSeriesStore timeSeriesStore,
+            ObjectMapper objectMapper) {
+        this.deviceRepository = deviceRepository;
+        this.thingsBoardService = thingsBoardService;
+        this.deviceStateStore = deviceStateStore;
+        this.timeSeriesStore = timeSeriesStore;
+        this.objectMapper = objectMapper;
+    }
+
+    /**
+     * Подписка активна и получает изменения
+     */
+    public boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * Изменения устройства приходят через активную подписку
+     */
+    public boolean isSubscribed(UUID deviceId) {
+        return connected && subscribedDevices.containsKey(deviceId);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        if (!enabled) {
+            log.info("Подписка на ThingsBoard через WebSocket отключена");
+            return;
+        }
+        reconnectExecutor.execute(this::connect);
+    }
+
+    private void connect() {
+        if (stopped) {
+            return;
+        }
+        if (!thingsBoardService.ensureAuthenticated()) {
+            log.warn("Не удалось аутентифицироваться в ThingsBoard для подписки WebSocket");
+            scheduleReconnect();
+            return;
+        }
+
+        URI uri = URI.create(thingsBoardUrl.replaceFirst("^http", "ws")
+                + "/api/ws/plugins/telemetry?token=" + thingsBoardService.getAccessToken());
+        Listener listener = new Listener();
+        currentListener = listener;
+        httpClient.newWebSocketBuilder()
+                .connectTimeout(Duration.ofSeconds(10))
+                .buildAsync(uri, listener)
+                .whenComplete((ws, error) -> {
+                    if (listener != currentListener || stopped) {
+                        if (ws != null) {
+                            ws.abort();
+                        }
+                        return;
+                    }
+                    if (error != null) {
+                        log.warn("Не удалось подключиться к WebSocket ThingsBoard: {}", error.getMessage());
+                        // Возможно, истёк срок действия токена - при следующей попытке войдём заново
+                        thingsBoardService.clearAccessToken();
+                        scheduleReconnect();
+                        return;
+                    }
+                    webSocket = ws;
+                    connected = true;
+                    log.info("Подключено к WebSocket ThingsBoard");
+                    synchronized (this) {
+                        reconnectAttempts = 0;
+                        // Подписки действуют только в рамках соединения
+                        subscriptions.clear();
+                        subscribedDevices.clear();
+                    }
+                    resubscribe();
+                });
+    }
+
+    private void scheduleReconnect() {
+        connected = false;
+        if (stopped || !reconnectPending.compareAndSet(false, true)) {
+            return;
+        }
+        long delay;
+        synchronized (this) {
+            delay = Math.min(reconnectBaseDelayMs << Math.min(reconnectAttempts, 16), reconnectMaxDelayMs);
+            reconnectAttempts++;
+        }
+        log.info("Повторное подключение к WebSocket ThingsBoard через {} мс", delay);
+        try {
+            reconnectExecutor.schedule(() -> {
+                reconnectPending.set(false);
+                connect();
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            reconnectPending.set(false);
+        }
+    }
+
+    /**
+     * Приводит подписки в соответствие со списком устройств:
+     * подписывается на новые устройства и отписывается от удалённых
+     */
+    @Scheduled(fixedDelayString = "${thingsboard.ws.resubscribe-interval:60000}")
+    public synchronized void resubscribe() {
+        WebSocket ws = webSocket;
+        if (!connected || ws == null) {
+            return;
+        }
+
+        try {
+            Map<UUID, String> current = new HashMap<>();
+            for (Device device : deviceRepository.findAllByThingsboardTokenIsNotNull()) {
+                if (device.getThingsboardDeviceId() != null && !device.getThingsboardDeviceId().isEmpty()) {
+                    current.put(device.getId(), device.getThingsboardDeviceId());
+                }
+            }
+
+            ObjectNode command = objectMapper.createObjectNode();
+            ArrayNode tsCmds = command.putArray("tsSubCmds");
+            ArrayNode attrCmds = command.putArray("attrSubCmds");
+
+            // Отписка от удалённых устройств и устройств со сменённым ID в ThingsBoard
+            Iterator<Map.Entry<Integer, Subscription>> it = subscriptions.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Integer, Subscription> entry = it.next();
+                Subscription sub = entry.getValue();
+                if (!sub.tbDeviceId().equals(current.get(sub.deviceId()))) {
+                    ObjectNode cmd = subscriptionCommand(entry.getKey(), sub.tbDeviceId(), sub.scope());
+                    cmd.put("unsubscribe", true);
+                    (sub.scope() == null ? tsCmds : attrCmds).add(cmd);
+                    subscribedDevices.remove(sub.deviceId(), sub.tbDeviceId());
+                    it.remove();
+                }
+            }
+
+            for (Map.Entry<UUID, String> device : current.entrySet()) {
+                if (device.getValue().equals(subscribedDevices.get(device.getKey()))) {
+                    continue;
+                }
+                tsCmds.add(subscribe(device.getKey(), device.getValue(), null, "tb_")
+                        .put("keys", String.join(",", ThingsBoardSyncService.TELEMETRY_KEYS)));
+                for (String scope : ATTRIBUTE_SCOPES) {
+                    String prefix = "attr_" + scope.substring(0, scope.indexOf('_')).toLowerCase() + "_";
+                    attrCmds.add(subscribe(device.getKey(), device.getValue(), scope, prefix));
+                }
+                subscribedDevices.put(device.getKey(), device.getValue());
+            }
+
+            if (!tsCmds.isEmpty() || !attrCmds.isEmpty()) {
+                ws.sendText(objectMapper.writeValueAsString(command), true).join();
+                log.debug("Отправлены команды подписки ThingsBoard: телеметрия {}, атрибуты {}",
+                        tsCmds.size(), attrCmds.size());
+            }
+        } catch (Exception e) {
+            log.error("Ошибка при обновлении подписок WebSocket ThingsBoard: {}", e.getMessage(), e);
+        }
+    }
+
+    private ObjectNode subscribe(UUID deviceId, String tbDeviceId, String scope, String prefix) {
+        int cmdId = cmdIds.incrementAndGet();
+        subscriptions.put(cmdId, new Subscription(deviceId, tbDeviceId, scope, prefix));
+        return subscriptionCommand(cmdId, tbDeviceId, scope);
+    }
+
+    private ObjectNode subscriptionCommand(int cmdId, String tbDeviceId, String scope) {
+        ObjectNode cmd = objectMapper.createObjectNode();
+        cmd.put("entityType", "DEVICE");
+        cmd.put("entityId", tbDeviceId);
+        cmd.put("scope", scope != null ? scope : "LATEST_TELEMETRY");
+        cmd.put("cmdId", cmdId);
+        return cmd;
+    }
+
+    /**
+     * Применяет обновление подписки вида {"subscriptionId": 1, "data": {"key": [[ts, "value"]]}}.
+     * Значение свойства, изменённого локально позже ts, не перезаписывается
+     */
+    void handleUpdate(String text) {
+        try {
+            JsonNode message = objectMapper.readTree(text);
+            int errorCode = message.path("errorCode").asInt(0);
+            if (errorCode != 0) {
+                log.warn("Ошибка подписки ThingsBoard {}: {}", message.path("subscriptionId").asInt(),
+                        message.path("errorMsg").asText());
+                dropDevice(message.path("subscriptionId").asInt(-1));
+                return;
+            }
+
+            Subscription sub = subscriptions.get(message.path("subscriptionId").asInt(-1));
+            JsonNode data = message.path("data");
+            if (sub == null || !data.isObject() || data.isEmpty()) {
+                return;
+            }
+
+            Map<String, String> values = new HashMap<>();
+            Map<String, Long> timestamps = new HashMap<>();
+            data.fields().forEachRemaining(field -> {
+                // Значения приходят списком [[ts, value]], первым идёт последнее
+                JsonNode value = field.getValue().path(0).path(1);
+                if (value.isMissingNode() || value.isNull()) {
+                    return;
+                }
+                String propKey = sub.prefix() + field.getKey();
+                long ts = field.getValue().path(0).path(0).asLong(0);
+                values.put(propKey, value.asText());
+                timestamps.put(propKey, ts);
+                if (ts > 0) {
+                    timeSeriesStore.recordProperties(sub.deviceId(), Map.of(propKey, value.asText()), ts);
+                }
+            });
+
+            Map<String, String> applied = deviceStateStore.applyRemoteProperties(sub.deviceId(), values, timestamps);
+            if (!applied.isEmpty()) {
+                log.debug("Применены изменения из ThingsBoard для устройства {}: {}", sub.deviceId(), applied);
+            }
+        } catch (Exception e) {
+            log.error("Ошибка при обработке сообщения WebSocket ThingsBoard: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Сервер отклонил подписку: устройство снимается с подписки целиком, чтобы его опрашивал
+     * {@link ThingsBoardPullEngine}. Остальные подписки устройства отменяются, повторная
+     * попытка будет при следующем {@link #resubscribe()}
+     */
+    private synchronized void dropDevice(int subscriptionId) {
+        Subscription failed = subscriptions.remove(subscriptionId);
+        if (failed == null) {
+            return;
+        }
+        subscribedDevices.remove(failed.deviceId(), failed.tbDeviceId());
+
+        ObjectNode command = objectMapper.createObjectNode();
+        ArrayNode tsCmds = command.putArray("tsSubCmds");
+        ArrayNode attrCmds = command.putArray("attrSubCmds");
+        Iterator<Map.Entry<Integer, Subscription>> it = subscriptions.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer, Subscription> entry = it.next();
+            Subscription sub = entry.getValue();
+            if (sub.deviceId().equals(failed.deviceId()) && sub.tbDeviceId().equals(failed.tbDeviceId())) {
+                ObjectNode cmd = subscriptionCommand(entry.getKey(), sub.tbDeviceId(), sub.scope());
+                cmd.put("unsubscribe", true);
+                (sub.scope() == null ? tsCmds : attrCmds).add(cmd);
+                it.remove();
+            }
+        }
+
+        WebSocket ws = webSocket;
+        if (connected && ws != null && (!tsCmds.isEmpty() || !attrCmds.isEmpty())) {
+            try {
+                ws.sendText(objectMapper.writeValueAsString(command), true);
+            } catch (Exception e) {
+                log.warn("Не удалось отменить подписки устройства {}: {}", failed.deviceId(), e.getMessage());
+            }
+        }
+        log.info("Устройство {} снято с подписки WebSocket и будет опрашиваться", failed.deviceId());
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        stopped = true;
+        connected = false;
+        WebSocket ws = webSocket;
+        if (ws != null) {
+            ws.sendClose(WebSocket.NORMAL_CLOSURE, "shutdown");
+        }
+        reconnectExecutor.shutdownNow();
+    }
+
+    /**
+     * Подписка на телеметрию (scope == null) или атрибуты одной области
+     */
+    private record Subscription(UUID deviceId, String tbDeviceId, String scope, String prefix) {
+    }
+
+    /**
+     * Собирает сообщения из частей и передаёт их на обработку
+     */
+    private class Listener implements WebSocket.Listener {
+        private final List<CharSequence> parts = new ArrayList<>();
+
+        @Override
+        public CompletionStage<?> onText(WebSocket ws, CharSequence data, boolean last) {
+            parts.add(data);
+            if (last) {
+                String text = String.join("", parts);
+                parts.clear();
+                handleUpdate(text);
+            }
+            ws.request(1);
+            return null;
+        }
+
+        @Override
+        public CompletionStage<?> onClose(WebSocket ws, int statusCode, String reason) {
+            if (this != currentListener) {
+                return null;
+            }
+            log.warn("WebSocket ThingsBoard закрыт: {} {}", statusCode, reason);
+            scheduleReconnect();
+            return null;
+        }
+
+        @Override
+        public void onError(WebSocket ws, Throwable error) {
+            if (this != currentListener) {
+                return;
+            }
+            log.warn("Ошибка WebSocket ThingsBoard: {}", error.getMessage());
+            scheduleReconnect();
+        }
+    }
+}
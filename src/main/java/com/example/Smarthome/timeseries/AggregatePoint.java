@@ -0,0 +1,13 @@
+package com.example.Smarthome.timeseries;
+
+/**
+ * Агрегированное значение временного ряда за интервал.
+ * Для исходных точек min, max и avg совпадают, а count равен 1.
+ * @param timestamp начало интервала (или время исходной точки), мс
+ */
+public record AggregatePoint(long timestamp, double min, double max, double avg, long count) {
+
+    static AggregatePoint of(DataPoint point) {
+        return new AggregatePoint(point.timestamp(), point.value(), point.value(), point.value(), 1);
+    }
+}
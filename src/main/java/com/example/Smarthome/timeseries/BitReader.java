@@ -0,0 +1,32 @@
+package com.example.Smarthome.timeseries;
+
+/**
+ * Чтение последовательности битов, записанной {@link BitWriter}
+ */
+final class BitReader {
+
+    private final byte[] data;
+    private int bitPosition;
+
+    BitReader(byte[] data) {
+        this.data = data;
+    }
+
+    boolean readBit() {
+        return readBits(1) != 0;
+    }
+
+    long readBits(int bits) {
+        long result = 0;
+        while (bits > 0) {
+            int available = 8 - (bitPosition & 7);
+            int take = Math.min(available, bits);
+            int current = data[bitPosition >>> 3] & 0xFF;
+            int chunk = (current >>> (available - take)) & ((1 << take) - 1);
+            result = (result << take) | chunk;
+            bitPosition += take;
+            bits -= take;
+        }
+        return result;
+    }
+}
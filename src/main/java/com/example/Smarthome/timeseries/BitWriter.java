@@ -0,0 +1,46 @@
+package com.example.Smarthome.timeseries;
+
+import java.util.Arrays;
+
+/**
+ * Запись последовательности битов (старшие биты первыми) в расширяемый массив байт
+ */
+final class BitWriter {
+
+    private byte[] buffer;
+    private int bitPosition;
+
+    BitWriter(int initialCapacity) {
+        this.buffer = new byte[Math.max(8, initialCapacity)];
+    }
+
+    void writeBit(boolean bit) {
+        writeBits(bit ? 1 : 0, 1);
+    }
+
+    /**
+     * Записывает младшие bits битов значения
+     */
+    void writeBits(long value, int bits) {
+        while (bits > 0) {
+            int byteIndex = bitPosition >>> 3;
+            if (byteIndex >= buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            int free = 8 - (bitPosition & 7);
+            int take = Math.min(free, bits);
+            int chunk = (int) ((value >>> (bits - take)) & ((1 << take) - 1));
+            buffer[byteIndex] |= (byte) (chunk << (free - take));
+            bitPosition += take;
+            bits -= take;
+        }
+    }
+
+    int byteLength() {
+        return (bitPosition + 7) >>> 3;
+    }
+
+    byte[] toByteArray() {
+        return Arrays.copyOf(buffer, byteLength());
+    }
+}
@@ -0,0 +1,69 @@
+package com.example.Smarthome.timeseries;
+
+/**
+ * Распаковка фрагмента, сжатого {@link ChunkEncoder}
+ */
+final class ChunkDecoder {
+
+    @FunctionalInterface
+    interface PointConsumer {
+        void accept(long timestamp, double value);
+    }
+
+    private ChunkDecoder() {
+    }
+
+    static void decode(byte[] data, int count, PointConsumer consumer) {
+        if (count == 0) {
+            return;
+        }
+
+        BitReader in = new BitReader(data);
+        long timestamp = in.readBits(64);
+        long valueBits = in.readBits(64);
+        consumer.accept(timestamp, Double.longBitsToDouble(valueBits));
+
+        long delta = 0;
+        int leading = 0;
+        int trailing = 0;
+
+        for (int i = 1; i < count; i++) {
+            delta = i == 1 ? in.readBits(32) : delta + readDeltaOfDelta(in);
+            timestamp += delta;
+
+            if (in.readBit()) {
+                if (in.readBit()) {
+                    leading = (int) in.readBits(5);
+                    int significant = (int) in.readBits(6);
+                    if (significant == 0) {
+                        significant = 64;
+                    }
+                    trailing = 64 - leading - significant;
+                }
+                valueBits ^= in.readBits(64 - leading - trailing) << trailing;
+            }
+
+            consumer.accept(timestamp, Double.longBitsToDouble(valueBits));
+        }
+    }
+
+    private static long readDeltaOfDelta(BitReader in) {
+        if (!in.readBit()) {
+            return 0;
+        }
+        if (!in.readBit()) {
+            return signExtend(in.readBits(7), 7);
+        }
+        if (!in.readBit()) {
+            return signExtend(in.readBits(9), 9);
+        }
+        if (!in.readBit()) {
+            return signExtend(in.readBits(12), 12);
+        }
+        return signExtend(in.readBits(32), 32);
+    }
+
+    private static long signExtend(long value, int bits) {
+        return (value << (64 - bits)) >> (64 - bits);
+    }
+}
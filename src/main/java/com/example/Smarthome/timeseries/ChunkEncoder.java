@@ -0,0 +1,109 @@
+package com.example.Smarthome.timeseries;
+
+/**
+ * Сжатие фрагмента временного ряда по схеме Gorilla:
+ * время хранится как разность разностей (delta-of-delta),
+ * значения - как XOR с предыдущим значением.
+ * Время внутри фрагмента не убывает, а разность между первой
+ * и последней точкой не превышает Integer.MAX_VALUE мс.
+ */
+final class ChunkEncoder {
+
+    private final BitWriter out = new BitWriter(128);
+
+    private int count;
+    private long firstTimestamp;
+    private long lastTimestamp;
+    private long lastDelta;
+    private long lastValueBits;
+    private int lastLeading = -1;
+    private int lastTrailing;
+
+    void append(long timestamp, double value) {
+        long valueBits = Double.doubleToRawLongBits(value);
+
+        if (count == 0) {
+            firstTimestamp = timestamp;
+            out.writeBits(timestamp, 64);
+            out.writeBits(valueBits, 64);
+        } else {
+            long delta = timestamp - lastTimestamp;
+            if (count == 1) {
+                out.writeBits(delta, 32);
+            } else {
+                writeDeltaOfDelta(delta - lastDelta);
+            }
+            writeValue(valueBits);
+            lastDelta = delta;
+        }
+
+        lastTimestamp = timestamp;
+        lastValueBits = valueBits;
+        count++;
+    }
+
+    private void writeDeltaOfDelta(long dod) {
+        if (dod == 0) {
+            out.writeBit(false);
+        } else if (dod >= -64 && dod <= 63) {
+            out.writeBits(0b10, 2);
+            out.writeBits(dod, 7);
+        } else if (dod >= -256 && dod <= 255) {
+            out.writeBits(0b110, 3);
+            out.writeBits(dod, 9);
+        } else if (dod >= -2048 && dod <= 2047) {
+            out.writeBits(0b1110, 4);
+            out.writeBits(dod, 12);
+        } else {
+            out.writeBits(0b1111, 4);
+            out.writeBits(dod, 32);
+        }
+    }
+
+    private void writeValue(long valueBits) {
+        long xor = valueBits ^ lastValueBits;
+        if (xor == 0) {
+            out.writeBit(false);
+            return;
+        }
+        out.writeBit(true);
+
+        int leading = Math.min(Long.numberOfLeadingZeros(xor), 31);
+        int trailing = Long.numberOfTrailingZeros(xor);
+
+        if (lastLeading >= 0 && leading >= lastLeading && trailing >= lastTrailing) {
+            // Значащие биты помещаются в окно предыдущего значения
+            out.writeBit(false);
+            out.writeBits(xor >>> lastTrailing, 64 - lastLeading - lastTrailing);
+        } else {
+            int significant = 64 - leading - trailing;
+            out.writeBit(true);
+            out.writeBits(leading, 5);
+            // Длина 64 не помещается в 6 бит и записывается как 0
+            out.writeBits(significant == 64 ? 0 : significant, 6);
+            out.writeBits(xor >>> trailing, significant);
+            lastLeading = leading;
+            lastTrailing = trailing;
+        }
+    }
+
+    int count() {
+        return count;
+    }
+
+    long firstTimestamp() {
+        return firstTimestamp;
+    }
+
+    long lastTimestamp() {
+        return lastTimestamp;
+    }
+
+    int byteLength() {
+        return out.byteLength();
+    }
+
+    byte[] toByteArray() {
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,9 @@
+package com.example.Smarthome.timeseries;
+
+/**
+ * Значение временного ряда
+ * @param timestamp время в миллисекундах
+ * @param value значение
+ */
+public record DataPoint(long timestamp, double value) {
+}
@@ -0,0 +1,34 @@
+package com.example.Smarthome.timeseries;
+
+/**
+ * Разрешение истории: исходные точки или агрегаты за интервал
+ */
+public enum Resolution {
+    RAW(0, "raw"),
+    MINUTE(60_000L, "1m"),
+    QUARTER_HOUR(900_000L, "15m"),
+    HOUR(3_600_000L, "1h");
+
+    private final long millis;
+    private final String suffix;
+
+    Resolution(long millis, String suffix) {
+        this.millis = millis;
+        this.suffix = suffix;
+    }
+
+    public long millis() {
+        return millis;
+    }
+
+    public String suffix() {
+        return suffix;
+    }
+
+    /**
+     * Начало интервала агрегации, в который попадает время
+     */
+    long bucketStart(long timestamp) {
+        return Math.floorDiv(timestamp, millis) * millis;
+    }
+}
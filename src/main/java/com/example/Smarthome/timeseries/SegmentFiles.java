@@ -0,0 +1,289 @@
+package com.example.Smarthome.timeseries;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Файлы сегментов, отображённые в память. Сжатые фрагменты дописываются
+ * в конец текущего сегмента, при заполнении создаётся следующий.
+ * Заполненные сегменты, все точки которых старше срока хранения, удаляются целиком:
+ * отображение освобождается сразу, не дожидаясь сборки мусора.
+ * <p>
+ * Формат записи: magic, ID устройства (2 x long), длина ключа (short), ключ (UTF-8),
+ * время первой и последней точки, количество точек, длина данных, данные.
+ * Magic записывается последним, поэтому недописанная при сбое запись не видна при чтении.
+ */
+@Slf4j
+final class SegmentFiles implements AutoCloseable {
+
+    private static final int MAGIC = 0x54534348; // "TSCH"
+    private static final int FIXED_HEADER_SIZE = 4 + 8 + 8 + 2 + 8 + 8 + 4 + 4;
+
+    /**
+     * Расположение фрагмента в сегментах (segment - номер файла сегмента)
+     */
+    record ChunkRef(int segment, int offset, int length, long minTimestamp, long maxTimestamp, int count) {
+    }
+
+    /**
+     * Получатель фрагментов, найденных при открытии сегментов
+     */
+    @FunctionalInterface
+    interface ChunkVisitor {
+        void visit(UUID deviceId, String key, ChunkRef chunk);
+    }
+
+    private final Path directory;
+    private final int segmentSize;
+    // Открытые сегменты по номеру файла; последний - текущий сегмент записи
+    private final ConcurrentSkipListMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+    // Чтение фрагментов не должно пересекаться с освобождением отображения сегмента
+    private final ReadWriteLock unmapLock = new ReentrantReadWriteLock();
+    private int writePosition;
+
+    SegmentFiles(Path directory, int segmentSize) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Открывает существующие сегменты и передаёт найденные фрагменты посетителю
+     */
+    synchronized void open(ChunkVisitor visitor) throws IOException {
+        Files.createDirectories(directory);
+
+        List<Path> files;
+        try (Stream<Path> list = Files.list(directory)) {
+            files = list.filter(p -> p.getFileName().toString().matches("segment-\\d{6}\\.dat"))
+                    .sorted()
+                    .toList();
+        }
+
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            int number = Integer.parseInt(name.substring("segment-".length(), name.length() - ".dat".length()));
+            Segment segment = new Segment(number, file, map(file, Math.max(Files.size(file), segmentSize)));
+            segments.put(number, segment);
+            writePosition = scan(segment, visitor);
+        }
+
+        if (segments.isEmpty()) {
+            startSegment();
+        }
+    }
+
+    private int scan(Segment segment, ChunkVisitor visitor) {
+        MappedByteBuffer buffer = segment.buffer;
+        int offset = 0;
+        while (offset + FIXED_HEADER_SIZE <= buffer.capacity() && buffer.getInt(offset) == MAGIC) {
+            UUID deviceId = new UUID(buffer.getLong(offset + 4), buffer.getLong(offset + 12));
+            int keyLength = buffer.getShort(offset + 20);
+            if (keyLength < 0 || offset + FIXED_HEADER_SIZE + keyLength > buffer.capacity()) {
+                log.warn("Повреждённая запись в сегменте {} по смещению {}, чтение остановлено", segment, offset);
+                break;
+            }
+            byte[] key = new byte[keyLength];
+            buffer.get(offset + 22, key);
+            int position = offset + 22 + keyLength;
+            long minTimestamp = buffer.getLong(position);
+            long maxTimestamp = buffer.getLong(position + 8);
+            int count = buffer.getInt(position + 16);
+            int length = buffer.getInt(position + 20);
+            int payloadOffset = position + 24;
+            if (payloadOffset + length > buffer.capacity()) {
+                log.warn("Повреждённая запись в сегменте {} по смещению {}, чтение остановлено", segment, offset);
+                break;
+            }
+
+            segment.maxTimestamp = Math.max(segment.maxTimestamp, maxTimestamp);
+            visitor.visit(deviceId, new String(key, StandardCharsets.UTF_8),
+                    new ChunkRef(segment.number, payloadOffset, length, minTimestamp, maxTimestamp, count));
+            offset = payloadOffset + length;
+        }
+        return offset;
+    }
+
+    /**
+     * Дописывает сжатый фрагмент в текущий сегмент
+     */
+    synchronized ChunkRef append(UUID deviceId, String key, long minTimestamp, long maxTimestamp,
+                                 int count, byte[] payload) throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int recordSize = FIXED_HEADER_SIZE + keyBytes.length + payload.length;
+        if (recordSize > segmentSize) {
+            throw new IOException("Фрагмент больше размера сегмента: " + recordSize);
+        }
+        if (writePosition + recordSize > segments.lastEntry().getValue().buffer.capacity()) {
+            startSegment();
+        }
+
+        Segment segment = segments.lastEntry().getValue();
+        MappedByteBuffer buffer = segment.buffer;
+        int offset = writePosition;
+
+        buffer.putLong(offset + 4, deviceId.getMostSignificantBits());
+        buffer.putLong(offset + 12, deviceId.getLeastSignificantBits());
+        buffer.putShort(offset + 20, (short) keyBytes.length);
+        buffer.put(offset + 22, keyBytes);
+        int position = offset + 22 + keyBytes.length;
+        buffer.putLong(position, minTimestamp);
+        buffer.putLong(position + 8, maxTimestamp);
+        buffer.putInt(position + 16, count);
+        buffer.putInt(position + 20, payload.length);
+        buffer.put(position + 24, payload);
+        buffer.putInt(offset, MAGIC);
+
+        writePosition = position + 24 + payload.length;
+        segment.maxTimestamp = Math.max(segment.maxTimestamp, maxTimestamp);
+        segment.dirty = true;
+        return new ChunkRef(segment.number, position + 24, payload.length, minTimestamp, maxTimestamp, count);
+    }
+
+    /**
+     * Читает данные фрагмента
+     * @return данные или null, если сегмент фрагмента уже удалён по сроку хранения
+     */
+    byte[] read(ChunkRef chunk) {
+        unmapLock.readLock().lock();
+        try {
+            Segment segment = segments.get(chunk.segment());
+            if (segment == null) {
+                return null;
+            }
+            byte[] payload = new byte[chunk.length()];
+            segment.buffer.get(chunk.offset(), payload);
+            return payload;
+        } finally {
+            unmapLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Сбрасывает на диск сегменты, в которые писали после предыдущего сброса
+     */
+    synchronized void force() {
+        for (Segment segment : segments.values()) {
+            if (segment.dirty) {
+                segment.dirty = false;
+                segment.buffer.force();
+            }
+        }
+    }
+
+    /**
+     * Заполненные сегменты (кроме текущего), все фрагменты которых закончились раньше cutoff
+     */
+    synchronized Set<Integer> expiredSegments(long cutoff) {
+        int current = segments.lastKey();
+        return segments.values().stream()
+                .filter(segment -> segment.number != current && segment.maxTimestamp < cutoff)
+                .map(segment -> segment.number)
+                .collect(Collectors.toSet());
+    }
+
+    /**
+     * Освобождает отображение и удаляет файлы сегментов. Вызывающий должен
+     * заранее убрать ссылки на их фрагменты; текущий сегмент записи не удаляется
+     */
+    synchronized void drop(Set<Integer> numbers) {
+        int current = segments.lastKey();
+        for (int number : numbers) {
+            if (number == current) {
+                continue;
+            }
+            Segment segment;
+            unmapLock.writeLock().lock();
+            try {
+                segment = segments.remove(number);
+                if (segment != null) {
+                    unmap(segment.buffer);
+                }
+            } finally {
+                unmapLock.writeLock().unlock();
+            }
+            if (segment == null) {
+                continue;
+            }
+            try {
+                Files.deleteIfExists(segment.file);
+                log.info("Удалён сегмент временных рядов {} (истёк срок хранения)", segment.file);
+            } catch (IOException e) {
+                log.warn("Не удалось удалить сегмент временных рядов {}: {}", segment.file, e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        force();
+    }
+
+    private void startSegment() throws IOException {
+        int number = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+        Path file = directory.resolve(String.format("segment-%06d.dat", number));
+        segments.put(number, new Segment(number, file, map(file, segmentSize)));
+        writePosition = 0;
+        log.debug("Создан сегмент временных рядов {}", file);
+    }
+
+    private static MappedByteBuffer map(Path file, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // Отображение остаётся действительным после закрытия канала
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    /**
+     * Освобождает отображение сразу (sun.misc.Unsafe.invokeCleaner). Если это недоступно,
+     * отображение освободит сборщик мусора, когда на буфер не останется ссылок
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            log.debug("Отображение сегмента будет освобождено сборщиком мусора: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Открытый сегмент. Изменяемые поля меняются под монитором SegmentFiles
+     */
+    private static final class Segment {
+        private final int number;
+        private final Path file;
+        private final MappedByteBuffer buffer;
+        // Время самой поздней точки в сегменте
+        private volatile long maxTimestamp = Long.MIN_VALUE;
+        // В сегмент писали после последнего сброса на диск
+        private volatile boolean dirty;
+
+        private Segment(int number, Path file, MappedByteBuffer buffer) {
+            this.number = number;
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+}
@@ -0,0 +1,430 @@
+package com.example.Smarthome.timeseries;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * Встроенное хранилище истории числовой телеметрии устройств.
+ * Для каждой пары (устройство, ключ) точки накапливаются в сжатом фрагменте в памяти;
+ * заполненный фрагмент дописывается в файлы сегментов, отображённые в память.
+ * Точки не новее последней записанной точки ряда отбрасываются.
+ * <p>
+ * По мере записи точек ведутся агрегаты (min, max, сумма, количество) за 1 минуту,
+ * 15 минут и 1 час. Завершённый интервал записывается в производные ряды
+ * вида "temperature@1m.min" с временем начала интервала, текущий интервал хранится в памяти.
+ * <p>
+ * Текущий фрагмент записывается на диск при заполнении, по истечении timeseries.chunk.max-span
+ * от первой точки или через timeseries.chunk.max-age после создания, а также при остановке.
+ * При аварийном завершении теряются точки не старше max-age плюс timeseries.seal-interval.
+ * <p>
+ * Точки хранятся timeseries.retention мс: заполненные сегменты, все точки которых старше,
+ * удаляются вместе со ссылками рядов на их фрагменты.
+ */
+@Component
+@Slf4j
+public class TimeSeriesStore {
+
+    // Префикс свойств, полученных из ThingsBoard
+    private static final String THINGSBOARD_PREFIX = "tb_";
+    // Разделитель имени производного ряда агрегатов
+    private static final char ROLLUP_SEPARATOR = '@';
+    private static final Resolution[] ROLLUPS = {Resolution.MINUTE, Resolution.QUARTER_HOUR, Resolution.HOUR};
+
+    private final SegmentFiles segmentFiles;
+    private final int chunkMaxPoints;
+    private final long chunkMaxSpanMs;
+    private final long chunkMaxAgeMs;
+    private final long retentionMs;
+    private final Set<String> trackedKeys;
+
+    private final Map<SeriesKey, Series> series = new ConcurrentHashMap<>();
+
+    public TimeSeriesStore(
+            @Value("${timeseries.dir:./data/timeseries}") String directory,
+            @Value("${timeseries.segment-size:16777216}") int segmentSize,
+            @Value("${timeseries.chunk.max-points:120}") int chunkMaxPoints,
+            @Value("${timeseries.chunk.max-span:7200000}") long chunkMaxSpanMs,
+            @Value("${timeseries.chunk.max-age:300000}") long chunkMaxAgeMs,
+            @Value("${timeseries.keys:temperature,humidity}") String trackedKeys,
+            @Value("${timeseries.retention:2592000000}") long retentionMs) {
+        this.segmentFiles = new SegmentFiles(Path.of(directory), segmentSize);
+        this.chunkMaxPoints = Math.max(1, chunkMaxPoints);
+        // Разность времени внутри фрагмента должна помещаться в 32 бита
+        this.chunkMaxSpanMs = Math.min(Math.max(1, chunkMaxSpanMs), Integer.MAX_VALUE);
+        this.chunkMaxAgeMs = Math.max(1, chunkMaxAgeMs);
+        this.retentionMs = retentionMs;
+        this.trackedKeys = Arrays.stream(trackedKeys.split(","))
+                .map(String::trim)
+                .filter(k -> !k.isEmpty())
+                .collect(Collectors.toUnmodifiableSet());
+    }
+
+    @PostConstruct
+    public void open() throws IOException {
+        segmentFiles.open((deviceId, key, chunk) -> {
+            Series s = series.computeIfAbsent(new SeriesKey(deviceId, key), this::newSeries);
+            s.sealed.add(chunk);
+            s.lastTimestamp = Math.max(s.lastTimestamp, chunk.maxTimestamp());
+        });
+
+        // Восстанавливаем незавершённые интервалы агрегации и досчитываем недостающие агрегаты
+        for (Map.Entry<SeriesKey, Series> entry : List.copyOf(series.entrySet())) {
+            if (entry.getValue().buckets != null) {
+                rebuildRollups(entry.getKey(), entry.getValue());
+            }
+        }
+        log.info("Открыто хранилище временных рядов: {} рядов", series.size());
+    }
+
+    private Series newSeries(SeriesKey key) {
+        return new Series(key.key().indexOf(ROLLUP_SEPARATOR) < 0);
+    }
+
+    private void rebuildRollups(SeriesKey key, Series s) {
+        synchronized (s) {
+            for (int i = 0; i < ROLLUPS.length; i++) {
+                Resolution resolution = ROLLUPS[i];
+                Series counts = series.get(new SeriesKey(key.deviceId(), rollupKey(key.key(), resolution, "count")));
+                long from = counts != null ? counts.lastTimestamp + resolution.millis() : Long.MIN_VALUE;
+                for (DataPoint point : query(key.deviceId(), key.key(), from, Long.MAX_VALUE)) {
+                    addToBucket(key.deviceId(), key.key(), resolution, s.buckets[i], point.timestamp(), point.value());
+                }
+            }
+        }
+    }
+
+    /**
+     * Записывает числовые значения отслеживаемых свойств устройства.
+     * Свойства из ThingsBoard (tb_*) записываются в ряд без префикса.
+     */
+    public void recordProperties(UUID deviceId, Map<String, String> properties, long timestamp) {
+        for (Map.Entry<String, String> entry : properties.entrySet()) {
+            String key = entry.getKey();
+            if (key.startsWith(THINGSBOARD_PREFIX)) {
+                key = key.substring(THINGSBOARD_PREFIX.length());
+            }
+            if (!trackedKeys.contains(key) || entry.getValue() == null) {
+                continue;
+            }
+            try {
+                record(deviceId, key, timestamp, Double.parseDouble(entry.getValue()));
+            } catch (NumberFormatException e) {
+                log.debug("Нечисловое значение {}={} устройства {} не записано в историю",
+                        key, entry.getValue(), deviceId);
+            }
+        }
+    }
+
+    /**
+     * Добавляет точку в ряд
+     * @return false, если точка не новее последней записанной
+     */
+    public boolean record(UUID deviceId, String key, long timestamp, double value) {
+        Series s = series.computeIfAbsent(new SeriesKey(deviceId, key), this::newSeries);
+        synchronized (s) {
+            if (timestamp <= s.lastTimestamp) {
+                return false;
+            }
+            if (s.head != null && (s.head.count() >= chunkMaxPoints
+                    || timestamp - s.head.firstTimestamp() > chunkMaxSpanMs)) {
+                seal(deviceId, key, s);
+            }
+            if (s.head == null) {
+                s.head = new ChunkEncoder();
+                s.headCreatedAt = System.currentTimeMillis();
+            }
+            s.head.append(timestamp, value);
+            s.lastTimestamp = timestamp;
+
+            if (s.buckets != null) {
+                for (int i = 0; i < ROLLUPS.length; i++) {
+                    addToBucket(deviceId, key, ROLLUPS[i], s.buckets[i], timestamp, value);
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Добавляет значение в текущий интервал агрегации. Если значение относится
+     * к следующему интервалу, текущий интервал записывается в производные ряды.
+     */
+    private void addToBucket(UUID deviceId, String key, Resolution resolution, Bucket bucket,
+                             long timestamp, double value) {
+        if (Double.isNaN(value)) {
+            return;
+        }
+        long start = resolution.bucketStart(timestamp);
+        if (bucket.count > 0 && start != bucket.start) {
+            record(deviceId, rollupKey(key, resolution, "min"), bucket.start, bucket.min);
+            record(deviceId, rollupKey(key, resolution, "max"), bucket.start, bucket.max);
+            record(deviceId, rollupKey(key, resolution, "sum"), bucket.start, bucket.sum);
+            record(deviceId, rollupKey(key, resolution, "count"), bucket.start, bucket.count);
+            bucket.count = 0;
+        }
+        if (bucket.count == 0) {
+            bucket.start = start;
+            bucket.min = value;
+            bucket.max = value;
+            bucket.sum = 0;
+        }
+        bucket.min = Math.min(bucket.min, value);
+        bucket.max = Math.max(bucket.max, value);
+        bucket.sum += value;
+        bucket.count++;
+    }
+
+    private static String rollupKey(String key, Resolution resolution, String field) {
+        return key + ROLLUP_SEPARATOR + resolution.suffix() + "." + field;
+    }
+
+    /**
+     * История ряда в интервале [fromTs, toTs] по возрастанию времени с наиболее подробным
+     * разрешением, при котором количество точек не превышает maxPoints.
+     * Если даже часовых интервалов больше maxPoints, используются часовые.
+     */
+    public List<AggregatePoint> queryAggregated(UUID deviceId, String key, long fromTs, long toTs, int maxPoints) {
+        Resolution resolution = chooseResolution(deviceId, key, fromTs, toTs, maxPoints);
+        if (resolution == Resolution.RAW) {
+            return query(deviceId, key, fromTs, toTs).stream().map(AggregatePoint::of).toList();
+        }
+        return queryRollup(deviceId, key, resolution, fromTs, toTs);
+    }
+
+    /**
+     * Выбирает разрешение по оценке количества точек: для исходных точек -
+     * по количеству точек в пересекающихся фрагментах, для агрегатов - по длине интервала
+     */
+    Resolution chooseResolution(UUID deviceId, String key, long fromTs, long toTs, int maxPoints) {
+        Series s = series.get(new SeriesKey(deviceId, key));
+        if (s == null) {
+            return Resolution.RAW;
+        }
+
+        long rawPoints = 0;
+        synchronized (s) {
+            for (SegmentFiles.ChunkRef chunk : s.sealed) {
+                if (chunk.maxTimestamp() >= fromTs && chunk.minTimestamp() <= toTs) {
+                    rawPoints += chunk.count();
+                }
+            }
+            if (s.head != null && s.head.lastTimestamp() >= fromTs && s.head.firstTimestamp() <= toTs) {
+                rawPoints += s.head.count();
+            }
+        }
+        if (rawPoints <= maxPoints) {
+            return Resolution.RAW;
+        }
+
+        for (Resolution resolution : ROLLUPS) {
+            if ((toTs - fromTs) / resolution.millis() + 1 <= maxPoints) {
+                return resolution;
+            }
+        }
+        return ROLLUPS[ROLLUPS.length - 1];
+    }
+
+    private List<AggregatePoint> queryRollup(UUID deviceId, String key, Resolution resolution, long fromTs, long toTs) {
+        long from = resolution.bucketStart(fromTs);
+        List<DataPoint> mins = query(deviceId, rollupKey(key, resolution, "min"), from, toTs);
+        Map<Long, Double> maxs = toMap(query(deviceId, rollupKey(key, resolution, "max"), from, toTs));
+        Map<Long, Double> sums = toMap(query(deviceId, rollupKey(key, resolution, "sum"), from, toTs));
+        Map<Long, Double> counts = toMap(query(deviceId, rollupKey(key, resolution, "count"), from, toTs));
+
+        List<AggregatePoint> points = new ArrayList<>(mins.size() + 1);
+        for (DataPoint min : mins) {
+            Double max = maxs.get(min.timestamp());
+            Double sum = sums.get(min.timestamp());
+            Double count = counts.get(min.timestamp());
+            if (max != null && sum != null && count != null && count > 0) {
+                points.add(new AggregatePoint(min.timestamp(), min.value(), max, sum / count, count.longValue()));
+            }
+        }
+
+        // Текущий незавершённый интервал
+        Series s = series.get(new SeriesKey(deviceId, key));
+        if (s != null && s.buckets != null) {
+            synchronized (s) {
+                Bucket bucket = s.buckets[Arrays.asList(ROLLUPS).indexOf(resolution)];
+                if (bucket.count > 0 && bucket.start >= from && bucket.start <= toTs) {
+                    points.add(new AggregatePoint(bucket.start, bucket.min, bucket.max,
+                            bucket.sum / bucket.count, bucket.count));
+                }
+            }
+        }
+        return points;
+    }
+
+    private static Map<Long, Double> toMap(List<DataPoint> points) {
+        Map<Long, Double> map = new HashMap<>(points.size() * 2);
+        for (DataPoint point : points) {
+            map.put(point.timestamp(), point.value());
+        }
+        return map;
+    }
+
+    /**
+     * Точки ряда в интервале [fromTs, toTs] по возрастанию времени
+     */
+    public List<DataPoint> query(UUID deviceId, String key, long fromTs, long toTs) {
+        Series s = series.get(new SeriesKey(deviceId, key));
+        if (s == null) {
+            return List.of();
+        }
+
+        List<SegmentFiles.ChunkRef> chunks;
+        byte[] headData = null;
+        int headCount = 0;
+        synchronized (s) {
+            chunks = new ArrayList<>(s.sealed);
+            if (s.head != null && s.head.lastTimestamp() >= fromTs && s.head.firstTimestamp() <= toTs) {
+                headData = s.head.toByteArray();
+                headCount = s.head.count();
+            }
+        }
+
+        List<DataPoint> points = new ArrayList<>();
+        ChunkDecoder.PointConsumer collector = (ts, value) -> {
+            if (ts >= fromTs && ts <= toTs) {
+                points.add(new DataPoint(ts, value));
+            }
+        };
+        for (SegmentFiles.ChunkRef chunk : chunks) {
+            if (chunk.maxTimestamp() >= fromTs && chunk.minTimestamp() <= toTs) {
+                byte[] data = segmentFiles.read(chunk);
+                // Сегмент мог быть удалён по сроку хранения после копирования списка фрагментов
+                if (data != null) {
+                    ChunkDecoder.decode(data, chunk.count(), collector);
+                }
+            }
+        }
+        if (headData != null) {
+            ChunkDecoder.decode(headData, headCount, collector);
+        }
+        return points;
+    }
+
+    /**
+     * Записывает на диск фрагменты, начатые раньше допустимой длительности фрагмента
+     * или созданные в памяти раньше timeseries.chunk.max-age, чтобы точки не оставались
+     * только в памяти дольше этого срока
+     */
+    @Scheduled(fixedDelayString = "${timeseries.seal-interval:60000}")
+    public void sealExpiredChunks() {
+        sealExpiredChunks(System.currentTimeMillis());
+    }
+
+    void sealExpiredChunks(long now) {
+        long expiredBefore = now - chunkMaxSpanMs;
+        long createdBefore = now - chunkMaxAgeMs;
+        sealWhere(s -> s.head.firstTimestamp() < expiredBefore || s.headCreatedAt <= createdBefore);
+        segmentFiles.force();
+    }
+
+    /**
+     * Удаляет сегменты, все точки которых старше срока хранения
+     */
+    @Scheduled(fixedDelayString = "${timeseries.retention-check-interval:3600000}")
+    public void dropExpiredSegments() {
+        dropExpiredSegments(System.currentTimeMillis());
+    }
+
+    void dropExpiredSegments(long now) {
+        long cutoff = now - retentionMs;
+        Set<Integer> expired = segmentFiles.expiredSegments(cutoff);
+        if (expired.isEmpty()) {
+            return;
+        }
+        // Сначала ряды перестают ссылаться на фрагменты сегментов, затем сегменты освобождаются
+        for (Series s : series.values()) {
+            synchronized (s) {
+                s.sealed.removeIf(chunk -> expired.contains(chunk.segment()));
+            }
+        }
+        segmentFiles.drop(expired);
+        log.info("Удалено сегментов временных рядов по сроку хранения: {}", expired.size());
+    }
+
+    @PreDestroy
+    public void close() {
+        sealWhere(s -> true);
+        segmentFiles.close();
+    }
+
+    private void sealWhere(Predicate<Series> condition) {
+        series.forEach((key, s) -> {
+            synchronized (s) {
+                if (s.head != null && condition.test(s)) {
+                    seal(key.deviceId(), key.key(), s);
+                }
+            }
+        });
+    }
+
+    private void seal(UUID deviceId, String key, Series s) {
+        ChunkEncoder head = s.head;
+        s.head = null;
+        try {
+            s.sealed.add(segmentFiles.append(deviceId, key, head.firstTimestamp(), head.lastTimestamp(),
+                    head.count(), head.toByteArray()));
+        } catch (IOException e) {
+            log.error("Ошибка записи фрагмента ряда {}/{}, потеряно точек: {}: {}",
+                    deviceId, key, head.count(), e.getMessage());
+        }
+    }
+
+    private record SeriesKey(UUID deviceId, String key) {
+    }
+
+    /**
+     * Ряд: записанные фрагменты, текущий фрагмент в памяти
+     * и текущие интервалы агрегации (только для исходных рядов)
+     */
+    private static class Series {
+        private final List<SegmentFiles.ChunkRef> sealed = new ArrayList<>();
+        private final Bucket[] buckets;
+        private ChunkEncoder head;
+        // Время создания текущего фрагмента в памяти
+        private long headCreatedAt;
+        private long lastTimestamp = Long.MIN_VALUE;
+
+        private Series(boolean withRollups) {
+            if (withRollups) {
+                buckets = new Bucket[ROLLUPS.length];
+                for (int i = 0; i < buckets.length; i++) {
+                    buckets[i] = new Bucket();
+                }
+            } else {
+                buckets = null;
+            }
+        }
+    }
+
+    /**
+     * Незавершённый интервал агрегации
+     */
+    private static class Bucket {
+        private long start;
+        private double min;
+        private double max;
+        private double sum;
+        private long count;
+    }
+}
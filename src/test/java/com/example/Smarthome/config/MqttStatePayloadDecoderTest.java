@@ -0,0 +1,56 @@
+package com.example.Smarthome.config;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MqttStatePayloadDecoderTest {
+
+    private final MqttStatePayloadDecoder decoder = new MqttStatePayloadDecoder(new ObjectMapper());
+
+    @Test
+    @DisplayName("Тест извлечения ID устройства из топика")
+    public void testParseDeviceId() {
+        UUID deviceId = UUID.randomUUID();
+
+        assertEquals(deviceId, MqttStatePayloadDecoder.parseDeviceId("smarthome/state/" + deviceId));
+        assertEquals(deviceId, MqttStatePayloadDecoder.parseDeviceId(
+                "smarthome/state/" + deviceId.toString().toUpperCase()));
+        assertNull(MqttStatePayloadDecoder.parseDeviceId("smarthome/state/not-a-uuid"));
+        assertNull(MqttStatePayloadDecoder.parseDeviceId("smarthome/state/" + deviceId + "/extra"));
+        assertNull(MqttStatePayloadDecoder.parseDeviceId("smarthome/discovery"));
+    }
+
+    @Test
+    @DisplayName("Тест разбора свойств устройства")
+    public void testDecode() throws IOException {
+        // Arrange
+        byte[] payload = "{\"power\":\"on\",\"brightness\":75,\"temperature\":21.5,\"online\":true,\"meta\":{\"a\":1}}"
+                .getBytes(StandardCharsets.UTF_8);
+
+        // Act
+        Map<String, String> properties = decoder.decode(payload);
+
+        // Assert
+        assertEquals(4, properties.size());
+        assertEquals("on", properties.get("power"));
+        assertEquals("75", properties.get("brightness"));
+        assertEquals("21.5", properties.get("temperature"));
+        assertEquals("true", properties.get("online"));
+        assertFalse(properties.containsKey("meta"));
+    }
+
+    @Test
+    @DisplayName("Тест ошибки при разборе не-объекта")
+    public void testDecodeRejectsArray() {
+        assertThrows(IOException.class,
+                () -> decoder.decode("[1,2]".getBytes(StandardCharsets.UTF_8)));
+    }
+}
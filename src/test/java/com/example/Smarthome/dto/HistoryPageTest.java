@@ -0,0 +1,61 @@
+package com.example.Smarthome.dto;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HistoryPageTest {
+
+    private static HistoryCursor cursor(int minute) {
+        return new HistoryCursor(LocalDateTime.of(2024, 1, 1, 0, minute), new UUID(0, minute));
+    }
+
+    @Test
+    @DisplayName("Тест кодирования и разбора курсора")
+    public void testCursorRoundTrip() {
+        // Arrange
+        HistoryCursor cursor = new HistoryCursor(LocalDateTime.of(2024, 5, 6, 7, 8, 9, 123456000), UUID.randomUUID());
+
+        // Act
+        HistoryCursor decoded = HistoryCursor.decode(cursor.encode());
+
+        // Assert
+        assertEquals(cursor, decoded);
+        assertNull(HistoryCursor.decode(null));
+        assertThrows(IllegalArgumentException.class, () -> HistoryCursor.decode("not-a-cursor"));
+    }
+
+    @Test
+    @DisplayName("Тест сборки страницы при чтении к более старым записям")
+    public void testOlderPage() {
+        // Act: выбрано limit + 1 строк, значит есть следующая страница
+        HistoryPage<Integer> page = HistoryPage.of(List.of(9, 8, 7, 6), 3, null, HistoryPageTest::cursor, i -> i);
+        HistoryPage<Integer> last = HistoryPage.of(List.of(2, 1), 3, null, HistoryPageTest::cursor, i -> i);
+
+        // Assert
+        assertEquals(List.of(9, 8, 7), page.items());
+        assertEquals(cursor(7), page.next());
+        assertEquals(cursor(9), page.previous());
+        assertNull(last.next());
+    }
+
+    @Test
+    @DisplayName("Тест сборки страницы при чтении к более новым записям")
+    public void testNewerPage() {
+        // Act: строки по after отсортированы от старых к новым
+        HistoryPage<Integer> page = HistoryPage.of(List.of(4, 5, 6, 7), 3, cursor(3), HistoryPageTest::cursor, i -> i);
+        HistoryPage<Integer> empty = HistoryPage.of(List.<Integer>of(), 3, cursor(3), HistoryPageTest::cursor, i -> i);
+
+        // Assert
+        assertEquals(List.of(6, 5, 4), page.items());
+        assertEquals(cursor(4), page.next());
+        assertEquals(cursor(6), page.previous());
+        assertTrue(empty.items().isEmpty());
+        assertEquals(cursor(3), empty.previous());
+    }
+}
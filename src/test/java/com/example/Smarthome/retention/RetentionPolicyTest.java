@@ -0,0 +1,55 @@
+package com.example.Smarthome.retention;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RetentionPolicyTest {
+
+    @Test
+    @DisplayName("Тест выбора срока хранения по типу датчика и приоритету")
+    public void testSensorRetentionDays() {
+        // Arrange
+        RetentionPolicy policy = new RetentionPolicy(90, "*/critical:365, motion/*:30, motion/critical:60", 180);
+
+        // Act & Assert
+        assertEquals(365, policy.sensorRetentionDays("smoke", "critical"));
+        assertEquals(30, policy.sensorRetentionDays("motion", "low"));
+        assertEquals(60, policy.sensorRetentionDays("Motion", "CRITICAL"));
+        assertEquals(90, policy.sensorRetentionDays("contact", "medium"));
+        assertEquals(90, policy.sensorRetentionDays(null, null));
+        assertEquals(Set.of(30, 60, 90, 365), policy.sensorRetentionClasses());
+        assertEquals(365, policy.maxSensorRetentionDays());
+        assertEquals(180, policy.lockRetentionDays());
+    }
+
+    @Test
+    @DisplayName("Тест отклонения некорректных правил хранения")
+    public void testInvalidRules() {
+        assertThrows(IllegalArgumentException.class, () -> new RetentionPolicy(90, "critical:365", 180));
+        assertThrows(IllegalArgumentException.class, () -> new RetentionPolicy(90, "*/low:0", 180));
+        assertThrows(IllegalArgumentException.class, () -> new RetentionPolicy(0, "", 180));
+    }
+
+    @Test
+    @DisplayName("Тест разбора границ секции PostgreSQL")
+    public void testPartitionBoundParse() {
+        // Act
+        PartitionBound month = PartitionBound.parse("lock_history_p202406",
+                "FOR VALUES FROM ('2024-06-01 00:00:00') TO ('2024-07-01 00:00:00')");
+        PartitionBound legacy = PartitionBound.parse("lock_history_legacy",
+                "FOR VALUES FROM (MINVALUE) TO ('2024-06-01 00:00:00')");
+
+        // Assert
+        assertEquals(LocalDateTime.of(2024, 6, 1, 0, 0), month.from());
+        assertEquals(LocalDateTime.of(2024, 7, 1, 0, 0), month.to());
+        assertEquals(LocalDateTime.MIN, legacy.from());
+        assertTrue(legacy.overlaps(LocalDateTime.of(2024, 5, 1, 0, 0), LocalDateTime.of(2024, 6, 1, 0, 0)));
+        assertFalse(legacy.overlaps(LocalDateTime.of(2024, 6, 1, 0, 0), LocalDateTime.of(2024, 7, 1, 0, 0)));
+        assertNull(PartitionBound.parse("sensor_history_legacy", "DEFAULT"));
+    }
+}
@@ -0,0 +1,163 @@
+package com.example.Smarthome.service;
+
+import com.example.Smarthome.dto.DeviceCommand;
+import com.example.Smarthome.dto.DeviceCommandBatchRequest;
+import com.example.Smarthome.dto.DeviceCommandResult;
+import com.example.Smarthome.model.ConnectionProtocol;
+import com.example.Smarthome.model.Device;
+import com.example.Smarthome.repository.DeviceRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+/**
+ * Параллельная рассылка команд группе устройств с медленным адаптером протокола
+ */
+public class DeviceCommandDispatcherTest {
+
+    private static final int DEVICE_COUNT = 20;
+    private static final long ADAPTER_DELAY_MS = 100;
+
+    private DeviceRepository deviceRepository;
+    private ProtocolAdapterService protocolAdapterService;
+    private DeviceStateStore deviceStateStore;
+    private ThingsBoardTelemetryPushEngine pushEngine;
+    private DeviceCommandDispatcher dispatcher;
+    private List<Device> devices;
+
+    @BeforeEach
+    public void setup() {
+        deviceRepository = mock(DeviceRepository.class);
+        protocolAdapterService = mock(ProtocolAdapterService.class);
+        deviceStateStore = mock(DeviceStateStore.class);
+        pushEngine = mock(ThingsBoardTelemetryPushEngine.class);
+        dispatcher = new DeviceCommandDispatcher(deviceRepository, protocolAdapterService, deviceStateStore,
+                pushEngine, new SimpleMeterRegistry(), DEVICE_COUNT, 5000);
+
+        devices = new ArrayList<>();
+        for (int i = 0; i < DEVICE_COUNT; i++) {
+            Device device = new Device();
+            device.setId(UUID.randomUUID());
+            device.setName("Устройство " + i);
+            device.setProtocol(ConnectionProtocol.MQTT);
+            devices.add(device);
+        }
+        when(deviceRepository.findAllById(anyList())).thenReturn(devices);
+        when(deviceStateStore.getProperties(any())).thenReturn(Map.of());
+        when(protocolAdapterService.sendCommand(any(), anyString(), anyMap())).thenAnswer(invocation -> {
+            Thread.sleep(ADAPTER_DELAY_MS);
+            return true;
+        });
+    }
+
+    @AfterEach
+    public void tearDown() {
+        dispatcher.shutdown();
+    }
+
+    @Test
+    @DisplayName("Тест: команды 20 устройствам выполняются параллельно, состояние пишется одним пакетом")
+    @SuppressWarnings("unchecked")
+    public void testDispatchInParallel() {
+        // Arrange
+        List<DeviceCommand> commands = devices.stream()
+                .map(device -> new DeviceCommand(device.getId(), "setState", Map.of("power", "on")))
+                .toList();
+
+        // Act
+        long start = System.nanoTime();
+        List<DeviceCommandResult> results = dispatcher.dispatch(commands);
+        long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+
+        // Assert
+        assertEquals(DEVICE_COUNT, results.size());
+        assertTrue(results.stream().allMatch(DeviceCommandResult::success));
+        for (int i = 0; i < DEVICE_COUNT; i++) {
+            assertEquals(devices.get(i).getId(), results.get(i).deviceId());
+        }
+        // Последовательно это заняло бы DEVICE_COUNT * ADAPTER_DELAY_MS = 2000 мс
+        assertTrue(elapsedMs < DEVICE_COUNT * ADAPTER_DELAY_MS / 2, "Выполнение заняло " + elapsedMs + " мс");
+
+        ArgumentCaptor<Map<UUID, Map<String, String>>> changes = ArgumentCaptor.forClass(Map.class);
+        verify(deviceStateStore, times(1)).updatePropertiesNow(changes.capture());
+        assertEquals(DEVICE_COUNT, changes.getValue().size());
+        assertEquals(Map.of("tb_power", "on"), changes.getValue().get(devices.get(0).getId()));
+        verify(pushEngine, times(1)).pushNow(anyList());
+    }
+
+    @Test
+    @DisplayName("Тест: неизвестное устройство и ошибка адаптера отражаются в результате по устройству")
+    public void testDispatchPerDeviceResult() {
+        // Arrange
+        Device failing = devices.get(1);
+        when(protocolAdapterService.sendCommand(eq(failing), anyString(), anyMap())).thenReturn(false);
+        UUID unknownId = UUID.randomUUID();
+        List<DeviceCommand> commands = List.of(
+                new DeviceCommand(devices.get(0).getId(), "setState", Map.of("power", "off")),
+                new DeviceCommand(failing.getId(), "setState", Map.of("power", "off")),
+                new DeviceCommand(unknownId, "setState", Map.of("power", "off")));
+
+        // Act
+        List<DeviceCommandResult> results = dispatcher.dispatch(commands);
+
+        // Assert
+        assertTrue(results.get(0).success());
+        assertFalse(results.get(1).success());
+        assertEquals(failing.getName(), results.get(1).deviceName());
+        assertFalse(results.get(2).success());
+        assertEquals(unknownId, results.get(2).deviceId());
+        assertEquals("Устройство не найдено", results.get(2).error());
+    }
+
+    @Test
+    @DisplayName("Тест: групповая команда по комнате строится одним запросом и передаёт результаты по готовности")
+    public void testBatchBySelector() {
+        // Arrange
+        UUID roomId = UUID.randomUUID();
+        DeviceCommandBatchRequest request = new DeviceCommandBatchRequest();
+        request.setRoomId(roomId);
+        request.setCommand("setState");
+        request.setParameters(Map.of("power", "off"));
+        when(deviceRepository.findBySelector(roomId, null, null)).thenReturn(devices.subList(0, 5));
+        List<DeviceCommandResult> streamed = new CopyOnWriteArrayList<>();
+
+        // Act
+        DeviceCommandDispatcher.PreparedBatch batch = dispatcher.prepareBatch(request);
+        List<DeviceCommandResult> results = dispatcher.dispatch(batch.devices(), batch.commands(), 2, streamed::add);
+
+        // Assert
+        verify(deviceRepository, times(1)).findBySelector(roomId, null, null);
+        verify(deviceRepository, never()).findAllById(anyList());
+        assertEquals(5, batch.commands().size());
+        assertEquals(5, results.size());
+        assertEquals(5, streamed.size());
+        assertTrue(streamed.stream().allMatch(DeviceCommandResult::success));
+    }
+
+    @Test
+    @DisplayName("Тест: групповой запрос без команд и селектора отклоняется")
+    public void testBatchWithoutTargets() {
+        // Arrange
+        DeviceCommandBatchRequest request = new DeviceCommandBatchRequest();
+        request.setCommand("setState");
+
+        // Act & Assert
+        assertThrows(IllegalArgumentException.class, () -> dispatcher.prepareBatch(request));
+    }
+}
@@ -0,0 +1,168 @@
+package com.example.Smarthome.service;
+
+import com.example.Smarthome.dto.CommandStatusDto;
+import com.example.Smarthome.model.CommandStatus;
+import com.example.Smarthome.model.ConnectionProtocol;
+import com.example.Smarthome.model.Device;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+/**
+ * Асинхронный конвейер команд: подтверждение, повторы и таймаут
+ */
+public class DeviceCommandPipelineTest {
+
+    private static final long ACK_TIMEOUT_MS = 50;
+    private static final int MAX_ATTEMPTS = 3;
+
+    private ProtocolAdapterService protocolAdapterService;
+    private DeviceStateStore deviceStateStore;
+    private ThingsBoardTelemetryPushEngine pushEngine;
+    private DeviceCommandPipeline pipeline;
+    private Device device;
+
+    @BeforeEach
+    public void setup() {
+        protocolAdapterService = mock(ProtocolAdapterService.class);
+        deviceStateStore = mock(DeviceStateStore.class);
+        pushEngine = mock(ThingsBoardTelemetryPushEngine.class);
+        pipeline = new DeviceCommandPipeline(protocolAdapterService, deviceStateStore, pushEngine,
+                new SimpleMeterRegistry(), 2, ACK_TIMEOUT_MS, MAX_ATTEMPTS, 10, 60000, 100);
+
+        device = new Device();
+        device.setId(UUID.randomUUID());
+        device.setName("Лампа");
+        device.setProtocol(ConnectionProtocol.MQTT);
+        when(protocolAdapterService.supportsAcknowledgement(device)).thenReturn(true);
+        when(protocolAdapterService.sendCommandAsync(eq(device), any(), anyString(), anyMap()))
+                .thenReturn(CompletableFuture.completedFuture(true));
+        when(deviceStateStore.getProperties(any())).thenReturn(Map.of());
+    }
+
+    @AfterEach
+    public void tearDown() {
+        pipeline.shutdown();
+    }
+
+    @Test
+    @DisplayName("Тест: команда принимается сразу и завершается подтверждением с её command_id")
+    public void testAcknowledgeByCommandId() throws Exception {
+        // Arrange
+        CommandStatusDto accepted = pipeline.submit(device, "setState", Map.of("command", "setState", "power", "on"));
+
+        // Act
+        boolean acknowledged = pipeline.acknowledge(device.getId(), accepted.commandId().toString(),
+                Map.of("power", "on"));
+        CommandStatusDto finished = pipeline.awaitCompletion(accepted.commandId()).orElseThrow()
+                .get(1, TimeUnit.SECONDS);
+
+        // Assert
+        assertEquals(CommandStatus.PENDING, accepted.status());
+        assertTrue(acknowledged);
+        assertEquals(CommandStatus.ACKNOWLEDGED, finished.status());
+        assertEquals(CommandStatus.ACKNOWLEDGED, pipeline.getStatus(accepted.commandId()).orElseThrow().status());
+        verify(deviceStateStore).updateProperties(device.getId(), Map.of("tb_power", "on"));
+    }
+
+    @Test
+    @DisplayName("Тест: без подтверждения команда отправляется повторно и завершается по таймауту")
+    public void testRetryUntilTimeout() throws Exception {
+        // Arrange
+        CommandStatusDto accepted = pipeline.submit(device, "setState", Map.of("power", "on"));
+
+        // Act
+        CommandStatusDto finished = pipeline.awaitCompletion(accepted.commandId()).orElseThrow()
+                .get(2, TimeUnit.SECONDS);
+
+        // Assert
+        assertEquals(CommandStatus.TIMED_OUT, finished.status());
+        assertEquals(MAX_ATTEMPTS, finished.attempts());
+        verify(protocolAdapterService, times(MAX_ATTEMPTS))
+                .sendCommandAsync(eq(device), eq(accepted.commandId()), anyString(), anyMap());
+        verify(deviceStateStore, never()).updateProperties(any(), anyMap());
+    }
+
+    @Test
+    @DisplayName("Тест: состояние без command_id подтверждает отправленную команду с совпадающими значениями")
+    public void testAcknowledgeByReportedValues() throws Exception {
+        // Arrange
+        CommandStatusDto accepted = pipeline.submit(device, "setState", Map.of("power", "on", "brightness", "80"));
+        long deadline = System.currentTimeMillis() + 1000;
+        while (pipeline.getStatus(accepted.commandId()).orElseThrow().status() != CommandStatus.SENT
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+
+        // Act
+        boolean partial = pipeline.acknowledge(device.getId(), null, Map.of("power", "on"));
+        boolean full = pipeline.acknowledge(device.getId(), null, Map.of("power", "on", "brightness", "80"));
+
+        // Assert
+        assertFalse(partial);
+        assertTrue(full);
+        assertEquals(CommandStatus.ACKNOWLEDGED, pipeline.getStatus(accepted.commandId()).orElseThrow().status());
+    }
+
+    @Test
+    @DisplayName("Тест: подтверждение с неизвестным или некорректным command_id сопоставляется по значениям")
+    public void testAcknowledgeUnknownCommandIdFallsBackToValues() throws Exception {
+        // Arrange
+        CommandStatusDto accepted = pipeline.submit(device, "setState", Map.of("power", "on"));
+        awaitSent(accepted);
+
+        // Act
+        boolean invalid = pipeline.acknowledge(device.getId(), "not-a-uuid", Map.of("power", "off"));
+        boolean unknown = pipeline.acknowledge(device.getId(), UUID.randomUUID().toString(), Map.of("power", "on"));
+
+        // Assert
+        assertFalse(invalid);
+        assertTrue(unknown);
+        assertEquals(CommandStatus.ACKNOWLEDGED, pipeline.getStatus(accepted.commandId()).orElseThrow().status());
+    }
+
+    @Test
+    @DisplayName("Тест: лимит конвейера считает только незавершённые команды")
+    public void testLimitCountsOnlyActiveCommands() {
+        // Arrange
+        DeviceCommandPipeline limited = new DeviceCommandPipeline(protocolAdapterService, deviceStateStore, pushEngine,
+                new SimpleMeterRegistry(), 1, ACK_TIMEOUT_MS * 100, MAX_ATTEMPTS, 10, 60000, 1);
+        try {
+            CommandStatusDto first = limited.submit(device, "setState", Map.of("power", "on"));
+
+            // Act
+            assertThrows(IllegalStateException.class,
+                    () -> limited.submit(device, "setState", Map.of("power", "off")));
+            limited.acknowledge(device.getId(), first.commandId().toString(), Map.of("power", "on"));
+            CommandStatusDto second = limited.submit(device, "setState", Map.of("power", "off"));
+
+            // Assert
+            assertEquals(CommandStatus.ACKNOWLEDGED, limited.getStatus(first.commandId()).orElseThrow().status());
+            assertEquals(CommandStatus.PENDING, second.status());
+        } finally {
+            limited.shutdown();
+        }
+    }
+
+    private void awaitSent(CommandStatusDto accepted) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 1000;
+        while (pipeline.getStatus(accepted.commandId()).orElseThrow().status() != CommandStatus.SENT
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+    }
+}
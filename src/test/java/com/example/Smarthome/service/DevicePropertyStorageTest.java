@@ -0,0 +1,259 @@
+package com.example.Smarthome.service;
+
+import com.example.Smarthome.model.Device;
+import com.example.Smarthome.model.DevicePropertyStorageMode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ParameterizedPreparedStatementSetter;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.SimpleTransactionStatus;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalLong;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Хранение свойств устройств в режимах COLLECTION и JSONB: запросы записи и миграции
+ */
+public class DevicePropertyStorageTest {
+
+    @Test
+    @DisplayName("Тест: без PostgreSQL режим JSONB заменяется на COLLECTION, свойства пишутся через MERGE INTO")
+    public void testCollectionModeWithoutPostgres() {
+        // Arrange
+        RecordingJdbcTemplate jdbc = new RecordingJdbcTemplate("H2");
+        DevicePropertyStorage storage = newStorage(jdbc, DevicePropertyStorageMode.JSONB);
+        UUID deviceId = UUID.randomUUID();
+
+        // Act
+        storage.init();
+        int written = storage.writeProperties(Map.of(deviceId, Map.of("power", "on", "brightness", "80")), 100);
+
+        // Assert
+        assertEquals(DevicePropertyStorageMode.COLLECTION, storage.getMode());
+        assertTrue(jdbc.statements.isEmpty());
+        assertEquals(2, written);
+        assertEquals(1, jdbc.batches.size());
+        assertTrue(jdbc.batches.get(0).sql().startsWith("MERGE INTO device_properties"));
+        assertTrue(jdbc.batches.get(0).sql().contains("KEY (device_id, property_name)"));
+        assertFalse(jdbc.batches.get(0).sql().contains("ON CONFLICT"));
+        assertEquals(2, jdbc.batches.get(0).rows().size());
+    }
+
+    @Test
+    @DisplayName("Тест: без PostgreSQL точечное изменение свойства выполняется запросами без изменяющего CTE")
+    public void testUpdatePropertyWithoutPostgres() {
+        // Arrange
+        RecordingJdbcTemplate jdbc = new RecordingJdbcTemplate("H2");
+        DevicePropertyStorage storage = newStorage(jdbc, DevicePropertyStorageMode.COLLECTION);
+        storage.init();
+        UUID deviceId = UUID.randomUUID();
+
+        // Act
+        OptionalLong version = storage.updateProperty(deviceId, "power", "on");
+
+        // Assert
+        assertEquals(OptionalLong.of(7), version);
+        assertEquals(2, jdbc.statements.size());
+        assertTrue(jdbc.statements.get(0).startsWith("UPDATE devices SET state_version"));
+        assertTrue(jdbc.statements.get(1).startsWith("MERGE INTO device_properties"));
+        assertArrayEquals(new Object[] { "power", "on", deviceId }, jdbc.arguments.get(1));
+    }
+
+    @Test
+    @DisplayName("Тест: перевод в JSONB собирает таблицы в документы, заполняет пустые колонки и создаёт GIN-индексы")
+    public void testMigrationToJsonb() {
+        // Arrange
+        RecordingJdbcTemplate jdbc = new RecordingJdbcTemplate("PostgreSQL");
+        DevicePropertyStorage storage = newStorage(jdbc, DevicePropertyStorageMode.JSONB);
+
+        // Act
+        storage.init();
+
+        // Assert
+        assertEquals(DevicePropertyStorageMode.JSONB, storage.getMode());
+        assertEquals(List.of(
+                "UPDATE devices d SET properties_json = COALESCE(d.properties_json, '{}'::jsonb) || m.doc " +
+                        "FROM (SELECT device_id, jsonb_object_agg(property_name, property_value) AS doc " +
+                        "FROM device_properties GROUP BY device_id) m WHERE d.id = m.device_id",
+                "DELETE FROM device_properties",
+                "UPDATE devices SET properties_json = '{}'::jsonb WHERE properties_json IS NULL"),
+                jdbc.statements.subList(0, 3));
+        assertEquals(9, jdbc.statements.size());
+        assertTrue(jdbc.statements.contains("DELETE FROM device_capabilities"));
+        assertTrue(jdbc.statements.contains("DELETE FROM device_attributes"));
+        assertEquals(List.of(
+                "CREATE INDEX IF NOT EXISTS idx_devices_properties_json ON devices USING gin (properties_json jsonb_path_ops)",
+                "CREATE INDEX IF NOT EXISTS idx_devices_capabilities_json ON devices USING gin (capabilities_json jsonb_path_ops)",
+                "CREATE INDEX IF NOT EXISTS idx_devices_attributes_json ON devices USING gin (attributes_json jsonb_path_ops)"),
+                jdbc.ddl);
+    }
+
+    @Test
+    @DisplayName("Тест: перевод в COLLECTION раскладывает документы по строкам таблиц и очищает колонки")
+    public void testMigrationToCollection() {
+        // Arrange
+        RecordingJdbcTemplate jdbc = new RecordingJdbcTemplate("PostgreSQL");
+        DevicePropertyStorage storage = newStorage(jdbc, DevicePropertyStorageMode.COLLECTION);
+
+        // Act
+        storage.init();
+
+        // Assert
+        assertEquals(DevicePropertyStorageMode.COLLECTION, storage.getMode());
+        assertEquals(List.of(
+                "INSERT INTO device_properties (device_id, property_name, property_value) " +
+                        "SELECT d.id, e.key, e.value FROM devices d " +
+                        "CROSS JOIN LATERAL jsonb_each_text(d.properties_json) e " +
+                        "WHERE d.properties_json IS NOT NULL " +
+                        "ON CONFLICT (device_id, property_name) DO UPDATE SET property_value = EXCLUDED.property_value",
+                "UPDATE devices SET properties_json = NULL WHERE properties_json IS NOT NULL"),
+                jdbc.statements.subList(0, 2));
+        assertEquals(6, jdbc.statements.size());
+        assertTrue(jdbc.ddl.isEmpty());
+    }
+
+    @Test
+    @DisplayName("Тест: в режиме JSONB одно свойство пишется через jsonb_set, несколько - одним слиянием документа")
+    public void testJsonbWrites() {
+        // Arrange
+        RecordingJdbcTemplate jdbc = new RecordingJdbcTemplate("PostgreSQL");
+        DevicePropertyStorage storage = newStorage(jdbc, DevicePropertyStorageMode.JSONB);
+        storage.init();
+        UUID single = UUID.randomUUID();
+        UUID several = UUID.randomUUID();
+
+        // Act
+        int written = storage.writeProperties(Map.of(
+                single, Map.of("power", "on"),
+                several, Map.of("power", "off", "brightness", "10")), 100);
+
+        // Assert
+        assertEquals(3, written);
+        assertEquals(2, jdbc.batches.size());
+        Batch set = jdbc.batches.get(0);
+        assertTrue(set.sql().contains("jsonb_set"));
+        assertArrayEquals(new Object[] { "power", "on", single }, set.rows().get(0));
+        Batch merge = jdbc.batches.get(1);
+        assertTrue(merge.sql().contains("|| ?::jsonb"));
+        assertEquals(several, merge.rows().get(0)[1]);
+    }
+
+    @Test
+    @DisplayName("Тест: сохранение сущности в режиме JSONB пишет только изменённые и удалённые с загрузки свойства")
+    public void testWriteDocumentChanges() {
+        // Arrange
+        RecordingJdbcTemplate jdbc = new RecordingJdbcTemplate("PostgreSQL");
+        DevicePropertyStorage storage = newStorage(jdbc, DevicePropertyStorageMode.JSONB);
+        storage.init();
+        Device device = new Device();
+        device.setId(UUID.randomUUID());
+        device.getProperties().putAll(Map.of("power", "on", "brightness", "80", "color", "red"));
+        device.usePropertyDocuments();
+        device.markPropertyDocumentSaved();
+        device.getProperties().put("brightness", "20");
+        device.getProperties().remove("color");
+        int statementsBefore = jdbc.statements.size();
+
+        // Act
+        storage.writeDocumentChanges(device, device);
+        storage.writeDocumentChanges(device, device);
+
+        // Assert
+        assertEquals(1, jdbc.batches.size());
+        assertArrayEquals(new Object[] { "brightness", "20", device.getId() }, jdbc.batches.get(0).rows().get(0));
+        assertEquals(statementsBefore + 1, jdbc.statements.size());
+        assertTrue(jdbc.statements.get(statementsBefore).contains("- ?::text[]"));
+        assertArrayEquals(new String[] { "color" }, (String[]) jdbc.arguments.get(0)[0]);
+        assertEquals(device.getId(), jdbc.arguments.get(0)[1]);
+    }
+
+    private DevicePropertyStorage newStorage(JdbcTemplate jdbcTemplate, DevicePropertyStorageMode mode) {
+        return new DevicePropertyStorage(jdbcTemplate, new NoOpTransactionManager(), null, new ObjectMapper(),
+                mode, true);
+    }
+
+    private record Batch(String sql, List<Object[]> rows) {
+    }
+
+    /**
+     * JdbcTemplate без базы: запоминает выполненные запросы и их параметры
+     */
+    private static class RecordingJdbcTemplate extends JdbcTemplate {
+        private final String product;
+        private final List<String> statements = new ArrayList<>();
+        private final List<Object[]> arguments = new ArrayList<>();
+        private final List<String> ddl = new ArrayList<>();
+        private final List<Batch> batches = new ArrayList<>();
+
+        private RecordingJdbcTemplate(String product) {
+            this.product = product;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> T execute(ConnectionCallback<T> action) {
+            return (T) product;
+        }
+
+        @Override
+        public void execute(String sql) {
+            ddl.add(sql);
+        }
+
+        @Override
+        public int update(String sql) {
+            statements.add(sql);
+            return 0;
+        }
+
+        @Override
+        public int update(String sql, Object... args) {
+            statements.add(sql);
+            arguments.add(args);
+            return 1;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> T queryForObject(String sql, Class<T> requiredType, Object... args) {
+            return (T) Long.valueOf(7);
+        }
+
+        @Override
+        public <T> int[][] batchUpdate(String sql, Collection<T> batchArgs, int batchSize,
+                                       ParameterizedPreparedStatementSetter<T> pss) {
+            if (!batchArgs.isEmpty()) {
+                List<Object[]> rows = new ArrayList<>();
+                batchArgs.forEach(row -> rows.add((Object[]) row));
+                batches.add(new Batch(sql, rows));
+            }
+            return new int[0][];
+        }
+    }
+
+    private static class NoOpTransactionManager implements PlatformTransactionManager {
+        @Override
+        public TransactionStatus getTransaction(TransactionDefinition definition) {
+            return new SimpleTransactionStatus();
+        }
+
+        @Override
+        public void commit(TransactionStatus status) {
+        }
+
+        @Override
+        public void rollback(TransactionStatus status) {
+        }
+    }
+}
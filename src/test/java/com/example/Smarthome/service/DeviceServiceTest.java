@@ -1,7 +1,12 @@
 package com.example.Smarthome.service;
 
+import com.example.Smarthome.dto.CommandStatusDto;
+import com.example.Smarthome.dto.DeviceDto;
+import com.example.Smarthome.dto.DeviceSummary;
+import com.example.Smarthome.model.CommandStatus;
 import com.example.Smarthome.model.ConnectionProtocol;
 import com.example.Smarthome.model.Device;
+import com.example.Smarthome.model.DeviceStateSnapshot;
 import com.example.Smarthome.model.DeviceStatus;
 import com.example.Smarthome.repository.DeviceRepository;
 import com.example.Smarthome.repository.RoomRepository;
@@ -12,12 +17,15 @@ import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.test.util.ReflectionTestUtils;
 
 import java.time.LocalDateTime;
 import java.util.*;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.Mockito.*;
 
 @ExtendWith(MockitoExtension.class)
@@ -35,6 +43,18 @@ public class DeviceServiceTest {
     @Mock
     private RoomRepository roomRepository;
 
+    @Mock
+    private DeviceStateStore deviceStateStore;
+
+    @Mock
+    private DevicePropertyStorage propertyStorage;
+
+    @Mock
+    private ApplicationEventPublisher eventPublisher;
+
+    @Mock
+    private DeviceCommandPipeline commandPipeline;
+
     @InjectMocks
     private DeviceService deviceService;
 
@@ -115,36 +135,107 @@ public class DeviceServiceTest {
     @DisplayName("Тест обновления свойства устройства")
     public void testUpdateDeviceProperty() {
         // Arrange
-        when(deviceRepository.findById(deviceId)).thenReturn(Optional.of(testDevice));
-        when(deviceRepository.save(any(Device.class))).thenReturn(testDevice);
+        when(deviceStateStore.updatePropertyNow(deviceId, "brightness", "80")).thenReturn(OptionalLong.of(7));
 
         // Act
         boolean result = deviceService.updateDeviceProperty(deviceId, "brightness", "80");
 
         // Assert
         assertTrue(result);
-        assertEquals("80", testDevice.getProperties().get("brightness"));
-        verify(deviceRepository, times(1)).findById(deviceId);
-        verify(deviceRepository, times(1)).save(testDevice);
+        verify(deviceRepository, never()).findById(deviceId);
+        verify(deviceRepository, never()).save(any(Device.class));
+        verify(thingsBoardService, never()).sendDeviceUpdate(any(Device.class));
+        verify(eventPublisher).publishEvent(new DevicePropertyChangedEvent(deviceId, "brightness", "80", 7));
     }
 
     @Test
-    @DisplayName("Тест отправки команды устройству")
-    public void testSendCommandToDevice() {
+    @DisplayName("Тест обновления свойства неизвестного устройства")
+    public void testUpdateDevicePropertyUnknownDevice() {
         // Arrange
-        when(deviceRepository.findById(deviceId)).thenReturn(Optional.of(testDevice));
-        when(protocolAdapterService.sendCommand(eq(testDevice), eq("setPower"), any())).thenReturn(true);
+        when(deviceStateStore.updatePropertyNow(deviceId, "brightness", "80")).thenReturn(OptionalLong.empty());
 
+        // Act
+        boolean result = deviceService.updateDeviceProperty(deviceId, "brightness", "80");
+
+        // Assert
+        assertFalse(result);
+        verify(eventPublisher, never()).publishEvent(any(Object.class));
+    }
+
+    @Test
+    @DisplayName("Тест отправки команды устройству через конвейер команд")
+    public void testSubmitCommand() {
+        // Arrange
+        ReflectionTestUtils.setField(deviceService, "coalesceWindowMs", 150L);
+        ReflectionTestUtils.setField(deviceService, "coalescedCommands", Set.of("setState"));
+        UUID commandId = UUID.randomUUID();
         Map<String, String> params = new HashMap<>();
         params.put("power", "off");
+        when(commandPipeline.submit(testDevice, "setPower", params))
+                .thenReturn(status(commandId, CommandStatus.PENDING));
 
         // Act
-        boolean result = deviceService.sendCommandToDevice(deviceId, "setPower", params);
+        CommandStatusDto result = deviceService.submitCommand(testDevice, "setPower", params);
 
         // Assert
-        assertTrue(result);
-        verify(deviceRepository, times(1)).findById(deviceId);
-        verify(protocolAdapterService, times(1)).sendCommand(eq(testDevice), eq("setPower"), any());
+        assertEquals(commandId, result.commandId());
+        assertEquals(CommandStatus.PENDING, result.status());
+        verify(commandPipeline, times(1)).submit(testDevice, "setPower", params);
+        verify(protocolAdapterService, never()).sendCommand(any(), any(), any());
+        verify(thingsBoardService, never()).sendDeviceUpdate(any(Device.class));
+    }
+
+    @Test
+    @DisplayName("Тест: серия команд ползунка уходит первой командой сразу и одной отложенной с последним значением")
+    public void testSubmitCommandCoalescesBurst() {
+        // Arrange
+        ReflectionTestUtils.setField(deviceService, "coalesceWindowMs", 10_000L);
+        ReflectionTestUtils.setField(deviceService, "coalescedCommands", Set.of("setState"));
+        UUID pendingId = UUID.randomUUID();
+        when(commandPipeline.submit(eq(testDevice), eq("setState"), any()))
+                .thenReturn(status(UUID.randomUUID(), CommandStatus.SENT));
+        when(commandPipeline.submit(eq(testDevice), eq("setState"), any(), anyLong()))
+                .thenReturn(status(pendingId, CommandStatus.PENDING));
+        when(commandPipeline.supersede(eq(pendingId), any()))
+                .thenReturn(Optional.of(status(pendingId, CommandStatus.PENDING)));
+
+        // Act
+        deviceService.submitCommand(testDevice, "setState", Map.of("brightness", "10"));
+        CommandStatusDto second = deviceService.submitCommand(testDevice, "setState", Map.of("brightness", "20"));
+        CommandStatusDto third = deviceService.submitCommand(testDevice, "setState", Map.of("brightness", "30"));
+        CommandStatusDto fourth = deviceService.submitCommand(testDevice, "setState", Map.of("brightness", "40"));
+
+        // Assert
+        verify(commandPipeline, times(1)).submit(testDevice, "setState", Map.of("brightness", "10"));
+        verify(commandPipeline, times(1)).submit(eq(testDevice), eq("setState"), eq(Map.of("brightness", "20")), anyLong());
+        verify(commandPipeline).supersede(pendingId, Map.of("brightness", "30"));
+        verify(commandPipeline).supersede(pendingId, Map.of("brightness", "40"));
+        assertEquals(pendingId, second.commandId());
+        assertEquals(pendingId, third.commandId());
+        assertEquals(pendingId, fourth.commandId());
+    }
+
+    @Test
+    @DisplayName("Тест: истёкшие окна объединения команд удаляются, следующая команда уходит сразу")
+    public void testExpiredCoalescingWindowsRemoved() throws InterruptedException {
+        // Arrange
+        ReflectionTestUtils.setField(deviceService, "coalesceWindowMs", 1L);
+        ReflectionTestUtils.setField(deviceService, "coalescedCommands", Set.of("setState"));
+        when(commandPipeline.submit(eq(testDevice), eq("setState"), any()))
+                .thenReturn(status(UUID.randomUUID(), CommandStatus.SENT));
+        deviceService.submitCommand(testDevice, "setState", Map.of("brightness", "10"));
+        Thread.sleep(5);
+
+        // Act
+        deviceService.closeExpiredCoalescingWindows();
+        Map<?, ?> windowsAfterCleanup = new HashMap<>(
+                (Map<?, ?>) ReflectionTestUtils.getField(deviceService, "coalescingWindows"));
+        deviceService.submitCommand(testDevice, "setState", Map.of("brightness", "20"));
+
+        // Assert
+        assertTrue(windowsAfterCleanup.isEmpty());
+        verify(commandPipeline, times(2)).submit(eq(testDevice), eq("setState"), any());
+        verify(commandPipeline, never()).submit(any(), any(), any(), anyLong());
     }
 
     @Test
@@ -171,4 +262,47 @@ public class DeviceServiceTest {
         assertEquals(testDevice.getId(), savedDevice.getId());
         verify(deviceRepository, times(1)).save(testDevice);
     }
-} 
\ No newline at end of file
+
+    @Test
+    @DisplayName("Тест построения списка устройств по проекциям без загрузки сущностей")
+    public void testGetDeviceList() {
+        // Arrange
+        UUID otherId = UUID.randomUUID();
+        UUID roomId = UUID.randomUUID();
+        when(deviceRepository.findAllSummaries()).thenReturn(List.of(
+                summary(deviceId, roomId, "Кухня"),
+                summary(otherId, null, null)));
+        when(propertyStorage.findAllCapabilities()).thenReturn(Map.of(deviceId, Map.of("power", "true")));
+        when(propertyStorage.findAllAttributes()).thenReturn(Map.of());
+        when(deviceStateStore.get(deviceId)).thenReturn(Optional.of(new DeviceStateSnapshot(
+                deviceId, 3, DeviceStatus.ONLINE, LocalDateTime.now(), Map.of("power", "on"))));
+        when(deviceStateStore.get(otherId)).thenReturn(Optional.empty());
+        when(propertyStorage.findProperties(List.of(otherId)))
+                .thenReturn(Map.of(otherId, Map.of("brightness", "40")));
+
+        // Act
+        List<DeviceDto> result = deviceService.getDeviceList();
+
+        // Assert
+        assertEquals(2, result.size());
+        assertEquals("ONLINE", result.get(0).getStatus());
+        assertEquals("on", result.get(0).getProperties().get("power"));
+        assertEquals("true", result.get(0).getCapabilities().get("power"));
+        assertEquals("Кухня", result.get(0).getRoomName());
+        assertEquals("OFFLINE", result.get(1).getStatus());
+        assertEquals("40", result.get(1).getProperties().get("brightness"));
+        assertTrue(result.get(1).getCapabilities().isEmpty());
+        verify(deviceRepository, never()).findAll();
+    }
+
+    private CommandStatusDto status(UUID commandId, CommandStatus status) {
+        return new CommandStatusDto(commandId, deviceId, "setState", status, 0, null,
+                LocalDateTime.now(), LocalDateTime.now());
+    }
+
+    private DeviceSummary summary(UUID id, UUID roomId, String roomName) {
+        return new DeviceSummary(id, "Устройство " + id, "light", "lighting", "light",
+                ConnectionProtocol.MQTT, DeviceStatus.OFFLINE, null, null, null, null, null,
+                null, null, roomId, roomName, null, null);
+    }
+}
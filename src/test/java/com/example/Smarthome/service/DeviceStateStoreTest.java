@@ -0,0 +1,145 @@
+package com.example.Smarthome.service;
+
+import com.example.Smarthome.model.Device;
+import com.example.Smarthome.model.DeviceStateSnapshot;
+import com.example.Smarthome.model.DeviceStatus;
+import com.example.Smarthome.repository.DeviceRepository;
+import com.example.Smarthome.timeseries.TimeSeriesStore;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+public class DeviceStateStoreTest {
+
+    @Mock
+    private DeviceRepository deviceRepository;
+
+    @Mock
+    private DeviceStateWriteBehindService writeBehindService;
+
+    @Mock
+    private TimeSeriesStore timeSeriesStore;
+
+    @InjectMocks
+    private DeviceStateStore deviceStateStore;
+
+    @Test
+    @DisplayName("Тест: значение ThingsBoard старше команды не перезаписывает свойство, другие ключи применяются")
+    public void testApplyRemotePropertiesPerKey() {
+        // Arrange
+        UUID deviceId = UUID.randomUUID();
+        long beforeCommand = System.currentTimeMillis() - 1000;
+        deviceStateStore.updateProperties(deviceId, Map.of("tb_power", "on", "tb_brightness", "10"));
+
+        // Act
+        Map<String, String> applied = deviceStateStore.applyRemoteProperties(deviceId,
+                Map.of("tb_power", "off", "tb_temperature", "21"),
+                Map.of("tb_power", beforeCommand, "tb_temperature", beforeCommand));
+
+        // Assert
+        assertEquals(Map.of("tb_temperature", "21"), applied);
+        Map<String, String> properties = deviceStateStore.getProperties(deviceId);
+        assertEquals("on", properties.get("tb_power"));
+        assertEquals("21", properties.get("tb_temperature"));
+        verify(writeBehindService).submit(eq(deviceId), eq(Map.of("tb_temperature", "21")), any());
+    }
+
+    @Test
+    @DisplayName("Тест: значение ThingsBoard новее команды применяется, а следующая команда снова побеждает")
+    public void testApplyRemotePropertiesNewerValue() {
+        // Arrange
+        UUID deviceId = UUID.randomUUID();
+        deviceStateStore.updateProperties(deviceId, Map.of("tb_power", "on"));
+        long afterCommand = System.currentTimeMillis() + 1000;
+
+        // Act
+        Map<String, String> applied = deviceStateStore.applyRemoteProperties(deviceId,
+                Map.of("tb_power", "off"), Map.of("tb_power", afterCommand));
+        deviceStateStore.updateProperties(deviceId, Map.of("tb_power", "on"));
+        Map<String, String> repeated = deviceStateStore.applyRemoteProperties(deviceId,
+                Map.of("tb_power", "off"), Map.of("tb_power", afterCommand));
+
+        // Assert
+        assertEquals(Map.of("tb_power", "off"), applied);
+        assertTrue(repeated.isEmpty());
+        assertEquals("on", deviceStateStore.getProperties(deviceId).get("tb_power"));
+    }
+
+    @Test
+    @DisplayName("Тест: значения ThingsBoard для неизвестного устройства не применяются")
+    public void testApplyRemotePropertiesUnknownDevice() {
+        // Act
+        Map<String, String> applied = deviceStateStore.applyRemoteProperties(UUID.randomUUID(),
+                Map.of("tb_power", "on"), Map.of("tb_power", System.currentTimeMillis()));
+
+        // Assert
+        assertTrue(applied.isEmpty());
+        verify(writeBehindService, never()).submit(any(), anyMap(), any());
+    }
+
+    @Test
+    @DisplayName("Тест: изменения свойств неизвестного устройства после загрузки не создают снимок")
+    public void testUpdatePropertiesUnknownDevice() {
+        // Arrange
+        UUID deviceId = UUID.randomUUID();
+        when(deviceRepository.findAll()).thenReturn(List.of());
+        deviceStateStore.warmUp();
+
+        // Act
+        DeviceStateSnapshot updated = deviceStateStore.updateProperties(deviceId, Map.of("tb_power", "on"));
+        deviceStateStore.updatePropertiesNow(Map.of(deviceId, Map.of("tb_power", "off")));
+
+        // Assert
+        assertNull(updated);
+        assertTrue(deviceStateStore.get(deviceId).isEmpty());
+        verify(writeBehindService, never()).submit(any(), anyMap(), any());
+        verify(writeBehindService, never()).writeNow(anyMap());
+    }
+
+    @Test
+    @DisplayName("Тест: сохранение устаревшей сущности не откатывает более новое значение в памяти")
+    public void testRefreshWithStaleEntity() {
+        // Arrange
+        UUID deviceId = UUID.randomUUID();
+        deviceStateStore.refresh(device(deviceId, Map.of("tb_power", "off", "attr_shared_mode", "eco")));
+        deviceStateStore.updateProperties(deviceId, Map.of("tb_power", "on", "tb_brightness", "80"));
+        // Яркость уже записана в базу, а значение tb_power в сущности устарело
+        Device stale = device(deviceId, Map.of("tb_power", "off", "tb_brightness", "80", "attr_shared_mode", "comfort"));
+
+        // Act
+        deviceStateStore.refresh(stale, Set.of("attr_shared_mode"));
+
+        // Assert
+        Map<String, String> properties = deviceStateStore.getProperties(deviceId);
+        assertEquals("on", properties.get("tb_power"));
+        assertEquals("80", properties.get("tb_brightness"));
+        assertEquals("comfort", properties.get("attr_shared_mode"));
+        verify(writeBehindService).submit(eq(deviceId), eq(Map.of("tb_power", "on")), isNull());
+    }
+
+    private Device device(UUID deviceId, Map<String, String> properties) {
+        Device device = new Device();
+        device.setId(deviceId);
+        device.setName("Лампа");
+        device.setStatus(DeviceStatus.ONLINE);
+        device.setProperties(new HashMap<>(properties));
+        return device;
+    }
+}
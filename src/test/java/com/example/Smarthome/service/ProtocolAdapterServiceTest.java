@@ -0,0 +1,203 @@
+package com.example.Smarthome.service;
+
+import com.example.Smarthome.model.ConnectionProtocol;
+import com.example.Smarthome.model.Device;
+import com.example.Smarthome.protocol.ProtocolAdapter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Реестр адаптеров протоколов: регистрация по объявленным протоколам, изоляция пулов и предохранитель
+ */
+public class ProtocolAdapterServiceTest {
+
+    private ProtocolAdapterService service;
+
+    @AfterEach
+    public void tearDown() {
+        if (service != null) {
+            service.shutdown();
+        }
+    }
+
+    @Test
+    @DisplayName("Тест: адаптер регистрируется по объявленному протоколу, при нескольких выбирается больший приоритет")
+    public void testRegistrationByDeclaredProtocols() {
+        // Arrange
+        TestAdapter zigbee = new TestAdapter(Set.of(ConnectionProtocol.ZIGBEE, ConnectionProtocol.Z_WAVE), 0, true, 0);
+        TestAdapter fallback = new TestAdapter(Set.of(ConnectionProtocol.MQTT), 0, true, -1);
+        TestAdapter mqtt = new TestAdapter(Set.of(ConnectionProtocol.MQTT), 0, true, 0);
+        service = newService(List.of(fallback, zigbee, mqtt), 5);
+
+        // Act
+        boolean zigbeeSent = service.sendCommand(device(ConnectionProtocol.ZIGBEE), "setState", Map.of());
+        boolean zwaveSent = service.sendCommand(device(ConnectionProtocol.Z_WAVE), "setState", Map.of());
+        boolean mqttSent = service.sendCommand(device(ConnectionProtocol.MQTT), "setState", Map.of());
+        boolean loraSent = service.sendCommand(device(ConnectionProtocol.LORA), "setState", Map.of());
+
+        // Assert
+        assertTrue(zigbeeSent);
+        assertTrue(zwaveSent);
+        assertTrue(mqttSent);
+        assertFalse(loraSent);
+        assertEquals(2, zigbee.calls.get());
+        assertEquals(1, mqtt.calls.get());
+        assertEquals(0, fallback.calls.get());
+    }
+
+    @Test
+    @DisplayName("Тест: медленный протокол не задерживает вызовы другого протокола")
+    public void testSlowProtocolIsolated() throws Exception {
+        // Arrange
+        TestAdapter slow = new TestAdapter(Set.of(ConnectionProtocol.ZIGBEE), 500, true, 0);
+        TestAdapter fast = new TestAdapter(Set.of(ConnectionProtocol.MQTT), 0, true, 0);
+        service = newService(List.of(slow, fast), 5);
+        Device zigbeeDevice = device(ConnectionProtocol.ZIGBEE);
+        List<CompletableFuture<Boolean>> slowCalls = List.of(
+                CompletableFuture.supplyAsync(() -> service.sendCommand(zigbeeDevice, "setState", Map.of())),
+                CompletableFuture.supplyAsync(() -> service.sendCommand(zigbeeDevice, "setState", Map.of())));
+        Thread.sleep(50);
+
+        // Act
+        long start = System.nanoTime();
+        boolean sent = service.sendCommand(device(ConnectionProtocol.MQTT), "setState", Map.of());
+        long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+
+        // Assert
+        assertTrue(sent);
+        assertTrue(elapsedMs < 250, "Вызов MQTT занял " + elapsedMs + " мс");
+        for (CompletableFuture<Boolean> call : slowCalls) {
+            assertTrue(call.get());
+        }
+    }
+
+    @Test
+    @DisplayName("Тест: после серии ошибок связи предохранитель протокола отклоняет вызовы без обращения к адаптеру")
+    public void testCircuitBreakerOpens() {
+        // Arrange
+        TestAdapter failing = TestAdapter.unreachable(Set.of(ConnectionProtocol.HTTP));
+        service = newService(List.of(failing), 3);
+        Device device = device(ConnectionProtocol.HTTP);
+
+        // Act
+        for (int i = 0; i < 5; i++) {
+            service.sendCommand(device, "setState", Map.of());
+        }
+        boolean asyncSent = service.sendCommandAsync(device, UUID.randomUUID(), "setState", Map.of()).join();
+
+        // Assert
+        assertEquals(3, failing.calls.get());
+        assertFalse(asyncSent);
+    }
+
+    @Test
+    @DisplayName("Тест: отклонённые адаптером команды не размыкают предохранитель протокола")
+    public void testDeclinedCommandsKeepBreakerClosed() {
+        // Arrange
+        TestAdapter declining = new TestAdapter(Set.of(ConnectionProtocol.HTTP), 0, false, 0);
+        service = newService(List.of(declining), 3);
+        Device device = device(ConnectionProtocol.HTTP);
+
+        // Act
+        int sent = 0;
+        for (int i = 0; i < 5; i++) {
+            sent += service.sendCommand(device, "unknownCommand", Map.of()) ? 1 : 0;
+        }
+
+        // Assert
+        assertEquals(0, sent);
+        assertEquals(5, declining.calls.get());
+    }
+
+    private ProtocolAdapterService newService(List<ProtocolAdapter> adapters, int failureThreshold) {
+        return new ProtocolAdapterService(adapters, new SimpleMeterRegistry(), 10, 5000, failureThreshold, 60000);
+    }
+
+    private Device device(ConnectionProtocol protocol) {
+        Device device = new Device();
+        device.setId(UUID.randomUUID());
+        device.setName("Устройство " + protocol);
+        device.setProtocol(protocol);
+        return device;
+    }
+
+    /**
+     * Адаптер с заданной задержкой и результатом, считает вызовы
+     */
+    private static class TestAdapter implements ProtocolAdapter {
+        private final Set<ConnectionProtocol> protocols;
+        private final long delayMs;
+        private final boolean result;
+        private final int priority;
+        private final AtomicInteger calls = new AtomicInteger();
+        private boolean unreachable;
+
+        private TestAdapter(Set<ConnectionProtocol> protocols, long delayMs, boolean result, int priority) {
+            this.protocols = protocols;
+            this.delayMs = delayMs;
+            this.result = result;
+            this.priority = priority;
+        }
+
+        /**
+         * Адаптер, у которого нет связи с устройствами: каждый вызов завершается исключением
+         */
+        private static TestAdapter unreachable(Set<ConnectionProtocol> protocols) {
+            TestAdapter adapter = new TestAdapter(protocols, 0, false, 0);
+            adapter.unreachable = true;
+            return adapter;
+        }
+
+        @Override
+        public Set<ConnectionProtocol> supportedProtocols() {
+            return protocols;
+        }
+
+        @Override
+        public int maxConcurrency() {
+            return 2;
+        }
+
+        @Override
+        public int priority() {
+            return priority;
+        }
+
+        @Override
+        public boolean sendCommand(Device device, String command, Map<String, String> parameters) {
+            calls.incrementAndGet();
+            if (delayMs > 0) {
+                try {
+                    Thread.sleep(delayMs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (unreachable) {
+                throw new IllegalStateException("Нет связи с устройством " + device.getName());
+            }
+            return result;
+        }
+
+        @Override
+        public boolean checkDeviceStatus(Device device) {
+            return true;
+        }
+
+        @Override
+        public Map<String, String> getDeviceProperties(Device device) {
+            return Map.of();
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.example.Smarthome.service;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Состояния предохранителя протокола и результаты вызовов, завершившихся после его размыкания
+ */
+public class ProtocolCircuitBreakerTest {
+
+    @Test
+    @DisplayName("Тест: поздний успех вызова, допущенного до размыкания, не замыкает предохранитель")
+    public void testLateSuccessIgnoredWhileOpen() {
+        // Arrange
+        ProtocolCircuitBreaker breaker = new ProtocolCircuitBreaker(2, 1000);
+        ProtocolCircuitBreaker.Admission slowCall = breaker.tryAcquire(0);
+        breaker.onFailure(breaker.tryAcquire(0), 0);
+        breaker.onFailure(breaker.tryAcquire(0), 0);
+
+        // Act
+        breaker.onSuccess(slowCall);
+
+        // Assert
+        assertEquals(ProtocolCircuitBreaker.State.OPEN, breaker.state());
+        assertEquals(ProtocolCircuitBreaker.Admission.REJECTED, breaker.tryAcquire(500));
+    }
+
+    @Test
+    @DisplayName("Тест: замыкает предохранитель только успех пробного вызова")
+    public void testTrialSuccessCloses() {
+        // Arrange
+        ProtocolCircuitBreaker breaker = new ProtocolCircuitBreaker(1, 1000);
+        ProtocolCircuitBreaker.Admission slowCall = breaker.tryAcquire(0);
+        breaker.onFailure(breaker.tryAcquire(0), 0);
+
+        // Act
+        ProtocolCircuitBreaker.Admission trial = breaker.tryAcquire(1000);
+        ProtocolCircuitBreaker.Admission second = breaker.tryAcquire(1000);
+        breaker.onSuccess(slowCall);
+        ProtocolCircuitBreaker.State afterLateSuccess = breaker.state();
+        breaker.onSuccess(trial);
+
+        // Assert
+        assertEquals(ProtocolCircuitBreaker.Admission.TRIAL, trial);
+        assertEquals(ProtocolCircuitBreaker.Admission.REJECTED, second);
+        assertEquals(ProtocolCircuitBreaker.State.HALF_OPEN, afterLateSuccess);
+        assertEquals(ProtocolCircuitBreaker.State.CLOSED, breaker.state());
+        assertEquals(ProtocolCircuitBreaker.Admission.ADMITTED, breaker.tryAcquire(1000));
+    }
+}
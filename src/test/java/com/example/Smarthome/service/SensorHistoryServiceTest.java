@@ -0,0 +1,94 @@
+package com.example.Smarthome.service;
+
+import com.example.Smarthome.dto.SensorHistoryDto;
+import com.example.Smarthome.model.SensorHistory;
+import com.example.Smarthome.repository.SensorHistoryRepository;
+import com.example.Smarthome.retention.RetentionPolicy;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+public class SensorHistoryServiceTest {
+
+    @Mock
+    private SensorHistoryRepository sensorHistoryRepository;
+
+    @Mock
+    private RetentionPolicy retentionPolicy;
+
+    @Mock
+    private HistoryBatchWriter historyBatchWriter;
+
+    @InjectMocks
+    private SensorHistoryService sensorHistoryService;
+
+    @Test
+    @DisplayName("Тест подтверждения всех записей одним запросом с границей по умолчанию")
+    public void testAcknowledgeAllEventsDefaultBound() {
+        // Arrange
+        when(sensorHistoryRepository.acknowledgeAllUntil(any(LocalDateTime.class))).thenReturn(42);
+        LocalDateTime before = LocalDateTime.now();
+
+        // Act
+        int count = sensorHistoryService.acknowledgeAllEvents(null);
+
+        // Assert
+        ArgumentCaptor<LocalDateTime> until = ArgumentCaptor.forClass(LocalDateTime.class);
+        verify(sensorHistoryRepository).acknowledgeAllUntil(until.capture());
+        assertEquals(42, count);
+        assertFalse(until.getValue().isBefore(before));
+        verify(sensorHistoryRepository, never()).save(any());
+    }
+
+    @Test
+    @DisplayName("Тест подтверждения записей датчика с заданной границей")
+    public void testAcknowledgeAllEventsForDevice() {
+        // Arrange
+        UUID deviceId = UUID.randomUUID();
+        LocalDateTime until = LocalDateTime.of(2024, 3, 1, 12, 0);
+        when(sensorHistoryRepository.acknowledgeAllForDeviceUntil(deviceId, until)).thenReturn(3);
+
+        // Act
+        int count = sensorHistoryService.acknowledgeAllEventsForDevice(deviceId, until);
+
+        // Assert
+        assertEquals(3, count);
+        verify(sensorHistoryRepository).acknowledgeAllForDeviceUntil(deviceId, until);
+    }
+
+    @Test
+    @DisplayName("Тест добавления записи через пакетную запись истории")
+    public void testAppendSensorHistoryEntry() {
+        // Arrange
+        UUID deviceId = UUID.randomUUID();
+        SensorHistoryDto dto = new SensorHistoryDto();
+        dto.setSensorType("smoke");
+        dto.setValue("true");
+        dto.setPriority("critical");
+        when(retentionPolicy.sensorRetentionDays("smoke", "critical")).thenReturn(365);
+
+        // Act
+        SensorHistoryDto result = sensorHistoryService.appendSensorHistoryEntry(deviceId, dto);
+
+        // Assert
+        ArgumentCaptor<SensorHistory> entry = ArgumentCaptor.forClass(SensorHistory.class);
+        verify(historyBatchWriter).append(entry.capture());
+        verify(sensorHistoryRepository, never()).save(any());
+        assertNotNull(entry.getValue().getId());
+        assertEquals(365, entry.getValue().getRetentionDays());
+        assertEquals(entry.getValue().getId().toString(), result.getId());
+        assertFalse(result.getAcknowledged());
+    }
+}
@@ -0,0 +1,213 @@
+package com.example.Smarthome.service;
+
+import com.example.Smarthome.model.ConnectionProtocol;
+import com.example.Smarthome.model.Device;
+import com.example.Smarthome.model.DeviceStatus;
+import com.example.Smarthome.repository.DeviceRepository;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.client.RestTemplate;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Сравнение режимов отправки телеметрии на локальном mock-сервере ThingsBoard:
+ * количество запросов и объём запросов (строка запроса, заголовки и тело)
+ */
+public class ThingsBoardUplinkModeTest {
+
+    private static final int DEVICE_COUNT = 50;
+
+    private HttpServer mockThingsBoard;
+    private final List<String> requestPaths = new CopyOnWriteArrayList<>();
+    private final List<byte[]> requestBodies = new CopyOnWriteArrayList<>();
+    private final AtomicLong requestBytes = new AtomicLong();
+
+    private ThingsBoardIntegrationService thingsBoardService;
+    private List<Device> devices;
+    private String baseUrl;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        // Локальный mock ThingsBoard: принимает любые POST и считает запросы и байты
+        mockThingsBoard = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mockThingsBoard.createContext("/", exchange -> {
+            try (InputStream body = exchange.getRequestBody()) {
+                byte[] bytes = body.readAllBytes();
+                requestPaths.add(exchange.getRequestURI().getPath());
+                requestBodies.add(bytes);
+                long headerBytes = (exchange.getRequestMethod() + " " + exchange.getRequestURI() + " HTTP/1.1\r\n")
+                        .getBytes(StandardCharsets.UTF_8).length;
+                for (Map.Entry<String, List<String>> header : exchange.getRequestHeaders().entrySet()) {
+                    for (String value : header.getValue()) {
+                        headerBytes += (header.getKey() + ": " + value + "\r\n").getBytes(StandardCharsets.UTF_8).length;
+                    }
+                }
+                requestBytes.addAndGet(headerBytes + bytes.length);
+            }
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        });
+        mockThingsBoard.start();
+        baseUrl = "http://127.0.0.1:" + mockThingsBoard.getAddress().getPort();
+
+        thingsBoardService = newService();
+
+        devices = new ArrayList<>();
+        for (int i = 0; i < DEVICE_COUNT; i++) {
+            Device device = new Device();
+            device.setId(UUID.randomUUID());
+            device.setName("Устройство " + i);
+            device.setStatus(DeviceStatus.ONLINE);
+            device.setProtocol(ConnectionProtocol.MQTT);
+            device.setThingsboardToken("token-" + i);
+            device.setProperties(new HashMap<>());
+            device.getProperties().put("tb_power", "on");
+            device.getProperties().put("tb_brightness", String.valueOf(i));
+            device.getProperties().put("attr_client_model", "X");
+            devices.add(device);
+        }
+    }
+
+    @AfterEach
+    public void tearDown() {
+        mockThingsBoard.stop(0);
+    }
+
+    @Test
+    @DisplayName("Тест отправки телеметрии по токену каждого устройства")
+    public void testPerTokenUplink() {
+        // Act
+        for (Device device : devices) {
+            assertTrue(thingsBoardService.sendDeviceUpdate(device));
+        }
+
+        // Assert
+        assertEquals(DEVICE_COUNT, requestPaths.size());
+        assertTrue(requestPaths.contains("/api/v1/token-0/telemetry"));
+    }
+
+    @Test
+    @DisplayName("Тест пакетной отправки телеметрии в формате шлюза")
+    public void testGatewayUplink() throws IOException {
+        // Arrange
+        ReflectionTestUtils.setField(thingsBoardService, "uplinkMode", "gateway");
+        ReflectionTestUtils.setField(thingsBoardService, "gatewayTelemetryUrl", baseUrl + "/gateway/telemetry");
+        assertTrue(thingsBoardService.isGatewayUplinkEnabled());
+
+        // Act
+        assertTrue(thingsBoardService.sendGatewayTelemetry(devices));
+
+        // Assert
+        assertEquals(1, requestPaths.size());
+        Map<String, List<Map<String, Object>>> payload = new ObjectMapper().readValue(requestBodies.get(0),
+                new TypeReference<Map<String, List<Map<String, Object>>>>() {});
+        assertEquals(DEVICE_COUNT, payload.size());
+
+        Map<String, Object> entry = payload.get("Устройство 7").get(0);
+        assertNotNull(entry.get("ts"));
+        @SuppressWarnings("unchecked")
+        Map<String, Object> values = (Map<String, Object>) entry.get("values");
+        assertEquals("on", values.get("power"));
+        assertEquals("7", values.get("brightness"));
+        assertEquals("ONLINE", values.get("status"));
+        assertFalse(values.containsKey("attr_client_model"));
+    }
+
+    @Test
+    @DisplayName("Тест: режим шлюза сокращает число запросов и объём передаваемых данных")
+    public void testGatewayUplinkReducesRequestsAndBytes() {
+        // Arrange
+        for (Device device : devices) {
+            thingsBoardService.sendDeviceUpdate(device);
+        }
+        int perTokenRequests = requestPaths.size();
+        long perTokenBytes = requestBytes.getAndSet(0);
+        requestPaths.clear();
+        ThingsBoardIntegrationService gatewayService = newService();
+        ReflectionTestUtils.setField(gatewayService, "uplinkMode", "gateway");
+        ReflectionTestUtils.setField(gatewayService, "gatewayTelemetryUrl", baseUrl + "/gateway/telemetry");
+
+        // Act
+        assertTrue(gatewayService.sendGatewayTelemetry(devices));
+
+        // Assert
+        assertEquals(DEVICE_COUNT, perTokenRequests);
+        assertEquals(1, requestPaths.size());
+        assertTrue(requestBytes.get() < perTokenBytes / 2,
+                "gateway: " + requestBytes.get() + " байт, per-token: " + perTokenBytes + " байт");
+    }
+
+    @Test
+    @DisplayName("Тест: устройства с одинаковыми именами отправляются отдельными запросами шлюза")
+    public void testGatewayUplinkDuplicateNames() throws IOException {
+        // Arrange
+        ReflectionTestUtils.setField(thingsBoardService, "uplinkMode", "gateway");
+        ReflectionTestUtils.setField(thingsBoardService, "gatewayTelemetryUrl", baseUrl + "/gateway/telemetry");
+        devices.get(1).setName("Устройство 0");
+
+        // Act
+        assertTrue(thingsBoardService.sendGatewayTelemetry(devices));
+        assertTrue(thingsBoardService.sendGatewayTelemetry(devices));
+
+        // Assert: два запроса с разными значениями одного имени, повторная отправка ничего не шлёт
+        assertEquals(2, requestPaths.size());
+        List<String> brightness = new ArrayList<>();
+        for (byte[] body : requestBodies) {
+            Map<String, List<Map<String, Object>>> payload = new ObjectMapper().readValue(body,
+                    new TypeReference<Map<String, List<Map<String, Object>>>>() {});
+            @SuppressWarnings("unchecked")
+            Map<String, Object> values = (Map<String, Object>) payload.get("Устройство 0").get(0).get("values");
+            brightness.add((String) values.get("brightness"));
+        }
+        assertTrue(brightness.containsAll(List.of("0", "1")));
+    }
+
+    @Test
+    @DisplayName("Тест повторной пакетной отправки без изменений")
+    public void testGatewayUplinkSkipsUnchanged() {
+        // Arrange
+        ReflectionTestUtils.setField(thingsBoardService, "uplinkMode", "gateway");
+        ReflectionTestUtils.setField(thingsBoardService, "gatewayTelemetryUrl", baseUrl + "/gateway/telemetry");
+        thingsBoardService.sendGatewayTelemetry(devices);
+
+        // Act
+        devices.get(3).getProperties().put("tb_power", "off");
+        assertTrue(thingsBoardService.sendGatewayTelemetry(devices));
+        assertTrue(thingsBoardService.sendGatewayTelemetry(devices));
+
+        // Assert: второй запрос содержит одно устройство, третьего запроса нет
+        assertEquals(2, requestPaths.size());
+        String second = new String(requestBodies.get(1));
+        assertTrue(second.contains("Устройство 3"));
+        assertFalse(second.contains("Устройство 4"));
+    }
+
+    private ThingsBoardIntegrationService newService() {
+        ThingsBoardIntegrationService service = new ThingsBoardIntegrationService(new RestTemplate(),
+                mock(DeviceRepository.class), new TelemetryDeltaTracker(new SimpleMeterRegistry(), 3600000));
+        ReflectionTestUtils.setField(service, "thingsBoardUrl", baseUrl);
+        ReflectionTestUtils.setField(service, "deviceService", mock(DeviceService.class));
+        return service;
+    }
+}
@@ -0,0 +1,113 @@
+package com.example.Smarthome.service;
+
+import com.example.Smarthome.model.Device;
+import com.example.Smarthome.repository.DeviceRepository;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.net.http.WebSocket;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Подписки WebSocket ThingsBoard: учёт подписанных устройств по ответам сервера
+ */
+public class ThingsBoardWebSocketSubscriberTest {
+
+    @Test
+    @DisplayName("Тест: ответ с errorCode снимает устройство с подписки, следующее обновление подписывает его заново")
+    public void testErrorReplyDropsDevice() {
+        // Arrange
+        Device device = new Device();
+        device.setId(UUID.randomUUID());
+        device.setThingsboardToken("token");
+        device.setThingsboardDeviceId("tb-device");
+        DeviceRepository deviceRepository = mock(DeviceRepository.class);
+        when(deviceRepository.findAllByThingsboardTokenIsNotNull()).thenReturn(List.of(device));
+        RecordingWebSocket ws = new RecordingWebSocket();
+        ThingsBoardWebSocketSubscriber subscriber = new ThingsBoardWebSocketSubscriber(
+                deviceRepository, null, null, null, new ObjectMapper());
+        ReflectionTestUtils.setField(subscriber, "webSocket", ws);
+        ReflectionTestUtils.setField(subscriber, "connected", true);
+        subscriber.resubscribe();
+        assertTrue(subscriber.isSubscribed(device.getId()));
+
+        // Act
+        subscriber.handleUpdate("{\"subscriptionId\": 1, \"errorCode\": 500, \"errorMsg\": \"Device not found\"}");
+
+        // Assert
+        assertFalse(subscriber.isSubscribed(device.getId()));
+        assertEquals(2, ws.sent.size());
+        assertTrue(ws.sent.get(1).contains("\"unsubscribe\":true"));
+        assertFalse(ws.sent.get(1).contains("\"tsSubCmds\":[{"));
+
+        subscriber.resubscribe();
+        assertTrue(subscriber.isSubscribed(device.getId()));
+        assertEquals(3, ws.sent.size());
+    }
+
+    /**
+     * WebSocket без сети: запоминает отправленные сообщения
+     */
+    private static class RecordingWebSocket implements WebSocket {
+        private final List<String> sent = new CopyOnWriteArrayList<>();
+
+        @Override
+        public CompletableFuture<WebSocket> sendText(CharSequence data, boolean last) {
+            sent.add(data.toString());
+            return CompletableFuture.completedFuture(this);
+        }
+
+        @Override
+        public CompletableFuture<WebSocket> sendBinary(ByteBuffer data, boolean last) {
+            return CompletableFuture.completedFuture(this);
+        }
+
+        @Override
+        public CompletableFuture<WebSocket> sendPing(ByteBuffer message) {
+            return CompletableFuture.completedFuture(this);
+        }
+
+        @Override
+        public CompletableFuture<WebSocket> sendPong(ByteBuffer message) {
+            return CompletableFuture.completedFuture(this);
+        }
+
+        @Override
+        public CompletableFuture<WebSocket> sendClose(int statusCode, String reason) {
+            return CompletableFuture.completedFuture(this);
+        }
+
+        @Override
+        public void request(long n) {
+        }
+
+        @Override
+        public String getSubprotocol() {
+            return "";
+        }
+
+        @Override
+        public boolean isOutputClosed() {
+            return false;
+        }
+
+        @Override
+        public boolean isInputClosed() {
+            return false;
+        }
+
+        @Override
+        public void abort() {
+        }
+    }
+}
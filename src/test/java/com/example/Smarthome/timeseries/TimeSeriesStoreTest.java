@@ -0,0 +1,224 @@
+package com.example.Smarthome.timeseries;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TimeSeriesStoreTest {
+
+    private static final long DAY_MS = 24 * 3_600_000L;
+
+    @TempDir
+    Path directory;
+
+    private TimeSeriesStore store;
+
+    @AfterEach
+    public void tearDown() {
+        if (store != null) {
+            store.close();
+        }
+    }
+
+    private TimeSeriesStore openStore(int chunkMaxPoints) throws IOException {
+        return openStore(chunkMaxPoints, 30 * DAY_MS);
+    }
+
+    private TimeSeriesStore openStore(int chunkMaxPoints, long retentionMs) throws IOException {
+        TimeSeriesStore opened = new TimeSeriesStore(directory.toString(), 1 << 16, chunkMaxPoints,
+                7200000, 300000, "temperature,humidity", retentionMs);
+        opened.open();
+        return opened;
+    }
+
+    /**
+     * Количество точек ряда, записанных на диск: читает каталог вторым экземпляром хранилища
+     */
+    private int queryReopened(UUID deviceId, String key, long from) throws IOException {
+        TimeSeriesStore reopened = openStore(120);
+        try {
+            return reopened.query(deviceId, key, from, Long.MAX_VALUE).size();
+        } finally {
+            reopened.close();
+        }
+    }
+
+    private long segmentCount() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.getFileName().toString().startsWith("segment-")).count();
+        }
+    }
+
+    @Test
+    @DisplayName("Тест сжатия и распаковки фрагмента")
+    public void testChunkRoundTrip() {
+        // Arrange: неравномерные интервалы, повторяющиеся и произвольные значения
+        Random random = new Random(42);
+        ChunkEncoder encoder = new ChunkEncoder();
+        List<DataPoint> expected = new ArrayList<>();
+        long ts = 1_700_000_000_000L;
+        double value = 21.5;
+        for (int i = 0; i < 500; i++) {
+            ts += random.nextInt(10) < 7 ? 10_000 : random.nextInt(3_000_000);
+            if (random.nextInt(3) == 0) {
+                value = Math.round((value + random.nextGaussian()) * 10) / 10.0;
+            }
+            double point = i % 50 == 0 ? Double.NaN : value;
+            encoder.append(ts, point);
+            expected.add(new DataPoint(ts, point));
+        }
+
+        // Act
+        List<DataPoint> decoded = new ArrayList<>();
+        ChunkDecoder.decode(encoder.toByteArray(), encoder.count(),
+                (t, v) -> decoded.add(new DataPoint(t, v)));
+
+        // Assert
+        assertEquals(expected, decoded);
+        assertTrue(encoder.byteLength() < expected.size() * 16 / 2,
+                "Сжатый размер " + encoder.byteLength() + " байт");
+    }
+
+    @Test
+    @DisplayName("Тест записи и чтения истории с сохранением на диск")
+    public void testRecordQueryAndReopen() throws IOException {
+        // Arrange
+        store = openStore(10);
+        UUID deviceId = UUID.randomUUID();
+        long start = 1_700_000_000_000L;
+        for (int i = 0; i < 25; i++) {
+            assertTrue(store.record(deviceId, "temperature", start + i * 60_000L, 20 + i * 0.5));
+        }
+
+        // Act
+        List<DataPoint> all = store.query(deviceId, "temperature", start, start + 24 * 60_000L);
+        List<DataPoint> range = store.query(deviceId, "temperature", start + 5 * 60_000L, start + 14 * 60_000L);
+
+        // Assert
+        assertEquals(25, all.size());
+        assertEquals(new DataPoint(start + 24 * 60_000L, 32.0), all.get(24));
+        assertEquals(10, range.size());
+        assertEquals(22.5, range.get(0).value());
+
+        // Act: после закрытия данные читаются из файлов сегментов
+        store.close();
+        store = openStore(10);
+        List<DataPoint> reopened = store.query(deviceId, "temperature", start, start + 24 * 60_000L);
+
+        // Assert
+        assertEquals(all, reopened);
+        assertFalse(store.record(deviceId, "temperature", start, 1.0));
+    }
+
+    @Test
+    @DisplayName("Тест выбора разрешения и агрегатов по maxPoints")
+    public void testAggregatedQuery() throws IOException {
+        // Arrange: 3 часа точек каждые 10 секунд
+        store = openStore(120);
+        UUID deviceId = UUID.randomUUID();
+        long start = 1_700_000_000_000L / 3_600_000L * 3_600_000L;
+        long end = start + 3 * 3_600_000L - 1;
+        for (int i = 0; i < 1080; i++) {
+            store.record(deviceId, "temperature", start + i * 10_000L, i % 60);
+        }
+
+        // Act & Assert
+        assertEquals(Resolution.RAW, store.chooseResolution(deviceId, "temperature", start, end, 2000));
+        assertEquals(1080, store.queryAggregated(deviceId, "temperature", start, end, 2000).size());
+
+        List<AggregatePoint> minutes = store.queryAggregated(deviceId, "temperature", start, end, 500);
+        assertEquals(180, minutes.size());
+        assertEquals(new AggregatePoint(start, 0, 5, 2.5, 6), minutes.get(0));
+
+        assertEquals(12, store.queryAggregated(deviceId, "temperature", start, end, 15).size());
+
+        List<AggregatePoint> hours = store.queryAggregated(deviceId, "temperature", start, end, 5);
+        assertEquals(3, hours.size());
+        assertEquals(new AggregatePoint(start + 3_600_000L, 0, 59, 29.5, 360), hours.get(1));
+
+        // Act: после перезапуска незавершённые интервалы восстанавливаются из исходных точек
+        store.close();
+        store = openStore(120);
+
+        // Assert
+        assertEquals(hours, store.queryAggregated(deviceId, "temperature", start, end, 5));
+        assertEquals(minutes, store.queryAggregated(deviceId, "temperature", start, end, 500));
+    }
+
+    @Test
+    @DisplayName("Тест записи только отслеживаемых числовых свойств")
+    public void testRecordProperties() throws IOException {
+        // Arrange
+        store = openStore(120);
+        UUID deviceId = UUID.randomUUID();
+
+        // Act
+        store.recordProperties(deviceId, Map.of("tb_humidity", "45.5", "power", "on", "temperature", "n/a"), 1000L);
+
+        // Assert
+        assertEquals(List.of(new DataPoint(1000L, 45.5)), store.query(deviceId, "humidity", 0, 2000));
+        assertTrue(store.query(deviceId, "temperature", 0, 2000).isEmpty());
+        assertTrue(store.query(deviceId, "power", 0, 2000).isEmpty());
+    }
+
+    @Test
+    @DisplayName("Тест удаления сегментов старше срока хранения")
+    public void testDropExpiredSegments() throws IOException {
+        // Arrange: старые точки занимают несколько сегментов, свежая точка - в памяти
+        store = openStore(10, DAY_MS);
+        UUID deviceId = UUID.randomUUID();
+        long start = 1_700_000_000_000L;
+        for (int i = 0; i < 20_000; i++) {
+            store.record(deviceId, "temperature", start + i * 10_000L, i % 100);
+        }
+        long now = start + 10 * DAY_MS;
+        store.record(deviceId, "humidity", now, 40);
+        long segmentsBefore = segmentCount();
+
+        // Act
+        store.dropExpiredSegments(now);
+
+        // Assert: остаётся только текущий сегмент записи
+        assertTrue(segmentsBefore > 1, "Сегментов до удаления: " + segmentsBefore);
+        assertEquals(1, segmentCount());
+        assertFalse(Files.exists(directory.resolve("segment-000000.dat")));
+        List<DataPoint> remaining = store.query(deviceId, "temperature", start, now);
+        assertTrue(remaining.size() < 20_000);
+        assertEquals(start + 19_999 * 10_000L, remaining.get(remaining.size() - 1).timestamp());
+        assertEquals(List.of(new DataPoint(now, 40)), store.query(deviceId, "humidity", now, now));
+    }
+
+    @Test
+    @DisplayName("Тест записи на диск фрагмента, находящегося в памяти дольше max-age")
+    public void testSealChunksByAge() throws IOException {
+        // Arrange: ряд без агрегатов, чтобы второй экземпляр хранилища ничего не дописывал в сегменты
+        store = openStore(120);
+        UUID deviceId = UUID.randomUUID();
+        String key = "temperature@1m.max";
+        long start = System.currentTimeMillis() - 10 * 60_000L;
+        for (int i = 0; i < 5; i++) {
+            store.record(deviceId, key, start + i * 60_000L, 20 + i);
+        }
+        store.sealExpiredChunks(System.currentTimeMillis());
+        assertEquals(0, queryReopened(deviceId, key, start));
+
+        // Act
+        store.sealExpiredChunks(System.currentTimeMillis() + 300_000);
+
+        // Assert: точки читаются из сегментов, хотя хранилище не закрывалось
+        assertEquals(5, queryReopened(deviceId, key, start));
+    }
+}